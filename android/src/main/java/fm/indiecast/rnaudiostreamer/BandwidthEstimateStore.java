@@ -0,0 +1,65 @@
+package fm.indiecast.rnaudiostreamer;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+import com.google.android.exoplayer.upstream.BandwidthMeter;
+
+/**
+ * Remembers the last bandwidth estimate for each network, so that a stream started on a known
+ * network picks its first format from what was measured there before.
+ * <p>
+ * A network is identified by its type and subtype and by a hash of its extra info, which is the
+ * SSID for Wi-Fi and the APN for cellular connections. Only the hash is stored.
+ */
+class BandwidthEstimateStore {
+    private static final String PREFERENCES_NAME = "RNAudioStreamer.bandwidth";
+    private static final String NO_NETWORK = "none";
+
+    private final Context context;
+    private final SharedPreferences preferences;
+
+    BandwidthEstimateStore(Context context) {
+        this.context = context;
+        this.preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Returns a key for the active network, or "none" if there is none or it cannot be determined.
+     */
+    String getNetworkKey() {
+        ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo info;
+        try {
+            info = connectivityManager.getActiveNetworkInfo();
+        } catch (SecurityException e) {
+            // The host app does not hold ACCESS_NETWORK_STATE.
+            return NO_NETWORK;
+        }
+        if (info == null || !info.isConnected()) {
+            return NO_NETWORK;
+        }
+        String extraInfo = info.getExtraInfo();
+        return info.getTypeName() + "/" + info.getSubtypeName() + "/"
+                + (extraInfo == null ? 0 : Integer.toHexString(extraInfo.hashCode()));
+    }
+
+    /**
+     * Returns the estimate saved for the network, or {@link BandwidthMeter#NO_ESTIMATE}.
+     */
+    long load(String networkKey) {
+        if (NO_NETWORK.equals(networkKey)) {
+            return BandwidthMeter.NO_ESTIMATE;
+        }
+        return preferences.getLong(networkKey, BandwidthMeter.NO_ESTIMATE);
+    }
+
+    void save(String networkKey, long estimate) {
+        if (NO_NETWORK.equals(networkKey) || estimate == BandwidthMeter.NO_ESTIMATE) {
+            return;
+        }
+        preferences.edit().putLong(networkKey, estimate).apply();
+    }
+}
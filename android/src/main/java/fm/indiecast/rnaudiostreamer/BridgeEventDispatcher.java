@@ -0,0 +1,164 @@
+package fm.indiecast.rnaudiostreamer;
+
+import android.os.Handler;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.bridge.ReadableMapKeySetIterator;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
+
+/**
+ * Sends player events to JS, deduplicating and coalescing them so that a burst of updates
+ * crosses the bridge once.
+ * <p>
+ * Updates are collected for {@code coalescingWindowMs} and then flushed on the handler's thread.
+ * A status equal to the last one sent is dropped. In legacy mode only the status is sent, as the
+ * {@link #STATUS_EVENT} string event. In batched mode everything that changed within the window is
+ * sent as a single {@link #UPDATE_EVENT} map.
+ */
+class BridgeEventDispatcher {
+    static final String STATUS_EVENT = "RNAudioStreamerStatusChanged";
+    static final String UPDATE_EVENT = "RNAudioStreamerUpdate";
+
+    private final ReactApplicationContext reactContext;
+    private final Handler handler;
+
+    private long coalescingWindowMs;
+    private boolean batched = false;
+
+    private String lastSentStatus;
+    private String pendingStatus;
+    private WritableMap pendingFields;
+    private boolean flushScheduled = false;
+
+    private long eventsEmitted;
+    private long eventsSuppressed;
+
+    BridgeEventDispatcher(ReactApplicationContext reactContext, Handler handler, long coalescingWindowMs) {
+        this.reactContext = reactContext;
+        this.handler = handler;
+        this.coalescingWindowMs = coalescingWindowMs;
+    }
+
+    synchronized void setCoalescingWindowMs(long coalescingWindowMs) {
+        this.coalescingWindowMs = coalescingWindowMs;
+    }
+
+    synchronized void setBatched(boolean batched) {
+        this.batched = batched;
+    }
+
+    synchronized boolean isBatched() {
+        return batched;
+    }
+
+    synchronized void updateStatus(String status) {
+        if (pendingStatus != null) {
+            // Replaces a status that was never sent.
+            eventsSuppressed++;
+        }
+        pendingStatus = status;
+        scheduleFlush();
+    }
+
+    /**
+     * Adds fields to the next batched update, replacing any pending values of the same fields.
+     * Ignored in legacy mode.
+     */
+    synchronized void updateFields(WritableMap fields) {
+        if (!batched) {
+            return;
+        }
+        if (pendingFields == null) {
+            pendingFields = Arguments.createMap();
+        } else {
+            ReadableMapKeySetIterator keys = fields.keySetIterator();
+            while (keys.hasNextKey()) {
+                if (pendingFields.hasKey(keys.nextKey())) {
+                    // Replaces values that were never sent.
+                    eventsSuppressed++;
+                    break;
+                }
+            }
+        }
+        pendingFields.merge(fields);
+        scheduleFlush();
+    }
+
+    /**
+     * Sends pending updates now, for statuses that JS must see even within a burst.
+     */
+    void flushNow() {
+        handler.removeCallbacks(flushRunnable);
+        handler.post(flushRunnable);
+    }
+
+    /**
+     * Sends pending updates on the calling thread, without waiting for the window to end.
+     */
+    void flush() {
+        handler.removeCallbacks(flushRunnable);
+        flushRunnable.run();
+    }
+
+    synchronized long getEventsEmitted() {
+        return eventsEmitted;
+    }
+
+    synchronized long getEventsSuppressed() {
+        return eventsSuppressed;
+    }
+
+    private void scheduleFlush() {
+        if (!flushScheduled) {
+            flushScheduled = true;
+            handler.postDelayed(flushRunnable, coalescingWindowMs);
+        }
+    }
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            String status;
+            WritableMap fields;
+            boolean batched;
+            synchronized (BridgeEventDispatcher.this) {
+                batched = BridgeEventDispatcher.this.batched;
+                flushScheduled = false;
+                status = pendingStatus;
+                fields = pendingFields;
+                pendingStatus = null;
+                pendingFields = null;
+                if (status != null && status.equals(lastSentStatus)) {
+                    eventsSuppressed++;
+                    status = null;
+                }
+                if (status != null) {
+                    lastSentStatus = status;
+                }
+                if (status == null && fields == null) {
+                    return;
+                }
+                eventsEmitted++;
+            }
+            if (!reactContext.hasActiveCatalystInstance()) {
+                return;
+            }
+            DeviceEventManagerModule.RCTDeviceEventEmitter emitter =
+                    reactContext.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class);
+            if (batched) {
+                WritableMap event = Arguments.createMap();
+                if (fields != null) {
+                    event.merge(fields);
+                }
+                if (status != null) {
+                    event.putString("status", status);
+                }
+                emitter.emit(UPDATE_EVENT, event);
+            } else if (status != null) {
+                emitter.emit(STATUS_EVENT, status);
+            }
+        }
+    };
+}
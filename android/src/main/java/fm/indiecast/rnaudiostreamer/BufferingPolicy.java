@@ -0,0 +1,159 @@
+package fm.indiecast.rnaudiostreamer;
+
+import com.google.android.exoplayer.DefaultLoadControl;
+import com.google.android.exoplayer.LoadControl;
+import com.google.android.exoplayer.upstream.Allocator;
+
+/**
+ * How much a player buffers before it starts, before it resumes after a stall, and at most.
+ * <p>
+ * The start and rebuffer thresholds belong to the player. The watermarks and the buffer size are
+ * applied by the {@link TrackRenderersBuilder} to its load control and sample sources; progressive
+ * streams have no load control and are only bounded by the buffer size.
+ */
+public final class BufferingPolicy {
+
+  public static final BufferingPolicy DEFAULT = new BufferingPolicy(1000, 1000,
+    DefaultLoadControl.DEFAULT_LOW_WATERMARK_MS, DefaultLoadControl.DEFAULT_HIGH_WATERMARK_MS, 0,
+    30000, 2);
+
+  /** Starts quickly and stays close to the live edge, keeping only a few seconds ahead. */
+  public static final BufferingPolicy LOW_LATENCY_LIVE = new BufferingPolicy(500, 1000, 2000, 6000,
+    1024 * 1024, 6000, 1);
+
+  /** Keeps at most half a megabyte of media for devices under memory pressure. */
+  public static final BufferingPolicy LOW_MEMORY = new BufferingPolicy(1000, 2000, 5000, 10000,
+    512 * 1024, 30000, 0);
+
+  /** Buffers minutes ahead so that long on-demand episodes survive poor connectivity. */
+  public static final BufferingPolicy PODCAST = new BufferingPolicy(2500, 5000, 60000, 180000,
+    6 * 1024 * 1024, 30000, 4);
+
+  /** The smallest buffer size, one allocation of the players' shared pool. */
+  public static final int MIN_BUFFER_BYTES = 64 * 1024;
+
+  /** Buffered duration before playback starts. */
+  public final int startBufferMs;
+  /** Buffered duration before playback resumes after running out of data. */
+  public final int rebufferMs;
+  /** Below this buffered duration, loading resumes. */
+  public final int lowWatermarkMs;
+  /** Above this buffered duration, loading stops. This is the maximum buffer duration. */
+  public final int highWatermarkMs;
+  /** The maximum buffer size of the audio track in bytes, or 0 for the builder's default. */
+  public final int maxBufferBytes;
+  /**
+   * How far behind the live edge DASH and SmoothStreaming live streams start. HLS live streams
+   * always start three segments behind the end of the playlist.
+   */
+  public final int liveEdgeLatencyMs;
+  /**
+   * How many HLS, DASH and SmoothStreaming audio segments load in parallel ahead of the one being
+   * read, or 0 to load one at a time. Loaded but unread segments count against the buffer size and
+   * take at most half of it.
+   */
+  public final int prefetchSegments;
+
+  // The allocator quota of the player this policy was capped for, or 0 for none.
+  private final int quotaBytes;
+
+  /**
+   * @throws IllegalArgumentException If a duration or count is negative, the low watermark is
+   *     above the high watermark, or the buffer size is below {@link #MIN_BUFFER_BYTES}.
+   */
+  public BufferingPolicy(int startBufferMs, int rebufferMs, int lowWatermarkMs,
+      int highWatermarkMs, int maxBufferBytes, int liveEdgeLatencyMs, int prefetchSegments) {
+    this(startBufferMs, rebufferMs, lowWatermarkMs, highWatermarkMs, maxBufferBytes,
+      liveEdgeLatencyMs, prefetchSegments, 0);
+  }
+
+  private BufferingPolicy(int startBufferMs, int rebufferMs, int lowWatermarkMs,
+      int highWatermarkMs, int maxBufferBytes, int liveEdgeLatencyMs, int prefetchSegments,
+      int quotaBytes) {
+    if (startBufferMs < 0 || rebufferMs < 0 || lowWatermarkMs < 0 || highWatermarkMs < 0
+        || liveEdgeLatencyMs < 0 || prefetchSegments < 0) {
+      throw new IllegalArgumentException("Durations and prefetchSegments must not be negative");
+    }
+    if (lowWatermarkMs > highWatermarkMs) {
+      throw new IllegalArgumentException("lowWatermarkMs " + lowWatermarkMs
+        + " is above highWatermarkMs " + highWatermarkMs);
+    }
+    if (maxBufferBytes != 0 && maxBufferBytes < MIN_BUFFER_BYTES) {
+      throw new IllegalArgumentException("maxBufferBytes " + maxBufferBytes + " is below "
+        + MIN_BUFFER_BYTES);
+    }
+    this.startBufferMs = startBufferMs;
+    this.rebufferMs = rebufferMs;
+    this.lowWatermarkMs = lowWatermarkMs;
+    this.highWatermarkMs = highWatermarkMs;
+    this.maxBufferBytes = maxBufferBytes;
+    this.liveEdgeLatencyMs = liveEdgeLatencyMs;
+    this.prefetchSegments = prefetchSegments;
+    this.quotaBytes = quotaBytes;
+  }
+
+  /**
+   * Returns the preset with the given name ("default", "lowLatencyLive", "lowMemory" or
+   * "podcast"), or null if there is none.
+   */
+  public static BufferingPolicy forPreset(String name) {
+    switch (name) {
+      case "default":
+        return DEFAULT;
+      case "lowLatencyLive":
+        return LOW_LATENCY_LIVE;
+      case "lowMemory":
+        return LOW_MEMORY;
+      case "podcast":
+        return PODCAST;
+      default:
+        return null;
+    }
+  }
+
+  public LoadControl createLoadControl(Allocator allocator) {
+    return new DefaultLoadControl(allocator, null, null, lowWatermarkMs, highWatermarkMs,
+      DefaultLoadControl.DEFAULT_LOW_BUFFER_LOAD, DefaultLoadControl.DEFAULT_HIGH_BUFFER_LOAD);
+  }
+
+  /**
+   * Returns the buffer size for an audio sample source whose builder would otherwise use
+   * {@code defaultSize}, capped to the quota of {@link #forQuota(int)}.
+   */
+  public int getAudioBufferSize(int defaultSize) {
+    int bufferSize = maxBufferBytes > 0 ? maxBufferBytes : defaultSize;
+    return quotaBytes > 0 ? Math.min(bufferSize, quotaBytes) : bufferSize;
+  }
+
+  /**
+   * Returns this policy for a metered network, which prefetches at most one segment so that less
+   * data is wasted when playback stops early.
+   */
+  public BufferingPolicy forMeteredNetwork() {
+    if (prefetchSegments <= 1) {
+      return this;
+    }
+    return new BufferingPolicy(startBufferMs, rebufferMs, lowWatermarkMs, highWatermarkMs,
+      maxBufferBytes, liveEdgeLatencyMs, 1, quotaBytes);
+  }
+
+  /**
+   * Returns this policy for a player whose allocator holds at most {@code quotaBytes}, with the
+   * buffer size capped to it, the builder's default size included. Segments loaded ahead then
+   * leave the sample source at least half of the quota.
+   */
+  public BufferingPolicy forQuota(int quotaBytes) {
+    if (maxBufferBytes != 0 && maxBufferBytes <= quotaBytes) {
+      return this;
+    }
+    return new BufferingPolicy(startBufferMs, rebufferMs, lowWatermarkMs, highWatermarkMs,
+      maxBufferBytes == 0 ? 0 : quotaBytes, liveEdgeLatencyMs, prefetchSegments, quotaBytes);
+  }
+
+  /**
+   * Returns whether a player created for this policy can be reused for {@code other}.
+   */
+  public boolean hasSameThresholds(BufferingPolicy other) {
+    return startBufferMs == other.startBufferMs && rebufferMs == other.rebufferMs;
+  }
+}
@@ -0,0 +1,97 @@
+package fm.indiecast.rnaudiostreamer;
+
+import com.google.android.exoplayer.metadata.MetadataTrackRenderer;
+import com.google.android.exoplayer.metadata.id3.ApicFrame;
+import com.google.android.exoplayer.metadata.id3.BinaryFrame;
+import com.google.android.exoplayer.metadata.id3.GeobFrame;
+import com.google.android.exoplayer.metadata.id3.Id3Frame;
+import com.google.android.exoplayer.metadata.id3.PrivFrame;
+import com.google.android.exoplayer.metadata.id3.TextInformationFrame;
+import com.google.android.exoplayer.metadata.id3.TxxxFrame;
+import com.google.android.exoplayer.util.Util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Passes on only the ID3 frames that changed since the last ones with the same key.
+ * <p>
+ * Live HLS streams repeat the same frames with every segment, so most of them carry nothing new.
+ * A frame's key is its id, plus its description or owner for the frames that may occur several
+ * times in a tag. One filter serves one item of one player, so the frames of another player or
+ * of the next item are all new. Frames arrive on the looper the metadata renderer was
+ * created with.
+ */
+class Id3MetadataFilter implements MetadataTrackRenderer.MetadataRenderer<List<Id3Frame>> {
+    private final MetadataTrackRenderer.MetadataRenderer<List<Id3Frame>> renderer;
+    private final Map<String, Id3Frame> lastFrames = new HashMap<>();
+
+    Id3MetadataFilter(MetadataTrackRenderer.MetadataRenderer<List<Id3Frame>> renderer) {
+        this.renderer = renderer;
+    }
+
+    @Override
+    public void onMetadata(List<Id3Frame> frames) {
+        List<Id3Frame> changed = null;
+        for (Id3Frame frame : frames) {
+            String key = getKey(frame);
+            if (hasSameContent(lastFrames.get(key), frame)) {
+                continue;
+            }
+            lastFrames.put(key, frame);
+            if (changed == null) {
+                changed = new ArrayList<>(frames.size());
+            }
+            changed.add(frame);
+        }
+        if (changed != null) {
+            renderer.onMetadata(changed);
+        }
+    }
+
+    private static String getKey(Id3Frame frame) {
+        if (frame instanceof TxxxFrame) {
+            return frame.id + ":" + ((TxxxFrame) frame).description;
+        } else if (frame instanceof PrivFrame) {
+            return frame.id + ":" + ((PrivFrame) frame).owner;
+        } else if (frame instanceof GeobFrame) {
+            return frame.id + ":" + ((GeobFrame) frame).description;
+        } else if (frame instanceof ApicFrame) {
+            return frame.id + ":" + ((ApicFrame) frame).pictureType;
+        }
+        return frame.id;
+    }
+
+    // The frames do not implement equals.
+    private static boolean hasSameContent(Id3Frame last, Id3Frame frame) {
+        if (last == null || last.getClass() != frame.getClass()) {
+            return false;
+        }
+        if (frame instanceof TxxxFrame) {
+            return Util.areEqual(((TxxxFrame) last).value, ((TxxxFrame) frame).value);
+        } else if (frame instanceof TextInformationFrame) {
+            return Util.areEqual(((TextInformationFrame) last).description,
+                    ((TextInformationFrame) frame).description);
+        } else if (frame instanceof PrivFrame) {
+            return Arrays.equals(((PrivFrame) last).privateData, ((PrivFrame) frame).privateData);
+        } else if (frame instanceof GeobFrame) {
+            GeobFrame lastGeob = (GeobFrame) last;
+            GeobFrame geob = (GeobFrame) frame;
+            return Util.areEqual(lastGeob.mimeType, geob.mimeType)
+                    && Util.areEqual(lastGeob.filename, geob.filename)
+                    && Arrays.equals(lastGeob.data, geob.data);
+        } else if (frame instanceof ApicFrame) {
+            ApicFrame lastApic = (ApicFrame) last;
+            ApicFrame apic = (ApicFrame) frame;
+            return Util.areEqual(lastApic.mimeType, apic.mimeType)
+                    && Util.areEqual(lastApic.description, apic.description)
+                    && Arrays.equals(lastApic.pictureData, apic.pictureData);
+        } else if (frame instanceof BinaryFrame) {
+            return Arrays.equals(((BinaryFrame) last).data, ((BinaryFrame) frame).data);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,71 @@
+package fm.indiecast.rnaudiostreamer;
+
+import android.os.SystemClock;
+
+/**
+ * Estimates how far a live stream plays behind its live edge.
+ * <p>
+ * Playback joins the stream {@code liveEdgeLatencyMs} behind the edge when the player is prepared,
+ * and falls further behind while it waits to start. From then on the latency grows with wall clock
+ * time and shrinks with the playback position, so stalls and pauses add to it and playing faster
+ * than real time takes from it.
+ * <p>
+ * Where the distance to the edge is not known, the latency is measured from the position playback
+ * started at, so only what stalls and pauses add counts, and the target is 0.
+ */
+class LiveLatencyTracker {
+    private final long liveEdgeLatencyMs;
+    private final boolean liveEdgeKnown;
+
+    private long preparedAtMs = -1;
+    private long joinedAtMs = -1;
+    private long joinedPositionMs;
+    private long joinLatencyMs;
+
+    /**
+     * Creates a tracker for a stream that is joined {@code liveEdgeLatencyMs} behind its edge.
+     */
+    LiveLatencyTracker(long liveEdgeLatencyMs) {
+        this(liveEdgeLatencyMs, true);
+    }
+
+    private LiveLatencyTracker(long liveEdgeLatencyMs, boolean liveEdgeKnown) {
+        this.liveEdgeLatencyMs = liveEdgeLatencyMs;
+        this.liveEdgeKnown = liveEdgeKnown;
+    }
+
+    /**
+     * Creates a tracker for a stream joined at an unknown distance from its edge.
+     */
+    static LiveLatencyTracker forUnknownLiveEdge() {
+        return new LiveLatencyTracker(0, false);
+    }
+
+    long getTargetLatencyMs() {
+        return liveEdgeLatencyMs;
+    }
+
+    void onPrepared() {
+        preparedAtMs = SystemClock.elapsedRealtime();
+    }
+
+    void onPlaying(long positionMs) {
+        if (joinedAtMs >= 0 || preparedAtMs < 0) {
+            return;
+        }
+        joinedAtMs = SystemClock.elapsedRealtime();
+        joinedPositionMs = positionMs;
+        // The wait to start only adds to the latency where the join position was set when preparing.
+        joinLatencyMs = liveEdgeKnown ? liveEdgeLatencyMs + joinedAtMs - preparedAtMs : 0;
+    }
+
+    /**
+     * Returns the estimated latency to live, or -1 if playback has not started yet.
+     */
+    long getLatencyMs(long positionMs) {
+        if (joinedAtMs < 0) {
+            return -1;
+        }
+        return joinLatencyMs + (SystemClock.elapsedRealtime() - joinedAtMs) - (positionMs - joinedPositionMs);
+    }
+}
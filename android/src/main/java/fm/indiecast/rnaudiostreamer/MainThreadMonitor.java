@@ -0,0 +1,68 @@
+package fm.indiecast.rnaudiostreamer;
+
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Printer;
+
+/**
+ * Measures how long each message dispatched on the main looper runs, using the looper's message
+ * logging hook. Messages running longer than a frame are counted as blocking.
+ * <p>
+ * The looper supports a single logging printer, so monitoring replaces any other one.
+ */
+class MainThreadMonitor implements Printer {
+    private static final long FRAME_MS = 16;
+
+    private long dispatchStartMs = -1;
+    private long messageCount;
+    private long blockingMessageCount;
+    private long blockedMs;
+    private long maxDispatchMs;
+
+    void start() {
+        Looper.getMainLooper().setMessageLogging(this);
+    }
+
+    void stop() {
+        Looper.getMainLooper().setMessageLogging(null);
+    }
+
+    synchronized void reset() {
+        messageCount = 0;
+        blockingMessageCount = 0;
+        blockedMs = 0;
+        maxDispatchMs = 0;
+    }
+
+    @Override
+    public synchronized void println(String line) {
+        if (line.startsWith(">>>>> Dispatching")) {
+            dispatchStartMs = SystemClock.uptimeMillis();
+        } else if (line.startsWith("<<<<< Finished") && dispatchStartMs >= 0) {
+            long dispatchMs = SystemClock.uptimeMillis() - dispatchStartMs;
+            dispatchStartMs = -1;
+            messageCount++;
+            maxDispatchMs = Math.max(maxDispatchMs, dispatchMs);
+            if (dispatchMs > FRAME_MS) {
+                blockingMessageCount++;
+                blockedMs += dispatchMs;
+            }
+        }
+    }
+
+    synchronized long getMessageCount() {
+        return messageCount;
+    }
+
+    synchronized long getBlockingMessageCount() {
+        return blockingMessageCount;
+    }
+
+    synchronized long getBlockedMs() {
+        return blockedMs;
+    }
+
+    synchronized long getMaxDispatchMs() {
+        return maxDispatchMs;
+    }
+}
@@ -0,0 +1,67 @@
+package fm.indiecast.rnaudiostreamer;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.os.Handler;
+
+/**
+ * Reports changes of the active network, such as a handoff from Wi-Fi to cellular, on the thread
+ * of the given handler.
+ * <p>
+ * Connectivity broadcasts also arrive for changes that keep the active network, so listeners
+ * compare the network themselves. The broadcast that is current when the monitor starts is not
+ * reported.
+ */
+class NetworkMonitor extends BroadcastReceiver {
+    interface Listener {
+        void onNetworkChanged();
+    }
+
+    private final Context context;
+    private final Handler handler;
+    private final Listener listener;
+    private boolean started;
+
+    NetworkMonitor(Context context, Handler handler, Listener listener) {
+        this.context = context;
+        this.handler = handler;
+        this.listener = listener;
+    }
+
+    void start() {
+        if (!started) {
+            started = true;
+            context.registerReceiver(this, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION), null, handler);
+        }
+    }
+
+    void stop() {
+        if (started) {
+            started = false;
+            context.unregisterReceiver(this);
+        }
+    }
+
+    /**
+     * Returns whether the active network is metered, which is assumed when it cannot be determined.
+     */
+    boolean isMetered() {
+        ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        try {
+            return connectivityManager.isActiveNetworkMetered();
+        } catch (SecurityException e) {
+            // The host app does not hold ACCESS_NETWORK_STATE.
+            return true;
+        }
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (!isInitialStickyBroadcast()) {
+            listener.onNetworkChanged();
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package fm.indiecast.rnaudiostreamer;
+
+import android.media.MediaCodec;
+import android.net.Uri;
+import android.os.SystemClock;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+import com.google.android.exoplayer.ExoPlayer;
+import com.google.android.exoplayer.MediaCodecTrackRenderer;
+import com.google.android.exoplayer.audio.AudioTrack;
+import com.google.android.exoplayer.util.Util;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Quality of experience counters for the current playback session, which lasts from one item
+ * becoming current to the next, and totals over all sessions since the module was created.
+ * <p>
+ * Player state changes arrive on the main thread, renderer and sample source events on the
+ * renderer thread, so the counters are atomics and snapshots may be taken from any thread. Only
+ * the current item's events are counted: those of the item preloading next, of a fading item and
+ * of secondary players are dropped by their listeners. Network bytes are the exception, they are
+ * counted for the whole module.
+ */
+class PlaybackMetrics {
+    static final String ERROR_NETWORK = "network";
+    static final String ERROR_DECODER = "decoder";
+    static final String ERROR_AUDIO_TRACK = "audioTrack";
+    static final String ERROR_OTHER = "other";
+
+    static final String CONTENT_DASH = "dash";
+    static final String CONTENT_HLS = "hls";
+    static final String CONTENT_SMOOTH_STREAMING = "smoothStreaming";
+    static final String CONTENT_PROGRESSIVE = "progressive";
+
+    private final Counters totals = new Counters(null, 0);
+    private volatile Counters session = new Counters(null, 0);
+    // Startup time totals per content type, for the builder of each type.
+    private final Map<String, Counters> contentTotals = new ConcurrentHashMap<>();
+
+    // Player state. Requests and state changes arrive on the main thread.
+    private volatile long sessionStartMs = -1;
+    private volatile long playRequestedAtMs = -1;
+    private volatile boolean started;
+    private volatile boolean seeking;
+    private volatile long playingSinceMs = -1;
+    private volatile long bufferingSinceMs = -1;
+
+    /**
+     * Ends the current session and starts one for {@code url}. Returns the ended session.
+     */
+    Counters startSession(String url, long networkBytesRead) {
+        long nowMs = SystemClock.elapsedRealtime();
+        Counters ended = session;
+        onPlayingStopped(nowMs);
+        session = new Counters(url, networkBytesRead);
+        totals.sessions.incrementAndGet();
+        sessionStartMs = nowMs;
+        playRequestedAtMs = -1;
+        started = false;
+        seeking = false;
+        bufferingSinceMs = -1;
+        return ended;
+    }
+
+    void onPlayRequested() {
+        if (!started && playRequestedAtMs < 0) {
+            playRequestedAtMs = SystemClock.elapsedRealtime();
+        }
+    }
+
+    void onSeek() {
+        seeking = true;
+    }
+
+    /**
+     * Returns the startup time if playback started for the first time in this session, otherwise -1.
+     */
+    long onPlayerStateChanged(boolean playWhenReady, int playbackState) {
+        long startupMs = -1;
+        long nowMs = SystemClock.elapsedRealtime();
+        if (playbackState != ExoPlayer.STATE_BUFFERING && bufferingSinceMs >= 0) {
+            add(session.rebufferMs, totals.rebufferMs, nowMs - bufferingSinceMs);
+            bufferingSinceMs = -1;
+        }
+        if (playbackState == ExoPlayer.STATE_BUFFERING) {
+            boolean wasPlaying = playingSinceMs >= 0;
+            onPlayingStopped(nowMs);
+            // Buffering after a seek or before the first start is expected, not a stall.
+            if (wasPlaying && !seeking && bufferingSinceMs < 0) {
+                increment(session.rebuffers, totals.rebuffers);
+                bufferingSinceMs = nowMs;
+            }
+            return startupMs;
+        }
+        seeking = false;
+        if (playbackState == ExoPlayer.STATE_READY && playWhenReady) {
+            if (!started && sessionStartMs >= 0) {
+                started = true;
+                startupMs = nowMs - Math.max(sessionStartMs, playRequestedAtMs);
+                increment(session.startups, totals.startups);
+                add(session.startupMs, totals.startupMs, startupMs);
+                Counters content = getContentTotals(session.contentType);
+                content.startups.incrementAndGet();
+                content.startupMs.addAndGet(startupMs);
+            }
+            if (playingSinceMs < 0) {
+                playingSinceMs = nowMs;
+            }
+        } else {
+            onPlayingStopped(nowMs);
+        }
+        return startupMs;
+    }
+
+    private Counters getContentTotals(String contentType) {
+        Counters counters = contentTotals.get(contentType);
+        if (counters == null) {
+            counters = new Counters(null, 0);
+            Counters previous = contentTotals.putIfAbsent(contentType, counters);
+            if (previous != null) {
+                counters = previous;
+            }
+        }
+        return counters;
+    }
+
+    private void onPlayingStopped(long nowMs) {
+        if (playingSinceMs >= 0) {
+            add(session.playedMs, totals.playedMs, nowMs - playingSinceMs);
+            playingSinceMs = -1;
+        }
+    }
+
+    void onAudioTrackUnderrun() {
+        increment(session.underruns, totals.underruns);
+    }
+
+    void onDecoderInitialized(long initializationDurationMs) {
+        increment(session.decoderInits, totals.decoderInits);
+        add(session.decoderInitMs, totals.decoderInitMs, initializationDurationMs);
+    }
+
+    void onFormatChanged() {
+        // The first format of a session is its initial selection, not a switch.
+        if (session.formats.incrementAndGet() > 1) {
+            totals.bitrateSwitches.incrementAndGet();
+            session.bitrateSwitches.incrementAndGet();
+        }
+    }
+
+    /**
+     * Counts a playback failure that was recovered from without reporting an error.
+     */
+    void onRecovered(long recoveryMs) {
+        increment(session.recoveries, totals.recoveries);
+        add(session.recoveryMs, totals.recoveryMs, recoveryMs);
+    }
+
+    void onNetworkChanged() {
+        increment(session.networkChanges, totals.networkChanges);
+    }
+
+    void onLoadError() {
+        increment(session.loadErrors, totals.loadErrors);
+    }
+
+    void onError(Exception e) {
+        String category = getErrorCategory(e);
+        AtomicInteger sessionCounter;
+        AtomicInteger totalCounter;
+        switch (category) {
+            case ERROR_NETWORK:
+                sessionCounter = session.networkErrors;
+                totalCounter = totals.networkErrors;
+                break;
+            case ERROR_DECODER:
+                sessionCounter = session.decoderErrors;
+                totalCounter = totals.decoderErrors;
+                break;
+            case ERROR_AUDIO_TRACK:
+                sessionCounter = session.audioTrackErrors;
+                totalCounter = totals.audioTrackErrors;
+                break;
+            default:
+                sessionCounter = session.otherErrors;
+                totalCounter = totals.otherErrors;
+                break;
+        }
+        increment(sessionCounter, totalCounter);
+    }
+
+    WritableMap getSessionSnapshot(long networkBytesRead) {
+        return session.toWritableMap(networkBytesRead, getCurrentPlayingMs());
+    }
+
+    WritableMap getTotalsSnapshot(long networkBytesRead) {
+        WritableMap snapshot = totals.toWritableMap(networkBytesRead, getCurrentPlayingMs());
+        WritableMap startupByContentType = Arguments.createMap();
+        for (Map.Entry<String, Counters> entry : contentTotals.entrySet()) {
+            Counters content = entry.getValue();
+            int startupCount = content.startups.get();
+            startupByContentType.putDouble(entry.getKey(),
+                    startupCount == 0 ? 0 : content.startupMs.get() / (double) startupCount);
+        }
+        snapshot.putMap("startupMsByContentType", startupByContentType);
+        return snapshot;
+    }
+
+    private long getCurrentPlayingMs() {
+        long sinceMs = playingSinceMs;
+        return sinceMs < 0 ? 0 : SystemClock.elapsedRealtime() - sinceMs;
+    }
+
+    static String getErrorCategory(Throwable e) {
+        // Player errors wrap the renderer or source failure.
+        while (e != null) {
+            if (e instanceof IOException) {
+                return ERROR_NETWORK;
+            }
+            if (e instanceof MediaCodecTrackRenderer.DecoderInitializationException
+                    || e instanceof MediaCodec.CryptoException) {
+                return ERROR_DECODER;
+            }
+            if (e instanceof AudioTrack.InitializationException || e instanceof AudioTrack.WriteException) {
+                return ERROR_AUDIO_TRACK;
+            }
+            e = e.getCause();
+        }
+        return ERROR_OTHER;
+    }
+
+    /**
+     * Returns the content type the module picks a renderers builder for, from the url alone.
+     */
+    static String getContentType(String url) {
+        switch (Util.inferContentType(Uri.parse(url).getLastPathSegment())) {
+            case Util.TYPE_DASH:
+                return CONTENT_DASH;
+            case Util.TYPE_HLS:
+                return CONTENT_HLS;
+            case Util.TYPE_SS:
+                return CONTENT_SMOOTH_STREAMING;
+            default:
+                return CONTENT_PROGRESSIVE;
+        }
+    }
+
+    private static void increment(AtomicInteger sessionCounter, AtomicInteger totalCounter) {
+        sessionCounter.incrementAndGet();
+        totalCounter.incrementAndGet();
+    }
+
+    private static void add(AtomicLong sessionCounter, AtomicLong totalCounter, long delta) {
+        sessionCounter.addAndGet(delta);
+        totalCounter.addAndGet(delta);
+    }
+
+    static final class Counters {
+        final String url;
+        final String contentType;
+        final long networkBytesAtStart;
+
+        final AtomicInteger sessions = new AtomicInteger();
+        final AtomicInteger startups = new AtomicInteger();
+        final AtomicLong startupMs = new AtomicLong();
+        final AtomicLong playedMs = new AtomicLong();
+        final AtomicInteger rebuffers = new AtomicInteger();
+        final AtomicLong rebufferMs = new AtomicLong();
+        final AtomicInteger underruns = new AtomicInteger();
+        final AtomicInteger decoderInits = new AtomicInteger();
+        final AtomicLong decoderInitMs = new AtomicLong();
+        final AtomicInteger formats = new AtomicInteger();
+        final AtomicInteger bitrateSwitches = new AtomicInteger();
+        final AtomicInteger loadErrors = new AtomicInteger();
+        final AtomicInteger networkErrors = new AtomicInteger();
+        final AtomicInteger decoderErrors = new AtomicInteger();
+        final AtomicInteger audioTrackErrors = new AtomicInteger();
+        final AtomicInteger otherErrors = new AtomicInteger();
+        final AtomicInteger recoveries = new AtomicInteger();
+        final AtomicInteger networkChanges = new AtomicInteger();
+        final AtomicLong recoveryMs = new AtomicLong();
+
+        Counters(String url, long networkBytesAtStart) {
+            this.url = url;
+            this.contentType = url != null ? getContentType(url) : null;
+            this.networkBytesAtStart = networkBytesAtStart;
+        }
+
+        /**
+         * Returns a snapshot. Startup, decoder and recovery times are averages, durations are totals.
+         *
+         * @param currentPlayingMs Time played since playback last started, not yet counted.
+         */
+        WritableMap toWritableMap(long networkBytesRead, long currentPlayingMs) {
+            WritableMap map = Arguments.createMap();
+            if (url != null) {
+                map.putString("url", url);
+                map.putString("contentType", contentType);
+            } else {
+                map.putInt("sessions", sessions.get());
+            }
+            int startupCount = startups.get();
+            map.putDouble("startupMs", startupCount == 0 ? 0 : startupMs.get() / (double) startupCount);
+            long played = playedMs.get() + currentPlayingMs;
+            long rebuffered = rebufferMs.get();
+            map.putDouble("playedMs", played);
+            map.putInt("rebuffers", rebuffers.get());
+            map.putDouble("rebufferMs", rebuffered);
+            map.putDouble("rebufferRatio", played + rebuffered == 0 ? 0 : rebuffered / (double) (played + rebuffered));
+            map.putInt("underruns", underruns.get());
+            int decoderCount = decoderInits.get();
+            map.putDouble("decoderInitMs", decoderCount == 0 ? 0 : decoderInitMs.get() / (double) decoderCount);
+            map.putInt("bitrateSwitches", bitrateSwitches.get());
+            map.putDouble("bytesDownloaded", networkBytesRead - networkBytesAtStart);
+            map.putInt("loadErrors", loadErrors.get());
+            WritableMap errors = Arguments.createMap();
+            errors.putInt(ERROR_NETWORK, networkErrors.get());
+            errors.putInt(ERROR_DECODER, decoderErrors.get());
+            errors.putInt(ERROR_AUDIO_TRACK, audioTrackErrors.get());
+            errors.putInt(ERROR_OTHER, otherErrors.get());
+            map.putMap("errors", errors);
+            int recoveryCount = recoveries.get();
+            map.putInt("recoveries", recoveryCount);
+            map.putDouble("recoveryMs", recoveryCount == 0 ? 0 : recoveryMs.get() / (double) recoveryCount);
+            map.putInt("networkChanges", networkChanges.get());
+            return map;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package fm.indiecast.rnaudiostreamer;
+
+import com.google.android.exoplayer.ExoPlayer;
+import com.google.android.exoplayer.MediaCodecAudioTrackRenderer;
+import com.google.android.exoplayer.TrackRenderer;
+import com.google.android.exoplayer.upstream.Allocator;
+
+/**
+ * A player addressed by id from JS that plays alongside the current item, for example a pre-roll
+ * ad or a second stream mixed with the first.
+ * <p>
+ * It shares the allocator pool, the data sources and the renderer thread with the other players,
+ * and holds its own decoder and at most the bytes of its allocator quota. Its fields are read and
+ * written on the main thread, once it is registered.
+ */
+class PlayerInstance {
+    final String id;
+    final String url;
+    final ExoPlayer player;
+    final Allocator allocator;
+    final ExoPlayer.Listener listener;
+
+    TrackRenderersBuilder trackRenderersBuilder;
+    TrackRenderer audioTrackRenderer;
+    String status;
+    float volume = 1f;
+
+    PlayerInstance(String id, String url, ExoPlayer player, Allocator allocator, ExoPlayer.Listener listener) {
+        this.id = id;
+        this.url = url;
+        this.player = player;
+        this.allocator = allocator;
+        this.listener = listener;
+    }
+
+    void setVolume(float volume) {
+        this.volume = volume;
+        if (audioTrackRenderer != null) {
+            player.sendMessage(audioTrackRenderer, MediaCodecAudioTrackRenderer.MSG_SET_VOLUME, volume);
+        }
+    }
+}
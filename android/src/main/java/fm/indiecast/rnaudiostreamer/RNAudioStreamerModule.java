@@ -1,20 +1,32 @@
 package fm.indiecast.rnaudiostreamer;
 
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.SurfaceTexture;
 import android.media.MediaCodec;
+import android.media.PlaybackParams;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Base64;
 import android.util.Log;
 import android.view.Surface;
 import android.view.TextureView;
 
+import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.Callback;
 import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
 import com.google.android.exoplayer.AspectRatioFrameLayout;
 import com.google.android.exoplayer.DummyTrackRenderer;
@@ -25,36 +37,154 @@ import com.google.android.exoplayer.MediaCodecTrackRenderer;
 import com.google.android.exoplayer.MediaCodecVideoTrackRenderer;
 import com.google.android.exoplayer.TrackRenderer;
 import com.google.android.exoplayer.audio.AudioTrack;
+import com.google.android.exoplayer.chunk.Chunk;
+import com.google.android.exoplayer.chunk.ChunkSampleSource;
+import com.google.android.exoplayer.chunk.Format;
+import com.google.android.exoplayer.chunk.FormatEvaluator;
 import com.google.android.exoplayer.drm.ExoMediaDrm;
 import com.google.android.exoplayer.drm.MediaDrmCallback;
+import com.google.android.exoplayer.hls.HlsSampleSource;
 import com.google.android.exoplayer.metadata.MetadataTrackRenderer;
+import com.google.android.exoplayer.metadata.id3.ApicFrame;
+import com.google.android.exoplayer.metadata.id3.GeobFrame;
 import com.google.android.exoplayer.metadata.id3.Id3Frame;
+import com.google.android.exoplayer.metadata.id3.PrivFrame;
+import com.google.android.exoplayer.metadata.id3.TextInformationFrame;
+import com.google.android.exoplayer.metadata.id3.TxxxFrame;
 import com.google.android.exoplayer.text.Cue;
 import com.google.android.exoplayer.text.TextRenderer;
+import com.google.android.exoplayer.upstream.Allocator;
 import com.google.android.exoplayer.upstream.BandwidthMeter;
+import com.google.android.exoplayer.upstream.cache.Cache;
+import com.google.android.exoplayer.upstream.cache.SimpleCache;
 import com.google.android.exoplayer.util.Util;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
+import fm.indiecast.rnaudiostreamer.offline.Download;
+import fm.indiecast.rnaudiostreamer.offline.DownloadManager;
 import fm.indiecast.rnaudiostreamer.trackrenderer.DashRenderersBuilder;
 import fm.indiecast.rnaudiostreamer.trackrenderer.ExtractorRenderersBuilder;
 import fm.indiecast.rnaudiostreamer.trackrenderer.HlsRenderersBuilder;
+import fm.indiecast.rnaudiostreamer.trackrenderer.HybridFormatEvaluator;
 import fm.indiecast.rnaudiostreamer.trackrenderer.SmoothStreamingRenderersBuilder;
+import fm.indiecast.rnaudiostreamer.upstream.DefaultDataSourceFactory;
+import fm.indiecast.rnaudiostreamer.upstream.EwmaBandwidthMeter;
+import fm.indiecast.rnaudiostreamer.upstream.HttpStack;
+import fm.indiecast.rnaudiostreamer.upstream.HttpTimings;
+import fm.indiecast.rnaudiostreamer.upstream.IcyHttpDataSource;
+import fm.indiecast.rnaudiostreamer.upstream.ManifestCache;
+import fm.indiecast.rnaudiostreamer.upstream.OkHttpStack;
+import fm.indiecast.rnaudiostreamer.upstream.PooledAllocator;
+import fm.indiecast.rnaudiostreamer.upstream.ResizableCacheEvictor;
+import fm.indiecast.rnaudiostreamer.upstream.RetryPolicy;
 
 public class RNAudioStreamerModule extends ReactContextBaseJavaModule {
     private static final String TAG = "RNAudioStreamerModule";
+
+    // Allocator pool shared by every player in the process
+    private static final int BUFFER_SEGMENT_SIZE = 64 * 1024;
+    private static final int POOL_MAX_RESIDENT_BYTES = 24 * 1024 * 1024;
+    // A playlist item holds at most this much, a larger maxBufferBytes of its policy included.
+    // The quotas are sized so that all players together stay under the pool: at most three
+    // playlist players and one secondary (22 MB), or two of each (20 MB), hold bytes at once.
+    private static final int PLAYER_QUOTA_BYTES = 6 * 1024 * 1024;
+    private static final PooledAllocator allocatorPool =
+            new PooledAllocator(BUFFER_SEGMENT_SIZE, POOL_MAX_RESIDENT_BYTES);
+
+    // Disk cache shared by every player in the process. SimpleCache allows a single instance per
+    // directory, so setCacheSize resizes its evictor once it is open.
+    private static final String CACHE_DIR_NAME = "rnaudiostreamer";
+    private static long cacheSizeBytes = 100 * 1024 * 1024;
+    private static Cache cache;
+    private static ResizableCacheEvictor cacheEvictor;
+
+    private static final String DOWNLOAD_DIR_NAME = "rnaudiostreamer-downloads";
+
+    private static final String MANIFEST_CACHE_DIR_NAME = "rnaudiostreamer-manifests";
+    private static final int MANIFEST_CACHE_MEMORY_ENTRIES = 16;
+
+    private static final long DEFAULT_EVENT_COALESCING_WINDOW_MS = 50;
+
+    // Live mode. Playback runs this much faster or slower while the latency to live is further
+    // than the tolerance from its target.
+    private static final long DEFAULT_LIVE_TOLERANCE_MS = 2000;
+    private static final long LIVE_SYNC_INTERVAL_MS = 1000;
+    private static final float LIVE_RATE_ADJUSTMENT = 0.05f;
+    private static final long LIVE_CATCH_UP_MIN_BUFFER_MS = 1000;
+
+    // Bandwidth. The estimate is persisted per network so that later sessions on it start from it.
+    private static final long BANDWIDTH_PERSIST_INTERVAL_MS = 10000;
+    private static final String ADAPTATION_HYBRID = "hybrid";
+    private static final String ADAPTATION_THROUGHPUT = "throughput";
+    private static final String ADAPTATION_FIXED = "fixed";
+
+    // Concurrent players. Besides the current and the standby player, one may be fading out and
+    // the rest are secondary players addressed by id. Each holds a decoder and at most the bytes of
+    // its allocator quota, which bounds the buffer memory of all of them together.
+    private static final int MAX_ACTIVE_PLAYERS = 4;
+    private static final int MAX_SECONDARY_PLAYERS = 2;
+    private static final int SECONDARY_QUOTA_BYTES = 4 * 1024 * 1024;
+    private static final long CROSSFADE_STEP_MS = 50;
+    private static final long CROSSFADE_CHECK_INTERVAL_MS = 250;
+
+    // Failures that may be transient rebuild the current item this many times before they are
+    // reported, see RetryPolicy.
+    private static final int MAX_RECOVERY_ATTEMPTS = 5;
+
+    private static final String PLAYBACK_THREAD_NAME = "ExoPlayerImplInternal:Handler";
+    private static final String RENDERER_THREAD_NAME = "RNAudioStreamer:Renderers";
+
     // Player
     private ExoPlayer player = null;
-    private String status = "STOPPED";
+    private volatile String status = "STOPPED";
     private ReactApplicationContext reactContext = null;
+    private final HttpStack httpStack;
 
     public RNAudioStreamerModule(ReactApplicationContext reactContext) {
+        this(reactContext, new OkHttpStack(getDefaultUserAgent()));
+    }
+
+    /**
+     * @param httpStack Makes every http and https request, for playback, manifests and downloads.
+     */
+    public RNAudioStreamerModule(ReactApplicationContext reactContext, HttpStack httpStack) {
         super(reactContext);
         this.reactContext = reactContext;
+        this.httpStack = httpStack;
 
         this.mainHandler = new Handler(Looper.getMainLooper());
+        this.eventDispatcher = new BridgeEventDispatcher(reactContext, mainHandler, DEFAULT_EVENT_COALESCING_WINDOW_MS);
+        reactContext.registerComponentCallbacks(memoryCallbacks);
+
+        // Manifest loading, renderer construction and all renderer, sample source and bandwidth
+        // callbacks run on this thread. Only the resulting JS events leave it.
+        this.rendererThread = new HandlerThread(RENDERER_THREAD_NAME, Process.THREAD_PRIORITY_AUDIO);
+        this.rendererThread.start();
+        this.rendererHandler = new Handler(rendererThread.getLooper());
+        this.bandwidthMeter = new EwmaBandwidthMeter(rendererHandler, bandwidthMeterListener);
+        this.bandwidthEstimateStore = new BandwidthEstimateStore(reactContext);
+        this.networkMonitor = new NetworkMonitor(reactContext, rendererHandler, networkListener);
+        this.networkMonitor.start();
+        // Opening the disk cache scans its directory, keep that off the threads that call in.
+        rendererHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                updateBandwidthNetwork();
+                monitoredNetworkKey = bandwidthNetworkKey;
+                meteredNetwork = networkMonitor.isMetered();
+                getDataSourceFactory();
+                getDownloadManager();
+            }
+        });
     }
 
     // Status
@@ -66,199 +196,1695 @@ public class RNAudioStreamerModule extends ReactContextBaseJavaModule {
     private static final String ERROR = "ERROR";
 
 
-    @Override public String getName() {
-        return "RNAudioStreamer";
+    @Override public String getName() {
+        return "RNAudioStreamer";
+    }
+
+    @ReactMethod
+    public void setUrl(final String urlString) {
+        final long traceToken = StageTracer.beginAsync();
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                startupTraceToken = traceToken;
+                StageTracer.beginSection(StageTracer.STAGE_SET_URL);
+                try {
+                    // A new url replaces the playlist, including the item preloading next.
+                    queue.clear();
+                    releaseNext();
+                    setUrlInternal(urlString);
+                } finally {
+                    StageTracer.endSection();
+                }
+            }
+        });
+    }
+
+    private void setUrlInternal(String urlString) {
+        finishCrossfade();
+        cancelRecovery();
+
+        InternalEventListener previousListener = internalEventListener;
+        if (previousListener != null) previousListener.current = false;
+        internalEventListener = new InternalEventListener();
+        internalEventListener.current = true;
+        if (player != null && playerPolicies.get(player).hasSameThresholds(bufferingPolicy)){
+            // Keep the player and its playback thread. Stopping releases the old renderers and
+            // their codecs, and the player is prepared again with the new ones.
+            if (trackRenderersBuilder != null) trackRenderersBuilder.cancel();
+            player.removeListener(previousListener);
+            player.stop();
+            player.addListener(internalEventListener);
+            status = "STOPPED";
+            this.sendStatusEvent();
+        } else {
+            ExoPlayer previous = this.player;
+            this.player = obtainPlayer(bufferingPolicy);
+            this.player.addListener(internalEventListener);
+            if (previous != null) {
+                // The buffering thresholds are fixed when a player is created.
+                if (trackRenderersBuilder != null) trackRenderersBuilder.cancel();
+                recyclePlayer(previous, previousListener);
+                status = "STOPPED";
+                this.sendStatusEvent();
+            }
+        }
+
+        this.player.setPlayWhenReady(false);
+        this.url = urlString;
+        startMetricsSession(urlString);
+
+        renderTracks(urlString);
+
+        if (nextPlayer == null) preloadNext();
+    }
+
+    @ReactMethod
+    public void enqueue(final String urlString) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                queue.add(urlString);
+                if (nextPlayer == null) preloadNext();
+            }
+        });
+    }
+
+    @ReactMethod
+    public void skipToNext() {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                skipToNextInternal();
+            }
+        });
+    }
+
+    private void skipToNextInternal() {
+        skipStartMs = SystemClock.elapsedRealtime();
+        if (nextPlayer != null) {
+            promoteNext();
+        } else if (!queue.isEmpty()) {
+            startupTraceToken = StageTracer.beginAsync();
+            setUrlInternal(queue.poll());
+            metrics.onPlayRequested();
+            player.setPlayWhenReady(true);
+        } else {
+            skipStartMs = 0;
+        }
+    }
+
+    // Players are expensive (each owns a playback thread), so at most one spare is kept
+    // for reuse besides the current and the standby player.
+    private ExoPlayer obtainPlayer(BufferingPolicy policy) {
+        if (sparePlayer != null) {
+            ExoPlayer spare = sparePlayer;
+            sparePlayer = null;
+            if (playerPolicies.get(spare).hasSameThresholds(policy)) {
+                return spare;
+            }
+            releasePlayer(spare);
+        }
+        playersCreated++;
+        ExoPlayer created = ExoPlayer.Factory.newInstance(TrackRenderersBuilder.TRACK_RENDER_COUNT,
+                policy.startBufferMs, policy.rebufferMs);
+        playerPolicies.put(created, policy);
+        return created;
+    }
+
+    private void recyclePlayer(ExoPlayer recycled, ExoPlayer.Listener listener) {
+        if (listener != null) recycled.removeListener(listener);
+        recycled.stop();
+        recycled.setPlayWhenReady(false);
+        if (sparePlayer == null) {
+            sparePlayer = recycled;
+        } else {
+            releasePlayer(recycled);
+        }
+    }
+
+    private void releasePlayer(ExoPlayer released) {
+        released.release();
+        playerPolicies.remove(released);
+        playersReleased++;
+    }
+
+    @ReactMethod public void diagnostics(final Callback callback) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                int playbackThreads = 0;
+                for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                    if (PLAYBACK_THREAD_NAME.equals(thread.getName())) {
+                        playbackThreads++;
+                    }
+                }
+                WritableMap diagnostics = Arguments.createMap();
+                diagnostics.putInt("playersCreated", playersCreated);
+                diagnostics.putInt("playersReleased", playersReleased);
+                diagnostics.putInt("livePlayers", playersCreated - playersReleased);
+                diagnostics.putInt("playbackThreads", playbackThreads);
+                diagnostics.putInt("threads", Thread.activeCount());
+                callback.invoke(null, diagnostics);
+            }
+        });
+    }
+
+    @Override
+    public void onCatalystInstanceDestroy() {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                removeInternal();
+                for (PlayerInstance instance : playerInstances.values()) {
+                    releasePlayerInstance(instance);
+                }
+                playerInstances.clear();
+                if (sparePlayer != null) {
+                    releasePlayer(sparePlayer);
+                    sparePlayer = null;
+                }
+                if (downloadManager != null) {
+                    downloadManager.release();
+                }
+                if (mainThreadMonitor != null) {
+                    mainThreadMonitor.stop();
+                }
+                persistBandwidthEstimate();
+                networkMonitor.stop();
+                rendererThread.quit();
+                reactContext.unregisterComponentCallbacks(memoryCallbacks);
+            }
+        });
+    }
+
+    private Handler mainHandler;
+    private final HandlerThread rendererThread;
+    private final Handler rendererHandler;
+    private MainThreadMonitor mainThreadMonitor;
+    private final EwmaBandwidthMeter bandwidthMeter;
+    private final BandwidthEstimateStore bandwidthEstimateStore;
+    private volatile String bandwidthNetworkKey;
+    private final NetworkMonitor networkMonitor;
+    // The network the last handoff was made to. Builds update the bandwidth network on their own.
+    private String monitoredNetworkKey;
+    private volatile boolean meteredNetwork;
+    private volatile String audioAdaptation = ADAPTATION_HYBRID;
+    private long bandwidthPersistedAtMs;
+    private volatile int formatSwitches;
+    private final BridgeEventDispatcher eventDispatcher;
+    private DefaultDataSourceFactory dataSourceFactory;
+    private DownloadManager downloadManager;
+
+//    private String uri;
+
+    private final List<EventListener> eventListeners = new LinkedList<>();
+
+    // The player, playlist, recovery and crossfade state below is owned by the main thread. React
+    // methods post to it, build results are handed back to it, and the players are created on it,
+    // so that their listeners are called on it too.
+
+    // Each item gets its own listener, so that the events of the item preloading next or fading
+    // out are not taken for those of the current one.
+    private InternalEventListener internalEventListener;
+    private InternalEventListener nextEventListener;
+    private InternalEventListener fadingEventListener;
+    private TrackRenderersBuilder trackRenderersBuilder;
+    private TrackRenderer videoTrackRenderer;
+    private TrackRenderer audioTrackRenderer;
+    private Allocator allocator;
+    private String url;
+
+    // Playlist. The head of the queue is built and buffered on a standby player while the
+    // current item plays, so that skipping to it only has to start playback.
+    private final LinkedList<String> queue = new LinkedList<>();
+    private ExoPlayer nextPlayer;
+    private Allocator nextAllocator;
+    private TrackRenderersBuilder nextTrackRenderersBuilder;
+    private String nextUrl;
+    private long skipStartMs;
+
+    // Recovery
+    private int recoveryAttempt;
+    private long recoveringSinceMs = -1;
+    private long pendingSeekMs = -1;
+    private Runnable pendingRecovery;
+
+    // Crossfade. The outgoing item keeps playing on its own player while it fades out.
+    private volatile long crossfadeMs = 0;
+    private ExoPlayer fadingPlayer;
+    private TrackRenderer fadingAudioTrackRenderer;
+    private Allocator fadingAllocator;
+    private long fadeStartMs;
+    private long fadeDurationMs;
+
+    // Secondary players, by id.
+    private final Map<String, PlayerInstance> playerInstances = new ConcurrentHashMap<>();
+
+    private ExoPlayer sparePlayer;
+    private final Map<ExoPlayer, BufferingPolicy> playerPolicies = new HashMap<>();
+    private BufferingPolicy bufferingPolicy = BufferingPolicy.DEFAULT;
+    private int playersCreated;
+    private int playersReleased;
+
+    // Progress
+    private volatile long progressIntervalMs = 0;
+
+    // Metrics
+    private final PlaybackMetrics metrics = new PlaybackMetrics();
+    private volatile long startupTraceToken = -1;
+    private volatile long metricsIntervalMs = 0;
+    private volatile long startupBudgetMs = 0;
+    private float playbackRate = 1f;
+
+    // Live
+    private LiveLatencyTracker latencyTracker;
+    private LiveLatencyTracker nextLatencyTracker;
+    private TrackRenderer nextAudioTrackRenderer;
+    private boolean liveModeEnabled = false;
+    private long liveToleranceMs = DEFAULT_LIVE_TOLERANCE_MS;
+
+    private void renderTracks(String uri) {
+        final Allocator quota = allocatorPool.newQuota(PLAYER_QUOTA_BYTES);
+        final TrackRenderersBuilder builder = createTrackRenderersBuilder(reactContext, uri, player.getPlaybackLooper(), quota, internalEventListener);
+        this.trackRenderersBuilder = builder;
+        this.allocator = quota;
+        final LiveLatencyTracker tracker = createLatencyTracker(uri);
+        this.latencyTracker = tracker;
+        this.playbackRate = 1f;
+        builder.setAudioOnly(true);
+        builder.setBufferingPolicy(getBuildBufferingPolicy().forQuota(PLAYER_QUOTA_BYTES));
+        builder.setAudioFormatEvaluator(createAudioFormatEvaluator());
+        buildInBackground(builder, new TrackRenderersBuilder.Callback() {
+            @Override
+            public void onFinish(TrackRenderer[] trackRenderers) {
+                if (builder != trackRenderersBuilder) {
+                    return;
+                }
+                Log.d(TAG, "renderTracks...track renderers built");
+                fillDummyRenderers(trackRenderers);
+                videoTrackRenderer = trackRenderers[TrackRenderersBuilder.TRACK_VIDEO_INDEX];
+                audioTrackRenderer = trackRenderers[TrackRenderersBuilder.TRACK_AUDIO_INDEX];
+                tracker.onPrepared();
+                StageTracer.beginSection(StageTracer.STAGE_PREPARE);
+                try {
+                    player.prepare(trackRenderers);
+                } finally {
+                    StageTracer.endSection();
+                }
+                if (pendingSeekMs >= 0) {
+                    player.seekTo(pendingSeekMs);
+                    pendingSeekMs = -1;
+                }
+
+            }
+
+            @Override
+            public void onError(Exception e) {
+                if (builder != trackRenderersBuilder) {
+                    return;
+                }
+                Log.e(TAG, "renderTracks...failed to build track renderers", e);
+                if (scheduleRecovery(e)) {
+                    return;
+                }
+                metrics.onError(e);
+                notifyError(e);
+            }
+        });
+    }
+
+    private void preloadNext() {
+        // Preloading waits for a crossfade or a secondary player to free a decoder.
+        if (queue.isEmpty() || getActivePlayerCount() >= MAX_ACTIVE_PLAYERS) {
+            return;
+        }
+        final ExoPlayer standby = obtainPlayer(bufferingPolicy);
+        standby.setPlayWhenReady(false);
+        nextEventListener = new InternalEventListener();
+        standby.addListener(nextEventListener);
+        final Allocator quota = allocatorPool.newQuota(PLAYER_QUOTA_BYTES);
+        final TrackRenderersBuilder builder = createTrackRenderersBuilder(reactContext, queue.peek(), standby.getPlaybackLooper(), quota, nextEventListener);
+        nextAllocator = quota;
+        nextUrl = queue.poll();
+        nextPlayer = standby;
+        nextTrackRenderersBuilder = builder;
+        final LiveLatencyTracker tracker = createLatencyTracker(nextUrl);
+        nextLatencyTracker = tracker;
+        builder.setAudioOnly(true);
+        builder.setBufferingPolicy(getBuildBufferingPolicy().forQuota(PLAYER_QUOTA_BYTES));
+        builder.setAudioFormatEvaluator(createAudioFormatEvaluator());
+        buildInBackground(builder, new TrackRenderersBuilder.Callback() {
+            @Override
+            public void onFinish(TrackRenderer[] trackRenderers) {
+                // The item may have been skipped to before its renderers were ready.
+                if (builder != nextTrackRenderersBuilder && builder != trackRenderersBuilder) {
+                    return;
+                }
+                Log.d(TAG, "preloadNext...track renderers built");
+                fillDummyRenderers(trackRenderers);
+                if (builder == trackRenderersBuilder) {
+                    audioTrackRenderer = trackRenderers[TrackRenderersBuilder.TRACK_AUDIO_INDEX];
+                } else {
+                    nextAudioTrackRenderer = trackRenderers[TrackRenderersBuilder.TRACK_AUDIO_INDEX];
+                }
+                tracker.onPrepared();
+                // Preparing with playWhenReady unset buffers up to STATE_READY and initializes the
+                // decoder without producing any sound.
+                standby.prepare(trackRenderers);
+            }
+
+            @Override
+            public void onError(Exception e) {
+                if (builder == trackRenderersBuilder) {
+                    if (!scheduleRecovery(e)) {
+                        metrics.onError(e);
+                        notifyError(e);
+                    }
+                } else if (builder == nextTrackRenderersBuilder) {
+                    Log.e(TAG, "preloadNext...failed to build track renderers, dropping item", e);
+                    releaseNext();
+                    preloadNext();
+                }
+            }
+        });
+    }
+
+    // Builds on the renderer thread and hands the result back on the main thread.
+    private void buildInBackground(final TrackRenderersBuilder builder, final TrackRenderersBuilder.Callback callback) {
+        final long traceToken = StageTracer.beginAsync();
+        rendererHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                updateBandwidthNetwork();
+                builder.build(new TrackRenderersBuilder.Callback() {
+                    @Override
+                    public void onFinish(final TrackRenderer[] trackRenderers) {
+                        mainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                StageTracer.endAsync(StageTracer.STAGE_BUILD, traceToken);
+                                callback.onFinish(trackRenderers);
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onError(final Exception e) {
+                        mainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                StageTracer.endAsync(StageTracer.STAGE_BUILD, traceToken);
+                                callback.onError(e);
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    private void promoteNext() {
+        finishCrossfade();
+        cancelRecovery();
+        // Crossfade only between items that both have their renderers, while the outgoing one plays.
+        boolean fade = crossfadeMs > 0 && player != null && audioTrackRenderer != null
+                && nextAudioTrackRenderer != null && player.getPlayWhenReady()
+                && player.getPlaybackState() == ExoPlayer.STATE_READY;
+        if (player != null) {
+            if (trackRenderersBuilder != null) trackRenderersBuilder.cancel();
+            if (internalEventListener != null) internalEventListener.current = false;
+            if (fade) {
+                // The fading player keeps its listener, which no longer reports as the current item.
+                fadingPlayer = player;
+                fadingEventListener = internalEventListener;
+                fadingAudioTrackRenderer = audioTrackRenderer;
+                fadingAllocator = allocator;
+            } else {
+                recyclePlayer(player, internalEventListener);
+            }
+        }
+        player = nextPlayer;
+        internalEventListener = nextEventListener;
+        internalEventListener.makeCurrent();
+        allocator = nextAllocator;
+        trackRenderersBuilder = nextTrackRenderersBuilder;
+        url = nextUrl;
+        startupTraceToken = StageTracer.beginAsync();
+        startMetricsSession(url);
+        metrics.onPlayRequested();
+        audioTrackRenderer = nextAudioTrackRenderer;
+        latencyTracker = nextLatencyTracker;
+        playbackRate = 1f;
+        nextPlayer = null;
+        nextEventListener = null;
+        nextAllocator = null;
+        nextTrackRenderersBuilder = null;
+        nextUrl = null;
+        nextAudioTrackRenderer = null;
+        nextLatencyTracker = null;
+
+        if (fade) {
+            setVolume(player, audioTrackRenderer, 0f);
+            fadeStartMs = SystemClock.elapsedRealtime();
+            fadeDurationMs = crossfadeMs;
+            mainHandler.post(crossfadeTicker);
+        }
+        player.setPlayWhenReady(true);
+        // The listener only reports changes, so report the state reached while on standby.
+        internalEventListener.onPlayerStateChanged(true,
+                player.getPlaybackState() == ExoPlayer.STATE_READY ? ExoPlayer.STATE_READY : ExoPlayer.STATE_BUFFERING);
+        preloadNext();
+    }
+
+    // Rebuilds the current item after a failure that may be transient, once the backoff has passed.
+    // On demand items resume where they failed, live streams rejoin at their live edge. Returns
+    // false if the failure is to be reported instead.
+    private boolean scheduleRecovery(Exception e) {
+        checkMainThread();
+        if (player == null || url == null || recoveryAttempt >= MAX_RECOVERY_ATTEMPTS
+                || !RetryPolicy.isRetryable(e)) {
+            cancelRecovery();
+            return false;
+        }
+        if (recoveringSinceMs < 0) {
+            recoveringSinceMs = SystemClock.elapsedRealtime();
+        }
+        final long positionMs = player.getDuration() == ExoPlayer.UNKNOWN_TIME ? -1 : player.getCurrentPosition();
+        long delayMs = RetryPolicy.getBackoffMs(recoveryAttempt++);
+        Log.w(TAG, "Recovering in " + delayMs + " ms, attempt " + recoveryAttempt, e);
+        if (pendingRecovery != null) {
+            mainHandler.removeCallbacks(pendingRecovery);
+        }
+        pendingRecovery = new Runnable() {
+            @Override
+            public void run() {
+                pendingRecovery = null;
+                recover(positionMs);
+            }
+        };
+        mainHandler.postDelayed(pendingRecovery, delayMs);
+        status = BUFFERING;
+        sendStatusEvent();
+        return true;
+    }
+
+    private void recover(long positionMs) {
+        checkMainThread();
+        if (player == null || url == null) {
+            return;
+        }
+        if (trackRenderersBuilder != null) trackRenderersBuilder.cancel();
+        // A failed player is idle and can be prepared again, keeping playWhenReady.
+        pendingSeekMs = positionMs;
+        renderTracks(url);
+    }
+
+    private void cancelRecovery() {
+        checkMainThread();
+        if (pendingRecovery != null) {
+            mainHandler.removeCallbacks(pendingRecovery);
+            pendingRecovery = null;
+        }
+        recoveryAttempt = 0;
+        recoveringSinceMs = -1;
+        pendingSeekMs = -1;
+    }
+
+    private void releaseNext() {
+        if (nextTrackRenderersBuilder != null) nextTrackRenderersBuilder.cancel();
+        if (nextPlayer != null) recyclePlayer(nextPlayer, nextEventListener);
+        nextPlayer = null;
+        nextEventListener = null;
+        nextAllocator = null;
+        nextTrackRenderersBuilder = null;
+        nextUrl = null;
+        nextAudioTrackRenderer = null;
+        nextLatencyTracker = null;
+    }
+
+    // The player state is only consistent on the main thread, see the fields above.
+    private static void checkMainThread() {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            throw new IllegalStateException("Must be called on the main thread");
+        }
+    }
+
+    private static void fillDummyRenderers(TrackRenderer[] trackRenderers) {
+        for (int i = 0; i < TrackRenderersBuilder.TRACK_RENDER_COUNT; i++) {
+            if (trackRenderers[i] == null) {
+                // Convert a null renderer to a dummy renderer.
+                trackRenderers[i] = new DummyTrackRenderer();
+            }
+        }
+    }
+
+    private void sendTrackStartedEvent() {
+        if (!reactContext.hasActiveCatalystInstance()) {
+            return;
+        }
+        WritableMap event = Arguments.createMap();
+        event.putString("url", url);
+        event.putDouble("timeToFirstAudioMs", SystemClock.elapsedRealtime() - skipStartMs);
+        this.reactContext
+                .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                .emit("RNAudioStreamerTrackStarted", event);
+    }
+
+    @ReactMethod public void play() {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                metrics.onPlayRequested();
+                if(player != null) player.setPlayWhenReady(true);
+            }
+        });
+    }
+
+    @ReactMethod public void remove() {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                removeInternal();
+            }
+        });
+    }
+
+    private void removeInternal() {
+        queue.clear();
+        finishCrossfade();
+        cancelRecovery();
+        releaseNext();
+        if (player != null){
+            if (trackRenderersBuilder != null) trackRenderersBuilder.cancel();
+            recyclePlayer(player, internalEventListener);
+            internalEventListener.current = false;
+            internalEventListener = null;
+            player = null;
+            status = "STOPPED";
+            this.sendStatusEvent();
+        }
+    }
+    @ReactMethod public void pause() {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if(player != null) player.setPlayWhenReady(false);
+            }
+        });
+    }
+
+    @ReactMethod public void seekToTime(final double time) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                metrics.onSeek();
+                if(player != null) player.seekTo((long)(time * 1000));
+            }
+        });
+    }
+
+    @ReactMethod public void currentTime(final Callback callback) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (player == null){
+                    callback.invoke(null,(double)0);
+                }else{
+                    callback.invoke(null,player.getCurrentPosition() / 1000d);
+                }
+            }
+        });
+    }
+
+    // Pushes RNAudioStreamerProgress events at this interval while playing, 0 to stop
+    @ReactMethod public void setProgressInterval(double intervalMs) {
+        progressIntervalMs = (long) intervalMs;
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                updateProgressTicker();
+            }
+        });
+    }
+
+    // Applies to the following setUrl and enqueue calls. Takes an optional preset
+    // ("default", "lowLatencyLive", "lowMemory" or "podcast") and values overriding it.
+    @ReactMethod public void setBufferingPolicy(ReadableMap options) {
+        BufferingPolicy preset = BufferingPolicy.DEFAULT;
+        if (options.hasKey("preset")) {
+            preset = BufferingPolicy.forPreset(options.getString("preset"));
+            if (preset == null) {
+                Log.e(TAG, "setBufferingPolicy...unknown preset " + options.getString("preset"));
+                return;
+            }
+        }
+        final BufferingPolicy policy;
+        try {
+            policy = new BufferingPolicy(
+                    getInt(options, "startBufferMs", preset.startBufferMs),
+                    getInt(options, "rebufferMs", preset.rebufferMs),
+                    getInt(options, "lowWatermarkMs", preset.lowWatermarkMs),
+                    getInt(options, "highWatermarkMs", preset.highWatermarkMs),
+                    getInt(options, "maxBufferBytes", preset.maxBufferBytes),
+                    getInt(options, "liveEdgeLatencyMs", preset.liveEdgeLatencyMs),
+                    getInt(options, "prefetchSegments", preset.prefetchSegments));
+        } catch (IllegalArgumentException e) {
+            // Like an unknown preset, keeps the current policy.
+            Log.e(TAG, "setBufferingPolicy...invalid policy", e);
+            return;
+        }
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                bufferingPolicy = policy;
+            }
+        });
+    }
+
+    private static int getInt(ReadableMap map, String key, int defaultValue) {
+        return map.hasKey(key) ? map.getInt(key) : defaultValue;
+    }
+
+    // While enabled, live streams play slightly faster or slower to keep their latency to live
+    // within toleranceMs of the live edge latency of the buffering policy.
+    @ReactMethod public void setLiveMode(final ReadableMap options) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                liveModeEnabled = !options.hasKey("enabled") || options.getBoolean("enabled");
+                liveToleranceMs = options.hasKey("toleranceMs") ? options.getInt("toleranceMs") : DEFAULT_LIVE_TOLERANCE_MS;
+                if (!liveModeEnabled) {
+                    setPlaybackRate(1f);
+                }
+                updateLiveSyncTicker();
+            }
+        });
+    }
+
+    @ReactMethod public void liveStats(final Callback callback) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                WritableMap stats = Arguments.createMap();
+                stats.putBoolean("liveMode", liveModeEnabled);
+                stats.putDouble("latencyMs", getLiveLatencyMs());
+                stats.putDouble("targetLatencyMs", latencyTracker == null ? -1 : latencyTracker.getTargetLatencyMs());
+                stats.putDouble("playbackRate", playbackRate);
+                callback.invoke(null, stats);
+            }
+        });
+    }
+
+    // How DASH and SmoothStreaming audio adapts: "hybrid" weighs the bandwidth estimate by the
+    // buffer level, "throughput" follows the estimate alone and "fixed" keeps the first format.
+    @ReactMethod public void setAudioAdaptation(String mode) {
+        if (!ADAPTATION_HYBRID.equals(mode) && !ADAPTATION_THROUGHPUT.equals(mode) && !ADAPTATION_FIXED.equals(mode)) {
+            Log.e(TAG, "setAudioAdaptation...unknown mode " + mode);
+            return;
+        }
+        audioAdaptation = mode;
+    }
+
+    // Quality of experience of the current item and of all items since the module was created
+    @ReactMethod public void getMetrics(Callback callback) {
+        long networkBytesRead = getDataSourceFactory().getNetworkBytesRead();
+        WritableMap snapshot = Arguments.createMap();
+        snapshot.putMap("session", metrics.getSessionSnapshot(networkBytesRead));
+        WritableMap totals = metrics.getTotalsSnapshot(networkBytesRead);
+        // Failed requests and reads that the data sources recovered from by themselves.
+        DefaultDataSourceFactory factory = getDataSourceFactory();
+        long reconnects = factory.getReconnectCount();
+        totals.putDouble("reconnects", reconnects);
+        totals.putDouble("failedReconnects", factory.getFailedReconnectCount());
+        totals.putDouble("reconnectMs", reconnects == 0 ? 0 : factory.getReconnectMs() / (double) reconnects);
+        snapshot.putMap("totals", totals);
+        callback.invoke(null, snapshot);
+    }
+
+    // Startups slower than this are logged and flagged in RNAudioStreamerStartup events, 0 for no budget.
+    @ReactMethod public void setStartupBudget(double budgetMs) {
+        startupBudgetMs = (long) budgetMs;
+    }
+
+    // Pushes RNAudioStreamerMetrics events for the current item at this interval, 0 to stop.
+    // An event with ended set is pushed whenever an item stops being current.
+    @ReactMethod public void setMetricsInterval(double intervalMs) {
+        metricsIntervalMs = (long) intervalMs;
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mainHandler.removeCallbacks(metricsTicker);
+                if (metricsIntervalMs > 0) {
+                    mainHandler.postDelayed(metricsTicker, metricsIntervalMs);
+                }
+            }
+        });
+    }
+
+    // Times the stages between setUrl and playback, see StageTracer. Enabling clears earlier stages.
+    @ReactMethod public void setTracing(boolean enabled) {
+        if (enabled && !StageTracer.isEnabled()) {
+            StageTracer.clear();
+        }
+        StageTracer.setEnabled(enabled);
+    }
+
+    @ReactMethod public void traceStages(Callback callback) {
+        WritableArray stages = Arguments.createArray();
+        for (StageTracer.Record record : StageTracer.getRecords()) {
+            WritableMap stage = Arguments.createMap();
+            stage.putString("stage", record.stage);
+            stage.putString("thread", record.thread);
+            stage.putDouble("startMs", record.startMs);
+            stage.putDouble("durationMs", record.durationMs);
+            stages.pushMap(stage);
+        }
+        callback.invoke(null, stages);
+    }
+
+    @ReactMethod public void httpStats(Callback callback) {
+        if (!(httpStack instanceof OkHttpStack)) {
+            callback.invoke("HTTP timings are only measured by the OkHttp stack", null);
+            return;
+        }
+        HttpTimings timings = ((OkHttpStack) httpStack).getTimings();
+        WritableMap stats = Arguments.createMap();
+        stats.putDouble("requests", timings.getRequestCount());
+        stats.putDouble("failedRequests", timings.getFailedRequestCount());
+        stats.putDouble("reusedConnections", timings.getReusedConnectionCount());
+        stats.putDouble("http2Requests", timings.getHttp2RequestCount());
+        stats.putInt("idleConnections", ((OkHttpStack) httpStack).getIdleConnectionCount());
+        stats.putDouble("dnsMs", timings.getAverageDnsMs());
+        stats.putDouble("connectMs", timings.getAverageConnectMs());
+        stats.putDouble("timeToFirstByteMs", timings.getAverageTimeToFirstByteMs());
+        stats.putDouble("transferMs", timings.getAverageTransferMs());
+        callback.invoke(null, stats);
+    }
+
+    @ReactMethod public void bandwidthStats(Callback callback) {
+        WritableMap stats = Arguments.createMap();
+        stats.putDouble("bitrateEstimate", bandwidthMeter.getBitrateEstimate());
+        stats.putBoolean("measured", bandwidthMeter.hasMeasuredEstimate());
+        stats.putString("network", bandwidthNetworkKey);
+        stats.putInt("formatSwitches", formatSwitches);
+        stats.putString("audioAdaptation", audioAdaptation);
+        callback.invoke(null, stats);
+    }
+
+    @ReactMethod public void allocatorStats(Callback callback) {
+        WritableMap stats = Arguments.createMap();
+        stats.putDouble("poolHits", allocatorPool.getHitCount());
+        stats.putDouble("poolMisses", allocatorPool.getMissCount());
+        stats.putDouble("allocatedBytes", allocatorPool.getAllocatedBytes());
+        stats.putDouble("residentBytes", allocatorPool.getResidentBytes());
+        stats.putDouble("maxResidentBytes", allocatorPool.getMaxResidentBytes());
+        callback.invoke(null, stats);
+    }
+
+    @ReactMethod public void setCacheSize(double maxBytes) {
+        final long sizeBytes = (long) maxBytes;
+        synchronized (RNAudioStreamerModule.class) {
+            cacheSizeBytes = sizeBytes;
+            if (cache == null) {
+                return;
+            }
+        }
+        // Shrinking deletes files, keep that off the threads that call in.
+        rendererHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                cacheEvictor.setMaxBytes(cache, sizeBytes);
+            }
+        });
+    }
+
+    @ReactMethod public void cacheStats(Callback callback) {
+        DefaultDataSourceFactory factory = getDataSourceFactory();
+        WritableMap stats = Arguments.createMap();
+        stats.putDouble("cacheBytesRead", factory.getCacheBytesRead());
+        stats.putDouble("networkBytesRead", factory.getNetworkBytesRead());
+        stats.putDouble("cacheSpaceBytes", factory.getCacheSpace());
+        stats.putDouble("maxCacheBytes", cacheSizeBytes);
+        ManifestCache manifestCache = factory.getManifestCache();
+        stats.putDouble("manifestHits", manifestCache.getHitCount());
+        stats.putDouble("manifestRevalidations", manifestCache.getRevalidatedCount());
+        stats.putDouble("manifestMisses", manifestCache.getMissCount());
+        stats.putDouble("manifestHitLoadMs", manifestCache.getAverageHitLoadMs());
+        stats.putDouble("manifestMissLoadMs", manifestCache.getAverageMissLoadMs());
+        callback.invoke(null, stats);
+    }
+
+    @ReactMethod public void download(String urlString) {
+        try {
+            getDownloadManager().download(urlString);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "download...unsupported url", e);
+        }
+    }
+
+    @ReactMethod public void pauseDownload(String urlString) {
+        getDownloadManager().pause(urlString);
+    }
+
+    @ReactMethod public void removeDownload(String urlString) {
+        getDownloadManager().remove(urlString);
+    }
+
+    @ReactMethod public void downloads(Callback callback) {
+        WritableArray downloads = Arguments.createArray();
+        for (Download download : getDownloadManager().getDownloads()) {
+            downloads.pushMap(toWritableMap(download));
+        }
+        callback.invoke(null, downloads);
+    }
+
+    // Bytes per second shared by all downloads while nothing plays and while a stream plays, 0 for no limit
+    @ReactMethod public void setDownloadBandwidth(double idleBytesPerSecond, double playingBytesPerSecond) {
+        getDownloadManager().setBandwidthLimits((long) idleBytesPerSecond, (long) playingBytesPerSecond);
+    }
+
+    @ReactMethod public void setEventCoalescingWindow(double windowMs) {
+        eventDispatcher.setCoalescingWindowMs((long) windowMs);
+    }
+
+    // When enabled, status and all other updates arrive together as RNAudioStreamerUpdate maps
+    @ReactMethod public void setBatchedEvents(boolean batched) {
+        eventDispatcher.setBatched(batched);
+    }
+
+    @ReactMethod public void bridgeStats(Callback callback) {
+        WritableMap stats = Arguments.createMap();
+        stats.putDouble("eventsEmitted", eventDispatcher.getEventsEmitted());
+        stats.putDouble("eventsSuppressed", eventDispatcher.getEventsSuppressed());
+        callback.invoke(null, stats);
+    }
+
+    // Records how long each main thread message runs, to compare UI jank with and without playback
+    @ReactMethod public void setMainThreadMonitoring(final boolean enabled) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (enabled && mainThreadMonitor == null) {
+                    mainThreadMonitor = new MainThreadMonitor();
+                    mainThreadMonitor.start();
+                } else if (!enabled && mainThreadMonitor != null) {
+                    mainThreadMonitor.stop();
+                    mainThreadMonitor = null;
+                }
+            }
+        });
+    }
+
+    @ReactMethod public void mainThreadStats(Callback callback) {
+        MainThreadMonitor monitor = mainThreadMonitor;
+        WritableMap stats = Arguments.createMap();
+        stats.putBoolean("monitoring", monitor != null);
+        if (monitor != null) {
+            stats.putDouble("messages", monitor.getMessageCount());
+            stats.putDouble("blockingMessages", monitor.getBlockingMessageCount());
+            stats.putDouble("blockedMs", monitor.getBlockedMs());
+            stats.putDouble("maxDispatchMs", monitor.getMaxDispatchMs());
+            monitor.reset();
+        }
+        callback.invoke(null, stats);
+    }
+
+    @ReactMethod public void status(Callback callback) {
+        callback.invoke(null,status);
+    }
+
+    @ReactMethod public void duration(final Callback callback) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (player == null){
+                    callback.invoke(null,(double)0);
+                }else{
+                    callback.invoke(null,getDurationSeconds(player));
+                }
+            }
+        });
+    }
+
+    private static double getDurationSeconds(ExoPlayer player) {
+        long durationMs = player.getDuration();
+        return durationMs == ExoPlayer.UNKNOWN_TIME ? 0 : durationMs / 1000d;
+    }
+
+    static String getDefaultUserAgent() {
+        StringBuilder result = new StringBuilder(64);
+        result.append("Dalvik/");
+        result.append(System.getProperty("java.vm.version")); // such as 1.1.0
+        result.append(" (Linux; U; Android ");
+
+        String version = Build.VERSION.RELEASE; // "1.0" or "3.4b5"
+        result.append(version.length() > 0 ? version : "1.0");
+
+        // add the model for the release build
+        if ("REL".equals(Build.VERSION.CODENAME)) {
+            String model = Build.MODEL;
+            if (model.length() > 0) {
+                result.append("; ");
+                result.append(model);
+            }
+        }
+        String id = Build.ID; // "MASTER" or "M4-rc20"
+        if (id.length() > 0) {
+            result.append(" Build/");
+            result.append(id);
+        }
+        result.append(")");
+        return result.toString();
+    }
+
+    private void sendStatusEvent() {
+        if (downloadManager != null) {
+            downloadManager.setPlaybackState(PLAYING.equals(status) ? DownloadManager.PLAYBACK_ACTIVE
+                    : BUFFERING.equals(status) ? DownloadManager.PLAYBACK_STALLED : DownloadManager.PLAYBACK_IDLE);
+        }
+        eventDispatcher.updateStatus(status);
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                updateProgressTicker();
+                updateLiveSyncTicker();
+                updateCrossfadeCheckTicker();
+            }
+        });
+    }
+
+    private void updateProgressTicker() {
+        checkMainThread();
+        mainHandler.removeCallbacks(progressTicker);
+        if (progressIntervalMs > 0 && PLAYING.equals(status)) {
+            mainHandler.post(progressTicker);
+        }
+    }
+
+    private void startMetricsSession(String sessionUrl) {
+        long networkBytesRead = getDataSourceFactory().getNetworkBytesRead();
+        PlaybackMetrics.Counters ended = metrics.startSession(sessionUrl, networkBytesRead);
+        if (ended.url != null) {
+            WritableMap summary = ended.toWritableMap(networkBytesRead, 0);
+            summary.putBoolean("ended", true);
+            sendMetricsEvent(summary);
+        }
+    }
+
+    private void sendStartupEvent(long startupMs) {
+        String contentType = PlaybackMetrics.getContentType(url);
+        boolean overBudget = startupBudgetMs > 0 && startupMs > startupBudgetMs;
+        if (overBudget) {
+            Log.w(TAG, "Startup of " + contentType + " took " + startupMs + " ms, over the budget of " + startupBudgetMs + " ms");
+        }
+        if (!reactContext.hasActiveCatalystInstance()) {
+            return;
+        }
+        WritableMap event = Arguments.createMap();
+        event.putString("url", url);
+        event.putString("contentType", contentType);
+        event.putDouble("startupMs", startupMs);
+        event.putBoolean("overBudget", overBudget);
+        reactContext
+                .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                .emit("RNAudioStreamerStartup", event);
+    }
+
+    private void sendMetricsEvent(WritableMap event) {
+        if (!reactContext.hasActiveCatalystInstance()) {
+            return;
+        }
+        reactContext
+                .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                .emit("RNAudioStreamerMetrics", event);
+    }
+
+    private final Runnable metricsTicker = new Runnable() {
+        @Override
+        public void run() {
+            if (url != null) {
+                WritableMap event = metrics.getSessionSnapshot(getDataSourceFactory().getNetworkBytesRead());
+                event.putBoolean("ended", false);
+                sendMetricsEvent(event);
+            }
+            if (metricsIntervalMs > 0) {
+                mainHandler.postDelayed(this, metricsIntervalMs);
+            }
+        }
+    };
+
+    private final Runnable progressTicker = new Runnable() {
+        @Override
+        public void run() {
+            if (player == null) {
+                return;
+            }
+            WritableMap progress = Arguments.createMap();
+            progress.putDouble("position", player.getCurrentPosition() / 1000d);
+            long bufferedPositionMs = player.getBufferedPosition();
+            progress.putDouble("bufferedPosition", bufferedPositionMs == ExoPlayer.UNKNOWN_TIME ? 0 : bufferedPositionMs / 1000d);
+            progress.putDouble("duration", getDurationSeconds(player));
+            progress.putDouble("playbackRate", playbackRate);
+            long liveLatencyMs = getLiveLatencyMs();
+            if (liveLatencyMs >= 0) {
+                progress.putDouble("liveLatency", liveLatencyMs / 1000d);
+            }
+            if (eventDispatcher.isBatched()) {
+                eventDispatcher.updateFields(progress);
+            } else if (reactContext.hasActiveCatalystInstance()) {
+                reactContext
+                        .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                        .emit("RNAudioStreamerProgress", progress);
+            }
+            mainHandler.postDelayed(this, progressIntervalMs);
+        }
+    };
+
+    // DASH and SmoothStreaming live streams start at a known distance from the live edge. For
+    // other streams only the latency added since playback started is known.
+    private LiveLatencyTracker createLatencyTracker(String uriString) {
+        int contentType = Util.inferContentType(Uri.parse(uriString).getLastPathSegment());
+        if (contentType == Util.TYPE_DASH || contentType == Util.TYPE_SS) {
+            return new LiveLatencyTracker(bufferingPolicy.liveEdgeLatencyMs);
+        }
+        return LiveLatencyTracker.forUnknownLiveEdge();
+    }
+
+    // Returns the estimated latency to live of the current item, or -1 if it is not live or has
+    // not started.
+    private long getLiveLatencyMs() {
+        if (player == null || latencyTracker == null || player.getDuration() != ExoPlayer.UNKNOWN_TIME) {
+            return -1;
+        }
+        return latencyTracker.getLatencyMs(player.getCurrentPosition());
     }
 
-    @ReactMethod
-    public void setUrl(String urlString) {
+    private void updateLiveSyncTicker() {
+        checkMainThread();
+        mainHandler.removeCallbacks(liveSyncTicker);
+        if (liveModeEnabled && PLAYING.equals(status)) {
+            mainHandler.post(liveSyncTicker);
+        }
+    }
 
-        if (player != null){
-            player.stop();
-            player = null;
-            status = "STOPPED";
-            this.sendStatusEvent();
+    private final Runnable liveSyncTicker = new Runnable() {
+        @Override
+        public void run() {
+            long latencyMs = getLiveLatencyMs();
+            if (latencyMs < 0) {
+                return;
+            }
+            long driftMs = latencyMs - latencyTracker.getTargetLatencyMs();
+            long bufferedPositionMs = player.getBufferedPosition();
+            long bufferedAheadMs = bufferedPositionMs == ExoPlayer.UNKNOWN_TIME ? 0
+                    : bufferedPositionMs - player.getCurrentPosition();
+            if (driftMs > liveToleranceMs && bufferedAheadMs > LIVE_CATCH_UP_MIN_BUFFER_MS) {
+                setPlaybackRate(1f + LIVE_RATE_ADJUSTMENT);
+            } else if (driftMs < -liveToleranceMs) {
+                setPlaybackRate(1f - LIVE_RATE_ADJUSTMENT);
+            } else if (Math.abs(driftMs) <= liveToleranceMs / 2 || bufferedAheadMs <= LIVE_CATCH_UP_MIN_BUFFER_MS) {
+                setPlaybackRate(1f);
+            }
+            mainHandler.postDelayed(this, LIVE_SYNC_INTERVAL_MS);
         }
+    };
 
-        this.player = ExoPlayer.Factory.newInstance(TrackRenderersBuilder.TRACK_RENDER_COUNT, 1000, 1000);
-        this.player.addListener(internalEventListener);
-        this.player.setPlayWhenReady(false);
+    private void setPlaybackRate(float rate) {
+        if (rate == playbackRate || player == null || audioTrackRenderer == null
+                || Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return;
+        }
+        sendPlaybackParams(rate);
+        playbackRate = rate;
+    }
 
-        renderTracks(urlString);
+    // Crossfades into the next item this long before the current one ends, and on skipToNext.
+    @ReactMethod public void setCrossfade(final double durationMs) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                crossfadeMs = (long) durationMs;
+                updateCrossfadeCheckTicker();
+            }
+        });
+    }
 
+    private void updateCrossfadeCheckTicker() {
+        checkMainThread();
+        mainHandler.removeCallbacks(crossfadeCheckTicker);
+        if (crossfadeMs > 0 && PLAYING.equals(status)) {
+            mainHandler.postDelayed(crossfadeCheckTicker, CROSSFADE_CHECK_INTERVAL_MS);
+        }
     }
 
-    private Handler mainHandler;
+    // Starts the crossfade once the rest of the current item fits into it.
+    private final Runnable crossfadeCheckTicker = new Runnable() {
+        @Override
+        public void run() {
+            if (player == null) {
+                return;
+            }
+            long durationMs = player.getDuration();
+            if (nextAudioTrackRenderer != null && fadingPlayer == null && durationMs != ExoPlayer.UNKNOWN_TIME
+                    && durationMs - player.getCurrentPosition() <= crossfadeMs) {
+                skipToNextInternal();
+                return;
+            }
+            mainHandler.postDelayed(this, CROSSFADE_CHECK_INTERVAL_MS);
+        }
+    };
 
-//    private String uri;
+    // Equal power curves keep the loudness steady while both items play.
+    private final Runnable crossfadeTicker = new Runnable() {
+        @Override
+        public void run() {
+            if (fadingPlayer == null) {
+                return;
+            }
+            float progress = (SystemClock.elapsedRealtime() - fadeStartMs) / (float) fadeDurationMs;
+            if (progress >= 1f) {
+                finishCrossfade();
+                return;
+            }
+            double angle = progress * Math.PI / 2;
+            setVolume(fadingPlayer, fadingAudioTrackRenderer, (float) Math.cos(angle));
+            if (player != null && audioTrackRenderer != null) {
+                setVolume(player, audioTrackRenderer, (float) Math.sin(angle));
+            }
+            mainHandler.postDelayed(this, CROSSFADE_STEP_MS);
+        }
+    };
 
-    private final InternalEventListener internalEventListener = new InternalEventListener();
-    private final List<EventListener> eventListeners = new LinkedList<>();
+    private void finishCrossfade() {
+        if (fadingPlayer == null) {
+            return;
+        }
+        mainHandler.removeCallbacks(crossfadeTicker);
+        recyclePlayer(fadingPlayer, fadingEventListener);
+        fadingPlayer = null;
+        fadingEventListener = null;
+        fadingAudioTrackRenderer = null;
+        fadingAllocator = null;
+        if (player != null && audioTrackRenderer != null) {
+            setVolume(player, audioTrackRenderer, 1f);
+        }
+        if (nextPlayer == null) preloadNext();
+    }
 
-    private TrackRenderersBuilder trackRenderersBuilder;
-    private TrackRenderer videoTrackRenderer;
-    private TrackRenderer audioTrackRenderer;
+    private static void setVolume(ExoPlayer target, TrackRenderer audioRenderer, float volume) {
+        target.sendMessage(audioRenderer, MediaCodecAudioTrackRenderer.MSG_SET_VOLUME, volume);
+    }
 
+    private int getActivePlayerCount() {
+        return (player != null ? 1 : 0) + (nextPlayer != null ? 1 : 0) + (fadingPlayer != null ? 1 : 0)
+                + playerInstances.size();
+    }
 
-    private void renderTracks(String uri) {
-        this.trackRenderersBuilder = createTrackRenderersBuilder(reactContext, uri);
-        this.trackRenderersBuilder.build(new TrackRenderersBuilder.Callback() {
+    // Secondary players play alongside the current item, for example a pre-roll ad, and report
+    // their state in RNAudioStreamerPlayerStatus events. They are created paused.
+    @ReactMethod public void createPlayer(final String id, final String urlString, final Callback callback) {
+        mainHandler.post(new Runnable() {
             @Override
-            public void onFinish(TrackRenderer[] trackRenderers) {
-                Log.d(TAG, "renderTracks...track renderers built");
-                for (int i = 0; i < TrackRenderersBuilder.TRACK_RENDER_COUNT; i++) {
-                    if (trackRenderers[i] == null) {
-                        // Convert a null renderer to a dummy renderer.
-                        trackRenderers[i] = new DummyTrackRenderer();
-                    }
+            public void run() {
+                if (playerInstances.containsKey(id)) {
+                    callback.invoke("Player " + id + " already exists");
+                    return;
                 }
-                videoTrackRenderer = trackRenderers[TrackRenderersBuilder.TRACK_VIDEO_INDEX];
-                audioTrackRenderer = trackRenderers[TrackRenderersBuilder.TRACK_AUDIO_INDEX];
-                player.prepare(trackRenderers);
+                if (playerInstances.size() >= MAX_SECONDARY_PLAYERS || getActivePlayerCount() >= MAX_ACTIVE_PLAYERS) {
+                    callback.invoke("Too many players");
+                    return;
+                }
+                createPlayerInstance(id, urlString);
+                callback.invoke((Object) null);
+            }
+        });
+    }
 
+    private void createPlayerInstance(final String id, String urlString) {
+        final ExoPlayer created = obtainPlayer(bufferingPolicy);
+        created.setPlayWhenReady(false);
+        final Allocator quota = allocatorPool.newQuota(SECONDARY_QUOTA_BYTES);
+        final InternalEventListener listener = new InternalEventListener(id);
+        final PlayerInstance instance = new PlayerInstance(id, urlString, created, quota, listener);
+        instance.status = STOPPED;
+        created.addListener(listener);
+        final TrackRenderersBuilder builder = createTrackRenderersBuilder(reactContext, urlString, created.getPlaybackLooper(), quota, listener);
+        instance.trackRenderersBuilder = builder;
+        playerInstances.put(id, instance);
+        builder.setAudioOnly(true);
+        builder.setBufferingPolicy(getBuildBufferingPolicy().forQuota(SECONDARY_QUOTA_BYTES));
+        builder.setAudioFormatEvaluator(createAudioFormatEvaluator());
+        buildInBackground(builder, new TrackRenderersBuilder.Callback() {
+            @Override
+            public void onFinish(TrackRenderer[] trackRenderers) {
+                if (playerInstances.get(id) != instance) {
+                    return;
+                }
+                fillDummyRenderers(trackRenderers);
+                instance.audioTrackRenderer = trackRenderers[TrackRenderersBuilder.TRACK_AUDIO_INDEX];
+                if (instance.volume != 1f) {
+                    instance.setVolume(instance.volume);
+                }
+                created.prepare(trackRenderers);
             }
 
             @Override
             public void onError(Exception e) {
-                Log.e(TAG, "renderTracks...failed to build track renderers", e);
-                notifyError(e);
+                if (playerInstances.get(id) != instance) {
+                    return;
+                }
+                Log.e(TAG, "Secondary player " + id + " failed to build track renderers", e);
+                instance.status = ERROR;
+                sendPlayerStatusEvent(instance, e);
             }
         });
     }
-    @ReactMethod public void play() {
-        if(player != null) player.setPlayWhenReady(true);
+
+    @ReactMethod public void playPlayer(final String id) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                PlayerInstance instance = playerInstances.get(id);
+                if (instance != null) instance.player.setPlayWhenReady(true);
+            }
+        });
     }
 
-    @ReactMethod public void remove() {
-        if (player != null){
-            player.stop();
-            player = null;
-            status = "STOPPED";
-            this.sendStatusEvent();
-        }
+    @ReactMethod public void pausePlayer(final String id) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                PlayerInstance instance = playerInstances.get(id);
+                if (instance != null) instance.player.setPlayWhenReady(false);
+            }
+        });
     }
-    @ReactMethod public void pause() {
-        if(player != null) player.setPlayWhenReady(false);
+
+    @ReactMethod public void setPlayerVolume(final String id, final double volume) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                PlayerInstance instance = playerInstances.get(id);
+                if (instance != null) instance.setVolume((float) volume);
+            }
+        });
+    }
+
+    @ReactMethod public void destroyPlayer(final String id) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                PlayerInstance instance = playerInstances.remove(id);
+                if (instance != null) {
+                    releasePlayerInstance(instance);
+                    if (nextPlayer == null) preloadNext();
+                }
+            }
+        });
+    }
+
+    private void releasePlayerInstance(PlayerInstance instance) {
+        if (instance.trackRenderersBuilder != null) instance.trackRenderersBuilder.cancel();
+        recyclePlayer(instance.player, instance.listener);
+    }
+
+    // Lists every player holding a decoder, with the buffer memory it holds.
+    @ReactMethod public void players(final Callback callback) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                WritableArray result = Arguments.createArray();
+                if (player != null) {
+                    result.pushMap(createPlayerInfo("current", null, url, status, allocator));
+                }
+                if (nextPlayer != null) {
+                    result.pushMap(createPlayerInfo("next", null, nextUrl, null, nextAllocator));
+                }
+                if (fadingPlayer != null) {
+                    result.pushMap(createPlayerInfo("fading", null, null, null, fadingAllocator));
+                }
+                for (PlayerInstance instance : playerInstances.values()) {
+                    result.pushMap(createPlayerInfo("secondary", instance.id, instance.url, instance.status, instance.allocator));
+                }
+                callback.invoke(null, result);
+            }
+        });
     }
 
-    @ReactMethod public void seekToTime(double time) {
-        if(player != null) player.seekTo((long)time * 1000);
+    private static WritableMap createPlayerInfo(String role, String id, String playerUrl, String playerStatus, Allocator quota) {
+        WritableMap info = Arguments.createMap();
+        info.putString("role", role);
+        if (id != null) info.putString("id", id);
+        if (playerUrl != null) info.putString("url", playerUrl);
+        if (playerStatus != null) info.putString("status", playerStatus);
+        info.putDouble("allocatedBytes", quota != null ? quota.getTotalBytesAllocated() : 0);
+        return info;
     }
 
-    @ReactMethod public void currentTime(Callback callback) {
-        if (player == null){
-            callback.invoke(null,(double)0);
-        }else{
-            callback.invoke(null,(double)(player.getCurrentPosition()/1000));
+    private void sendPlayerStatusEvent(PlayerInstance instance, Exception error) {
+        if (!reactContext.hasActiveCatalystInstance()) {
+            return;
         }
+        WritableMap event = Arguments.createMap();
+        event.putString("id", instance.id);
+        event.putString("status", instance.status);
+        if (error != null) event.putString("error", error.getMessage());
+        reactContext
+                .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                .emit("RNAudioStreamerPlayerStatus", event);
     }
 
-    @ReactMethod public void status(Callback callback) {
-        callback.invoke(null,status);
+    @TargetApi(Build.VERSION_CODES.M)
+    private void sendPlaybackParams(float rate) {
+        player.sendMessage(audioTrackRenderer, MediaCodecAudioTrackRenderer.MSG_SET_PLAYBACK_PARAMS,
+                new PlaybackParams().setSpeed(rate));
     }
 
-    @ReactMethod public void duration(Callback callback) {
-        if (player == null){
-            callback.invoke(null,(double)0);
-        }else{
-            callback.invoke(null,(double)(player.getDuration()/1000));
+    private FormatEvaluator createAudioFormatEvaluator() {
+        switch (audioAdaptation) {
+            case ADAPTATION_HYBRID:
+                return new HybridFormatEvaluator(bandwidthMeter, HybridFormatEvaluator.DEFAULT_INITIAL_BITRATE);
+            case ADAPTATION_THROUGHPUT:
+                return new FormatEvaluator.AdaptiveEvaluator(bandwidthMeter);
+            default:
+                return null;
         }
     }
 
+    /**
+     * Seeds the meter with the estimate saved for the active network when that differs from the
+     * one the meter has been measuring. Runs on the renderer thread, before a builder picks formats.
+     */
+    private void updateBandwidthNetwork() {
+        String networkKey = bandwidthEstimateStore.getNetworkKey();
+        if (networkKey.equals(bandwidthNetworkKey)) {
+            return;
+        }
+        persistBandwidthEstimate();
+        bandwidthNetworkKey = networkKey;
+        bandwidthMeter.reset(bandwidthEstimateStore.load(networkKey));
+        Log.d(TAG, "updateBandwidthNetwork...network=" + networkKey + ", seed=" + bandwidthMeter.getBitrateEstimate());
+    }
 
-    public void onLoadingChanged(boolean isLoading) {
-        if (isLoading == true){
-            status = BUFFERING;
-            this.sendStatusEvent();
-        }else if (this.player != null){
-            if (this.player.getPlayWhenReady()) {
-                status = PLAYING;
-                this.sendStatusEvent();
-            } else {
-                status = PAUSED;
-                this.sendStatusEvent();
+    // Runs on the renderer thread. Renderers that are built keep running: their requests in flight
+    // fail and are retried on the new network, see ReconnectingHttpDataSource.
+    private final NetworkMonitor.Listener networkListener = new NetworkMonitor.Listener() {
+        @Override
+        public void onNetworkChanged() {
+            updateBandwidthNetwork();
+            String networkKey = bandwidthNetworkKey;
+            if (networkKey.equals(monitoredNetworkKey)) {
+                return;
             }
-        }else{
-            status = STOPPED;
-            this.sendStatusEvent();
+            monitoredNetworkKey = networkKey;
+            meteredNetwork = networkMonitor.isMetered();
+            Log.d(TAG, "onNetworkChanged...network=" + networkKey + ", metered=" + meteredNetwork);
+            if (httpStack instanceof OkHttpStack) {
+                ((OkHttpStack) httpStack).onNetworkChanged();
+            }
+            metrics.onNetworkChanged();
+            sendNetworkChangeEvent(networkKey, meteredNetwork);
         }
+    };
+
+    private void sendNetworkChangeEvent(String networkKey, boolean metered) {
+        if (!reactContext.hasActiveCatalystInstance()) {
+            return;
+        }
+        WritableMap event = Arguments.createMap();
+        event.putString("network", networkKey);
+        event.putBoolean("metered", metered);
+        reactContext
+                .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                .emit("RNAudioStreamerNetworkChange", event);
     }
 
+    // Items built while on a metered network prefetch less. Items already built keep their policy.
+    private BufferingPolicy getBuildBufferingPolicy() {
+        return meteredNetwork ? bufferingPolicy.forMeteredNetwork() : bufferingPolicy;
+    }
 
-    private static String getDefaultUserAgent() {
-        StringBuilder result = new StringBuilder(64);
-        result.append("Dalvik/");
-        result.append(System.getProperty("java.vm.version")); // such as 1.1.0
-        result.append(" (Linux; U; Android ");
+    private void persistBandwidthEstimate() {
+        String networkKey = bandwidthNetworkKey;
+        // Only save what was measured, not a seed carried over from an earlier session.
+        if (networkKey == null || !bandwidthMeter.hasMeasuredEstimate()) {
+            return;
+        }
+        bandwidthEstimateStore.save(networkKey, bandwidthMeter.getBitrateEstimate());
+    }
 
-        String version = Build.VERSION.RELEASE; // "1.0" or "3.4b5"
-        result.append(version.length() > 0 ? version : "1.0");
+    // Only frames that changed arrive here, see Id3MetadataFilter. Picture and object data stay native.
+    // The playerId is that of a secondary player, or null for the current item.
+    private void sendId3MetadataEvent(String playerId, List<Id3Frame> metadata) {
+        WritableMap event = Arguments.createMap();
+        event.putString("type", "id3");
+        if (playerId != null) event.putString("id", playerId);
+        WritableArray frames = Arguments.createArray();
+        for (Id3Frame frame : metadata) {
+            WritableMap map = Arguments.createMap();
+            map.putString("id", frame.id);
+            if (frame instanceof TxxxFrame) {
+                map.putString("description", ((TxxxFrame) frame).description);
+                map.putString("value", ((TxxxFrame) frame).value);
+            } else if (frame instanceof TextInformationFrame) {
+                String value = ((TextInformationFrame) frame).description;
+                map.putString("value", value);
+                if ("TIT2".equals(frame.id)) {
+                    event.putString("title", value);
+                } else if ("TPE1".equals(frame.id)) {
+                    event.putString("artist", value);
+                }
+            } else if (frame instanceof PrivFrame) {
+                map.putString("owner", ((PrivFrame) frame).owner);
+                map.putString("data", Base64.encodeToString(((PrivFrame) frame).privateData, Base64.NO_WRAP));
+            } else if (frame instanceof GeobFrame) {
+                map.putString("mimeType", ((GeobFrame) frame).mimeType);
+                map.putString("filename", ((GeobFrame) frame).filename);
+                map.putString("description", ((GeobFrame) frame).description);
+            } else if (frame instanceof ApicFrame) {
+                map.putString("mimeType", ((ApicFrame) frame).mimeType);
+                map.putString("description", ((ApicFrame) frame).description);
+                map.putInt("pictureType", ((ApicFrame) frame).pictureType);
+            }
+            frames.pushMap(map);
+        }
+        event.putArray("frames", frames);
+        sendEvent("RNAudioStreamerMetadata", "metadata", event);
+    }
 
-        // add the model for the release build
-        if ("REL".equals(Build.VERSION.CODENAME)) {
-            String model = Build.MODEL;
-            if (model.length() > 0) {
-                result.append("; ");
-                result.append(model);
+    // Radio streams conventionally put "artist - title" into StreamTitle.
+    // The playerId is that of a secondary player, or null for the current item.
+    private void sendIcyMetadataEvent(String playerId, String streamTitle, String streamUrl) {
+        WritableMap event = Arguments.createMap();
+        event.putString("type", "icy");
+        if (playerId != null) event.putString("id", playerId);
+        event.putString("streamTitle", streamTitle);
+        event.putString("streamUrl", streamUrl);
+        int separator = streamTitle != null ? streamTitle.indexOf(" - ") : -1;
+        if (separator > 0) {
+            event.putString("artist", streamTitle.substring(0, separator).trim());
+            event.putString("title", streamTitle.substring(separator + 3).trim());
+        } else {
+            event.putString("title", streamTitle);
+        }
+        sendEvent("RNAudioStreamerMetadata", "metadata", event);
+    }
+
+    private void sendTrackSwitchEvent(Format format, int trigger, long mediaTimeMs) {
+        formatSwitches++;
+        WritableMap event = Arguments.createMap();
+        event.putString("url", url);
+        event.putString("formatId", format.id);
+        event.putInt("bitrate", format.bitrate);
+        event.putString("codecs", format.codecs);
+        event.putString("trigger", getTriggerName(trigger));
+        event.putDouble("mediaTime", mediaTimeMs / 1000d);
+        sendEvent("RNAudioStreamerTrackSwitch", "trackSwitch", event);
+    }
+
+    // In batched mode the event goes out with the next update under batchedKey, replacing one of
+    // the same kind that is still pending.
+    private void sendEvent(String eventName, String batchedKey, WritableMap event) {
+        if (eventDispatcher.isBatched()) {
+            WritableMap fields = Arguments.createMap();
+            fields.putMap(batchedKey, event);
+            eventDispatcher.updateFields(fields);
+        } else if (reactContext.hasActiveCatalystInstance()) {
+            reactContext
+                    .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                    .emit(eventName, event);
+        }
+    }
+
+    private static String getTriggerName(int trigger) {
+        switch (trigger) {
+            case Chunk.TRIGGER_INITIAL:
+                return "initial";
+            case Chunk.TRIGGER_MANUAL:
+                return "manual";
+            case Chunk.TRIGGER_ADAPTIVE:
+                return "adaptive";
+            default:
+                return "unspecified";
+        }
+    }
+
+    private synchronized DownloadManager getDownloadManager() {
+        if (downloadManager == null) {
+            File downloadDir = new File(reactContext.getFilesDir(), DOWNLOAD_DIR_NAME);
+            downloadDir.mkdirs();
+            downloadManager = new DownloadManager(reactContext, httpStack, downloadDir, downloadListener);
+        }
+        return downloadManager;
+    }
+
+    private static WritableMap toWritableMap(Download download) {
+        WritableMap map = Arguments.createMap();
+        map.putString("url", download.url);
+        map.putString("state", download.getState());
+        map.putDouble("downloadedBytes", download.getDownloadedBytes());
+        map.putDouble("totalBytes", download.getTotalBytes());
+        map.putInt("completedParts", download.getCompletedParts());
+        map.putInt("partCount", download.getPartCount());
+        return map;
+    }
+
+    private final DownloadManager.Listener downloadListener = new DownloadManager.Listener() {
+        @Override
+        public void onDownloadChanged(Download download) {
+            if (!reactContext.hasActiveCatalystInstance()) {
+                return;
             }
+            reactContext
+                    .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                    .emit("RNAudioStreamerDownloadChanged", toWritableMap(download));
         }
-        String id = Build.ID; // "MASTER" or "M4-rc20"
-        if (id.length() > 0) {
-            result.append(" Build/");
-            result.append(id);
+    };
+
+    private static synchronized Cache getCache(Context context) {
+        if (cache == null) {
+            File cacheDir = new File(context.getCacheDir(), CACHE_DIR_NAME);
+            cacheEvictor = new ResizableCacheEvictor(cacheSizeBytes);
+            cache = new SimpleCache(cacheDir, cacheEvictor);
         }
-        result.append(")");
-        return result.toString();
+        return cache;
     }
 
-    private void sendStatusEvent() {
-        this.reactContext
-                .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
-                .emit("RNAudioStreamerStatusChanged", status);
+    private synchronized DefaultDataSourceFactory getDataSourceFactory() {
+        if (dataSourceFactory == null) {
+            ManifestCache manifestCache = new ManifestCache(
+                    new File(reactContext.getCacheDir(), MANIFEST_CACHE_DIR_NAME), MANIFEST_CACHE_MEMORY_ENTRIES);
+            dataSourceFactory = new DefaultDataSourceFactory(reactContext, httpStack,
+                    getCache(reactContext), manifestCache);
+        }
+        return dataSourceFactory;
     }
 
-    private TrackRenderersBuilder createTrackRenderersBuilder(Context context, String uriString) {
-        Uri uri = null ;
-        if(uriString.startsWith("http")){
+    private TrackRenderersBuilder createTrackRenderersBuilder(Context context, String uriString, Looper playbackLooper,
+                                                             Allocator allocator, InternalEventListener listener) {
+        StageTracer.beginSection(StageTracer.STAGE_CREATE_BUILDER);
+        try {
+            return createTrackRenderersBuilderInternal(context, uriString, playbackLooper, allocator, listener);
+        } finally {
+            StageTracer.endSection();
+        }
+    }
 
-        }else{
-            uriString = "file://" + uriString ;
+    private TrackRenderersBuilder createTrackRenderersBuilderInternal(Context context, String uriString, Looper playbackLooper,
+                                                                     Allocator allocator, InternalEventListener listener) {
+        String localPath = getDownloadManager().getLocalPath(uriString);
+        if (localPath != null) {
+            uriString = localPath;
         }
-        uri = Uri.parse(uriString);
+        Uri uri = getPlaybackUri(uriString);
+        uriString = uri.toString();
         final int contentType = Util.inferContentType(uri.getLastPathSegment());
-        final String userAgent = getDefaultUserAgent();
+        final DefaultDataSourceFactory dataSourceFactory = getDataSourceFactory();
 
         switch (contentType) {
             case Util.TYPE_DASH:
-                return new DashRenderersBuilder(context, userAgent, uriString, mainHandler,
-                        mediaDrmCallback, internalEventListener, internalEventListener, internalEventListener, bandwidthMeterListener, player.getPlaybackLooper());
+                return new DashRenderersBuilder(context, dataSourceFactory, uriString, rendererHandler,
+                        mediaDrmCallback, listener, listener, listener, bandwidthMeter, listener, playbackLooper, allocator);
             case Util.TYPE_HLS:
-                return new HlsRenderersBuilder(context, userAgent, uriString, mainHandler, internalEventListener, internalEventListener, internalEventListener, internalEventListener, bandwidthMeterListener);
+                return new HlsRenderersBuilder(context, dataSourceFactory, uriString, rendererHandler, listener, listener, listener, listener.id3MetadataFilter, bandwidthMeter, listener, allocator);
             case Util.TYPE_SS:
-                return new SmoothStreamingRenderersBuilder(context, userAgent, uriString, mainHandler, mediaDrmCallback, internalEventListener, internalEventListener, internalEventListener, bandwidthMeterListener, player.getPlaybackLooper());
+                return new SmoothStreamingRenderersBuilder(context, dataSourceFactory, uriString, rendererHandler, mediaDrmCallback, listener, listener, listener, bandwidthMeter, listener, playbackLooper, allocator);
             case Util.TYPE_OTHER:
-                return new ExtractorRenderersBuilder(context, userAgent, uri, mainHandler,
-                        internalEventListener, internalEventListener, internalEventListener, bandwidthMeterListener);
+                return new ExtractorRenderersBuilder(context, dataSourceFactory, uri, rendererHandler,
+                        listener, listener, listener, listener, allocator);
             default:
                 throw new IllegalStateException("Unsupported content type: " + contentType);
         }
     }
 
-    private class InternalEventListener implements MediaCodecVideoTrackRenderer.EventListener, MediaCodecAudioTrackRenderer.EventListener, TextRenderer, ExoPlayer.Listener, MetadataTrackRenderer.MetadataRenderer<List<Id3Frame>> {
+    // Local paths, such as those of downloads, are played from file uris.
+    static Uri getPlaybackUri(String uriString) {
+        return Uri.parse(uriString.startsWith("http") ? uriString : "file://" + uriString);
+    }
+
+    private class InternalEventListener implements MediaCodecVideoTrackRenderer.EventListener, MediaCodecAudioTrackRenderer.EventListener, TextRenderer, ExoPlayer.Listener, MetadataTrackRenderer.MetadataRenderer<List<Id3Frame>>, ChunkSampleSource.EventListener, HlsSampleSource.EventListener, IcyHttpDataSource.Listener {
+
+        // The id of the secondary player it listens to, or null for the items of the playlist.
+        final String playerId;
+        // Set on the main thread, read by the renderer and loading callbacks.
+        volatile boolean current;
+        // Filters the ID3 frames of this player only, so that another player's frames do not
+        // count as seen.
+        final Id3MetadataFilter id3MetadataFilter = new Id3MetadataFilter(this);
+        // The ID3 frames and last Icy metadata of an item that is not current yet, reported when
+        // it becomes current.
+        private List<Id3Frame> pendingId3Frames;
+        private String pendingStreamTitle;
+        private String pendingStreamUrl;
+        private boolean hasPendingIcyMetadata;
+
+        InternalEventListener() {
+            this(null);
+        }
+
+        InternalEventListener(String playerId) {
+            this.playerId = playerId;
+        }
+
+        // Called on the main thread when the item it listens to becomes the current one.
+        void makeCurrent() {
+            List<Id3Frame> id3Frames;
+            boolean hasIcyMetadata;
+            String streamTitle;
+            String streamUrl;
+            synchronized (this) {
+                current = true;
+                id3Frames = pendingId3Frames;
+                pendingId3Frames = null;
+                hasIcyMetadata = hasPendingIcyMetadata;
+                hasPendingIcyMetadata = false;
+                streamTitle = pendingStreamTitle;
+                streamUrl = pendingStreamUrl;
+            }
+            if (id3Frames != null) {
+                onMetadata(id3Frames);
+            }
+            if (hasIcyMetadata) {
+                sendIcyMetadataEvent(null, streamTitle, streamUrl);
+            }
+        }
 
         @Override
         public void onAudioTrackInitializationError(AudioTrack.InitializationException e) {
-
+            // The renderer fails with it, which reaches onPlayerError.
+            Log.w(TAG, "onAudioTrackInitializationError...", e);
         }
 
         @Override
         public void onAudioTrackWriteError(AudioTrack.WriteException e) {
-            notifyError(e);
+            // The renderer fails with it, which reaches onPlayerError of the player it belongs to.
+            Log.w(TAG, "onAudioTrackWriteError...", e);
         }
 
         @Override
         public void onAudioTrackUnderrun(int bufferSize, long bufferSizeMs, long elapsedSinceLastFeedMs) {
-
+            if (current) metrics.onAudioTrackUnderrun();
         }
 
         @Override
@@ -278,17 +1904,20 @@ public class RNAudioStreamerModule extends ReactContextBaseJavaModule {
 
         @Override
         public void onDecoderInitializationError(MediaCodecTrackRenderer.DecoderInitializationException e) {
-            notifyError(e);
+            // Likewise reaches onPlayerError.
+            Log.w(TAG, "onDecoderInitializationError...", e);
         }
 
         @Override
         public void onCryptoError(MediaCodec.CryptoException e) {
-            notifyError(e);
+            // Likewise reaches onPlayerError.
+            Log.w(TAG, "onCryptoError...", e);
         }
 
         @Override
         public void onDecoderInitialized(String decoderName, long elapsedRealtimeMs, long initializationDurationMs) {
-
+            // A decoder initialized on standby costs the current item nothing.
+            if (current) metrics.onDecoderInitialized(initializationDurationMs);
         }
 
         @Override
@@ -299,6 +1928,22 @@ public class RNAudioStreamerModule extends ReactContextBaseJavaModule {
         @Override
         public void onPlayerStateChanged(boolean playWhenReady, int playbackState) {
             Log.d("onPlayerStateChanged", ""+playbackState);
+            if (playerId != null) {
+                onSecondaryPlayerStateChanged(playWhenReady, playbackState);
+                return;
+            }
+            if (!current) {
+                return;
+            }
+            if (playbackState == ExoPlayer.STATE_READY && recoveringSinceMs >= 0) {
+                metrics.onRecovered(SystemClock.elapsedRealtime() - recoveringSinceMs);
+                recoveringSinceMs = -1;
+                recoveryAttempt = 0;
+            }
+            long startupMs = metrics.onPlayerStateChanged(playWhenReady, playbackState);
+            if (startupMs >= 0) {
+                sendStartupEvent(startupMs);
+            }
 
             switch (playbackState) {
                 case ExoPlayer.STATE_IDLE:
@@ -311,20 +1956,59 @@ public class RNAudioStreamerModule extends ReactContextBaseJavaModule {
                     break;
                 case ExoPlayer.STATE_READY:
                     if (player != null && player.getPlayWhenReady()) {
+                        StageTracer.endAsync(StageTracer.STAGE_STARTUP, startupTraceToken);
+                        startupTraceToken = -1;
+                        if (latencyTracker != null) latencyTracker.onPlaying(player.getCurrentPosition());
                         status = PLAYING;
                        sendStatusEvent();
+                        if (skipStartMs != 0) {
+                            sendTrackStartedEvent();
+                            skipStartMs = 0;
+                        }
                     } else {
                         status = PAUSED;
                         sendStatusEvent();
                     }
                     break;
                 case ExoPlayer.STATE_ENDED:
+                    if (nextPlayer != null) {
+                        // Swap outside of the ended player's own listener callback.
+                        mainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                skipToNextInternal();
+                            }
+                        });
+                        break;
+                    }
                     status = FINISHED;
                     sendStatusEvent();
                     break;
             }
         }
 
+        private void onSecondaryPlayerStateChanged(boolean playWhenReady, int playbackState) {
+            PlayerInstance instance = playerInstances.get(playerId);
+            if (instance == null || instance.listener != this) {
+                return;
+            }
+            switch (playbackState) {
+                case ExoPlayer.STATE_BUFFERING:
+                    instance.status = BUFFERING;
+                    break;
+                case ExoPlayer.STATE_READY:
+                    instance.status = playWhenReady ? PLAYING : PAUSED;
+                    break;
+                case ExoPlayer.STATE_ENDED:
+                    instance.status = FINISHED;
+                    break;
+                default:
+                    instance.status = STOPPED;
+                    break;
+            }
+            sendPlayerStatusEvent(instance, null);
+        }
+
         @Override
         public void onPlayWhenReadyCommitted() {
 
@@ -332,12 +2016,125 @@ public class RNAudioStreamerModule extends ReactContextBaseJavaModule {
 
         @Override
         public void onPlayerError(ExoPlaybackException error) {
+            if (playerId != null) {
+                Log.e(TAG, "Secondary player " + playerId + " failed", error);
+                PlayerInstance instance = playerInstances.get(playerId);
+                if (instance != null && instance.listener == this) {
+                    instance.status = ERROR;
+                    sendPlayerStatusEvent(instance, error);
+                }
+                return;
+            }
+            if (!current) {
+                if (this == fadingEventListener) {
+                    Log.e(TAG, "Fading item failed, ending the crossfade", error);
+                    final InternalEventListener failed = this;
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (failed == fadingEventListener) {
+                                finishCrossfade();
+                            }
+                        }
+                    });
+                } else if (this == nextEventListener) {
+                    Log.e(TAG, "Preloading next item failed, dropping it", error);
+                    final InternalEventListener failed = this;
+                    // Release outside of the failed player's own listener callback.
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (failed == nextEventListener) {
+                                releaseNext();
+                                preloadNext();
+                            }
+                        }
+                    });
+                }
+                return;
+            }
+            if (scheduleRecovery(error)) {
+                return;
+            }
+            metrics.onError(error);
             notifyError(error);
         }
 
         @Override
         public void onMetadata(List<Id3Frame> metadata) {
+            if (playerId != null) {
+                sendId3MetadataEvent(playerId, metadata);
+                return;
+            }
+            synchronized (this) {
+                if (!current) {
+                    // Frames played while preparing on standby, or by the fading item.
+                    if (pendingId3Frames == null) {
+                        pendingId3Frames = new ArrayList<>(metadata);
+                    } else {
+                        pendingId3Frames.addAll(metadata);
+                    }
+                    return;
+                }
+            }
+            synchronized (eventListeners) {
+                for (EventListener listener : eventListeners) {
+                    listener.onMetadata(metadata);
+                }
+            }
+            sendId3MetadataEvent(null, metadata);
+        }
+
+        @Override
+        public void onIcyMetadata(String streamTitle, String streamUrl) {
+            if (playerId != null) {
+                sendIcyMetadataEvent(playerId, streamTitle, streamUrl);
+                return;
+            }
+            synchronized (this) {
+                if (!current) {
+                    // The item preloads or fades out. Only the item becoming current needs it.
+                    pendingStreamTitle = streamTitle;
+                    pendingStreamUrl = streamUrl;
+                    hasPendingIcyMetadata = true;
+                    return;
+                }
+            }
+            sendIcyMetadataEvent(null, streamTitle, streamUrl);
+        }
+
+        @Override
+        public void onLoadStarted(int sourceId, long length, int type, int trigger, Format format, long mediaStartTimeMs, long mediaEndTimeMs) {
+
+        }
 
+        @Override
+        public void onLoadCompleted(int sourceId, long bytesLoaded, int type, int trigger, Format format, long mediaStartTimeMs, long mediaEndTimeMs, long elapsedRealtimeMs, long loadDurationMs) {
+
+        }
+
+        @Override
+        public void onLoadCanceled(int sourceId, long bytesLoaded) {
+
+        }
+
+        @Override
+        public void onLoadError(int sourceId, IOException e) {
+            Log.w(TAG, "onLoadError...sourceId=" + sourceId, e);
+            if (current) metrics.onLoadError();
+        }
+
+        @Override
+        public void onUpstreamDiscarded(int sourceId, long mediaStartTimeMs, long mediaEndTimeMs) {
+
+        }
+
+        @Override
+        public void onDownstreamFormatChanged(int sourceId, Format format, int trigger, long mediaTimeMs) {
+            if (format != null && current) {
+                metrics.onFormatChanged();
+                sendTrackSwitchEvent(format, trigger, mediaTimeMs);
+            }
         }
     }
 
@@ -348,6 +2145,7 @@ public class RNAudioStreamerModule extends ReactContextBaseJavaModule {
             }
             status = ERROR;
             this.sendStatusEvent();
+            eventDispatcher.flushNow();
         }
     }
 
@@ -455,10 +2253,46 @@ public class RNAudioStreamerModule extends ReactContextBaseJavaModule {
         }
     };
 
+    private final ComponentCallbacks2 memoryCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            if (level >= TRIM_MEMORY_RUNNING_LOW) {
+                allocatorPool.trim(0);
+            } else {
+                allocatorPool.trim(POOL_MAX_RESIDENT_BYTES / 2);
+            }
+        }
+
+        @Override
+        public void onLowMemory() {
+            allocatorPool.trim(0);
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+
+        }
+    };
+
     private final BandwidthMeter.EventListener bandwidthMeterListener = new BandwidthMeter.EventListener() {
         @Override
         public void onBandwidthSample(int elapsedMs, long bytes, long bitrate) {
             Log.d(TAG, "onBandwidthSample...elapsedMs=" + elapsedMs + ", bitrate=" + bitrate);
+            long nowMs = SystemClock.elapsedRealtime();
+            if (nowMs - bandwidthPersistedAtMs >= BANDWIDTH_PERSIST_INTERVAL_MS) {
+                bandwidthPersistedAtMs = nowMs;
+                persistBandwidthEstimate();
+            }
+            if (!reactContext.hasActiveCatalystInstance()) {
+                return;
+            }
+            WritableMap event = Arguments.createMap();
+            event.putInt("elapsedMs", elapsedMs);
+            event.putDouble("bytes", bytes);
+            event.putDouble("bitrateEstimate", bitrate);
+            reactContext
+                    .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                    .emit("RNAudioStreamerBandwidthSample", event);
         }
     };
 
@@ -12,13 +12,29 @@ import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.uimanager.ViewManager;
 import com.facebook.react.bridge.JavaScriptModule;
 
+import fm.indiecast.rnaudiostreamer.upstream.HttpStack;
+
 public class RNAudioStreamerPackage implements ReactPackage {
     private Class<?> clsActivity;
+    private final HttpStack httpStack;
+
+    public RNAudioStreamerPackage() {
+        this(null);
+    }
+
+    /**
+     * @param httpStack Makes every http and https request, or null for the default OkHttp stack.
+     */
+    public RNAudioStreamerPackage(HttpStack httpStack) {
+        this.httpStack = httpStack;
+    }
 
     @Override
     public List<NativeModule> createNativeModules(ReactApplicationContext reactContext) {
         List<NativeModule> modules = new ArrayList<>();
-        modules.add(new RNAudioStreamerModule(reactContext));
+        modules.add(httpStack == null
+                ? new RNAudioStreamerModule(reactContext)
+                : new RNAudioStreamerModule(reactContext, httpStack));
         return modules;
     }
 
@@ -0,0 +1,170 @@
+package fm.indiecast.rnaudiostreamer;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.SystemClock;
+import android.os.Trace;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Opt-in timing of the stages between {@code setUrl} and the first playing state.
+ * <p>
+ * Stages that run synchronously on one thread are wrapped in {@link #beginSection(String)} and
+ * {@link #endSection()}, which also emit {@link Trace} sections for systrace and Perfetto on
+ * Android 4.3 and later. Stages that span callbacks, such as a manifest load, are timed with
+ * {@link #beginAsync()} and {@link #endAsync(String, long)} and only recorded here, since the
+ * platform has no asynchronous sections before Android 10. The last {@link #CAPACITY} stages are
+ * kept in a ring buffer. Nothing is recorded while tracing is disabled.
+ */
+public final class StageTracer {
+
+  public static final String STAGE_SET_URL = "setUrl";
+  public static final String STAGE_STARTUP = "startup";
+  public static final String STAGE_CREATE_BUILDER = "createBuilder";
+  public static final String STAGE_BUILD = "buildRenderers";
+  public static final String STAGE_MANIFEST = "manifest";
+  public static final String STAGE_UTC_TIMING = "utcTiming";
+  public static final String STAGE_DRM_SESSION = "drmSession";
+  public static final String STAGE_RENDERERS = "renderers";
+  public static final String STAGE_PREPARE = "prepare";
+
+  static final int CAPACITY = 128;
+
+  private static final String SECTION_PREFIX = "RNAudioStreamer:";
+
+  private static volatile boolean enabled;
+
+  private static final Section UNTRACED = new Section(null, 0);
+
+  private static final ThreadLocal<ArrayDeque<Section>> SECTIONS =
+    new ThreadLocal<ArrayDeque<Section>>() {
+      @Override
+      protected ArrayDeque<Section> initialValue() {
+        return new ArrayDeque<>();
+      }
+    };
+
+  // The ring buffer, guarded by the class.
+  private static final Record[] records = new Record[CAPACITY];
+  private static int nextRecord;
+  private static int recordCount;
+
+  private StageTracer() {}
+
+  public static void setEnabled(boolean enabled) {
+    StageTracer.enabled = enabled;
+  }
+
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Begins a stage that ends with the next {@link #endSection()} on the same thread.
+   */
+  public static void beginSection(String stage) {
+    if (!enabled) {
+      // Keeps begin and end paired if tracing is enabled before the section ends.
+      SECTIONS.get().push(UNTRACED);
+      return;
+    }
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+      beginTraceSection(stage);
+    }
+    SECTIONS.get().push(new Section(stage, System.nanoTime()));
+  }
+
+  /**
+   * Ends the stage begun last on this thread.
+   */
+  public static void endSection() {
+    Section section = SECTIONS.get().poll();
+    if (section == null || section == UNTRACED) {
+      return;
+    }
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+      Trace.endSection();
+    }
+    record(section.stage, section.startNs);
+  }
+
+  /**
+   * Begins a stage that may end on another thread. Returns the token to pass to
+   * {@link #endAsync(String, long)}, or -1 if tracing is disabled.
+   */
+  public static long beginAsync() {
+    return enabled ? System.nanoTime() : -1;
+  }
+
+  public static void endAsync(String stage, long token) {
+    if (token >= 0) {
+      record(stage, token);
+    }
+  }
+
+  /**
+   * Returns the recorded stages, oldest first.
+   */
+  public static synchronized List<Record> getRecords() {
+    List<Record> result = new ArrayList<>(recordCount);
+    for (int i = 0; i < recordCount; i++) {
+      result.add(records[(nextRecord - recordCount + i + CAPACITY) % CAPACITY]);
+    }
+    return result;
+  }
+
+  public static synchronized void clear() {
+    for (int i = 0; i < CAPACITY; i++) {
+      records[i] = null;
+    }
+    nextRecord = 0;
+    recordCount = 0;
+  }
+
+  @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+  private static void beginTraceSection(String stage) {
+    Trace.beginSection(SECTION_PREFIX + stage);
+  }
+
+  private static void record(String stage, long startNs) {
+    long durationNs = System.nanoTime() - startNs;
+    Record record = new Record(stage, Thread.currentThread().getName(),
+      SystemClock.elapsedRealtime() - durationNs / 1000000, durationNs / 1e6);
+    synchronized (StageTracer.class) {
+      records[nextRecord] = record;
+      nextRecord = (nextRecord + 1) % CAPACITY;
+      recordCount = Math.min(recordCount + 1, CAPACITY);
+    }
+  }
+
+  private static final class Section {
+
+    final String stage;
+    final long startNs;
+
+    Section(String stage, long startNs) {
+      this.stage = stage;
+      this.startNs = startNs;
+    }
+  }
+
+  public static final class Record {
+
+    public final String stage;
+    /** The thread on which the stage ended. */
+    public final String thread;
+    /** When the stage began, in {@link SystemClock#elapsedRealtime()} milliseconds. */
+    public final long startMs;
+    public final double durationMs;
+
+    Record(String stage, String thread, long startMs, double durationMs) {
+      this.stage = stage;
+      this.thread = thread;
+      this.startMs = startMs;
+      this.durationMs = durationMs;
+    }
+  }
+}
@@ -1,6 +1,7 @@
 package fm.indiecast.rnaudiostreamer;
 
 import com.google.android.exoplayer.TrackRenderer;
+import com.google.android.exoplayer.chunk.FormatEvaluator;
 
 public interface TrackRenderersBuilder {
 
@@ -11,8 +12,35 @@ public interface TrackRenderersBuilder {
   int TRACK_TEXT_INDEX = 2;
   int TRACK_METADATA_INDEX = 3;
 
+  /**
+   * When set before {@link #build(Callback)}, only the audio and metadata renderers are built and
+   * adaptive streams are restricted to audio renditions, so no video or text data is loaded.
+   */
+  void setAudioOnly(boolean audioOnly);
+
+  /**
+   * Sets the load control watermarks and audio buffer size used by {@link #build(Callback)}.
+   * Defaults to {@link BufferingPolicy#DEFAULT}.
+   */
+  void setBufferingPolicy(BufferingPolicy bufferingPolicy);
+
+  /**
+   * Sets the evaluator that adapts between the audio formats of DASH and SmoothStreaming streams.
+   * HLS streams adapt on the bandwidth meter alone. Without an evaluator each audio format is a
+   * separate fixed track and the first one plays.
+   */
+  void setAudioFormatEvaluator(FormatEvaluator audioFormatEvaluator);
+
+  /**
+   * Loads any manifest and builds the renderers. The callback and all renderer events are
+   * delivered on the thread of the builder's event handler.
+   */
   void build(Callback callback);
 
+  /**
+   * Stops a build in progress and cancels the segments its renderers load ahead. Called before
+   * the player the renderers belong to is released or reused.
+   */
   void cancel();
 
   interface Callback {
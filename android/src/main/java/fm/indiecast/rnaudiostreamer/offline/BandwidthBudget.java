@@ -0,0 +1,50 @@
+package fm.indiecast.rnaudiostreamer.offline;
+
+import android.os.SystemClock;
+
+/**
+ * A token bucket shared by all download threads, limiting their combined transfer rate.
+ */
+final class BandwidthBudget {
+
+  /** Rate that does not limit transfers. */
+  public static final long UNLIMITED = 0;
+  /** Rate that stops transfers until the rate is raised again. */
+  public static final long PAUSED = -1;
+
+  private long bytesPerSecond = UNLIMITED;
+  private long availableBytes;
+  private long lastRefillMs;
+
+  public synchronized void setRate(long bytesPerSecond) {
+    this.bytesPerSecond = bytesPerSecond;
+    availableBytes = 0;
+    lastRefillMs = SystemClock.elapsedRealtime();
+    notifyAll();
+  }
+
+  /**
+   * Blocks until {@code bytes} may be transferred under the current rate.
+   */
+  public synchronized void acquire(int bytes) throws InterruptedException {
+    while (true) {
+      if (bytesPerSecond == UNLIMITED) {
+        return;
+      }
+      if (bytesPerSecond != PAUSED) {
+        long nowMs = SystemClock.elapsedRealtime();
+        // Allow at most one second of burst.
+        availableBytes = Math.min(bytesPerSecond,
+            availableBytes + (nowMs - lastRefillMs) * bytesPerSecond / 1000);
+        lastRefillMs = nowMs;
+        if (availableBytes >= bytes || bytes > bytesPerSecond && availableBytes == bytesPerSecond) {
+          availableBytes -= bytes;
+          return;
+        }
+        wait(Math.max(1, (bytes - availableBytes) * 1000 / bytesPerSecond));
+      } else {
+        wait();
+      }
+    }
+  }
+}
@@ -0,0 +1,133 @@
+package fm.indiecast.rnaudiostreamer.offline;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The state of a single download. The parts of a download are written to separate files in its
+ * directory, whose sizes are the persisted progress.
+ */
+public final class Download {
+
+  public static final String STATE_QUEUED = "QUEUED";
+  public static final String STATE_DOWNLOADING = "DOWNLOADING";
+  public static final String STATE_PAUSED = "PAUSED";
+  public static final String STATE_COMPLETED = "COMPLETED";
+  public static final String STATE_FAILED = "FAILED";
+
+  static final int TYPE_PROGRESSIVE = 0;
+  static final int TYPE_HLS = 1;
+
+  private static final String METADATA_FILE_NAME = "download.json";
+
+  public final String url;
+  final File dir;
+  final int type;
+
+  final AtomicLong downloadedBytes = new AtomicLong();
+  final AtomicInteger completedParts = new AtomicInteger();
+
+  volatile String state;
+  volatile long totalBytes = -1;
+  volatile int partCount;
+  volatile String localFileName;
+  volatile boolean stopped;
+
+  Download(String url, File dir, int type) {
+    this.url = url;
+    this.dir = dir;
+    this.type = type;
+    this.state = STATE_QUEUED;
+  }
+
+  public String getState() {
+    return state;
+  }
+
+  public long getDownloadedBytes() {
+    return downloadedBytes.get();
+  }
+
+  /**
+   * Returns the total size in bytes, or -1 if it is not known until the download completes.
+   */
+  public long getTotalBytes() {
+    return totalBytes;
+  }
+
+  public int getCompletedParts() {
+    return completedParts.get();
+  }
+
+  public int getPartCount() {
+    return partCount;
+  }
+
+  /**
+   * Returns the path of the playable local copy, or null if the download has not completed.
+   */
+  public String getLocalPath() {
+    return STATE_COMPLETED.equals(state) ? new File(dir, localFileName).getAbsolutePath() : null;
+  }
+
+  synchronized void persist() throws IOException {
+    try {
+      JSONObject json = new JSONObject();
+      json.put("url", url);
+      json.put("type", type);
+      json.put("state", state);
+      json.put("totalBytes", totalBytes);
+      json.put("partCount", partCount);
+      json.put("localFileName", localFileName);
+      File tmp = new File(dir, METADATA_FILE_NAME + ".tmp");
+      FileOutputStream out = new FileOutputStream(tmp);
+      try {
+        out.write(json.toString().getBytes("UTF-8"));
+        out.getFD().sync();
+      } finally {
+        out.close();
+      }
+      if (!tmp.renameTo(new File(dir, METADATA_FILE_NAME))) {
+        throw new IOException("Failed to write download metadata in " + dir);
+      }
+    } catch (JSONException e) {
+      throw new IOException(e);
+    }
+  }
+
+  static Download load(File dir) throws IOException {
+    File file = new File(dir, METADATA_FILE_NAME);
+    byte[] data = new byte[(int) file.length()];
+    FileInputStream in = new FileInputStream(file);
+    try {
+      int offset = 0;
+      while (offset < data.length) {
+        int read = in.read(data, offset, data.length - offset);
+        if (read < 0) {
+          throw new IOException("Truncated download metadata in " + dir);
+        }
+        offset += read;
+      }
+    } finally {
+      in.close();
+    }
+    try {
+      JSONObject json = new JSONObject(new String(data, "UTF-8"));
+      Download download = new Download(json.getString("url"), dir, json.getInt("type"));
+      download.state = json.getString("state");
+      download.totalBytes = json.getLong("totalBytes");
+      download.partCount = json.getInt("partCount");
+      download.localFileName = json.optString("localFileName", null);
+      return download;
+    } catch (JSONException e) {
+      throw new IOException(e);
+    }
+  }
+}
@@ -0,0 +1,554 @@
+package fm.indiecast.rnaudiostreamer.offline;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Process;
+import android.util.Log;
+
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.upstream.DataSource;
+import com.google.android.exoplayer.upstream.DataSpec;
+import com.google.android.exoplayer.upstream.DefaultUriDataSource;
+import com.google.android.exoplayer.util.UriUtil;
+import com.google.android.exoplayer.util.Util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import fm.indiecast.rnaudiostreamer.trackrenderer.AudioOnlyHlsTrackSelector;
+import fm.indiecast.rnaudiostreamer.upstream.HttpStack;
+
+/**
+ * Downloads progressive media and HLS streams for offline playback.
+ * <p>
+ * Progressive media is fetched in fixed size byte ranges and HLS streams segment by segment, with
+ * at most {@link #MAX_PARALLEL_REQUESTS} requests in flight across all downloads. Each range or
+ * segment is written to its own file, so an interrupted download resumes with a range request
+ * from the last byte written. All transfers share a {@link BandwidthBudget} whose rate drops while
+ * a player is streaming, and which stops transfers entirely while playback is rebuffering.
+ */
+public final class DownloadManager {
+
+  public interface Listener {
+    /**
+     * Invoked on a download thread whenever the state or progress of a download changes.
+     */
+    void onDownloadChanged(Download download);
+  }
+
+  public static final int PLAYBACK_IDLE = 0;
+  public static final int PLAYBACK_ACTIVE = 1;
+  public static final int PLAYBACK_STALLED = 2;
+
+  private static final String TAG = "DownloadManager";
+
+  private static final int MAX_PARALLEL_REQUESTS = 3;
+  private static final int PART_SIZE = 1024 * 1024;
+  private static final int READ_BUFFER_SIZE = 16 * 1024;
+  private static final String PART_FILE_PREFIX = "part-";
+  private static final String TMP_FILE_SUFFIX = ".tmp";
+  private static final String HLS_PLAYLIST_FILE_NAME = "index.m3u8";
+
+  private static final Pattern BANDWIDTH_PATTERN = Pattern.compile("[^-]BANDWIDTH=(\\d+)\\b");
+  private static final Pattern CODECS_PATTERN = Pattern.compile("CODECS=\"(.+?)\"");
+  private static final Pattern URI_ATTRIBUTE_PATTERN = Pattern.compile("URI=\"(.+?)\"");
+
+  private final Context context;
+  private final HttpStack httpStack;
+  private final File rootDir;
+  private final Listener listener;
+  private final ExecutorService executor;
+  private final BandwidthBudget budget;
+  private final Map<String, Download> downloads;
+
+  private long idleBytesPerSecond = BandwidthBudget.UNLIMITED;
+  private long activeBytesPerSecond = 128 * 1024;
+  private int playbackState = PLAYBACK_IDLE;
+
+  /**
+   * Creates a manager and resumes the downloads persisted in {@code rootDir}.
+   */
+  public DownloadManager(Context context, HttpStack httpStack, File rootDir, Listener listener) {
+    this.context = context;
+    this.httpStack = httpStack;
+    this.rootDir = rootDir;
+    this.listener = listener;
+    this.budget = new BandwidthBudget();
+    this.downloads = new LinkedHashMap<>();
+    this.executor = new ThreadPoolExecutor(MAX_PARALLEL_REQUESTS, MAX_PARALLEL_REQUESTS, 0,
+        TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          @Override
+          public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+              @Override
+              public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+              }
+            }, TAG);
+          }
+        });
+
+    File[] dirs = rootDir.listFiles();
+    if (dirs != null) {
+      for (File dir : dirs) {
+        try {
+          Download download = Download.load(dir);
+          downloads.put(download.url, download);
+          if (Download.STATE_QUEUED.equals(download.state)
+              || Download.STATE_DOWNLOADING.equals(download.state)) {
+            start(download);
+          }
+        } catch (IOException e) {
+          Log.w(TAG, "Discarding unreadable download in " + dir, e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Starts or resumes downloading {@code url}.
+   *
+   * @throws IllegalArgumentException If {@code url} is a DASH or SmoothStreaming manifest.
+   */
+  public synchronized Download download(String url) {
+    Download download = downloads.get(url);
+    if (download == null) {
+      int contentType = Util.inferContentType(Uri.parse(url).getLastPathSegment());
+      if (contentType == Util.TYPE_DASH || contentType == Util.TYPE_SS) {
+        throw new IllegalArgumentException("Only progressive and HLS streams can be downloaded: " + url);
+      }
+      int type = contentType == Util.TYPE_HLS ? Download.TYPE_HLS : Download.TYPE_PROGRESSIVE;
+      File dir = new File(rootDir, sha1(url));
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+        Log.e(TAG, "download...failed to create " + dir);
+      }
+      download = new Download(url, dir, type);
+      downloads.put(url, download);
+    } else if (Download.STATE_COMPLETED.equals(download.state)
+        || Download.STATE_DOWNLOADING.equals(download.state)
+        || Download.STATE_QUEUED.equals(download.state)) {
+      return download;
+    }
+    start(download);
+    return download;
+  }
+
+  /**
+   * Stops downloading {@code url}, keeping what has been downloaded so far.
+   */
+  public synchronized void pause(String url) {
+    Download download = downloads.get(url);
+    if (download != null && !Download.STATE_COMPLETED.equals(download.state)) {
+      download.stopped = true;
+      updateState(download, Download.STATE_PAUSED);
+    }
+  }
+
+  /**
+   * Stops downloading {@code url} and deletes its files.
+   */
+  public synchronized void remove(String url) {
+    Download download = downloads.remove(url);
+    if (download != null) {
+      download.stopped = true;
+      deleteRecursively(download.dir);
+    }
+  }
+
+  /**
+   * Returns the path of the completed local copy of {@code url}, or null if there is none.
+   */
+  public synchronized String getLocalPath(String url) {
+    Download download = downloads.get(url);
+    return download == null ? null : download.getLocalPath();
+  }
+
+  public synchronized List<Download> getDownloads() {
+    return new ArrayList<>(downloads.values());
+  }
+
+  /**
+   * Sets the combined transfer rate of all downloads, in bytes per second, while no stream is
+   * playing and while one is. {@link BandwidthBudget#UNLIMITED} removes the limit.
+   */
+  public synchronized void setBandwidthLimits(long idleBytesPerSecond, long activeBytesPerSecond) {
+    this.idleBytesPerSecond = idleBytesPerSecond;
+    this.activeBytesPerSecond = activeBytesPerSecond;
+    updateBudget();
+  }
+
+  /**
+   * Informs the manager of the playback state, so that downloads yield bandwidth to streaming.
+   */
+  public synchronized void setPlaybackState(int playbackState) {
+    if (this.playbackState != playbackState) {
+      this.playbackState = playbackState;
+      updateBudget();
+    }
+  }
+
+  public void release() {
+    executor.shutdownNow();
+  }
+
+  private void updateBudget() {
+    switch (playbackState) {
+      case PLAYBACK_ACTIVE:
+        budget.setRate(activeBytesPerSecond);
+        break;
+      case PLAYBACK_STALLED:
+        budget.setRate(BandwidthBudget.PAUSED);
+        break;
+      default:
+        budget.setRate(idleBytesPerSecond);
+        break;
+    }
+  }
+
+  private void start(final Download download) {
+    download.stopped = false;
+    updateState(download, Download.STATE_QUEUED);
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (download.stopped) {
+          return;
+        }
+        try {
+          updateState(download, Download.STATE_DOWNLOADING);
+          List<Runnable> parts = download.type == Download.TYPE_HLS
+              ? planHls(download) : planProgressive(download);
+          if (download.completedParts.get() == download.partCount) {
+            complete(download);
+          }
+          for (Runnable part : parts) {
+            executor.execute(part);
+          }
+        } catch (IOException e) {
+          fail(download, e);
+        }
+      }
+    });
+  }
+
+  private List<Runnable> planProgressive(final Download download) throws IOException {
+    final Uri uri = Uri.parse(download.url);
+    if (download.totalBytes < 0) {
+      DataSource dataSource = createDataSource();
+      long length;
+      try {
+        length = dataSource.open(new DataSpec(uri));
+      } finally {
+        dataSource.close();
+      }
+      if (length == C.LENGTH_UNBOUNDED) {
+        throw new IOException("Live streams cannot be downloaded: " + download.url);
+      }
+      String lastPathSegment = uri.getLastPathSegment();
+      int extensionIndex = lastPathSegment == null ? -1 : lastPathSegment.lastIndexOf('.');
+      download.totalBytes = length;
+      download.partCount = (int) ((length + PART_SIZE - 1) / PART_SIZE);
+      download.localFileName = "media" + (extensionIndex < 0 ? "" : lastPathSegment.substring(extensionIndex));
+      download.persist();
+    }
+
+    List<Runnable> parts = new ArrayList<>();
+    download.downloadedBytes.set(0);
+    download.completedParts.set(0);
+    for (int i = 0; i < download.partCount; i++) {
+      final File file = new File(download.dir, PART_FILE_PREFIX + i);
+      final long start = (long) i * PART_SIZE;
+      final long length = Math.min(PART_SIZE, download.totalBytes - start);
+      long existing = Math.min(file.length(), length);
+      download.downloadedBytes.addAndGet(existing);
+      if (existing == length) {
+        download.completedParts.incrementAndGet();
+        continue;
+      }
+      parts.add(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            long resumeFrom = file.length();
+            if (fetch(download, new DataSpec(uri, start + resumeFrom, length - resumeFrom, null),
+                file, true)) {
+              onPartCompleted(download);
+            }
+          } catch (IOException e) {
+            fail(download, e);
+          }
+        }
+      });
+    }
+    return parts;
+  }
+
+  private List<Runnable> planHls(final Download download) throws IOException {
+    String playlistUrl = download.url;
+    String playlist = fetchString(playlistUrl);
+    if (playlist.contains("#EXT-X-STREAM-INF")) {
+      playlistUrl = UriUtil.resolve(playlistUrl, selectVariant(playlist));
+      playlist = fetchString(playlistUrl);
+    }
+    if (!playlist.contains("#EXT-X-ENDLIST")) {
+      throw new IOException("Live streams cannot be downloaded: " + download.url);
+    }
+
+    // Rewrite the media playlist to refer to local files. Keys stay remote.
+    Map<String, String> localNames = new LinkedHashMap<>();
+    StringBuilder localPlaylist = new StringBuilder();
+    for (String line : playlist.split("\n")) {
+      line = line.trim();
+      if (line.isEmpty()) {
+        continue;
+      }
+      if (line.startsWith("#")) {
+        Matcher matcher = URI_ATTRIBUTE_PATTERN.matcher(line);
+        if (matcher.find()) {
+          String uri = UriUtil.resolve(playlistUrl, matcher.group(1));
+          String replacement = line.startsWith("#EXT-X-KEY") ? uri : localName(localNames, uri);
+          line = line.substring(0, matcher.start(1)) + replacement + line.substring(matcher.end(1));
+        }
+      } else {
+        line = localName(localNames, UriUtil.resolve(playlistUrl, line));
+      }
+      localPlaylist.append(line).append('\n');
+    }
+    File playlistFile = new File(download.dir, HLS_PLAYLIST_FILE_NAME);
+    OutputStream out = new FileOutputStream(playlistFile);
+    try {
+      out.write(localPlaylist.toString().getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+    download.partCount = localNames.size();
+    download.localFileName = HLS_PLAYLIST_FILE_NAME;
+    download.persist();
+
+    List<Runnable> parts = new ArrayList<>();
+    download.downloadedBytes.set(0);
+    download.completedParts.set(0);
+    for (Map.Entry<String, String> entry : localNames.entrySet()) {
+      final Uri uri = Uri.parse(entry.getKey());
+      final File file = new File(download.dir, entry.getValue());
+      if (file.exists()) {
+        download.downloadedBytes.addAndGet(file.length());
+        download.completedParts.incrementAndGet();
+        continue;
+      }
+      parts.add(new Runnable() {
+        @Override
+        public void run() {
+          File tmp = new File(file.getPath() + TMP_FILE_SUFFIX);
+          try {
+            // Segments are small, so they restart rather than resume.
+            if (fetch(download, new DataSpec(uri), tmp, false)) {
+              if (!tmp.renameTo(file)) {
+                throw new IOException("Failed to move " + tmp);
+              }
+              onPartCompleted(download);
+            }
+          } catch (IOException e) {
+            fail(download, e);
+          }
+        }
+      });
+    }
+    return parts;
+  }
+
+  private static String localName(Map<String, String> localNames, String uri) {
+    String name = localNames.get(uri);
+    if (name == null) {
+      String lastPathSegment = Uri.parse(uri).getLastPathSegment();
+      int extensionIndex = lastPathSegment == null ? -1 : lastPathSegment.lastIndexOf('.');
+      name = PART_FILE_PREFIX + localNames.size()
+          + (extensionIndex < 0 ? "" : lastPathSegment.substring(extensionIndex));
+      localNames.put(uri, name);
+    }
+    return name;
+  }
+
+  /**
+   * Returns the uri of the highest bandwidth audio-only variant, or of the highest bandwidth
+   * variant if there are no audio-only ones.
+   */
+  private static String selectVariant(String masterPlaylist) throws IOException {
+    String selected = null;
+    long selectedBandwidth = -1;
+    boolean selectedAudioOnly = false;
+    String[] lines = masterPlaylist.split("\n");
+    for (int i = 0; i < lines.length - 1; i++) {
+      String line = lines[i].trim();
+      if (!line.startsWith("#EXT-X-STREAM-INF")) {
+        continue;
+      }
+      Matcher bandwidthMatcher = BANDWIDTH_PATTERN.matcher(line);
+      long bandwidth = bandwidthMatcher.find() ? Long.parseLong(bandwidthMatcher.group(1)) : 0;
+      Matcher codecsMatcher = CODECS_PATTERN.matcher(line);
+      boolean audioOnly = codecsMatcher.find()
+          && AudioOnlyHlsTrackSelector.isAudioOnly(codecsMatcher.group(1));
+      String uri = lines[i + 1].trim();
+      if (selected == null || (audioOnly && !selectedAudioOnly)
+          || (audioOnly == selectedAudioOnly && bandwidth > selectedBandwidth)) {
+        selected = uri;
+        selectedBandwidth = bandwidth;
+        selectedAudioOnly = audioOnly;
+      }
+    }
+    if (selected == null) {
+      throw new IOException("No variants in master playlist");
+    }
+    return selected;
+  }
+
+  private DataSource createDataSource() {
+    return new DefaultUriDataSource(context, null, httpStack.createHttpDataSource(null));
+  }
+
+  private String fetchString(String url) throws IOException {
+    DataSource dataSource = createDataSource();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      dataSource.open(new DataSpec(Uri.parse(url)));
+      byte[] buffer = new byte[READ_BUFFER_SIZE];
+      int read;
+      while ((read = dataSource.read(buffer, 0, buffer.length)) != C.RESULT_END_OF_INPUT) {
+        out.write(buffer, 0, read);
+      }
+    } finally {
+      dataSource.close();
+    }
+    return out.toString("UTF-8");
+  }
+
+  /**
+   * Writes the data of {@code dataSpec} to {@code file}.
+   *
+   * @return Whether all the data was written, which is not the case if the download was stopped.
+   */
+  private boolean fetch(Download download, DataSpec dataSpec, File file, boolean append)
+      throws IOException {
+    if (download.stopped) {
+      return false;
+    }
+    DataSource dataSource = createDataSource();
+    OutputStream out = new FileOutputStream(file, append);
+    try {
+      dataSource.open(dataSpec);
+      byte[] buffer = new byte[READ_BUFFER_SIZE];
+      int read;
+      while ((read = dataSource.read(buffer, 0, buffer.length)) != C.RESULT_END_OF_INPUT) {
+        out.write(buffer, 0, read);
+        download.downloadedBytes.addAndGet(read);
+        if (download.stopped) {
+          return false;
+        }
+        budget.acquire(read);
+      }
+      return true;
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    } finally {
+      out.close();
+      dataSource.close();
+    }
+  }
+
+  private void onPartCompleted(Download download) throws IOException {
+    if (download.completedParts.incrementAndGet() == download.partCount) {
+      complete(download);
+    } else {
+      listener.onDownloadChanged(download);
+    }
+  }
+
+  private void complete(Download download) throws IOException {
+    if (download.type == Download.TYPE_PROGRESSIVE) {
+      File target = new File(download.dir, download.localFileName);
+      OutputStream out = new FileOutputStream(target);
+      try {
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        for (int i = 0; i < download.partCount; i++) {
+          FileInputStream in = new FileInputStream(new File(download.dir, PART_FILE_PREFIX + i));
+          try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+              out.write(buffer, 0, read);
+            }
+          } finally {
+            in.close();
+          }
+        }
+      } finally {
+        out.close();
+      }
+      for (int i = 0; i < download.partCount; i++) {
+        new File(download.dir, PART_FILE_PREFIX + i).delete();
+      }
+    }
+    updateState(download, Download.STATE_COMPLETED);
+  }
+
+  private void fail(Download download, IOException e) {
+    if (download.stopped) {
+      return;
+    }
+    Log.e(TAG, "Download of " + download.url + " failed", e);
+    download.stopped = true;
+    updateState(download, Download.STATE_FAILED);
+  }
+
+  private void updateState(Download download, String state) {
+    download.state = state;
+    try {
+      download.persist();
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to persist download of " + download.url, e);
+    }
+    listener.onDownloadChanged(download);
+  }
+
+  private static void deleteRecursively(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    file.delete();
+  }
+
+  private static String sha1(String value) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      byte[] hash = digest.digest(value.getBytes("UTF-8"));
+      StringBuilder hex = new StringBuilder(hash.length * 2);
+      for (byte b : hash) {
+        hex.append(String.format("%02x", b));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException | IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,39 @@
+package fm.indiecast.rnaudiostreamer.trackrenderer;
+
+import com.google.android.exoplayer.dash.DashTrackSelector;
+import com.google.android.exoplayer.dash.mpd.AdaptationSet;
+import com.google.android.exoplayer.dash.mpd.MediaPresentationDescription;
+import com.google.android.exoplayer.dash.mpd.Period;
+
+import java.io.IOException;
+
+/**
+ * Selects an adaptive track over the representations of each audio adaptation set, followed by
+ * each representation as a fixed track, so that a format evaluator can switch between audio
+ * bitrates.
+ */
+public class AdaptiveAudioDashTrackSelector implements DashTrackSelector {
+
+  @Override
+  public void selectTracks(MediaPresentationDescription manifest, int periodIndex, Output output)
+      throws IOException {
+    Period period = manifest.getPeriod(periodIndex);
+    for (int i = 0; i < period.adaptationSets.size(); i++) {
+      AdaptationSet adaptationSet = period.adaptationSets.get(i);
+      if (adaptationSet.type != AdaptationSet.TYPE_AUDIO) {
+        continue;
+      }
+      int representationCount = adaptationSet.representations.size();
+      if (representationCount > 1) {
+        int[] representations = new int[representationCount];
+        for (int j = 0; j < representationCount; j++) {
+          representations[j] = j;
+        }
+        output.adaptiveTrack(manifest, periodIndex, i, representations);
+      }
+      for (int j = 0; j < representationCount; j++) {
+        output.fixedTrack(manifest, periodIndex, i, j);
+      }
+    }
+  }
+}
@@ -0,0 +1,35 @@
+package fm.indiecast.rnaudiostreamer.trackrenderer;
+
+import com.google.android.exoplayer.smoothstreaming.SmoothStreamingManifest;
+import com.google.android.exoplayer.smoothstreaming.SmoothStreamingManifest.StreamElement;
+import com.google.android.exoplayer.smoothstreaming.SmoothStreamingTrackSelector;
+
+import java.io.IOException;
+
+/**
+ * Selects an adaptive track over the tracks of each audio stream element, followed by each track
+ * as a fixed track, so that a format evaluator can switch between audio bitrates.
+ */
+public class AdaptiveAudioSmoothStreamingTrackSelector implements SmoothStreamingTrackSelector {
+
+  @Override
+  public void selectTracks(SmoothStreamingManifest manifest, Output output) throws IOException {
+    for (int i = 0; i < manifest.streamElements.length; i++) {
+      StreamElement streamElement = manifest.streamElements[i];
+      if (streamElement.type != StreamElement.TYPE_AUDIO) {
+        continue;
+      }
+      int trackCount = streamElement.tracks.length;
+      if (trackCount > 1) {
+        int[] tracks = new int[trackCount];
+        for (int j = 0; j < trackCount; j++) {
+          tracks[j] = j;
+        }
+        output.adaptiveTrack(manifest, i, tracks);
+      }
+      for (int j = 0; j < trackCount; j++) {
+        output.fixedTrack(manifest, i, j);
+      }
+    }
+  }
+}
@@ -0,0 +1,87 @@
+package fm.indiecast.rnaudiostreamer.trackrenderer;
+
+import com.google.android.exoplayer.hls.HlsMasterPlaylist;
+import com.google.android.exoplayer.hls.HlsTrackSelector;
+import com.google.android.exoplayer.hls.Variant;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Selects the audio-only variants of a master playlist so that no video segments are loaded.
+ * A variant is audio-only when its CODECS attribute lists no video codec and it declares no
+ * RESOLUTION or FRAME-RATE. When no variant is audio-only, the lowest bandwidth variant that
+ * declares nothing about video plays, or the lowest bandwidth variant of all if every one does.
+ */
+public class AudioOnlyHlsTrackSelector implements HlsTrackSelector {
+
+  private static final String[] VIDEO_CODEC_PREFIXES = {"avc1", "avc3", "hev1", "hvc1", "dvh1",
+      "dvhe", "dva1", "dvav", "av01", "vp08", "vp09", "vp8", "vp9", "mp4v"};
+
+  @Override
+  public void selectTracks(HlsMasterPlaylist playlist, Output output) throws IOException {
+    List<Variant> selected = selectVariants(playlist.variants);
+    if (selected.size() > 1) {
+      Variant[] variants = new Variant[selected.size()];
+      selected.toArray(variants);
+      output.adaptiveTrack(playlist, variants);
+    }
+    for (int i = 0; i < selected.size(); i++) {
+      output.fixedTrack(playlist, selected.get(i));
+    }
+  }
+
+  /**
+   * Returns the audio-only variants, or the single variant to fall back to if there are none.
+   */
+  static List<Variant> selectVariants(List<Variant> variants) {
+    List<Variant> audioVariants = new ArrayList<>();
+    Variant unknown = null;
+    Variant lowest = null;
+    for (int i = 0; i < variants.size(); i++) {
+      Variant variant = variants.get(i);
+      if (hasVideo(variant)) {
+        lowest = lower(lowest, variant);
+      } else if (variant.format.codecs == null) {
+        unknown = lower(unknown, variant);
+      } else {
+        audioVariants.add(variant);
+      }
+    }
+    if (!audioVariants.isEmpty()) {
+      return audioVariants;
+    }
+    Variant fallback = unknown != null ? unknown : lowest;
+    return fallback == null ? audioVariants : Collections.singletonList(fallback);
+  }
+
+  private static boolean hasVideo(Variant variant) {
+    return variant.format.width > 0 || variant.format.height > 0 || variant.format.frameRate > 0
+        || (variant.format.codecs != null && !isAudioOnly(variant.format.codecs));
+  }
+
+  private static Variant lower(Variant selected, Variant variant) {
+    return selected == null || variant.format.bitrate < selected.format.bitrate ? variant
+        : selected;
+  }
+
+  /**
+   * Returns whether an HLS CODECS attribute lists codecs and none of them is a video codec.
+   */
+  public static boolean isAudioOnly(String codecs) {
+    if (codecs == null) {
+      return false;
+    }
+    for (String codec : codecs.split(",")) {
+      String trimmed = codec.trim();
+      for (String prefix : VIDEO_CODEC_PREFIXES) {
+        if (trimmed.startsWith(prefix)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+}
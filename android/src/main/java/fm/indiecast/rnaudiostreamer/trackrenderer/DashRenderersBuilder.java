@@ -8,7 +8,7 @@ import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
 
-import com.google.android.exoplayer.DefaultLoadControl;
+import com.google.android.exoplayer.C;
 import com.google.android.exoplayer.LoadControl;
 import com.google.android.exoplayer.MediaCodecAudioTrackRenderer;
 import com.google.android.exoplayer.MediaCodecSelector;
@@ -19,11 +19,15 @@ import com.google.android.exoplayer.chunk.ChunkSampleSource;
 import com.google.android.exoplayer.chunk.ChunkSource;
 import com.google.android.exoplayer.chunk.FormatEvaluator;
 import com.google.android.exoplayer.dash.DashChunkSource;
+import com.google.android.exoplayer.dash.DashSegmentIndex;
+import com.google.android.exoplayer.dash.DashTrackSelector;
 import com.google.android.exoplayer.dash.DefaultDashTrackSelector;
 import com.google.android.exoplayer.dash.mpd.AdaptationSet;
 import com.google.android.exoplayer.dash.mpd.MediaPresentationDescription;
 import com.google.android.exoplayer.dash.mpd.MediaPresentationDescriptionParser;
 import com.google.android.exoplayer.dash.mpd.Period;
+import com.google.android.exoplayer.dash.mpd.RangedUri;
+import com.google.android.exoplayer.dash.mpd.Representation;
 import com.google.android.exoplayer.dash.mpd.UtcTimingElement;
 import com.google.android.exoplayer.dash.mpd.UtcTimingElementResolver;
 import com.google.android.exoplayer.drm.MediaDrmCallback;
@@ -31,17 +35,22 @@ import com.google.android.exoplayer.drm.StreamingDrmSessionManager;
 import com.google.android.exoplayer.drm.UnsupportedDrmException;
 import com.google.android.exoplayer.text.TextRenderer;
 import com.google.android.exoplayer.text.TextTrackRenderer;
+import com.google.android.exoplayer.upstream.Allocator;
 import com.google.android.exoplayer.upstream.BandwidthMeter;
 import com.google.android.exoplayer.upstream.DataSource;
-import com.google.android.exoplayer.upstream.DefaultAllocator;
-import com.google.android.exoplayer.upstream.DefaultBandwidthMeter;
-import com.google.android.exoplayer.upstream.DefaultUriDataSource;
+import com.google.android.exoplayer.upstream.DataSpec;
 import com.google.android.exoplayer.upstream.UriDataSource;
 import com.google.android.exoplayer.util.ManifestFetcher;
 
 import java.io.IOException;
+import java.util.AbstractList;
 
+import fm.indiecast.rnaudiostreamer.BufferingPolicy;
+import fm.indiecast.rnaudiostreamer.StageTracer;
 import fm.indiecast.rnaudiostreamer.TrackRenderersBuilder;
+import fm.indiecast.rnaudiostreamer.upstream.DataSourceFactory;
+import fm.indiecast.rnaudiostreamer.upstream.ManifestCache;
+import fm.indiecast.rnaudiostreamer.upstream.SegmentPrefetcher;
 
 public class DashRenderersBuilder implements TrackRenderersBuilder, UtcTimingElementResolver.UtcTimingCallback, ManifestFetcher.ManifestCallback<MediaPresentationDescription> {
   private static final String TAG = "DashRenderersBuilder";
@@ -50,61 +59,109 @@ public class DashRenderersBuilder implements TrackRenderersBuilder, UtcTimingEle
   private static final int VIDEO_BUFFER_SEGMENTS = 200;
   private static final int AUDIO_BUFFER_SEGMENTS = 54;
   private static final int TEXT_BUFFER_SEGMENTS = 2;
-  private static final int LIVE_EDGE_LATENCY_MS = 30000;
 
   private static final int SECURITY_LEVEL_UNKNOWN = -1;
   private static final int SECURITY_LEVEL_1 = 1;
   private static final int SECURITY_LEVEL_3 = 3;
 
   private final Context context;
-  private final String userAgent;
+  private final DataSourceFactory dataSourceFactory;
   private final String url;
   private final Handler eventHandler;
   private final MediaDrmCallback drmCallback;
   private final MediaCodecVideoTrackRenderer.EventListener videoTrackListener;
   private final MediaCodecAudioTrackRenderer.EventListener audioTrackListener;
   private final TextRenderer textRenderer;
-  private final BandwidthMeter.EventListener bandwidthMeterListener;
+  private final BandwidthMeter bandwidthMeter;
+  private final ChunkSampleSource.EventListener audioSourceListener;
   private final Looper playbackLooper;
+  private final Allocator allocator;
 
   private volatile boolean cancelled = false;
+  private volatile SegmentPrefetcher prefetcher;
+  private boolean audioOnly = false;
+  private FormatEvaluator audioFormatEvaluator;
+  private BufferingPolicy bufferingPolicy = BufferingPolicy.DEFAULT;
 
   private Callback callback;
   private UriDataSource uriDataSource;
   ManifestFetcher<MediaPresentationDescription> manifestFetcher;
   private MediaPresentationDescription mpd;
+  private boolean mpdFromCache;
   private long elapsedRealtimeOffset;
+  private long manifestTraceToken = -1;
+  private long utcTimingTraceToken = -1;
 
-  public DashRenderersBuilder(Context context, String userAgent, String url, Handler eventHandler, MediaDrmCallback drmCallback, MediaCodecVideoTrackRenderer.EventListener videoTrackListener, MediaCodecAudioTrackRenderer.EventListener audioTrackListener, TextRenderer textRenderer, BandwidthMeter.EventListener bandwidthMeterListener, Looper playbackLooper) {
+  public DashRenderersBuilder(Context context, DataSourceFactory dataSourceFactory, String url, Handler eventHandler, MediaDrmCallback drmCallback, MediaCodecVideoTrackRenderer.EventListener videoTrackListener, MediaCodecAudioTrackRenderer.EventListener audioTrackListener, TextRenderer textRenderer, BandwidthMeter bandwidthMeter, ChunkSampleSource.EventListener audioSourceListener, Looper playbackLooper, Allocator allocator) {
     this.context = context;
-    this.userAgent = userAgent;
+    this.dataSourceFactory = dataSourceFactory;
     this.url = url;
     this.eventHandler = eventHandler;
     this.drmCallback = drmCallback;
     this.videoTrackListener = videoTrackListener;
     this.audioTrackListener = audioTrackListener;
     this.textRenderer = textRenderer;
-    this.bandwidthMeterListener = bandwidthMeterListener;
+    this.bandwidthMeter = bandwidthMeter;
+    this.audioSourceListener = audioSourceListener;
     this.playbackLooper = playbackLooper;
+    this.allocator = allocator;
   }
 
 
+  @Override
+  public void setAudioOnly(boolean audioOnly) {
+    this.audioOnly = audioOnly;
+  }
+
+  @Override
+  public void setBufferingPolicy(BufferingPolicy bufferingPolicy) {
+    this.bufferingPolicy = bufferingPolicy;
+  }
+
+  @Override
+  public void setAudioFormatEvaluator(FormatEvaluator audioFormatEvaluator) {
+    this.audioFormatEvaluator = audioFormatEvaluator;
+  }
+
   @Override
   public void build(Callback callback) {
     this.callback = callback;
-    this.uriDataSource = new DefaultUriDataSource(context, userAgent);
+    this.uriDataSource = dataSourceFactory.createManifestDataSource();
     this.manifestFetcher = new ManifestFetcher<>(url, uriDataSource, new MediaPresentationDescriptionParser());
+    // Only static presentations are reused, live ones need the fetcher to refresh them.
+    ManifestCache manifestCache = dataSourceFactory.getManifestCache();
+    Object cachedManifest = manifestCache == null ? null : manifestCache.getParsedManifest(url);
+    if (cachedManifest instanceof MediaPresentationDescription
+        && !((MediaPresentationDescription) cachedManifest).dynamic) {
+      this.mpd = (MediaPresentationDescription) cachedManifest;
+      this.mpdFromCache = true;
+      eventHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          if (!cancelled) {
+            build();
+          }
+        }
+      });
+      return;
+    }
+    manifestTraceToken = StageTracer.beginAsync();
     this.manifestFetcher.singleLoad(eventHandler.getLooper(), this);
   }
 
   @Override
   public void cancel() {
     cancelled = true;
+    SegmentPrefetcher prefetcher = this.prefetcher;
+    if (prefetcher != null) {
+      prefetcher.release();
+    }
   }
 
 
   @Override
   public void onTimestampResolved(UtcTimingElement utcTiming, long elapsedRealtimeOffset) {
+    StageTracer.endAsync(StageTracer.STAGE_UTC_TIMING, utcTimingTraceToken);
     if (cancelled) {
       return;
     }
@@ -114,6 +171,7 @@ public class DashRenderersBuilder implements TrackRenderersBuilder, UtcTimingEle
 
   @Override
   public void onTimestampError(UtcTimingElement utcTiming, IOException e) {
+    StageTracer.endAsync(StageTracer.STAGE_UTC_TIMING, utcTimingTraceToken);
     if (cancelled) {
       return;
     }
@@ -126,11 +184,17 @@ public class DashRenderersBuilder implements TrackRenderersBuilder, UtcTimingEle
 
   @Override
   public void onSingleManifest(MediaPresentationDescription manifest) {
+    StageTracer.endAsync(StageTracer.STAGE_MANIFEST, manifestTraceToken);
     if (cancelled) {
       return;
     }
     mpd = manifest;
+    ManifestCache manifestCache = dataSourceFactory.getManifestCache();
+    if (manifestCache != null) {
+      manifestCache.putParsedManifest(url, manifest);
+    }
     if (mpd.dynamic && mpd.utcTiming != null) {
+      utcTimingTraceToken = StageTracer.beginAsync();
       UtcTimingElementResolver.resolveTimingElement(uriDataSource, mpd.utcTiming, manifestFetcher.getManifestLoadCompleteTimestamp(), this);
     } else {
       build();
@@ -139,6 +203,7 @@ public class DashRenderersBuilder implements TrackRenderersBuilder, UtcTimingEle
 
   @Override
   public void onSingleManifestError(final IOException e) {
+    StageTracer.endAsync(StageTracer.STAGE_MANIFEST, manifestTraceToken);
     if (cancelled) {
       return;
     }
@@ -151,9 +216,17 @@ public class DashRenderersBuilder implements TrackRenderersBuilder, UtcTimingEle
   }
 
   private void build() {
+    StageTracer.beginSection(StageTracer.STAGE_RENDERERS);
+    try {
+      buildRenderers();
+    } finally {
+      StageTracer.endSection();
+    }
+  }
+
+  private void buildRenderers() {
     Period period = mpd.getPeriod(0);
-    LoadControl loadControl = new DefaultLoadControl(new DefaultAllocator(BUFFER_SEGMENT_SIZE));
-    DefaultBandwidthMeter bandwidthMeter = new DefaultBandwidthMeter(eventHandler, bandwidthMeterListener);
+    LoadControl loadControl = bufferingPolicy.createLoadControl(allocator);
 
     boolean hasContentProtection = false;
     for (int i = 0; i < period.adaptationSets.size(); i++) {
@@ -171,6 +244,7 @@ public class DashRenderersBuilder implements TrackRenderersBuilder, UtcTimingEle
         callback.onError(new UnsupportedDrmException(UnsupportedDrmException.REASON_UNSUPPORTED_SCHEME));
         return;
       }
+      StageTracer.beginSection(StageTracer.STAGE_DRM_SESSION);
       try {
         drmSessionManager = StreamingDrmSessionManager.newWidevineInstance(playbackLooper, drmCallback, null, eventHandler, new StreamingDrmSessionManager.EventListener() {
           @Override
@@ -192,49 +266,50 @@ public class DashRenderersBuilder implements TrackRenderersBuilder, UtcTimingEle
           callback.onError(e);
         }
         return;
+      } finally {
+        StageTracer.endSection();
       }
     }
 
-    // Build the video renderer.
-    DataSource videoDataSource = new DefaultUriDataSource(context, bandwidthMeter, userAgent);
-    ChunkSource videoChunkSource = new DashChunkSource(manifestFetcher,
-      DefaultDashTrackSelector.newVideoInstance(context, true, filterHdContent),
-      videoDataSource, new FormatEvaluator.AdaptiveEvaluator(bandwidthMeter), LIVE_EDGE_LATENCY_MS,
-      elapsedRealtimeOffset, eventHandler, null, TRACK_VIDEO_INDEX);
-    ChunkSampleSource videoSampleSource = new ChunkSampleSource(videoChunkSource, loadControl,
-      VIDEO_BUFFER_SEGMENTS * BUFFER_SEGMENT_SIZE, eventHandler, null,
-      TRACK_VIDEO_INDEX);
-    TrackRenderer videoTrackRenderer = new MediaCodecVideoTrackRenderer(context, videoSampleSource,
-      MediaCodecSelector.DEFAULT, MediaCodec.VIDEO_SCALING_MODE_SCALE_TO_FIT, 5000,
-      drmSessionManager, true, eventHandler, videoTrackListener, 50);
-
     // Build the audio renderer.
-    DataSource audioDataSource = new DefaultUriDataSource(context, bandwidthMeter, userAgent);
-    ChunkSource audioChunkSource = new DashChunkSource(manifestFetcher,
-      DefaultDashTrackSelector.newAudioInstance(), audioDataSource, null, LIVE_EDGE_LATENCY_MS,
-      elapsedRealtimeOffset, eventHandler, null, TRACK_AUDIO_INDEX);
+    DataSource audioDataSource = createAudioDataSource(period);
+    // Without an evaluator each audio representation is a separate fixed track.
+    DashTrackSelector audioTrackSelector = audioFormatEvaluator != null
+      ? new AdaptiveAudioDashTrackSelector() : DefaultDashTrackSelector.newAudioInstance();
+    ChunkSource audioChunkSource = newChunkSource(audioTrackSelector, audioDataSource,
+      audioFormatEvaluator, TRACK_AUDIO_INDEX);
     ChunkSampleSource audioSampleSource = new ChunkSampleSource(audioChunkSource, loadControl,
-      AUDIO_BUFFER_SEGMENTS * BUFFER_SEGMENT_SIZE, eventHandler, null,
-      TRACK_AUDIO_INDEX);
+      bufferingPolicy.getAudioBufferSize(AUDIO_BUFFER_SEGMENTS * BUFFER_SEGMENT_SIZE),
+      eventHandler, audioSourceListener, TRACK_AUDIO_INDEX);
     TrackRenderer audioTrackRenderer = new MediaCodecAudioTrackRenderer(audioSampleSource,
       MediaCodecSelector.DEFAULT, drmSessionManager, true, eventHandler, audioTrackListener,
       AudioCapabilities.getCapabilities(context), AudioManager.STREAM_MUSIC);
 
-    // Build the text renderer.
-    DataSource textDataSource = new DefaultUriDataSource(context, bandwidthMeter, userAgent);
-    ChunkSource textChunkSource = new DashChunkSource(manifestFetcher,
-      DefaultDashTrackSelector.newTextInstance(), textDataSource, null, LIVE_EDGE_LATENCY_MS,
-      elapsedRealtimeOffset, eventHandler, null, TRACK_TEXT_INDEX);
-    ChunkSampleSource textSampleSource = new ChunkSampleSource(textChunkSource, loadControl,
-      TEXT_BUFFER_SEGMENTS * BUFFER_SEGMENT_SIZE, eventHandler, null,
-      TRACK_TEXT_INDEX);
-    TrackRenderer textTrackRenderer = new TextTrackRenderer(textSampleSource, textRenderer,
-      eventHandler.getLooper());
-
     final TrackRenderer[] trackRenderers = new TrackRenderer[TRACK_RENDER_COUNT];
-    trackRenderers[TRACK_VIDEO_INDEX] = videoTrackRenderer;
     trackRenderers[TRACK_AUDIO_INDEX] = audioTrackRenderer;
-    trackRenderers[TRACK_TEXT_INDEX] = textTrackRenderer;
+    if (!audioOnly) {
+      // Build the video renderer.
+      DataSource videoDataSource = dataSourceFactory.createDataSource(bandwidthMeter);
+      ChunkSource videoChunkSource = newChunkSource(
+        DefaultDashTrackSelector.newVideoInstance(context, true, filterHdContent),
+        videoDataSource, new FormatEvaluator.AdaptiveEvaluator(bandwidthMeter), TRACK_VIDEO_INDEX);
+      ChunkSampleSource videoSampleSource = new ChunkSampleSource(videoChunkSource, loadControl,
+        VIDEO_BUFFER_SEGMENTS * BUFFER_SEGMENT_SIZE, eventHandler, null,
+        TRACK_VIDEO_INDEX);
+      trackRenderers[TRACK_VIDEO_INDEX] = new MediaCodecVideoTrackRenderer(context, videoSampleSource,
+        MediaCodecSelector.DEFAULT, MediaCodec.VIDEO_SCALING_MODE_SCALE_TO_FIT, 5000,
+        drmSessionManager, true, eventHandler, videoTrackListener, 50);
+
+      // Build the text renderer.
+      DataSource textDataSource = dataSourceFactory.createDataSource(bandwidthMeter);
+      ChunkSource textChunkSource = newChunkSource(DefaultDashTrackSelector.newTextInstance(),
+        textDataSource, null, TRACK_TEXT_INDEX);
+      ChunkSampleSource textSampleSource = new ChunkSampleSource(textChunkSource, loadControl,
+        TEXT_BUFFER_SEGMENTS * BUFFER_SEGMENT_SIZE, eventHandler, null,
+        TRACK_TEXT_INDEX);
+      trackRenderers[TRACK_TEXT_INDEX] = new TextTrackRenderer(textSampleSource, textRenderer,
+        eventHandler.getLooper());
+    }
     eventHandler.post(new Runnable() {
       @Override
       public void run() {
@@ -243,6 +318,83 @@ public class DashRenderersBuilder implements TrackRenderersBuilder, UtcTimingEle
     });
   }
 
+  /**
+   * Creates the source for audio segments, which loads the following segments of the same
+   * representation ahead when the buffering policy asks for it. Segments of dynamic presentations
+   * are requested as they become available, so they are never loaded ahead.
+   */
+  private DataSource createAudioDataSource(Period period) {
+    DataSource dataSource = dataSourceFactory.createDataSource(bandwidthMeter);
+    if (bufferingPolicy.prefetchSegments == 0 || mpd.dynamic) {
+      return dataSource;
+    }
+    SegmentPrefetcher prefetcher = new SegmentPrefetcher(dataSourceFactory, allocator,
+      bandwidthMeter, bufferingPolicy.getAudioBufferSize(AUDIO_BUFFER_SEGMENTS * BUFFER_SEGMENT_SIZE),
+      bufferingPolicy.prefetchSegments);
+    this.prefetcher = prefetcher;
+    if (cancelled) {
+      prefetcher.release();
+    }
+    long periodDurationMs = mpd.getPeriodDuration(0);
+    long periodDurationUs = periodDurationMs == -1 ? C.UNKNOWN_TIME_US : periodDurationMs * 1000;
+    for (AdaptationSet adaptationSet : period.adaptationSets) {
+      if (adaptationSet.type != AdaptationSet.TYPE_AUDIO) {
+        continue;
+      }
+      for (Representation representation : adaptationSet.representations) {
+        DashSegmentIndex index = representation.getIndex();
+        if (index == null) {
+          continue;
+        }
+        int last = index.getLastSegmentNum(periodDurationUs);
+        if (last == DashSegmentIndex.INDEX_UNBOUNDED) {
+          continue;
+        }
+        prefetcher.setSegments(representation.format.id,
+          new SegmentList(index, last, representation.getCacheKey()));
+      }
+    }
+    return prefetcher.createDataSource(dataSource);
+  }
+
+  /**
+   * The segments of a representation, created from its index as the prefetcher reaches them.
+   */
+  private static final class SegmentList extends AbstractList<DataSpec> {
+
+    private final DashSegmentIndex index;
+    private final int firstSegmentNum;
+    private final int lastSegmentNum;
+    private final String cacheKey;
+
+    SegmentList(DashSegmentIndex index, int lastSegmentNum, String cacheKey) {
+      this.index = index;
+      this.firstSegmentNum = index.getFirstSegmentNum();
+      this.lastSegmentNum = lastSegmentNum;
+      this.cacheKey = cacheKey;
+    }
+
+    @Override
+    public DataSpec get(int location) {
+      RangedUri segmentUri = index.getSegmentUrl(firstSegmentNum + location);
+      return new DataSpec(segmentUri.getUri(), segmentUri.start, segmentUri.length, cacheKey);
+    }
+
+    @Override
+    public int size() {
+      return lastSegmentNum - firstSegmentNum + 1;
+    }
+  }
+
+  private ChunkSource newChunkSource(DashTrackSelector trackSelector, DataSource dataSource,
+      FormatEvaluator formatEvaluator, int eventSourceId) {
+    if (mpdFromCache) {
+      return new DashChunkSource(mpd, trackSelector, dataSource, formatEvaluator);
+    }
+    return new DashChunkSource(manifestFetcher, trackSelector, dataSource, formatEvaluator,
+      bufferingPolicy.liveEdgeLatencyMs, elapsedRealtimeOffset, eventHandler, null, eventSourceId);
+  }
+
   private static int getWidevineSecurityLevel(StreamingDrmSessionManager sessionManager) {
     String securityLevelProperty = sessionManager.getPropertyString("securityLevel");
     return securityLevelProperty.equals("L1") ? SECURITY_LEVEL_1 : securityLevelProperty
@@ -11,17 +11,18 @@ import com.google.android.exoplayer.MediaCodecSelector;
 import com.google.android.exoplayer.MediaCodecVideoTrackRenderer;
 import com.google.android.exoplayer.TrackRenderer;
 import com.google.android.exoplayer.audio.AudioCapabilities;
+import com.google.android.exoplayer.chunk.FormatEvaluator;
 import com.google.android.exoplayer.extractor.ExtractorSampleSource;
 import com.google.android.exoplayer.text.TextRenderer;
 import com.google.android.exoplayer.text.TextTrackRenderer;
 import com.google.android.exoplayer.upstream.Allocator;
-import com.google.android.exoplayer.upstream.BandwidthMeter;
 import com.google.android.exoplayer.upstream.DataSource;
-import com.google.android.exoplayer.upstream.DefaultAllocator;
-import com.google.android.exoplayer.upstream.DefaultBandwidthMeter;
-import com.google.android.exoplayer.upstream.DefaultUriDataSource;
 
+import fm.indiecast.rnaudiostreamer.BufferingPolicy;
+import fm.indiecast.rnaudiostreamer.StageTracer;
 import fm.indiecast.rnaudiostreamer.TrackRenderersBuilder;
+import fm.indiecast.rnaudiostreamer.upstream.DataSourceFactory;
+import fm.indiecast.rnaudiostreamer.upstream.IcyHttpDataSource;
 
 public class ExtractorRenderersBuilder implements TrackRenderersBuilder {
 
@@ -29,49 +30,89 @@ public class ExtractorRenderersBuilder implements TrackRenderersBuilder {
   private static final int BUFFER_SEGMENT_COUNT = 256;
 
   private final Context context;
-  private final String userAgent;
+  private final DataSourceFactory dataSourceFactory;
   private final Uri uri;
   private final Handler eventHandler;
   private final MediaCodecVideoTrackRenderer.EventListener videoTrackListener;
   private final MediaCodecAudioTrackRenderer.EventListener audioTrackListener;
   private final TextRenderer textRenderer;
-  private final BandwidthMeter.EventListener bandwidthMeterListener;
+  private final IcyHttpDataSource.Listener icyListener;
+  private final Allocator allocator;
 
-  public ExtractorRenderersBuilder(Context context, String userAgent, Uri uri, Handler eventHandler, MediaCodecVideoTrackRenderer.EventListener videoTrackListener, MediaCodecAudioTrackRenderer.EventListener audioTrackListener, TextRenderer textRenderer, BandwidthMeter.EventListener bandwidthMeterListener) {
+  private volatile boolean cancelled = false;
+  private boolean audioOnly = false;
+  private BufferingPolicy bufferingPolicy = BufferingPolicy.DEFAULT;
+
+  public ExtractorRenderersBuilder(Context context, DataSourceFactory dataSourceFactory, Uri uri, Handler eventHandler, MediaCodecVideoTrackRenderer.EventListener videoTrackListener, MediaCodecAudioTrackRenderer.EventListener audioTrackListener, TextRenderer textRenderer, IcyHttpDataSource.Listener icyListener, Allocator allocator) {
     this.context = context;
-    this.userAgent = userAgent;
+    this.dataSourceFactory = dataSourceFactory;
     this.uri = uri;
     this.eventHandler = eventHandler;
     this.videoTrackListener = videoTrackListener;
     this.audioTrackListener = audioTrackListener;
     this.textRenderer = textRenderer;
-    this.bandwidthMeterListener = bandwidthMeterListener;
+    this.icyListener = icyListener;
+    this.allocator = allocator;
+  }
+
+  @Override
+  public void setAudioOnly(boolean audioOnly) {
+    this.audioOnly = audioOnly;
+  }
+
+  @Override
+  public void setBufferingPolicy(BufferingPolicy bufferingPolicy) {
+    this.bufferingPolicy = bufferingPolicy;
+  }
+
+  @Override
+  public void setAudioFormatEvaluator(FormatEvaluator audioFormatEvaluator) {
+    // Progressive streams have a single format.
   }
 
   @Override
   public void build(final Callback callback) {
-    Allocator allocator = new DefaultAllocator(BUFFER_SEGMENT_SIZE);
-    DefaultBandwidthMeter bandwidthMeter = new DefaultBandwidthMeter(eventHandler, bandwidthMeterListener);
-    DataSource dataSource = new DefaultUriDataSource(context, bandwidthMeter, userAgent);
+    if(cancelled) {
+      return;
+    }
+    StageTracer.beginSection(StageTracer.STAGE_RENDERERS);
+    try {
+      buildRenderers(callback);
+    } finally {
+      StageTracer.endSection();
+    }
+  }
+
+  private void buildRenderers(final Callback callback) {
+    // Progressive streams are paced by the server, so their throughput says nothing about the
+    // available bandwidth and is kept out of the shared bandwidth meter.
+    DataSource dataSource = dataSourceFactory.createProgressiveDataSource(null, icyListener);
     ExtractorSampleSource sampleSource = new ExtractorSampleSource(uri, dataSource, allocator,
-      BUFFER_SEGMENT_COUNT * BUFFER_SEGMENT_SIZE);
+      bufferingPolicy.getAudioBufferSize(BUFFER_SEGMENT_COUNT * BUFFER_SEGMENT_SIZE));
 
-    MediaCodecVideoTrackRenderer videoTrackRenderer = new MediaCodecVideoTrackRenderer(context,
-      sampleSource, MediaCodecSelector.DEFAULT, MediaCodec.VIDEO_SCALING_MODE_SCALE_TO_FIT, 5000,
-      eventHandler, videoTrackListener, 50);
     MediaCodecAudioTrackRenderer audioTrackRenderer = new MediaCodecAudioTrackRenderer(sampleSource,
       MediaCodecSelector.DEFAULT, null, true, eventHandler, audioTrackListener,
       AudioCapabilities.getCapabilities(context), AudioManager.STREAM_MUSIC);
-    TextTrackRenderer textTrackRenderer = new TextTrackRenderer(sampleSource, textRenderer,
-      eventHandler.getLooper());
 
     final TrackRenderer[] trackRenderers = new TrackRenderer[TRACK_RENDER_COUNT];
-    trackRenderers[TRACK_VIDEO_INDEX] = videoTrackRenderer;
     trackRenderers[TRACK_AUDIO_INDEX] = audioTrackRenderer;
-    trackRenderers[TRACK_TEXT_INDEX] = textTrackRenderer;
+    if (!audioOnly) {
+      // Tracks without an enabled renderer are skipped by the extractor, so leaving these out
+      // means no video samples are ever buffered.
+      trackRenderers[TRACK_VIDEO_INDEX] = new MediaCodecVideoTrackRenderer(context,
+        sampleSource, MediaCodecSelector.DEFAULT, MediaCodec.VIDEO_SCALING_MODE_SCALE_TO_FIT, 5000,
+        eventHandler, videoTrackListener, 50);
+      trackRenderers[TRACK_TEXT_INDEX] = new TextTrackRenderer(sampleSource, textRenderer,
+        eventHandler.getLooper());
+    }
     eventHandler.post(new Runnable() {
       @Override
       public void run() {
+        // The sample source opens nothing until the player prepares it, so renderers that are
+        // never handed over hold no connection or buffer.
+        if(cancelled) {
+          return;
+        }
         callback.onFinish(trackRenderers);
       }
     });
@@ -79,6 +120,6 @@ public class ExtractorRenderersBuilder implements TrackRenderersBuilder {
 
   @Override
   public void cancel() {
-    //do nothing
+    cancelled = true;
   }
 }
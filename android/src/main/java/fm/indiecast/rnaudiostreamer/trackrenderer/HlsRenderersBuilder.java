@@ -5,7 +5,6 @@ import android.media.AudioManager;
 import android.media.MediaCodec;
 import android.os.Handler;
 
-import com.google.android.exoplayer.DefaultLoadControl;
 import com.google.android.exoplayer.LoadControl;
 import com.google.android.exoplayer.MediaCodecAudioTrackRenderer;
 import com.google.android.exoplayer.MediaCodecSelector;
@@ -13,9 +12,11 @@ import com.google.android.exoplayer.MediaCodecVideoTrackRenderer;
 import com.google.android.exoplayer.SampleSource;
 import com.google.android.exoplayer.TrackRenderer;
 import com.google.android.exoplayer.audio.AudioCapabilities;
+import com.google.android.exoplayer.chunk.FormatEvaluator;
 import com.google.android.exoplayer.hls.DefaultHlsTrackSelector;
 import com.google.android.exoplayer.hls.HlsChunkSource;
 import com.google.android.exoplayer.hls.HlsMasterPlaylist;
+import com.google.android.exoplayer.hls.HlsMediaPlaylist;
 import com.google.android.exoplayer.hls.HlsPlaylist;
 import com.google.android.exoplayer.hls.HlsPlaylistParser;
 import com.google.android.exoplayer.hls.HlsSampleSource;
@@ -26,17 +27,20 @@ import com.google.android.exoplayer.metadata.id3.Id3Parser;
 import com.google.android.exoplayer.text.TextRenderer;
 import com.google.android.exoplayer.text.TextTrackRenderer;
 import com.google.android.exoplayer.text.eia608.Eia608TrackRenderer;
+import com.google.android.exoplayer.upstream.Allocator;
 import com.google.android.exoplayer.upstream.BandwidthMeter;
 import com.google.android.exoplayer.upstream.DataSource;
-import com.google.android.exoplayer.upstream.DefaultAllocator;
-import com.google.android.exoplayer.upstream.DefaultBandwidthMeter;
-import com.google.android.exoplayer.upstream.DefaultUriDataSource;
 import com.google.android.exoplayer.util.ManifestFetcher;
 
 import java.io.IOException;
 import java.util.List;
 
+import fm.indiecast.rnaudiostreamer.BufferingPolicy;
+import fm.indiecast.rnaudiostreamer.StageTracer;
 import fm.indiecast.rnaudiostreamer.TrackRenderersBuilder;
+import fm.indiecast.rnaudiostreamer.upstream.DataSourceFactory;
+import fm.indiecast.rnaudiostreamer.upstream.ManifestCache;
+import fm.indiecast.rnaudiostreamer.upstream.SegmentPrefetcher;
 
 public class HlsRenderersBuilder implements TrackRenderersBuilder, ManifestFetcher.ManifestCallback<HlsPlaylist> {
 
@@ -47,7 +51,7 @@ public class HlsRenderersBuilder implements TrackRenderersBuilder, ManifestFetch
   private static final int AUDIO_BUFFER_SEGMENTS = 54;
 
   private final Context context;
-  private final String userAgent;
+  private final DataSourceFactory dataSourceFactory;
   private final String url;
 
   private final Handler eventHandler;
@@ -55,47 +59,102 @@ public class HlsRenderersBuilder implements TrackRenderersBuilder, ManifestFetch
   private final MediaCodecAudioTrackRenderer.EventListener audioTrackListener;
   private final TextRenderer textRenderer;
   private final MetadataTrackRenderer.MetadataRenderer<List<Id3Frame>> metadataRenderer;
-  private final BandwidthMeter.EventListener bandwidthMeterListener;
+  private final BandwidthMeter bandwidthMeter;
+  private final HlsSampleSource.EventListener audioSourceListener;
+  private final Allocator allocator;
 
   private Callback callback;
   private ManifestFetcher<HlsPlaylist> manifestFetcher;
+  private long manifestTraceToken = -1;
 
   private volatile boolean cancelled = false;
+  private volatile SegmentPrefetcher prefetcher;
+  private boolean audioOnly = false;
+  private BufferingPolicy bufferingPolicy = BufferingPolicy.DEFAULT;
 
-  public HlsRenderersBuilder(Context context, String userAgent, String url, Handler eventHandler, MediaCodecVideoTrackRenderer.EventListener videoTrackListener, MediaCodecAudioTrackRenderer.EventListener audioTrackListener, TextRenderer textRenderer, MetadataTrackRenderer.MetadataRenderer<List<Id3Frame>> metadataRenderer, BandwidthMeter.EventListener bandwidthMeterListener) {
+  public HlsRenderersBuilder(Context context, DataSourceFactory dataSourceFactory, String url, Handler eventHandler, MediaCodecVideoTrackRenderer.EventListener videoTrackListener, MediaCodecAudioTrackRenderer.EventListener audioTrackListener, TextRenderer textRenderer, MetadataTrackRenderer.MetadataRenderer<List<Id3Frame>> metadataRenderer, BandwidthMeter bandwidthMeter, HlsSampleSource.EventListener audioSourceListener, Allocator allocator) {
     this.context = context;
-    this.userAgent = userAgent;
+    this.dataSourceFactory = dataSourceFactory;
     this.url = url;
     this.eventHandler = eventHandler;
     this.videoTrackListener = videoTrackListener;
     this.audioTrackListener = audioTrackListener;
     this.textRenderer = textRenderer;
     this.metadataRenderer = metadataRenderer;
-    this.bandwidthMeterListener = bandwidthMeterListener;
+    this.bandwidthMeter = bandwidthMeter;
+    this.audioSourceListener = audioSourceListener;
+    this.allocator = allocator;
+  }
+
+  @Override
+  public void setAudioOnly(boolean audioOnly) {
+    this.audioOnly = audioOnly;
+  }
+
+  @Override
+  public void setBufferingPolicy(BufferingPolicy bufferingPolicy) {
+    this.bufferingPolicy = bufferingPolicy;
+  }
+
+  @Override
+  public void setAudioFormatEvaluator(FormatEvaluator audioFormatEvaluator) {
+    // HLS variants adapt inside HlsChunkSource, driven by the bandwidth meter alone.
   }
 
   @Override
   public void build(Callback callback) {
     this.callback = callback;
+    ManifestCache manifestCache = dataSourceFactory.getManifestCache();
+    final Object cachedManifest = manifestCache == null ? null : manifestCache.getParsedManifest(url);
+    if (cachedManifest instanceof HlsPlaylist) {
+      eventHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          onSingleManifest((HlsPlaylist) cachedManifest);
+        }
+      });
+      return;
+    }
     HlsPlaylistParser hlsPlaylistParser = new HlsPlaylistParser();
-    manifestFetcher = new ManifestFetcher<HlsPlaylist>(url, new DefaultUriDataSource(context, userAgent), hlsPlaylistParser);
+    manifestFetcher = new ManifestFetcher<HlsPlaylist>(url, dataSourceFactory.createManifestDataSource(), hlsPlaylistParser);
+    manifestTraceToken = StageTracer.beginAsync();
     manifestFetcher.singleLoad(eventHandler.getLooper(), this);
   }
 
   @Override
   public void cancel() {
     cancelled = true;
+    SegmentPrefetcher prefetcher = this.prefetcher;
+    if (prefetcher != null) {
+      prefetcher.release();
+    }
   }
 
   @Override
   public void onSingleManifest(HlsPlaylist manifest) {
+    StageTracer.endAsync(StageTracer.STAGE_MANIFEST, manifestTraceToken);
     if(cancelled) {
       return;
     }
+    ManifestCache manifestCache = dataSourceFactory.getManifestCache();
+    if (manifestCache != null) {
+      manifestCache.putParsedManifest(url, manifest);
+    }
+    StageTracer.beginSection(StageTracer.STAGE_RENDERERS);
+    try {
+      buildRenderers(manifest);
+    } finally {
+      StageTracer.endSection();
+    }
+  }
+
+  private void buildRenderers(HlsPlaylist manifest) {
+    if (manifest instanceof HlsMediaPlaylist) {
+      dataSourceFactory.onHlsMediaPlaylist((HlsMediaPlaylist) manifest);
+    }
 
 //    Handler mainHandler = player.getMainHandler();
-    LoadControl loadControl = new DefaultLoadControl(new DefaultAllocator(BUFFER_SEGMENT_SIZE));
-    DefaultBandwidthMeter bandwidthMeter = new DefaultBandwidthMeter();
+    LoadControl loadControl = bufferingPolicy.createLoadControl(allocator);
     PtsTimestampAdjusterProvider timestampAdjusterProvider = new PtsTimestampAdjusterProvider();
 
     boolean haveSubtitles = false;
@@ -106,8 +165,13 @@ public class HlsRenderersBuilder implements TrackRenderersBuilder, ManifestFetch
       haveAudios = !masterPlaylist.audios.isEmpty();
     }
 
-    // Build the video/id3 renderers.
-    DataSource dataSource = new DefaultUriDataSource(context, bandwidthMeter, userAgent);
+    if (audioOnly) {
+      buildAudioOnly(manifest, loadControl, timestampAdjusterProvider, haveAudios);
+      return;
+    }
+
+    // Build the video renderer.
+    DataSource dataSource = dataSourceFactory.createDataSource(bandwidthMeter);
     HlsChunkSource chunkSource = new HlsChunkSource(true /* isMaster */, dataSource, manifest,
             DefaultHlsTrackSelector.newDefaultInstance(context), bandwidthMeter,
             timestampAdjusterProvider);
@@ -116,19 +180,17 @@ public class HlsRenderersBuilder implements TrackRenderersBuilder, ManifestFetch
     MediaCodecVideoTrackRenderer videoTrackRenderer = new MediaCodecVideoTrackRenderer(context,
             sampleSource, MediaCodecSelector.DEFAULT, MediaCodec.VIDEO_SCALING_MODE_SCALE_TO_FIT,
             5000, eventHandler, videoTrackListener, 50);
-    MetadataTrackRenderer<List<Id3Frame>> id3Renderer = new MetadataTrackRenderer<>(
-            sampleSource, new Id3Parser(), metadataRenderer, eventHandler.getLooper());
 
     // Build the audio renderer.
     MediaCodecAudioTrackRenderer audioTrackRenderer;
     if (haveAudios) {
-      DataSource audioDataSource = new DefaultUriDataSource(context, bandwidthMeter, userAgent);
+      DataSource audioDataSource = createAudioDataSource(manifest);
       HlsChunkSource audioChunkSource = new HlsChunkSource(false /* isMaster */, audioDataSource,
               manifest, DefaultHlsTrackSelector.newAudioInstance(), bandwidthMeter,
               timestampAdjusterProvider);
       HlsSampleSource audioSampleSource = new HlsSampleSource(audioChunkSource, loadControl,
-              AUDIO_BUFFER_SEGMENTS * BUFFER_SEGMENT_SIZE, eventHandler, null,
-              TRACK_AUDIO_INDEX);
+              bufferingPolicy.getAudioBufferSize(AUDIO_BUFFER_SEGMENTS * BUFFER_SEGMENT_SIZE),
+              eventHandler, audioSourceListener, TRACK_AUDIO_INDEX);
       audioTrackRenderer = new MediaCodecAudioTrackRenderer(
               new SampleSource[] {sampleSource, audioSampleSource}, MediaCodecSelector.DEFAULT, null,
               true, eventHandler, audioTrackListener, AudioCapabilities.getCapabilities(context),
@@ -142,7 +204,7 @@ public class HlsRenderersBuilder implements TrackRenderersBuilder, ManifestFetch
     // Build the text renderer.
     TrackRenderer textTrackRenderer;
     if (haveSubtitles) {
-      DataSource textDataSource = new DefaultUriDataSource(context, bandwidthMeter, userAgent);
+      DataSource textDataSource = dataSourceFactory.createDataSource(bandwidthMeter);
       HlsChunkSource textChunkSource = new HlsChunkSource(false /* isMaster */, textDataSource,
               manifest, DefaultHlsTrackSelector.newSubtitleInstance(), bandwidthMeter,
               timestampAdjusterProvider);
@@ -169,8 +231,65 @@ public class HlsRenderersBuilder implements TrackRenderersBuilder, ManifestFetch
     });
   }
 
+  /**
+   * Creates the source for audio segments, which loads the following segments ahead when the
+   * buffering policy asks for it. Media playlists register their segments as they load.
+   */
+  private DataSource createAudioDataSource(HlsPlaylist manifest) {
+    DataSource dataSource = dataSourceFactory.createDataSource(bandwidthMeter);
+    if (bufferingPolicy.prefetchSegments == 0) {
+      return dataSource;
+    }
+    SegmentPrefetcher prefetcher = new SegmentPrefetcher(dataSourceFactory, allocator,
+      bandwidthMeter, bufferingPolicy.getAudioBufferSize(AUDIO_BUFFER_SEGMENTS * BUFFER_SEGMENT_SIZE),
+      bufferingPolicy.prefetchSegments);
+    this.prefetcher = prefetcher;
+    if (cancelled) {
+      prefetcher.release();
+    }
+    if (manifest instanceof HlsMediaPlaylist) {
+      prefetcher.setHlsPlaylist((HlsMediaPlaylist) manifest);
+    }
+    return prefetcher.createDataSource(dataSource);
+  }
+
+  private void buildAudioOnly(HlsPlaylist manifest, LoadControl loadControl,
+      PtsTimestampAdjusterProvider timestampAdjusterProvider, boolean haveAudios) {
+    // With alternate audio renditions the main variants carry video, so load the renditions
+    // alone. Otherwise restrict the main variants to audio-only ones where the playlist has any.
+    DataSource dataSource = createAudioDataSource(manifest);
+    HlsChunkSource chunkSource;
+    if (haveAudios) {
+      chunkSource = new HlsChunkSource(false /* isMaster */, dataSource, manifest,
+              DefaultHlsTrackSelector.newAudioInstance(), bandwidthMeter,
+              timestampAdjusterProvider);
+    } else {
+      chunkSource = new HlsChunkSource(true /* isMaster */, dataSource, manifest,
+              new AudioOnlyHlsTrackSelector(), bandwidthMeter, timestampAdjusterProvider);
+    }
+    HlsSampleSource sampleSource = new HlsSampleSource(chunkSource, loadControl,
+            bufferingPolicy.getAudioBufferSize(AUDIO_BUFFER_SEGMENTS * BUFFER_SEGMENT_SIZE),
+            eventHandler, audioSourceListener, TRACK_AUDIO_INDEX);
+    MediaCodecAudioTrackRenderer audioTrackRenderer = new MediaCodecAudioTrackRenderer(
+            sampleSource, MediaCodecSelector.DEFAULT, null, true, eventHandler, audioTrackListener,
+            AudioCapabilities.getCapabilities(context), AudioManager.STREAM_MUSIC);
+    MetadataTrackRenderer<List<Id3Frame>> metadataTrackRenderer = new MetadataTrackRenderer<>(
+            sampleSource, new Id3Parser(), metadataRenderer, eventHandler.getLooper());
+
+    final TrackRenderer[] trackRenderers = new TrackRenderer[TRACK_RENDER_COUNT];
+    trackRenderers[TRACK_AUDIO_INDEX] = audioTrackRenderer;
+    trackRenderers[TRACK_METADATA_INDEX] = metadataTrackRenderer;
+    eventHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        callback.onFinish(trackRenderers);
+      }
+    });
+  }
+
   @Override
   public void onSingleManifestError(final IOException e) {
+    StageTracer.endAsync(StageTracer.STAGE_MANIFEST, manifestTraceToken);
     if(cancelled) {
       return;
     }
@@ -0,0 +1,94 @@
+package fm.indiecast.rnaudiostreamer.trackrenderer;
+
+import com.google.android.exoplayer.chunk.Chunk;
+import com.google.android.exoplayer.chunk.Format;
+import com.google.android.exoplayer.chunk.FormatEvaluator;
+import com.google.android.exoplayer.chunk.MediaChunk;
+import com.google.android.exoplayer.upstream.BandwidthMeter;
+
+import java.util.List;
+
+/**
+ * Chooses among audio formats from the bandwidth estimate and the buffered duration.
+ * <p>
+ * The share of the estimated bandwidth that a format may use grows with the buffer, from
+ * {@link #MIN_BANDWIDTH_FRACTION} when it is nearly empty to {@link #MAX_BANDWIDTH_FRACTION} when it
+ * is full, so quality drops early while a stall threatens and rises only once the buffer can absorb
+ * a wrong guess. Switching up additionally needs {@link #MIN_DURATION_FOR_QUALITY_INCREASE_MS}
+ * buffered, and with {@link #MAX_DURATION_FOR_QUALITY_DECREASE_MS} buffered the current format is
+ * kept whatever the estimate.
+ */
+public class HybridFormatEvaluator implements FormatEvaluator {
+
+  public static final int DEFAULT_INITIAL_BITRATE = 128000;
+
+  private static final float MIN_BANDWIDTH_FRACTION = 0.5f;
+  private static final float MAX_BANDWIDTH_FRACTION = 0.9f;
+  private static final long LOW_BUFFER_MS = 5000;
+  private static final long HIGH_BUFFER_MS = 20000;
+  private static final long MIN_DURATION_FOR_QUALITY_INCREASE_MS = 10000;
+  private static final long MAX_DURATION_FOR_QUALITY_DECREASE_MS = 25000;
+
+  private final BandwidthMeter bandwidthMeter;
+  private final int initialBitrate;
+
+  /**
+   * @param initialBitrate The bitrate assumed while the meter has no estimate.
+   */
+  public HybridFormatEvaluator(BandwidthMeter bandwidthMeter, int initialBitrate) {
+    this.bandwidthMeter = bandwidthMeter;
+    this.initialBitrate = initialBitrate;
+  }
+
+  @Override
+  public void enable() {
+  }
+
+  @Override
+  public void disable() {
+  }
+
+  @Override
+  public void evaluate(List<? extends MediaChunk> queue, long playbackPositionUs, Format[] formats,
+      Evaluation evaluation) {
+    long bufferedDurationMs = queue.isEmpty() ? 0
+        : (queue.get(queue.size() - 1).endTimeUs - playbackPositionUs) / 1000;
+    Format current = evaluation.format;
+    Format ideal = determineIdealFormat(formats, bufferedDurationMs);
+    if (current != null && ideal.bitrate > current.bitrate
+        && bufferedDurationMs < MIN_DURATION_FOR_QUALITY_INCREASE_MS) {
+      ideal = current;
+    } else if (current != null && ideal.bitrate < current.bitrate
+        && bufferedDurationMs >= MAX_DURATION_FOR_QUALITY_DECREASE_MS) {
+      ideal = current;
+    }
+    if (current != null && ideal != current) {
+      evaluation.trigger = Chunk.TRIGGER_ADAPTIVE;
+    }
+    evaluation.format = ideal;
+  }
+
+  /**
+   * Returns the best format that fits the usable share of the bandwidth, or the lowest one.
+   * Formats are ordered by decreasing bandwidth.
+   */
+  private Format determineIdealFormat(Format[] formats, long bufferedDurationMs) {
+    long bitrateEstimate = bandwidthMeter.getBitrateEstimate();
+    long effectiveBitrate;
+    if (bitrateEstimate == BandwidthMeter.NO_ESTIMATE) {
+      effectiveBitrate = initialBitrate;
+    } else {
+      float bufferLevel = Math.max(0, Math.min(1,
+          (bufferedDurationMs - LOW_BUFFER_MS) / (float) (HIGH_BUFFER_MS - LOW_BUFFER_MS)));
+      float fraction = MIN_BANDWIDTH_FRACTION
+          + (MAX_BANDWIDTH_FRACTION - MIN_BANDWIDTH_FRACTION) * bufferLevel;
+      effectiveBitrate = (long) (bitrateEstimate * fraction);
+    }
+    for (Format format : formats) {
+      if (format.bitrate <= effectiveBitrate) {
+        return format;
+      }
+    }
+    return formats[formats.length - 1];
+  }
+}
@@ -6,7 +6,7 @@ import android.media.MediaCodec;
 import android.os.Handler;
 import android.os.Looper;
 
-import com.google.android.exoplayer.DefaultLoadControl;
+import com.google.android.exoplayer.C;
 import com.google.android.exoplayer.LoadControl;
 import com.google.android.exoplayer.MediaCodecAudioTrackRenderer;
 import com.google.android.exoplayer.MediaCodecSelector;
@@ -23,21 +23,27 @@ import com.google.android.exoplayer.drm.UnsupportedDrmException;
 import com.google.android.exoplayer.smoothstreaming.DefaultSmoothStreamingTrackSelector;
 import com.google.android.exoplayer.smoothstreaming.SmoothStreamingChunkSource;
 import com.google.android.exoplayer.smoothstreaming.SmoothStreamingManifest;
+import com.google.android.exoplayer.smoothstreaming.SmoothStreamingManifest.StreamElement;
 import com.google.android.exoplayer.smoothstreaming.SmoothStreamingManifestParser;
+import com.google.android.exoplayer.smoothstreaming.SmoothStreamingTrackSelector;
 import com.google.android.exoplayer.text.TextRenderer;
 import com.google.android.exoplayer.text.TextTrackRenderer;
+import com.google.android.exoplayer.upstream.Allocator;
 import com.google.android.exoplayer.upstream.BandwidthMeter;
 import com.google.android.exoplayer.upstream.DataSource;
-import com.google.android.exoplayer.upstream.DefaultAllocator;
-import com.google.android.exoplayer.upstream.DefaultBandwidthMeter;
-import com.google.android.exoplayer.upstream.DefaultHttpDataSource;
-import com.google.android.exoplayer.upstream.DefaultUriDataSource;
+import com.google.android.exoplayer.upstream.DataSpec;
 import com.google.android.exoplayer.util.ManifestFetcher;
 import com.google.android.exoplayer.util.Util;
 
 import java.io.IOException;
+import java.util.AbstractList;
 
+import fm.indiecast.rnaudiostreamer.BufferingPolicy;
+import fm.indiecast.rnaudiostreamer.StageTracer;
 import fm.indiecast.rnaudiostreamer.TrackRenderersBuilder;
+import fm.indiecast.rnaudiostreamer.upstream.DataSourceFactory;
+import fm.indiecast.rnaudiostreamer.upstream.ManifestCache;
+import fm.indiecast.rnaudiostreamer.upstream.SegmentPrefetcher;
 
 public class SmoothStreamingRenderersBuilder implements TrackRenderersBuilder, ManifestFetcher.ManifestCallback<SmoothStreamingManifest> {
 
@@ -45,60 +51,116 @@ public class SmoothStreamingRenderersBuilder implements TrackRenderersBuilder, M
   private static final int VIDEO_BUFFER_SEGMENTS = 200;
   private static final int AUDIO_BUFFER_SEGMENTS = 54;
   private static final int TEXT_BUFFER_SEGMENTS = 2;
-  private static final int LIVE_EDGE_LATENCY_MS = 30000;
 
   private final Context context;
-  private final String userAgent;
+  private final DataSourceFactory dataSourceFactory;
   private final String url;
   private final Handler eventHandler;
   private final MediaDrmCallback drmCallback;
   private final MediaCodecVideoTrackRenderer.EventListener videoTrackListener;
   private final MediaCodecAudioTrackRenderer.EventListener audioTrackListener;
   private final TextRenderer textRenderer;
-  private final BandwidthMeter.EventListener bandwidthMeterListener;
+  private final BandwidthMeter bandwidthMeter;
+  private final ChunkSampleSource.EventListener audioSourceListener;
   private final Looper playbackLooper;
+  private final Allocator allocator;
 
   private Callback callback;
   private ManifestFetcher<SmoothStreamingManifest> manifestFetcher;
+  private SmoothStreamingManifest manifestFromCache;
+  private long manifestTraceToken = -1;
 
   private volatile boolean cancelled = false;
+  private volatile SegmentPrefetcher prefetcher;
+  private boolean audioOnly = false;
+  private FormatEvaluator audioFormatEvaluator;
+  private BufferingPolicy bufferingPolicy = BufferingPolicy.DEFAULT;
 
-  public SmoothStreamingRenderersBuilder(Context context, String userAgent, String url, Handler eventHandler, MediaDrmCallback drmCallback, MediaCodecVideoTrackRenderer.EventListener videoTrackListener, MediaCodecAudioTrackRenderer.EventListener audioTrackListener, TextRenderer textRenderer, BandwidthMeter.EventListener bandwidthMeterListener, Looper playbackLooper) {
+  public SmoothStreamingRenderersBuilder(Context context, DataSourceFactory dataSourceFactory, String url, Handler eventHandler, MediaDrmCallback drmCallback, MediaCodecVideoTrackRenderer.EventListener videoTrackListener, MediaCodecAudioTrackRenderer.EventListener audioTrackListener, TextRenderer textRenderer, BandwidthMeter bandwidthMeter, ChunkSampleSource.EventListener audioSourceListener, Looper playbackLooper, Allocator allocator) {
     this.context = context;
-    this.userAgent = userAgent;
+    this.dataSourceFactory = dataSourceFactory;
     this.eventHandler = eventHandler;
     this.videoTrackListener = videoTrackListener;
     this.audioTrackListener = audioTrackListener;
     this.textRenderer = textRenderer;
-    this.bandwidthMeterListener = bandwidthMeterListener;
+    this.bandwidthMeter = bandwidthMeter;
+    this.audioSourceListener = audioSourceListener;
     this.playbackLooper = playbackLooper;
+    this.allocator = allocator;
     this.manifestFetcher = manifestFetcher;
     this.url = Util.toLowerInvariant(url).endsWith("/manifest") ? url : url + "/Manifest";
     this.drmCallback = drmCallback;
   }
 
+  @Override
+  public void setAudioOnly(boolean audioOnly) {
+    this.audioOnly = audioOnly;
+  }
+
+  @Override
+  public void setBufferingPolicy(BufferingPolicy bufferingPolicy) {
+    this.bufferingPolicy = bufferingPolicy;
+  }
+
+  @Override
+  public void setAudioFormatEvaluator(FormatEvaluator audioFormatEvaluator) {
+    this.audioFormatEvaluator = audioFormatEvaluator;
+  }
+
   @Override
   public void build(Callback callback) {
     this.callback = callback;
     SmoothStreamingManifestParser parser = new SmoothStreamingManifestParser();
-    manifestFetcher = new ManifestFetcher<>(url, new DefaultHttpDataSource(userAgent, null),
+    manifestFetcher = new ManifestFetcher<>(url, dataSourceFactory.createManifestDataSource(),
       parser);
+    // Only on-demand manifests are reused, live ones need the fetcher to refresh them.
+    ManifestCache manifestCache = dataSourceFactory.getManifestCache();
+    Object cachedManifest = manifestCache == null ? null : manifestCache.getParsedManifest(url);
+    if (cachedManifest instanceof SmoothStreamingManifest
+        && !((SmoothStreamingManifest) cachedManifest).isLive) {
+      manifestFromCache = (SmoothStreamingManifest) cachedManifest;
+      eventHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          onSingleManifest(manifestFromCache);
+        }
+      });
+      return;
+    }
+    manifestTraceToken = StageTracer.beginAsync();
     manifestFetcher.singleLoad(eventHandler.getLooper(), this);
   }
 
   @Override
   public void cancel() {
     cancelled = true;
+    SegmentPrefetcher prefetcher = this.prefetcher;
+    if (prefetcher != null) {
+      prefetcher.release();
+    }
   }
 
   @Override
   public void onSingleManifest(SmoothStreamingManifest manifest) {
+    StageTracer.endAsync(StageTracer.STAGE_MANIFEST, manifestTraceToken);
     if (cancelled) {
       return;
     }
+    ManifestCache manifestCache = dataSourceFactory.getManifestCache();
+    if (manifestCache != null) {
+      manifestCache.putParsedManifest(url, manifest);
+    }
+    StageTracer.beginSection(StageTracer.STAGE_RENDERERS);
+    try {
+      buildRenderers(manifest);
+    } finally {
+      StageTracer.endSection();
+    }
+  }
 
-    LoadControl loadControl = new DefaultLoadControl(new DefaultAllocator(BUFFER_SEGMENT_SIZE));
-    DefaultBandwidthMeter bandwidthMeter = new DefaultBandwidthMeter(eventHandler, bandwidthMeterListener);
+  private void buildRenderers(SmoothStreamingManifest manifest) {
+
+    LoadControl loadControl = bufferingPolicy.createLoadControl(allocator);
 
     // Check drm support if necessary.
     DrmSessionManager drmSessionManager = null;
@@ -107,6 +169,7 @@ public class SmoothStreamingRenderersBuilder implements TrackRenderersBuilder, M
         callback.onError(new UnsupportedDrmException(UnsupportedDrmException.REASON_UNSUPPORTED_SCHEME));
         return;
       }
+      StageTracer.beginSection(StageTracer.STAGE_DRM_SESSION);
       try {
         drmSessionManager = StreamingDrmSessionManager.newFrameworkInstance(manifest.protectionElement.uuid,
           playbackLooper, drmCallback, null, eventHandler, new StreamingDrmSessionManager.EventListener() {
@@ -127,48 +190,51 @@ public class SmoothStreamingRenderersBuilder implements TrackRenderersBuilder, M
           callback.onError(e);
         }
         return;
+      } finally {
+        StageTracer.endSection();
       }
     }
 
-    // Build the video renderer.
-    DataSource videoDataSource = new DefaultUriDataSource(context, bandwidthMeter, userAgent);
-    ChunkSource videoChunkSource = new SmoothStreamingChunkSource(manifestFetcher,
-      DefaultSmoothStreamingTrackSelector.newVideoInstance(context, true, false),
-      videoDataSource, new FormatEvaluator.AdaptiveEvaluator(bandwidthMeter), LIVE_EDGE_LATENCY_MS);
-    ChunkSampleSource videoSampleSource = new ChunkSampleSource(videoChunkSource, loadControl,
-      VIDEO_BUFFER_SEGMENTS * BUFFER_SEGMENT_SIZE, eventHandler, null,
-      TRACK_VIDEO_INDEX);
-    TrackRenderer videoTrackRenderer = new MediaCodecVideoTrackRenderer(context, videoSampleSource,
-      MediaCodecSelector.DEFAULT, MediaCodec.VIDEO_SCALING_MODE_SCALE_TO_FIT, 5000,
-      drmSessionManager, true, eventHandler, videoTrackListener, 50);
-
     // Build the audio renderer.
-    DataSource audioDataSource = new DefaultUriDataSource(context, bandwidthMeter, userAgent);
-    ChunkSource audioChunkSource = new SmoothStreamingChunkSource(manifestFetcher,
-      DefaultSmoothStreamingTrackSelector.newAudioInstance(),
-      audioDataSource, null, LIVE_EDGE_LATENCY_MS);
+    DataSource audioDataSource = createAudioDataSource(manifest);
+    // Without an evaluator each audio track is a separate fixed track.
+    SmoothStreamingTrackSelector audioTrackSelector = audioFormatEvaluator != null
+      ? new AdaptiveAudioSmoothStreamingTrackSelector()
+      : DefaultSmoothStreamingTrackSelector.newAudioInstance();
+    ChunkSource audioChunkSource = newChunkSource(audioTrackSelector, audioDataSource,
+      audioFormatEvaluator);
     ChunkSampleSource audioSampleSource = new ChunkSampleSource(audioChunkSource, loadControl,
-      AUDIO_BUFFER_SEGMENTS * BUFFER_SEGMENT_SIZE, eventHandler, null,
-      TRACK_AUDIO_INDEX);
+      bufferingPolicy.getAudioBufferSize(AUDIO_BUFFER_SEGMENTS * BUFFER_SEGMENT_SIZE),
+      eventHandler, audioSourceListener, TRACK_AUDIO_INDEX);
     TrackRenderer audioTrackRenderer = new MediaCodecAudioTrackRenderer(audioSampleSource,
       MediaCodecSelector.DEFAULT, drmSessionManager, true, eventHandler, audioTrackListener,
       AudioCapabilities.getCapabilities(context), AudioManager.STREAM_MUSIC);
 
-    // Build the text renderer.
-    DataSource textDataSource = new DefaultUriDataSource(context, bandwidthMeter, userAgent);
-    ChunkSource textChunkSource = new SmoothStreamingChunkSource(manifestFetcher,
-      DefaultSmoothStreamingTrackSelector.newTextInstance(),
-      textDataSource, null, LIVE_EDGE_LATENCY_MS);
-    ChunkSampleSource textSampleSource = new ChunkSampleSource(textChunkSource, loadControl,
-      TEXT_BUFFER_SEGMENTS * BUFFER_SEGMENT_SIZE, eventHandler, null,
-      TRACK_TEXT_INDEX);
-    TrackRenderer textTrackRenderer = new TextTrackRenderer(textSampleSource, textRenderer,
-      eventHandler.getLooper());
-
     final TrackRenderer[] trackRenderers = new TrackRenderer[TRACK_RENDER_COUNT];
-    trackRenderers[TRACK_VIDEO_INDEX] = videoTrackRenderer;
     trackRenderers[TRACK_AUDIO_INDEX] = audioTrackRenderer;
-    trackRenderers[TRACK_TEXT_INDEX] = textTrackRenderer;
+    if (!audioOnly) {
+      // Build the video renderer.
+      DataSource videoDataSource = dataSourceFactory.createDataSource(bandwidthMeter);
+      ChunkSource videoChunkSource = newChunkSource(
+        DefaultSmoothStreamingTrackSelector.newVideoInstance(context, true, false),
+        videoDataSource, new FormatEvaluator.AdaptiveEvaluator(bandwidthMeter));
+      ChunkSampleSource videoSampleSource = new ChunkSampleSource(videoChunkSource, loadControl,
+        VIDEO_BUFFER_SEGMENTS * BUFFER_SEGMENT_SIZE, eventHandler, null,
+        TRACK_VIDEO_INDEX);
+      trackRenderers[TRACK_VIDEO_INDEX] = new MediaCodecVideoTrackRenderer(context, videoSampleSource,
+        MediaCodecSelector.DEFAULT, MediaCodec.VIDEO_SCALING_MODE_SCALE_TO_FIT, 5000,
+        drmSessionManager, true, eventHandler, videoTrackListener, 50);
+
+      // Build the text renderer.
+      DataSource textDataSource = dataSourceFactory.createDataSource(bandwidthMeter);
+      ChunkSource textChunkSource = newChunkSource(
+        DefaultSmoothStreamingTrackSelector.newTextInstance(), textDataSource, null);
+      ChunkSampleSource textSampleSource = new ChunkSampleSource(textChunkSource, loadControl,
+        TEXT_BUFFER_SEGMENTS * BUFFER_SEGMENT_SIZE, eventHandler, null,
+        TRACK_TEXT_INDEX);
+      trackRenderers[TRACK_TEXT_INDEX] = new TextTrackRenderer(textSampleSource, textRenderer,
+        eventHandler.getLooper());
+    }
     eventHandler.post(new Runnable() {
       @Override
       public void run() {
@@ -177,8 +243,72 @@ public class SmoothStreamingRenderersBuilder implements TrackRenderersBuilder, M
     });
   }
 
+  /**
+   * Creates the source for audio chunks, which loads the following chunks of the same track ahead
+   * when the buffering policy asks for it. Live chunks are requested as they appear, so they are
+   * never loaded ahead.
+   */
+  private DataSource createAudioDataSource(SmoothStreamingManifest manifest) {
+    DataSource dataSource = dataSourceFactory.createDataSource(bandwidthMeter);
+    if (bufferingPolicy.prefetchSegments == 0 || manifest.isLive) {
+      return dataSource;
+    }
+    SegmentPrefetcher prefetcher = new SegmentPrefetcher(dataSourceFactory, allocator,
+      bandwidthMeter, bufferingPolicy.getAudioBufferSize(AUDIO_BUFFER_SEGMENTS * BUFFER_SEGMENT_SIZE),
+      bufferingPolicy.prefetchSegments);
+    this.prefetcher = prefetcher;
+    if (cancelled) {
+      prefetcher.release();
+    }
+    for (int i = 0; i < manifest.streamElements.length; i++) {
+      StreamElement element = manifest.streamElements[i];
+      if (element.type != StreamElement.TYPE_AUDIO) {
+        continue;
+      }
+      for (int track = 0; track < element.tracks.length; track++) {
+        prefetcher.setSegments(i + "." + track, new ChunkList(element, track));
+      }
+    }
+    return prefetcher.createDataSource(dataSource);
+  }
+
+  /**
+   * The chunks of a track, created from its stream element as the prefetcher reaches them.
+   */
+  private static final class ChunkList extends AbstractList<DataSpec> {
+
+    private final StreamElement element;
+    private final int track;
+
+    ChunkList(StreamElement element, int track) {
+      this.element = element;
+      this.track = track;
+    }
+
+    @Override
+    public DataSpec get(int location) {
+      return new DataSpec(element.buildRequestUri(track, location), 0, C.LENGTH_UNBOUNDED, null);
+    }
+
+    @Override
+    public int size() {
+      return element.chunkCount;
+    }
+  }
+
+  private ChunkSource newChunkSource(SmoothStreamingTrackSelector trackSelector,
+      DataSource dataSource, FormatEvaluator formatEvaluator) {
+    if (manifestFromCache != null) {
+      return new SmoothStreamingChunkSource(manifestFromCache, trackSelector, dataSource,
+        formatEvaluator);
+    }
+    return new SmoothStreamingChunkSource(manifestFetcher, trackSelector, dataSource,
+      formatEvaluator, bufferingPolicy.liveEdgeLatencyMs);
+  }
+
   @Override
   public void onSingleManifestError(final IOException e) {
+    StageTracer.endAsync(StageTracer.STAGE_MANIFEST, manifestTraceToken);
     if (cancelled) {
       return;
     }
@@ -0,0 +1,61 @@
+package fm.indiecast.rnaudiostreamer.upstream;
+
+import android.os.SystemClock;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import okhttp3.Dns;
+
+/**
+ * Keeps lookups for a fixed time, so that segment hosts are resolved once per stream rather than
+ * whenever a connection is opened. Failed lookups are not kept.
+ */
+final class CachingDns implements Dns {
+
+  private final Dns upstream;
+  private final long ttlMs;
+  private final Map<String, Entry> entries;
+
+  CachingDns(Dns upstream, long ttlMs) {
+    this.upstream = upstream;
+    this.ttlMs = ttlMs;
+    this.entries = new HashMap<>();
+  }
+
+  @Override
+  public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+    long nowMs = SystemClock.elapsedRealtime();
+    synchronized (entries) {
+      Entry entry = entries.get(hostname);
+      if (entry != null && nowMs < entry.expiresAtMs) {
+        return entry.addresses;
+      }
+    }
+    List<InetAddress> addresses = upstream.lookup(hostname);
+    synchronized (entries) {
+      entries.put(hostname, new Entry(addresses, nowMs + ttlMs));
+    }
+    return addresses;
+  }
+
+  void clear() {
+    synchronized (entries) {
+      entries.clear();
+    }
+  }
+
+  private static final class Entry {
+
+    final List<InetAddress> addresses;
+    final long expiresAtMs;
+
+    Entry(List<InetAddress> addresses, long expiresAtMs) {
+      this.addresses = addresses;
+      this.expiresAtMs = expiresAtMs;
+    }
+  }
+}
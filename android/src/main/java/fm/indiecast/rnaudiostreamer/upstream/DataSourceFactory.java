@@ -0,0 +1,49 @@
+package fm.indiecast.rnaudiostreamer.upstream;
+
+import com.google.android.exoplayer.hls.HlsMediaPlaylist;
+import com.google.android.exoplayer.upstream.DataSource;
+import com.google.android.exoplayer.upstream.TransferListener;
+import com.google.android.exoplayer.upstream.UriDataSource;
+
+/**
+ * Creates the {@link DataSource}s used by the track renderer builders, so that caching and the
+ * HTTP stack are configured in one place for every content type.
+ */
+public interface DataSourceFactory {
+
+  /**
+   * Creates a source for media data.
+   *
+   * @param listener Notified of network transfers, typically a bandwidth meter. May be null.
+   */
+  DataSource createDataSource(TransferListener listener);
+
+  /**
+   * Creates a source for a progressive stream, which may be an unbounded live stream. Shoutcast
+   * and Icecast metadata is requested and removed from the stream.
+   *
+   * @param listener Notified of network transfers, typically a bandwidth meter. May be null.
+   * @param icyListener Receives the in-stream metadata of radio streams. May be null.
+   */
+  DataSource createProgressiveDataSource(TransferListener listener,
+      IcyHttpDataSource.Listener icyListener);
+
+  /**
+   * Creates a source for manifests and playlists. Media playlists that HLS chunk sources refresh
+   * are loaded through {@link #createDataSource(TransferListener)} instead.
+   */
+  UriDataSource createManifestDataSource();
+
+  /**
+   * Returns the cache that sources from {@link #createManifestDataSource()} load through, for
+   * builders to reuse parsed manifests, or null if manifests are not cached.
+   */
+  ManifestCache getManifestCache();
+
+  /**
+   * Notes an HLS media playlist loaded through {@link #createManifestDataSource()}, so that the
+   * segments of a live one are read past the cache. Playlists that chunk sources reload through
+   * the media sources are noted by the sources themselves.
+   */
+  void onHlsMediaPlaylist(HlsMediaPlaylist playlist);
+}
@@ -0,0 +1,362 @@
+package fm.indiecast.rnaudiostreamer.upstream;
+
+import android.content.Context;
+
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.hls.HlsMediaPlaylist;
+import com.google.android.exoplayer.hls.HlsPlaylist;
+import com.google.android.exoplayer.hls.HlsPlaylistParser;
+import com.google.android.exoplayer.upstream.DataSource;
+import com.google.android.exoplayer.upstream.DataSpec;
+import com.google.android.exoplayer.upstream.DefaultUriDataSource;
+import com.google.android.exoplayer.upstream.FileDataSource;
+import com.google.android.exoplayer.upstream.HttpDataSource;
+import com.google.android.exoplayer.upstream.TransferListener;
+import com.google.android.exoplayer.upstream.UriDataSource;
+import com.google.android.exoplayer.upstream.cache.Cache;
+import com.google.android.exoplayer.upstream.cache.CacheDataSink;
+import com.google.android.exoplayer.upstream.cache.CacheDataSource;
+import com.google.android.exoplayer.upstream.cache.CacheSpan;
+import com.google.android.exoplayer.util.UriUtil;
+import com.google.android.exoplayer.util.Util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creates {@link DefaultUriDataSource}s that make their http and https requests through an
+ * {@link HttpStack}, reading media through a disk {@link Cache} when one is given.
+ */
+public class DefaultDataSourceFactory implements DataSourceFactory {
+
+  private static final long MAX_CACHE_FILE_SIZE = 2 * 1024 * 1024;
+  // Live playlists list a few segments at a time, this covers several players' windows.
+  private static final int MAX_LIVE_SEGMENT_URIS = 256;
+
+  private final Context context;
+  private final HttpStack httpStack;
+  private final Cache cache;
+  private final ManifestCache manifestCache;
+
+  // Uris that turned out to be unbounded live streams, which must never be replayed from cache.
+  private final Set<String> liveStreamUris =
+    Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  // Segments of live HLS playlists, which are played once and would evict on demand media.
+  private final Set<String> liveSegmentUris = Collections.synchronizedSet(
+    Collections.newSetFromMap(new LinkedHashMap<String, Boolean>() {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+        return size() > MAX_LIVE_SEGMENT_URIS;
+      }
+    }));
+
+  private final AtomicLong cacheBytesRead = new AtomicLong();
+  private final AtomicLong networkBytesRead = new AtomicLong();
+  private final AtomicLong reconnects = new AtomicLong();
+  private final AtomicLong failedReconnects = new AtomicLong();
+  private final AtomicLong reconnectMs = new AtomicLong();
+
+  /**
+   * @param cache The cache for media data, or null to read everything from upstream.
+   * @param manifestCache The cache for manifests, or null to load them on every use.
+   */
+  public DefaultDataSourceFactory(Context context, HttpStack httpStack, Cache cache,
+      ManifestCache manifestCache) {
+    this.context = context;
+    this.httpStack = httpStack;
+    this.cache = cache;
+    this.manifestCache = manifestCache;
+  }
+
+  @Override
+  public DataSource createDataSource(TransferListener listener) {
+    return createDataSource(listener, false, null);
+  }
+
+  @Override
+  public DataSource createProgressiveDataSource(TransferListener listener,
+      IcyHttpDataSource.Listener icyListener) {
+    return createDataSource(listener, true, icyListener);
+  }
+
+  private DataSource createDataSource(TransferListener listener, boolean progressive,
+      IcyHttpDataSource.Listener icyListener) {
+    TransferListener countingListener = new CountingTransferListener(listener);
+    HttpDataSource httpDataSource = httpStack.createHttpDataSource(countingListener);
+    IcyHttpDataSource icyDataSource = null;
+    if (progressive) {
+      icyDataSource = new IcyHttpDataSource(httpDataSource, icyListener);
+      httpDataSource = icyDataSource;
+    }
+    httpDataSource = new ReconnectingHttpDataSource(httpDataSource, reconnectListener);
+    // Files, assets and content providers are read without a listener, so that they are neither
+    // counted as network bytes nor fed to the bandwidth meter.
+    UriDataSource upstream = new DefaultUriDataSource(context, null, httpDataSource);
+    if (cache == null) {
+      return upstream;
+    }
+    CacheDataSource cacheDataSource = new CacheDataSource(cache, upstream, new FileDataSource(),
+      new CacheDataSink(cache, MAX_CACHE_FILE_SIZE), false, true, cacheListener);
+    return new HttpCachingDataSource(cacheDataSource, upstream, icyDataSource);
+  }
+
+  @Override
+  public UriDataSource createManifestDataSource() {
+    if (manifestCache != null) {
+      return manifestCache.createDataSource(context, httpStack);
+    }
+    return new DefaultUriDataSource(context, null,
+      new ReconnectingHttpDataSource(httpStack.createHttpDataSource(null), reconnectListener));
+  }
+
+  @Override
+  public ManifestCache getManifestCache() {
+    return manifestCache;
+  }
+
+  @Override
+  public void onHlsMediaPlaylist(HlsMediaPlaylist playlist) {
+    if (!playlist.live) {
+      return;
+    }
+    for (HlsMediaPlaylist.Segment segment : playlist.segments) {
+      liveSegmentUris.add(UriUtil.resolve(playlist.baseUri, segment.url));
+    }
+  }
+
+  public long getCacheBytesRead() {
+    return cacheBytesRead.get();
+  }
+
+  public long getNetworkBytesRead() {
+    return networkBytesRead.get();
+  }
+
+  /**
+   * Returns the number of failed requests and reads that a retry or reconnect recovered from.
+   */
+  public long getReconnectCount() {
+    return reconnects.get();
+  }
+
+  public long getFailedReconnectCount() {
+    return failedReconnects.get();
+  }
+
+  /**
+   * Returns the time from the first failure to the recovery, summed over all recoveries.
+   */
+  public long getReconnectMs() {
+    return reconnectMs.get();
+  }
+
+  public long getCacheSpace() {
+    return cache == null ? 0 : cache.getCacheSpace();
+  }
+
+  private final CacheDataSource.EventListener cacheListener = new CacheDataSource.EventListener() {
+    @Override
+    public void onCachedBytesRead(long cacheSizeBytes, long cachedBytesRead) {
+      cacheBytesRead.addAndGet(cachedBytesRead);
+    }
+  };
+
+  private final ReconnectingHttpDataSource.Listener reconnectListener =
+    new ReconnectingHttpDataSource.Listener() {
+      @Override
+      public void onReconnected(long recoveryMs) {
+        reconnects.incrementAndGet();
+        reconnectMs.addAndGet(recoveryMs);
+      }
+
+      @Override
+      public void onReconnectFailed() {
+        failedReconnects.incrementAndGet();
+      }
+    };
+
+  private final class CountingTransferListener implements TransferListener {
+
+    private final TransferListener listener;
+
+    private CountingTransferListener(TransferListener listener) {
+      this.listener = listener;
+    }
+
+    @Override
+    public void onTransferStart() {
+      if (listener != null) listener.onTransferStart();
+    }
+
+    @Override
+    public void onBytesTransferred(int bytesTransferred) {
+      networkBytesRead.addAndGet(bytesTransferred);
+      if (listener != null) listener.onBytesTransferred(bytesTransferred);
+    }
+
+    @Override
+    public void onTransferEnd() {
+      if (listener != null) listener.onTransferEnd();
+    }
+  }
+
+  /**
+   * Reads http and https media through the cache. Local files, playlists (which HLS chunk sources
+   * load through the same source), live streams and the segments of live HLS playlists are read
+   * directly.
+   * <p>
+   * A progressive uri that is not cached yet may be a live radio stream, so it is probed first.
+   * When the server reports a length, the probing connection is read on and what it returns is
+   * written to the cache on the way, so a cold file takes a single request.
+   * <p>
+   * Progressive requests only ask for Icy metadata while the stream may be live: when nothing of
+   * it is cached yet, or it is known to be live. Requests filling the cache are for files that
+   * reported a length, so they go without.
+   */
+  private final class HttpCachingDataSource implements DataSource {
+
+    private final DataSource cacheDataSource;
+    private final DataSource uriDataSource;
+    private final IcyHttpDataSource icyDataSource;
+    private final boolean progressive;
+
+    private DataSource dataSource;
+    // The cache file written while reading a probed connection, and the span locked for it.
+    private CacheDataSink teeSink;
+    private CacheSpan teeSpan;
+    private DataSpec playlistSpec;
+    private ByteArrayOutputStream playlistCopy;
+
+    private HttpCachingDataSource(DataSource cacheDataSource, DataSource uriDataSource,
+        IcyHttpDataSource icyDataSource) {
+      this.cacheDataSource = cacheDataSource;
+      this.uriDataSource = uriDataSource;
+      this.icyDataSource = icyDataSource;
+      this.progressive = icyDataSource != null;
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws IOException {
+      String scheme = dataSpec.uri.getScheme();
+      String key = dataSpec.key != null ? dataSpec.key : dataSpec.uri.toString();
+      int contentType = Util.inferContentType(dataSpec.uri.getLastPathSegment());
+      if ((!"http".equals(scheme) && !"https".equals(scheme))
+          || contentType != Util.TYPE_OTHER
+          || liveStreamUris.contains(key)
+          || liveSegmentUris.contains(dataSpec.uri.toString())) {
+        if (progressive) icyDataSource.setMetadataRequested(true);
+        if (contentType == Util.TYPE_HLS) {
+          playlistSpec = dataSpec;
+          playlistCopy = new ByteArrayOutputStream();
+        }
+        dataSource = uriDataSource;
+        return dataSource.open(dataSpec);
+      }
+      NavigableSet<CacheSpan> cachedSpans = cache.getCachedSpans(key);
+      boolean cached = cachedSpans != null && !cachedSpans.isEmpty();
+      if (progressive) icyDataSource.setMetadataRequested(!cached);
+      if (progressive && !cached) {
+        long length = uriDataSource.open(dataSpec);
+        dataSource = uriDataSource;
+        if (length == C.LENGTH_UNBOUNDED) {
+          liveStreamUris.add(key);
+        } else {
+          startTee(dataSpec, key, length);
+        }
+        return length;
+      }
+      dataSource = cacheDataSource;
+      return dataSource.open(dataSpec);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int readLength) throws IOException {
+      int read = dataSource.read(buffer, offset, readLength);
+      if (read > 0) {
+        if (teeSink != null) {
+          try {
+            teeSink.write(buffer, offset, read);
+          } catch (IOException e) {
+            // Playback goes on without caching the rest.
+            stopTee();
+          }
+        } else if (playlistCopy != null) {
+          playlistCopy.write(buffer, offset, read);
+        }
+      }
+      return read;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (dataSource != null) {
+        try {
+          dataSource.close();
+        } finally {
+          dataSource = null;
+          stopTee();
+          if (playlistCopy != null) {
+            notePlaylist(playlistSpec, playlistCopy.toByteArray());
+            playlistSpec = null;
+            playlistCopy = null;
+          }
+        }
+      }
+    }
+
+    private void startTee(DataSpec dataSpec, String key, long length) {
+      CacheSpan span = cache.startReadWriteNonBlocking(key, dataSpec.absoluteStreamPosition);
+      if (span == null) {
+        // Another source is writing it.
+        return;
+      }
+      if (span.isCached) {
+        // Cached since it was probed, and not locked.
+        return;
+      }
+      teeSpan = span;
+      teeSink = new CacheDataSink(cache, MAX_CACHE_FILE_SIZE);
+      try {
+        teeSink.open(new DataSpec(dataSpec.uri, dataSpec.absoluteStreamPosition, length, key));
+      } catch (IOException e) {
+        stopTee();
+      }
+    }
+
+    private void stopTee() {
+      if (teeSpan == null) {
+        return;
+      }
+      try {
+        // Commits what was written, a partly read file is completed through the cache later.
+        teeSink.close();
+      } catch (IOException e) {
+        // The file is dropped.
+      } finally {
+        cache.releaseHoleSpan(teeSpan);
+        teeSink = null;
+        teeSpan = null;
+      }
+    }
+
+    private void notePlaylist(DataSpec dataSpec, byte[] bytes) {
+      try {
+        HlsPlaylist playlist = new HlsPlaylistParser().parse(dataSpec.uri.toString(),
+          new ByteArrayInputStream(bytes));
+        if (playlist instanceof HlsMediaPlaylist) {
+          onHlsMediaPlaylist((HlsMediaPlaylist) playlist);
+        }
+      } catch (IOException e) {
+        // A partial read, the chunk source reports the failure itself.
+      }
+    }
+  }
+}
@@ -0,0 +1,23 @@
+package fm.indiecast.rnaudiostreamer.upstream;
+
+import com.google.android.exoplayer.upstream.DefaultHttpDataSource;
+import com.google.android.exoplayer.upstream.HttpDataSource;
+import com.google.android.exoplayer.upstream.TransferListener;
+
+/**
+ * Makes requests with {@link java.net.HttpURLConnection}, leaving connection reuse to the
+ * platform.
+ */
+public final class DefaultHttpStack implements HttpStack {
+
+  private final String userAgent;
+
+  public DefaultHttpStack(String userAgent) {
+    this.userAgent = userAgent;
+  }
+
+  @Override
+  public HttpDataSource createHttpDataSource(TransferListener listener) {
+    return new DefaultHttpDataSource(userAgent, null, listener);
+  }
+}
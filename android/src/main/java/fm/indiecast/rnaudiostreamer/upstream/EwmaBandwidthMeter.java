@@ -0,0 +1,125 @@
+package fm.indiecast.rnaudiostreamer.upstream;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.google.android.exoplayer.upstream.BandwidthMeter;
+
+/**
+ * Estimates bandwidth from two exponentially weighted moving averages of the measured throughput,
+ * a fast one that reacts to drops and a slow one that smooths out bursts, and reports the lower of
+ * the two. Each sample is weighted by its duration, so a long transfer counts more than a short
+ * one.
+ * <p>
+ * One meter is meant to be shared by every chunk source, so that a new stream starts from what
+ * the previous ones measured. It can also be seeded with an estimate from an earlier session.
+ */
+public final class EwmaBandwidthMeter implements BandwidthMeter {
+
+  private static final double FAST_HALF_LIFE_MS = 2000;
+  private static final double SLOW_HALF_LIFE_MS = 5000;
+
+  // Transfers shorter than this mostly measure latency rather than throughput.
+  private static final long MIN_SAMPLE_BYTES = 16 * 1024;
+
+  private final Handler eventHandler;
+  private final EventListener eventListener;
+
+  private int streamCount;
+  private long sampleStartMs;
+  private long sampleBytes;
+
+  private double fastEstimate;
+  private double slowEstimate;
+  private double totalWeightMs;
+  private long seedEstimate = NO_ESTIMATE;
+
+  public EwmaBandwidthMeter(Handler eventHandler, EventListener eventListener) {
+    this.eventHandler = eventHandler;
+    this.eventListener = eventListener;
+  }
+
+  /**
+   * Sets the estimate reported until enough has been measured, typically one persisted from a
+   * previous session.
+   */
+  public synchronized void setSeedEstimate(long bitsPerSecond) {
+    this.seedEstimate = bitsPerSecond;
+  }
+
+  /**
+   * Discards everything measured so far and starts over from the given seed estimate, for example
+   * after moving to another network.
+   */
+  public synchronized void reset(long seedBitsPerSecond) {
+    fastEstimate = 0;
+    slowEstimate = 0;
+    totalWeightMs = 0;
+    seedEstimate = seedBitsPerSecond;
+  }
+
+  /**
+   * Returns whether enough has been measured for the estimate to no longer be the seed.
+   */
+  public synchronized boolean hasMeasuredEstimate() {
+    return totalWeightMs >= FAST_HALF_LIFE_MS;
+  }
+
+  @Override
+  public synchronized long getBitrateEstimate() {
+    if (totalWeightMs < FAST_HALF_LIFE_MS) {
+      return seedEstimate;
+    }
+    // Correct the bias towards zero of averages that started from zero.
+    double fast = fastEstimate / (1 - Math.pow(0.5, totalWeightMs / FAST_HALF_LIFE_MS));
+    double slow = slowEstimate / (1 - Math.pow(0.5, totalWeightMs / SLOW_HALF_LIFE_MS));
+    return (long) Math.min(fast, slow);
+  }
+
+  @Override
+  public synchronized void onTransferStart() {
+    if (streamCount == 0) {
+      sampleStartMs = SystemClock.elapsedRealtime();
+    }
+    streamCount++;
+  }
+
+  @Override
+  public synchronized void onBytesTransferred(int bytes) {
+    sampleBytes += bytes;
+  }
+
+  @Override
+  public synchronized void onTransferEnd() {
+    streamCount--;
+    long nowMs = SystemClock.elapsedRealtime();
+    int elapsedMs = (int) (nowMs - sampleStartMs);
+    if (elapsedMs > 0 && sampleBytes >= MIN_SAMPLE_BYTES) {
+      double bitsPerSecond = sampleBytes * 8000d / elapsedMs;
+      fastEstimate = average(fastEstimate, bitsPerSecond, elapsedMs, FAST_HALF_LIFE_MS);
+      slowEstimate = average(slowEstimate, bitsPerSecond, elapsedMs, SLOW_HALF_LIFE_MS);
+      totalWeightMs += elapsedMs;
+      notifyBandwidthSample(elapsedMs, sampleBytes, getBitrateEstimate());
+    }
+    if (streamCount > 0) {
+      sampleStartMs = nowMs;
+    }
+    sampleBytes = 0;
+  }
+
+  private static double average(double estimate, double sample, int weightMs, double halfLifeMs) {
+    double alpha = Math.pow(0.5, weightMs / halfLifeMs);
+    return alpha * estimate + (1 - alpha) * sample;
+  }
+
+  private void notifyBandwidthSample(final int elapsedMs, final long bytes, final long bitrate) {
+    if (eventHandler != null && eventListener != null) {
+      eventHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          eventListener.onBandwidthSample(elapsedMs, bytes, bitrate);
+        }
+      });
+    }
+  }
+}
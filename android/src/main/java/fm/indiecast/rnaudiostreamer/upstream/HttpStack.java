@@ -0,0 +1,16 @@
+package fm.indiecast.rnaudiostreamer.upstream;
+
+import com.google.android.exoplayer.upstream.HttpDataSource;
+import com.google.android.exoplayer.upstream.TransferListener;
+
+/**
+ * Creates the sources through which every http and https request is made, for playback, manifests
+ * and downloads alike, so that they can share connections.
+ */
+public interface HttpStack {
+
+  /**
+   * @param listener Notified of network transfers, typically a bandwidth meter. May be null.
+   */
+  HttpDataSource createHttpDataSource(TransferListener listener);
+}
@@ -0,0 +1,180 @@
+package fm.indiecast.rnaudiostreamer.upstream;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.List;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.Protocol;
+import okhttp3.Response;
+
+/**
+ * Totals the phases of the requests made through an OkHttp client: DNS lookup, connection setup
+ * including TLS, time to the first response byte, and body transfer. Lookups and connections are
+ * only counted when they happen, so reused connections lower the averages per request.
+ */
+public final class HttpTimings {
+
+  private long requests;
+  private long failedRequests;
+  private long reusedConnections;
+  private long http2Requests;
+  private long dnsNs;
+  private long connectNs;
+  private long timeToFirstByteNs;
+  private long transferNs;
+
+  EventListener.Factory createListenerFactory() {
+    return new EventListener.Factory() {
+      @Override
+      public EventListener create(Call call) {
+        return new CallTimer();
+      }
+    };
+  }
+
+  public synchronized long getRequestCount() {
+    return requests;
+  }
+
+  public synchronized long getFailedRequestCount() {
+    return failedRequests;
+  }
+
+  /**
+   * Returns the number of requests that were sent on a connection opened for an earlier one.
+   */
+  public synchronized long getReusedConnectionCount() {
+    return reusedConnections;
+  }
+
+  public synchronized long getHttp2RequestCount() {
+    return http2Requests;
+  }
+
+  public synchronized double getAverageDnsMs() {
+    return average(dnsNs);
+  }
+
+  public synchronized double getAverageConnectMs() {
+    return average(connectNs);
+  }
+
+  public synchronized double getAverageTimeToFirstByteMs() {
+    return average(timeToFirstByteNs);
+  }
+
+  public synchronized double getAverageTransferMs() {
+    return average(transferNs);
+  }
+
+  private double average(long totalNs) {
+    return requests == 0 ? 0 : totalNs / 1e6 / requests;
+  }
+
+  private synchronized void onCallEnd(CallTimer timer, boolean failed) {
+    requests++;
+    if (failed) {
+      failedRequests++;
+    }
+    if (timer.acquired && !timer.connected) {
+      reusedConnections++;
+    }
+    if (timer.protocol == Protocol.HTTP_2) {
+      http2Requests++;
+    }
+    dnsNs += timer.dnsNs;
+    connectNs += timer.connectNs;
+    timeToFirstByteNs += timer.timeToFirstByteNs;
+    transferNs += timer.transferNs;
+  }
+
+  /**
+   * Times a single call. OkHttp calls it from the thread that executes the call.
+   */
+  private final class CallTimer extends EventListener {
+
+    private long callStartNs;
+    private long dnsStartNs;
+    private long connectStartNs;
+    private long headersEndNs;
+
+    private boolean connected;
+    private boolean acquired;
+    private Protocol protocol;
+    private long dnsNs;
+    private long connectNs;
+    private long timeToFirstByteNs;
+    private long transferNs;
+
+    @Override
+    public void callStart(Call call) {
+      callStartNs = System.nanoTime();
+    }
+
+    @Override
+    public void dnsStart(Call call, String domainName) {
+      dnsStartNs = System.nanoTime();
+    }
+
+    @Override
+    public void dnsEnd(Call call, String domainName, List<InetAddress> addresses) {
+      dnsNs += System.nanoTime() - dnsStartNs;
+    }
+
+    @Override
+    public void connectStart(Call call, InetSocketAddress address, Proxy proxy) {
+      connectStartNs = System.nanoTime();
+      connected = true;
+    }
+
+    @Override
+    public void connectEnd(Call call, InetSocketAddress address, Proxy proxy, Protocol protocol) {
+      connectNs += System.nanoTime() - connectStartNs;
+    }
+
+    @Override
+    public void connectFailed(Call call, InetSocketAddress address, Proxy proxy, Protocol protocol,
+        IOException e) {
+      connectNs += System.nanoTime() - connectStartNs;
+    }
+
+    @Override
+    public void connectionAcquired(Call call, Connection connection) {
+      acquired = true;
+      protocol = connection.protocol();
+    }
+
+    @Override
+    public void responseHeadersStart(Call call) {
+      // Redirects produce several responses, the first one marks the first byte.
+      if (timeToFirstByteNs == 0) {
+        timeToFirstByteNs = System.nanoTime() - callStartNs;
+      }
+    }
+
+    @Override
+    public void responseHeadersEnd(Call call, Response response) {
+      headersEndNs = System.nanoTime();
+    }
+
+    @Override
+    public void responseBodyEnd(Call call, long byteCount) {
+      transferNs += System.nanoTime() - headersEndNs;
+    }
+
+    @Override
+    public void callEnd(Call call) {
+      onCallEnd(this, false);
+    }
+
+    @Override
+    public void callFailed(Call call, IOException e) {
+      onCallEnd(this, true);
+    }
+  }
+}
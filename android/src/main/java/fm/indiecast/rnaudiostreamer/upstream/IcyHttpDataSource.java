@@ -0,0 +1,223 @@
+package fm.indiecast.rnaudiostreamer.upstream;
+
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.upstream.DataSpec;
+import com.google.android.exoplayer.upstream.HttpDataSource;
+
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Asks Shoutcast and Icecast servers for in-stream metadata and removes it from the stream.
+ * <p>
+ * When the server answers with an {@code icy-metaint} header, a metadata block follows every
+ * {@code icy-metaint} bytes of audio. Audio is read straight into the caller's buffer, and reads
+ * are only cut short where a block starts, so the audio path costs a subtraction per read. The
+ * blocks are read into a buffer of their own and their {@code StreamTitle} and {@code StreamUrl}
+ * passed to the listener when they change. Streams with metadata are reported as unbounded,
+ * since the length the server may send includes the blocks.
+ */
+public final class IcyHttpDataSource implements HttpDataSource {
+
+  /**
+   * Receives the metadata of a stream, on the thread that reads it. This is when the bytes are
+   * loaded, ahead of when they are played by the buffered duration.
+   */
+  public interface Listener {
+
+    /**
+     * @param streamTitle The title, usually "artist - title". May be null.
+     * @param streamUrl A url related to the title, such as cover art. May be null.
+     */
+    void onIcyMetadata(String streamTitle, String streamUrl);
+  }
+
+  private static final String REQUEST_HEADER = "Icy-MetaData";
+  private static final String RESPONSE_HEADER_METAINT = "icy-metaint";
+  // The length byte counts blocks of this size.
+  private static final int METADATA_BLOCK_SIZE = 16;
+  private static final int MAX_METADATA_LENGTH = 255 * METADATA_BLOCK_SIZE;
+  // Servers send UTF-8 or Latin-1. Latin-1 decodes any byte sequence, UTF-8 is tried first.
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+  private final HttpDataSource upstream;
+  private final Listener listener;
+
+  private boolean metadataRequested;
+  private int metaInt;
+  private int bytesUntilMetadata;
+  private byte[] metadataBuffer;
+  private String lastMetadata;
+
+  public IcyHttpDataSource(HttpDataSource upstream, Listener listener) {
+    this.upstream = upstream;
+    this.listener = listener;
+    setMetadataRequested(true);
+  }
+
+  /**
+   * Sets whether the following requests ask the server for metadata. Files known to be bounded
+   * do not need it, and some servers and proxies refuse or do not cache requests that carry it.
+   */
+  public void setMetadataRequested(boolean metadataRequested) {
+    this.metadataRequested = metadataRequested;
+    if (metadataRequested) {
+      upstream.setRequestProperty(REQUEST_HEADER, "1");
+    } else {
+      upstream.clearRequestProperty(REQUEST_HEADER);
+    }
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws HttpDataSourceException {
+    long length = upstream.open(dataSpec);
+    metaInt = getMetaInt(upstream.getResponseHeaders());
+    bytesUntilMetadata = metaInt;
+    if (metaInt == 0) {
+      return length;
+    }
+    return C.LENGTH_UNBOUNDED;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int readLength) throws HttpDataSourceException {
+    if (metaInt == 0) {
+      return upstream.read(buffer, offset, readLength);
+    }
+    if (bytesUntilMetadata == 0) {
+      if (!readMetadata()) {
+        return C.RESULT_END_OF_INPUT;
+      }
+      bytesUntilMetadata = metaInt;
+    }
+    int read = upstream.read(buffer, offset, Math.min(readLength, bytesUntilMetadata));
+    if (read > 0) {
+      bytesUntilMetadata -= read;
+    }
+    return read;
+  }
+
+  @Override
+  public void close() throws HttpDataSourceException {
+    metaInt = 0;
+    upstream.close();
+  }
+
+  @Override
+  public String getUri() {
+    return upstream.getUri();
+  }
+
+  @Override
+  public Map<String, List<String>> getResponseHeaders() {
+    return upstream.getResponseHeaders();
+  }
+
+  @Override
+  public void setRequestProperty(String name, String value) {
+    upstream.setRequestProperty(name, value);
+  }
+
+  @Override
+  public void clearRequestProperty(String name) {
+    upstream.clearRequestProperty(name);
+  }
+
+  @Override
+  public void clearAllRequestProperties() {
+    upstream.clearAllRequestProperties();
+    setMetadataRequested(metadataRequested);
+  }
+
+  /**
+   * Reads the metadata block at the current position. Returns false if the stream ended.
+   */
+  private boolean readMetadata() throws HttpDataSourceException {
+    if (metadataBuffer == null) {
+      metadataBuffer = new byte[MAX_METADATA_LENGTH];
+    }
+    if (!readFully(metadataBuffer, 1)) {
+      return false;
+    }
+    int length = (metadataBuffer[0] & 0xFF) * METADATA_BLOCK_SIZE;
+    if (length == 0) {
+      // Most blocks are empty, the metadata is only resent when it changes.
+      return true;
+    }
+    if (!readFully(metadataBuffer, length)) {
+      return false;
+    }
+    // The block is padded with zeros.
+    int end = length;
+    while (end > 0 && metadataBuffer[end - 1] == 0) {
+      end--;
+    }
+    String metadata = decode(metadataBuffer, end);
+    if (!metadata.equals(lastMetadata)) {
+      lastMetadata = metadata;
+      if (listener != null) {
+        listener.onIcyMetadata(getField(metadata, "StreamTitle"), getField(metadata, "StreamUrl"));
+      }
+    }
+    return true;
+  }
+
+  private boolean readFully(byte[] buffer, int length) throws HttpDataSourceException {
+    int position = 0;
+    while (position < length) {
+      int read = upstream.read(buffer, position, length - position);
+      if (read == C.RESULT_END_OF_INPUT) {
+        return false;
+      }
+      position += read;
+    }
+    return true;
+  }
+
+  private static String decode(byte[] bytes, int length) {
+    String utf8 = new String(bytes, 0, length, UTF_8);
+    // Invalid UTF-8 decodes to replacement characters.
+    return utf8.indexOf('\uFFFD') == -1 ? utf8 : new String(bytes, 0, length, ISO_8859_1);
+  }
+
+  /**
+   * Returns the value of a {@code Key='value';} field, or null if it is missing or empty.
+   */
+  private static String getField(String metadata, String key) {
+    String prefix = key + "='";
+    int start = metadata.indexOf(prefix);
+    if (start == -1) {
+      return null;
+    }
+    start += prefix.length();
+    // Titles may contain quotes, so the value ends at the quote before the next separator.
+    int end = metadata.indexOf("';", start);
+    if (end == -1) {
+      end = metadata.lastIndexOf('\'');
+      if (end < start) {
+        end = metadata.length();
+      }
+    }
+    String value = metadata.substring(start, end).trim();
+    return value.isEmpty() ? null : value;
+  }
+
+  private static int getMetaInt(Map<String, List<String>> headers) {
+    if (headers == null) {
+      return 0;
+    }
+    for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+      if (RESPONSE_HEADER_METAINT.equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty()) {
+        try {
+          int metaInt = Integer.parseInt(header.getValue().get(0).trim());
+          return metaInt > 0 ? metaInt : 0;
+        } catch (NumberFormatException e) {
+          return 0;
+        }
+      }
+    }
+    return 0;
+  }
+}
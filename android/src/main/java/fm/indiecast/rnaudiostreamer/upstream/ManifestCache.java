@@ -0,0 +1,453 @@
+package fm.indiecast.rnaudiostreamer.upstream;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.upstream.DataSpec;
+import com.google.android.exoplayer.upstream.DefaultUriDataSource;
+import com.google.android.exoplayer.upstream.HttpDataSource;
+import com.google.android.exoplayer.upstream.UriDataSource;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Caches HLS, DASH and SmoothStreaming manifests by url, in memory and on disk, so that playing a
+ * stream again does not wait for its manifest.
+ * <p>
+ * A fresh entry is served without any request. A stale entry is revalidated with its ETag and
+ * Last-Modified validators and served again when the server answers 304. Entries are fresh for the
+ * Cache-Control max-age when the server sends one, otherwise for {@link #STATIC_TTL_MS} unless the
+ * manifest describes a live stream, which is revalidated on every load. Parsed manifests are kept
+ * in memory next to their bytes and are valid exactly as long as them.
+ */
+public final class ManifestCache {
+
+  private static final String TAG = "ManifestCache";
+
+  public static final long STATIC_TTL_MS = 10 * 60 * 1000;
+
+  private static final int MAX_DISK_ENTRIES = 64;
+  private static final String DATA_SUFFIX = ".data";
+  private static final String META_SUFFIX = ".json";
+
+  private static final Pattern MAX_AGE_PATTERN = Pattern.compile("max-age=(\\d+)");
+
+  private final File dir;
+  private final Map<String, Entry> memoryEntries;
+
+  private long hitCount;
+  private long revalidatedCount;
+  private long missCount;
+  private long hitLoadMs;
+  private long missLoadMs;
+
+  /**
+   * @param dir The directory for persisted entries.
+   * @param maxMemoryEntries The number of most recently used entries kept in memory.
+   */
+  public ManifestCache(File dir, final int maxMemoryEntries) {
+    this.dir = dir;
+    this.memoryEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > maxMemoryEntries;
+      }
+    };
+    dir.mkdirs();
+  }
+
+  /**
+   * Creates a source that loads manifests through this cache. Uris other than http and https are
+   * read directly.
+   */
+  public UriDataSource createDataSource(Context context, HttpStack httpStack) {
+    return new CachingDataSource(context, httpStack);
+  }
+
+  /**
+   * Returns the parsed manifest for the url if its entry is still fresh, or null.
+   */
+  public synchronized Object getParsedManifest(String url) {
+    Entry entry = memoryEntries.get(url);
+    if (entry == null || entry.parsed == null || !entry.isFresh(System.currentTimeMillis())) {
+      return null;
+    }
+    return entry.parsed;
+  }
+
+  /**
+   * Keeps a parsed manifest next to the cached bytes it was parsed from.
+   */
+  public synchronized void putParsedManifest(String url, Object manifest) {
+    Entry entry = memoryEntries.get(url);
+    if (entry != null && entry.parsed == null) {
+      entry.parsed = manifest;
+    }
+  }
+
+  public synchronized long getHitCount() {
+    return hitCount;
+  }
+
+  public synchronized long getRevalidatedCount() {
+    return revalidatedCount;
+  }
+
+  public synchronized long getMissCount() {
+    return missCount;
+  }
+
+  /**
+   * Returns the average time to load a manifest served from the cache, including revalidations.
+   */
+  public synchronized long getAverageHitLoadMs() {
+    long hits = hitCount + revalidatedCount;
+    return hits == 0 ? 0 : hitLoadMs / hits;
+  }
+
+  /**
+   * Returns the average time to load a manifest that was not cached or had changed.
+   */
+  public synchronized long getAverageMissLoadMs() {
+    return missCount == 0 ? 0 : missLoadMs / missCount;
+  }
+
+  private synchronized Entry getEntry(String url) {
+    Entry entry = memoryEntries.get(url);
+    if (entry == null) {
+      entry = readEntry(url);
+      if (entry != null) {
+        memoryEntries.put(url, entry);
+      }
+    }
+    return entry;
+  }
+
+  private synchronized void onHit(long loadMs, boolean revalidated) {
+    if (revalidated) {
+      revalidatedCount++;
+    } else {
+      hitCount++;
+    }
+    hitLoadMs += loadMs;
+  }
+
+  private synchronized void onMiss(long loadMs, Entry entry) {
+    missCount++;
+    missLoadMs += loadMs;
+    if (entry != null) {
+      memoryEntries.put(entry.url, entry);
+      writeEntry(entry);
+    }
+  }
+
+  private synchronized void onRevalidated(Entry entry, long expiresAtMs) {
+    entry.expiresAtMs = expiresAtMs;
+    writeEntry(entry);
+  }
+
+  private Entry readEntry(String url) {
+    String name = fileName(url);
+    File meta = new File(dir, name + META_SUFFIX);
+    File data = new File(dir, name + DATA_SUFFIX);
+    if (!meta.exists() || !data.exists()) {
+      return null;
+    }
+    try {
+      JSONObject json = new JSONObject(new String(readFile(meta), "UTF-8"));
+      if (!url.equals(json.getString("url"))) {
+        return null;
+      }
+      return new Entry(url, json.getString("uri"), readFile(data), json.optString("etag", null),
+        json.optString("lastModified", null), json.getLong("expiresAtMs"));
+    } catch (IOException | JSONException e) {
+      Log.w(TAG, "readEntry...dropping unreadable entry for " + url, e);
+      meta.delete();
+      data.delete();
+      return null;
+    }
+  }
+
+  private void writeEntry(Entry entry) {
+    String name = fileName(entry.url);
+    try {
+      JSONObject json = new JSONObject();
+      json.put("url", entry.url);
+      json.put("uri", entry.uri);
+      json.put("etag", entry.etag);
+      json.put("lastModified", entry.lastModified);
+      json.put("expiresAtMs", entry.expiresAtMs);
+      writeFile(new File(dir, name + DATA_SUFFIX), entry.data);
+      writeFile(new File(dir, name + META_SUFFIX), json.toString().getBytes("UTF-8"));
+    } catch (IOException | JSONException e) {
+      Log.w(TAG, "writeEntry...failed to persist " + entry.url, e);
+    }
+    evictDiskEntries();
+  }
+
+  private void evictDiskEntries() {
+    File[] metas = dir.listFiles();
+    if (metas == null) {
+      return;
+    }
+    File oldest = null;
+    int count = 0;
+    for (File file : metas) {
+      if (file.getName().endsWith(META_SUFFIX)) {
+        count++;
+        if (oldest == null || file.lastModified() < oldest.lastModified()) {
+          oldest = file;
+        }
+      }
+    }
+    if (count > MAX_DISK_ENTRIES && oldest != null) {
+      String name = oldest.getName();
+      oldest.delete();
+      new File(dir, name.substring(0, name.length() - META_SUFFIX.length()) + DATA_SUFFIX).delete();
+    }
+  }
+
+  private static String fileName(String url) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(url.getBytes("UTF-8"));
+      StringBuilder name = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        name.append(String.format(Locale.US, "%02x", b));
+      }
+      return name.toString();
+    } catch (NoSuchAlgorithmException | IOException e) {
+      return Integer.toHexString(url.hashCode());
+    }
+  }
+
+  private static byte[] readFile(File file) throws IOException {
+    FileInputStream in = new FileInputStream(file);
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+      byte[] buffer = new byte[4096];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void writeFile(File file, byte[] data) throws IOException {
+    File tmp = new File(file.getPath() + ".tmp");
+    FileOutputStream out = new FileOutputStream(tmp);
+    try {
+      out.write(data);
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(file)) {
+      throw new IOException("Failed to write " + file);
+    }
+  }
+
+  private static String getHeader(Map<String, List<String>> headers, String name) {
+    for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+      if (name.equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty()) {
+        return header.getValue().get(0);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns how long a manifest stays fresh, honouring Cache-Control and otherwise treating live
+   * manifests as always stale.
+   */
+  private static long getTtlMs(Map<String, List<String>> headers, byte[] data) {
+    String cacheControl = getHeader(headers, "Cache-Control");
+    if (cacheControl != null) {
+      if (cacheControl.contains("no-cache") || cacheControl.contains("no-store")) {
+        return 0;
+      }
+      Matcher matcher = MAX_AGE_PATTERN.matcher(cacheControl);
+      if (matcher.find()) {
+        return Long.parseLong(matcher.group(1)) * 1000;
+      }
+    }
+    return isLive(data) ? 0 : STATIC_TTL_MS;
+  }
+
+  private static boolean isLive(byte[] data) {
+    String manifest;
+    try {
+      manifest = new String(data, "UTF-8");
+    } catch (IOException e) {
+      return true;
+    }
+    if (manifest.startsWith("#EXTM3U")) {
+      // A master playlist only lists variants, a media playlist is live until it ends.
+      return !manifest.contains("#EXT-X-STREAM-INF") && !manifest.contains("#EXT-X-ENDLIST");
+    }
+    String lowerCase = manifest.toLowerCase(Locale.US);
+    return lowerCase.contains("type=\"dynamic\"") || lowerCase.contains("islive=\"true\"");
+  }
+
+  private static final class Entry {
+
+    final String url;
+    final String uri;
+    final byte[] data;
+    final String etag;
+    final String lastModified;
+
+    volatile long expiresAtMs;
+    Object parsed;
+
+    Entry(String url, String uri, byte[] data, String etag, String lastModified, long expiresAtMs) {
+      this.url = url;
+      this.uri = uri;
+      this.data = data;
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.expiresAtMs = expiresAtMs;
+    }
+
+    boolean isFresh(long nowMs) {
+      return nowMs < expiresAtMs;
+    }
+  }
+
+  /**
+   * Serves manifests from their cache entry when it is fresh or revalidates, and otherwise loads
+   * and caches them.
+   */
+  private final class CachingDataSource implements UriDataSource {
+
+    private final Context context;
+    private final HttpStack httpStack;
+
+    private UriDataSource uriDataSource;
+    private Entry entry;
+    private int readPosition;
+
+    private CachingDataSource(Context context, HttpStack httpStack) {
+      this.context = context;
+      this.httpStack = httpStack;
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws IOException {
+      String scheme = dataSpec.uri.getScheme();
+      if (!"http".equals(scheme) && !"https".equals(scheme)) {
+        uriDataSource = new DefaultUriDataSource(context, null, httpStack.createHttpDataSource(null));
+        return uriDataSource.open(dataSpec);
+      }
+
+      long startMs = SystemClock.elapsedRealtime();
+      String url = dataSpec.uri.toString();
+      Entry cached = getEntry(url);
+      long nowMs = System.currentTimeMillis();
+      if (cached != null && cached.isFresh(nowMs)) {
+        onHit(SystemClock.elapsedRealtime() - startMs, false);
+        return serve(cached, dataSpec);
+      }
+
+      // Retries transient failures. A 304 is not one, it reaches the handling below.
+      HttpDataSource http = new ReconnectingHttpDataSource(httpStack.createHttpDataSource(null), null);
+      if (cached != null) {
+        if (cached.etag != null) {
+          http.setRequestProperty("If-None-Match", cached.etag);
+        }
+        if (cached.lastModified != null) {
+          http.setRequestProperty("If-Modified-Since", cached.lastModified);
+        }
+      }
+      try {
+        http.open(new DataSpec(dataSpec.uri));
+      } catch (HttpDataSource.InvalidResponseCodeException e) {
+        if (cached == null || e.responseCode != 304) {
+          throw e;
+        }
+        onRevalidated(cached, nowMs + getTtlMs(e.headerFields, cached.data));
+        onHit(SystemClock.elapsedRealtime() - startMs, true);
+        return serve(cached, dataSpec);
+      }
+
+      Entry loaded;
+      try {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = http.read(buffer, 0, buffer.length)) != C.RESULT_END_OF_INPUT) {
+          out.write(buffer, 0, read);
+        }
+        byte[] data = out.toByteArray();
+        Map<String, List<String>> headers = http.getResponseHeaders();
+        loaded = new Entry(url, http.getUri().toString(), data, getHeader(headers, "ETag"),
+          getHeader(headers, "Last-Modified"), nowMs + getTtlMs(headers, data));
+      } finally {
+        http.close();
+      }
+      onMiss(SystemClock.elapsedRealtime() - startMs, loaded);
+      return serve(loaded, dataSpec);
+    }
+
+    private long serve(Entry entry, DataSpec dataSpec) {
+      this.entry = entry;
+      this.readPosition = (int) dataSpec.position;
+      int remaining = entry.data.length - readPosition;
+      return dataSpec.length == C.LENGTH_UNBOUNDED ? remaining : Math.min(remaining, dataSpec.length);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int readLength) throws IOException {
+      if (uriDataSource != null) {
+        return uriDataSource.read(buffer, offset, readLength);
+      }
+      int remaining = entry.data.length - readPosition;
+      if (remaining == 0) {
+        return C.RESULT_END_OF_INPUT;
+      }
+      int length = Math.min(remaining, readLength);
+      System.arraycopy(entry.data, readPosition, buffer, offset, length);
+      readPosition += length;
+      return length;
+    }
+
+    @Override
+    public String getUri() {
+      if (uriDataSource != null) {
+        return uriDataSource.getUri();
+      }
+      // The uri after redirects, against which relative urls in the manifest are resolved.
+      return entry == null ? null : entry.uri;
+    }
+
+    @Override
+    public void close() throws IOException {
+      entry = null;
+      if (uriDataSource != null) {
+        try {
+          uriDataSource.close();
+        } finally {
+          uriDataSource = null;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,217 @@
+package fm.indiecast.rnaudiostreamer.upstream;
+
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.upstream.DataSpec;
+import com.google.android.exoplayer.upstream.HttpDataSource;
+import com.google.android.exoplayer.upstream.TransferListener;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import okhttp3.Call;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * An {@link HttpDataSource} that makes its requests through an OkHttp {@link Call.Factory}, so
+ * that all sources created from one client share its connection pool.
+ */
+public final class OkHttpDataSource implements HttpDataSource {
+
+  private static final byte[] SKIP_BUFFER = new byte[4096];
+
+  private final Call.Factory callFactory;
+  private final String userAgent;
+  private final TransferListener listener;
+  private final Map<String, String> requestProperties;
+
+  private DataSpec dataSpec;
+  private Response response;
+  private InputStream responseByteStream;
+  private boolean opened;
+
+  private long bytesToSkip;
+  private long bytesToRead;
+  private long bytesSkipped;
+  private long bytesRead;
+
+  /**
+   * @param listener Notified of network transfers. May be null.
+   */
+  public OkHttpDataSource(Call.Factory callFactory, String userAgent, TransferListener listener) {
+    this.callFactory = callFactory;
+    this.userAgent = userAgent;
+    this.listener = listener;
+    this.requestProperties = new HashMap<>();
+  }
+
+  @Override
+  public String getUri() {
+    return response == null ? null : response.request().url().toString();
+  }
+
+  @Override
+  public Map<String, List<String>> getResponseHeaders() {
+    return response == null ? null : response.headers().toMultimap();
+  }
+
+  @Override
+  public void setRequestProperty(String name, String value) {
+    synchronized (requestProperties) {
+      requestProperties.put(name, value);
+    }
+  }
+
+  @Override
+  public void clearRequestProperty(String name) {
+    synchronized (requestProperties) {
+      requestProperties.remove(name);
+    }
+  }
+
+  @Override
+  public void clearAllRequestProperties() {
+    synchronized (requestProperties) {
+      requestProperties.clear();
+    }
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws HttpDataSourceException {
+    this.dataSpec = dataSpec;
+    this.bytesRead = 0;
+    this.bytesSkipped = 0;
+    Request request = makeRequest(dataSpec);
+    try {
+      response = callFactory.newCall(request).execute();
+      responseByteStream = response.body().byteStream();
+    } catch (IOException e) {
+      throw new HttpDataSourceException("Unable to connect to " + dataSpec.uri.toString(), e,
+        dataSpec, HttpDataSourceException.TYPE_OPEN);
+    }
+
+    int responseCode = response.code();
+    if (!response.isSuccessful()) {
+      Map<String, List<String>> headers = response.headers().toMultimap();
+      closeConnectionQuietly();
+      throw new InvalidResponseCodeException(responseCode, headers, dataSpec);
+    }
+
+    // A server that ignored the range request sends the whole resource.
+    bytesToSkip = responseCode == 200 && dataSpec.position != 0 ? dataSpec.position : 0;
+    if (dataSpec.length != C.LENGTH_UNBOUNDED) {
+      bytesToRead = dataSpec.length;
+    } else {
+      long contentLength = response.body().contentLength();
+      bytesToRead = contentLength != -1 ? contentLength - bytesToSkip : C.LENGTH_UNBOUNDED;
+    }
+
+    opened = true;
+    if (listener != null) {
+      listener.onTransferStart();
+    }
+    return bytesToRead;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int readLength) throws HttpDataSourceException {
+    try {
+      skipInternal();
+      return readInternal(buffer, offset, readLength);
+    } catch (IOException e) {
+      throw new HttpDataSourceException(e, dataSpec, HttpDataSourceException.TYPE_READ);
+    }
+  }
+
+  @Override
+  public void close() throws HttpDataSourceException {
+    if (opened) {
+      opened = false;
+      if (listener != null) {
+        listener.onTransferEnd();
+      }
+      closeConnectionQuietly();
+    }
+  }
+
+  private Request makeRequest(DataSpec dataSpec) {
+    Request.Builder builder = new Request.Builder().url(dataSpec.uri.toString());
+    synchronized (requestProperties) {
+      for (Map.Entry<String, String> property : requestProperties.entrySet()) {
+        builder.addHeader(property.getKey(), property.getValue());
+      }
+    }
+    if (!(dataSpec.position == 0 && dataSpec.length == C.LENGTH_UNBOUNDED)) {
+      String rangeRequest = "bytes=" + dataSpec.position + "-";
+      if (dataSpec.length != C.LENGTH_UNBOUNDED) {
+        rangeRequest += (dataSpec.position + dataSpec.length - 1);
+      }
+      builder.addHeader("Range", rangeRequest);
+    }
+    builder.addHeader("User-Agent", userAgent);
+    if ((dataSpec.flags & DataSpec.FLAG_ALLOW_GZIP) == 0) {
+      // OkHttp would otherwise ask for gzip, which breaks byte ranges.
+      builder.addHeader("Accept-Encoding", "identity");
+    }
+    if (dataSpec.postBody != null) {
+      builder.post(RequestBody.create(null, dataSpec.postBody));
+    }
+    return builder.build();
+  }
+
+  private void skipInternal() throws IOException {
+    while (bytesSkipped != bytesToSkip) {
+      int readLength = (int) Math.min(bytesToSkip - bytesSkipped, SKIP_BUFFER.length);
+      int read = responseByteStream.read(SKIP_BUFFER, 0, readLength);
+      if (Thread.interrupted()) {
+        throw new InterruptedIOException();
+      }
+      if (read == -1) {
+        throw new EOFException();
+      }
+      bytesSkipped += read;
+      if (listener != null) {
+        listener.onBytesTransferred(read);
+      }
+    }
+  }
+
+  private int readInternal(byte[] buffer, int offset, int readLength) throws IOException {
+    if (bytesToRead != C.LENGTH_UNBOUNDED) {
+      long bytesRemaining = bytesToRead - bytesRead;
+      if (bytesRemaining == 0) {
+        return C.RESULT_END_OF_INPUT;
+      }
+      readLength = (int) Math.min(readLength, bytesRemaining);
+    }
+
+    int read = responseByteStream.read(buffer, offset, readLength);
+    if (read == -1) {
+      if (bytesToRead != C.LENGTH_UNBOUNDED && bytesToRead != bytesRead) {
+        // The server closed the connection before the expected end of the data.
+        throw new EOFException();
+      }
+      return C.RESULT_END_OF_INPUT;
+    }
+
+    bytesRead += read;
+    if (listener != null) {
+      listener.onBytesTransferred(read);
+    }
+    return read;
+  }
+
+  private void closeConnectionQuietly() {
+    if (response != null) {
+      response.body().close();
+    }
+    response = null;
+    responseByteStream = null;
+  }
+}
@@ -0,0 +1,100 @@
+package fm.indiecast.rnaudiostreamer.upstream;
+
+import com.google.android.exoplayer.upstream.HttpDataSource;
+import com.google.android.exoplayer.upstream.TransferListener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.ConnectionPool;
+import okhttp3.Dns;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+
+/**
+ * Makes requests through one OkHttp client, which keeps idle connections alive between segment
+ * fetches, multiplexes requests to HTTP/2 servers over a single connection and caches DNS lookups.
+ */
+public final class OkHttpStack implements HttpStack {
+
+  private static final int MAX_IDLE_CONNECTIONS = 8;
+  private static final long KEEP_ALIVE_DURATION_MS = 5 * 60 * 1000;
+  private static final long DNS_TTL_MS = 60 * 1000;
+  // The same as DefaultHttpDataSource.
+  private static final long CONNECT_TIMEOUT_MS = 8000;
+  private static final long READ_TIMEOUT_MS = 8000;
+
+  private final String userAgent;
+  private final HttpTimings timings;
+  private final CachingDns dns;
+  private final OkHttpClient client;
+  // Calls whose responses may still be read. The dispatcher forgets a synchronous call once its
+  // headers have arrived, so it cannot cancel a read of the body that stalls.
+  private final Set<Call> calls;
+  private final Call.Factory callFactory;
+
+  public OkHttpStack(String userAgent) {
+    this.userAgent = userAgent;
+    this.timings = new HttpTimings();
+    this.dns = new CachingDns(Dns.SYSTEM, DNS_TTL_MS);
+    this.client = new OkHttpClient.Builder()
+      .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_DURATION_MS,
+        TimeUnit.MILLISECONDS))
+      .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+      .dns(dns)
+      .eventListenerFactory(timings.createListenerFactory())
+      .connectTimeout(CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+      .readTimeout(READ_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+      .build();
+    this.calls = Collections.newSetFromMap(new WeakHashMap<Call, Boolean>());
+    this.callFactory = new Call.Factory() {
+      @Override
+      public Call newCall(Request request) {
+        Call call = client.newCall(request);
+        synchronized (calls) {
+          calls.add(call);
+        }
+        return call;
+      }
+    };
+  }
+
+  @Override
+  public HttpDataSource createHttpDataSource(TransferListener listener) {
+    return new OkHttpDataSource(callFactory, userAgent, listener);
+  }
+
+  public HttpTimings getTimings() {
+    return timings;
+  }
+
+  /**
+   * Drops everything tied to the previous network. Calls in flight fail, so that their sources
+   * retry them on the new network instead of waiting for a timeout, idle connections are closed
+   * and cached DNS lookups are forgotten.
+   */
+  public void onNetworkChanged() {
+    List<Call> openCalls;
+    synchronized (calls) {
+      openCalls = new ArrayList<>(calls);
+      calls.clear();
+    }
+    for (Call call : openCalls) {
+      call.cancel();
+    }
+    client.dispatcher().cancelAll();
+    client.connectionPool().evictAll();
+    dns.clear();
+  }
+
+  public int getIdleConnectionCount() {
+    return client.connectionPool().idleConnectionCount();
+  }
+}
@@ -0,0 +1,187 @@
+package fm.indiecast.rnaudiostreamer.upstream;
+
+import com.google.android.exoplayer.upstream.Allocation;
+import com.google.android.exoplayer.upstream.Allocator;
+
+import java.util.Arrays;
+
+/**
+ * A process-wide pool of fixed size {@link Allocation}s shared by every player.
+ * <p>
+ * Players never use the pool directly. Each one gets its own {@link Allocator} from
+ * {@link #newQuota(int)}, which bounds how much that player may hold at once and hands released
+ * allocations back to the pool instead of to the garbage collector. A player at its quota waits
+ * in {@link Allocator#allocate()} until it releases an allocation, so the bytes held by players
+ * never exceed the sum of their quotas; a wait that is interrupted throws
+ * {@link AllocationInterruptedException} rather than go past the quota. The pool keeps released
+ * allocations for reuse for as long as the bytes it has allocated (held by players plus kept
+ * for reuse) stay under {@code maxResidentBytes}.
+ */
+public final class PooledAllocator {
+
+  /**
+   * Thrown by the {@link Allocator#allocate()} of a quota whose thread is interrupted while it
+   * waits for room. Only loads that are being canceled are interrupted, and ExoPlayer's loader
+   * reports a canceled load as canceled whatever it threw. The interrupt flag is kept set.
+   */
+  public static final class AllocationInterruptedException extends RuntimeException {
+
+    AllocationInterruptedException() {
+      super("Interrupted while waiting for an allocation");
+    }
+  }
+
+  private final int individualAllocationLength;
+  private final int maxResidentBytes;
+
+  private Allocation[] availableAllocations;
+  private int availableCount;
+  private int allocatedCount;
+
+  private long hitCount;
+  private long missCount;
+
+  public PooledAllocator(int individualAllocationLength, int maxResidentBytes) {
+    this.individualAllocationLength = individualAllocationLength;
+    this.maxResidentBytes = maxResidentBytes;
+    this.availableAllocations = new Allocation[maxResidentBytes / individualAllocationLength];
+  }
+
+  /**
+   * Creates an {@link Allocator} for a single player that may hold at most {@code maxBytes}.
+   */
+  public Allocator newQuota(int maxBytes) {
+    return new Quota(maxBytes);
+  }
+
+  public int getIndividualAllocationLength() {
+    return individualAllocationLength;
+  }
+
+  /**
+   * Releases pooled allocations that are not in use until at most {@code targetBytes} are kept
+   * for reuse.
+   */
+  public synchronized void trim(int targetBytes) {
+    int targetCount = Math.max(0, targetBytes / individualAllocationLength);
+    if (targetCount >= availableCount) {
+      return;
+    }
+    Arrays.fill(availableAllocations, targetCount, availableCount, null);
+    availableCount = targetCount;
+  }
+
+  public synchronized long getHitCount() {
+    return hitCount;
+  }
+
+  public synchronized long getMissCount() {
+    return missCount;
+  }
+
+  /**
+   * Returns the number of bytes currently held by players.
+   */
+  public synchronized int getAllocatedBytes() {
+    return allocatedCount * individualAllocationLength;
+  }
+
+  /**
+   * Returns the number of bytes held by players plus those kept for reuse.
+   */
+  public synchronized int getResidentBytes() {
+    return (allocatedCount + availableCount) * individualAllocationLength;
+  }
+
+  public int getMaxResidentBytes() {
+    return maxResidentBytes;
+  }
+
+  private synchronized Allocation acquire() {
+    allocatedCount++;
+    if (availableCount > 0) {
+      hitCount++;
+      Allocation allocation = availableAllocations[--availableCount];
+      availableAllocations[availableCount] = null;
+      return allocation;
+    }
+    missCount++;
+    return new Allocation(new byte[individualAllocationLength], 0);
+  }
+
+  private synchronized void recycle(Allocation allocation) {
+    allocatedCount--;
+    if ((allocatedCount + availableCount + 1) * individualAllocationLength > maxResidentBytes
+        || availableCount == availableAllocations.length) {
+      // Over the cap, let the collector have it.
+      return;
+    }
+    availableAllocations[availableCount++] = allocation;
+  }
+
+  private final class Quota implements Allocator {
+
+    private final int maxBytes;
+
+    private int allocatedCount;
+
+    private Quota(int maxBytes) {
+      this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public Allocation allocate() {
+      synchronized (this) {
+        // Load controls only check the total between loads, so a load in progress waits here.
+        // A single allocation is always granted, however small the quota.
+        while (allocatedCount > 0
+            && (allocatedCount + 1) * (long) individualAllocationLength > maxBytes) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AllocationInterruptedException();
+          }
+        }
+        allocatedCount++;
+      }
+      return acquire();
+    }
+
+    @Override
+    public void release(Allocation allocation) {
+      if (allocation.data.length != individualAllocationLength) {
+        throw new IllegalArgumentException("Allocation was not created by this pool");
+      }
+      recycle(allocation);
+      synchronized (this) {
+        allocatedCount--;
+        notifyAll();
+      }
+    }
+
+    @Override
+    public void trim(int targetSize) {
+      // Released allocations are owned by the shared pool, which is trimmed on memory pressure.
+    }
+
+    @Override
+    public synchronized void blockWhileTotalBytesAllocatedExceeds(int limit)
+        throws InterruptedException {
+      int effectiveLimit = Math.min(limit, maxBytes);
+      while (getTotalBytesAllocated() > effectiveLimit) {
+        wait();
+      }
+    }
+
+    @Override
+    public synchronized int getTotalBytesAllocated() {
+      return allocatedCount * individualAllocationLength;
+    }
+
+    @Override
+    public int getIndividualAllocationLength() {
+      return individualAllocationLength;
+    }
+  }
+}
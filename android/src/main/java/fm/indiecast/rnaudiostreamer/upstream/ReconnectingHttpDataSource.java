@@ -0,0 +1,188 @@
+package fm.indiecast.rnaudiostreamer.upstream;
+
+import android.os.SystemClock;
+
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.upstream.DataSpec;
+import com.google.android.exoplayer.upstream.HttpDataSource;
+
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Retries failed requests and reconnects streams that fail while they are read, so that the
+ * player keeps playing from its buffer instead of failing the load.
+ * <p>
+ * Requests are retried with the backoff of {@link RetryPolicy}. A read failure reopens the
+ * request where it broke off, with a range request when the length is known or the server accepts
+ * ranges. Other unbounded streams are live, so they are reopened from the start, which rejoins
+ * them at their live edge.
+ */
+final class ReconnectingHttpDataSource implements HttpDataSource {
+
+  /**
+   * Notified on the loading thread when a failure was recovered from, and when it was not.
+   */
+  interface Listener {
+
+    void onReconnected(long recoveryMs);
+
+    void onReconnectFailed();
+  }
+
+  private static final int MAX_ATTEMPTS = 4;
+
+  private final HttpDataSource upstream;
+  private final Listener listener;
+
+  private DataSpec dataSpec;
+  private long length;
+  private boolean acceptsRanges;
+  private long bytesRead;
+  private boolean reopen;
+
+  ReconnectingHttpDataSource(HttpDataSource upstream, Listener listener) {
+    this.upstream = upstream;
+    this.listener = listener;
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws HttpDataSourceException {
+    this.dataSpec = dataSpec;
+    this.bytesRead = 0;
+    this.reopen = false;
+    long failedAtMs = -1;
+    for (int retry = 0; ; retry++) {
+      try {
+        length = upstream.open(dataSpec);
+        acceptsRanges = isAcceptingRanges(upstream.getResponseHeaders());
+        onSucceeded(failedAtMs);
+        return length;
+      } catch (HttpDataSourceException e) {
+        closeUpstreamQuietly();
+        failedAtMs = onFailed(e, retry, failedAtMs, HttpDataSourceException.TYPE_OPEN);
+      }
+    }
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int readLength) throws HttpDataSourceException {
+    long failedAtMs = -1;
+    for (int retry = 0; ; retry++) {
+      try {
+        if (reopen) {
+          reopen();
+        }
+        int read = upstream.read(buffer, offset, readLength);
+        if (read > 0) {
+          bytesRead += read;
+        }
+        onSucceeded(failedAtMs);
+        return read;
+      } catch (HttpDataSourceException e) {
+        closeUpstreamQuietly();
+        reopen = true;
+        failedAtMs = onFailed(e, retry, failedAtMs, HttpDataSourceException.TYPE_READ);
+      }
+    }
+  }
+
+  @Override
+  public void close() throws HttpDataSourceException {
+    dataSpec = null;
+    reopen = false;
+    upstream.close();
+  }
+
+  @Override
+  public String getUri() {
+    return upstream.getUri();
+  }
+
+  @Override
+  public Map<String, List<String>> getResponseHeaders() {
+    return upstream.getResponseHeaders();
+  }
+
+  @Override
+  public void setRequestProperty(String name, String value) {
+    upstream.setRequestProperty(name, value);
+  }
+
+  @Override
+  public void clearRequestProperty(String name) {
+    upstream.clearRequestProperty(name);
+  }
+
+  @Override
+  public void clearAllRequestProperties() {
+    upstream.clearAllRequestProperties();
+  }
+
+  private void reopen() throws HttpDataSourceException {
+    if (length == C.LENGTH_UNBOUNDED && !acceptsRanges) {
+      upstream.open(dataSpec);
+    } else {
+      long remaining = length == C.LENGTH_UNBOUNDED ? C.LENGTH_UNBOUNDED : length - bytesRead;
+      upstream.open(new DataSpec(dataSpec.uri, dataSpec.postBody,
+        dataSpec.absoluteStreamPosition + bytesRead, dataSpec.position + bytesRead, remaining,
+        dataSpec.key, dataSpec.flags));
+    }
+    reopen = false;
+  }
+
+  private void onSucceeded(long failedAtMs) {
+    if (failedAtMs >= 0 && listener != null) {
+      listener.onReconnected(SystemClock.elapsedRealtime() - failedAtMs);
+    }
+  }
+
+  /**
+   * Rethrows the failure if it is final, otherwise waits for the next attempt. Returns when the
+   * first of the failures in a row happened.
+   */
+  private long onFailed(HttpDataSourceException e, int retry, long failedAtMs, int type)
+      throws HttpDataSourceException {
+    if (retry + 1 >= MAX_ATTEMPTS || !RetryPolicy.isRetryable(e)) {
+      if (failedAtMs >= 0 && listener != null) {
+        listener.onReconnectFailed();
+      }
+      throw e;
+    }
+    if (failedAtMs < 0) {
+      failedAtMs = SystemClock.elapsedRealtime();
+    }
+    try {
+      Thread.sleep(RetryPolicy.getBackoffMs(retry));
+    } catch (InterruptedException interrupted) {
+      Thread.currentThread().interrupt();
+      throw new HttpDataSourceException(new InterruptedIOException(), dataSpec, type);
+    }
+    return failedAtMs;
+  }
+
+  private void closeUpstreamQuietly() {
+    try {
+      upstream.close();
+    } catch (HttpDataSourceException e) {
+      // The connection already failed.
+    }
+  }
+
+  private static boolean isAcceptingRanges(Map<String, List<String>> headers) {
+    if (headers == null) {
+      return false;
+    }
+    boolean acceptsRanges = false;
+    for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+      if ("Accept-Ranges".equalsIgnoreCase(header.getKey())) {
+        acceptsRanges = header.getValue().contains("bytes");
+      } else if ("icy-metaint".equalsIgnoreCase(header.getKey())) {
+        // Offsets into a stream with metadata do not match the audio bytes read.
+        return false;
+      }
+    }
+    return acceptsRanges;
+  }
+}
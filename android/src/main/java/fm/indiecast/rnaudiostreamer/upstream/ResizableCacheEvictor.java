@@ -0,0 +1,81 @@
+package fm.indiecast.rnaudiostreamer.upstream;
+
+import com.google.android.exoplayer.upstream.cache.Cache;
+import com.google.android.exoplayer.upstream.cache.CacheEvictor;
+import com.google.android.exoplayer.upstream.cache.CacheSpan;
+import com.google.android.exoplayer.upstream.cache.LeastRecentlyUsedCacheEvictor;
+
+import java.util.NavigableSet;
+
+/**
+ * Evicts the least recently used data once the cache exceeds a size that may change while the
+ * cache is open.
+ * <p>
+ * A {@link LeastRecentlyUsedCacheEvictor} has a fixed size. Changing it replaces that evictor with
+ * one of the new size, tells it about every cached span and evicts down to the new size at once.
+ */
+public final class ResizableCacheEvictor implements CacheEvictor {
+
+  private LeastRecentlyUsedCacheEvictor evictor;
+  private long maxBytes;
+
+  public ResizableCacheEvictor(long maxBytes) {
+    this.evictor = new LeastRecentlyUsedCacheEvictor(maxBytes);
+    this.maxBytes = maxBytes;
+  }
+
+  public synchronized long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * Sets the size of the cache this evictor was given to. Evicting deletes files, so this should
+   * not be called on the main thread.
+   */
+  public void setMaxBytes(Cache cache, long maxBytes) {
+    // The cache calls the evictor while holding its own lock, so take that one first.
+    synchronized (cache) {
+      LeastRecentlyUsedCacheEvictor resized = new LeastRecentlyUsedCacheEvictor(maxBytes);
+      for (String key : cache.getKeys()) {
+        NavigableSet<CacheSpan> spans = cache.getCachedSpans(key);
+        if (spans == null) {
+          continue;
+        }
+        for (CacheSpan span : spans) {
+          resized.onSpanAdded(cache, span);
+        }
+      }
+      synchronized (this) {
+        evictor = resized;
+        this.maxBytes = maxBytes;
+      }
+      // Starting an empty file evicts until the cache fits.
+      resized.onStartFile(cache, null, 0, 0);
+    }
+  }
+
+  @Override
+  public synchronized void onCacheInitialized() {
+    evictor.onCacheInitialized();
+  }
+
+  @Override
+  public synchronized void onStartFile(Cache cache, String key, long position, long length) {
+    evictor.onStartFile(cache, key, position, length);
+  }
+
+  @Override
+  public synchronized void onSpanAdded(Cache cache, CacheSpan span) {
+    evictor.onSpanAdded(cache, span);
+  }
+
+  @Override
+  public synchronized void onSpanRemoved(Cache cache, CacheSpan span) {
+    evictor.onSpanRemoved(cache, span);
+  }
+
+  @Override
+  public synchronized void onSpanTouched(Cache cache, CacheSpan oldSpan, CacheSpan newSpan) {
+    evictor.onSpanTouched(cache, oldSpan, newSpan);
+  }
+}
@@ -0,0 +1,66 @@
+package fm.indiecast.rnaudiostreamer.upstream;
+
+import com.google.android.exoplayer.ParserException;
+import com.google.android.exoplayer.upstream.HttpDataSource;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+
+/**
+ * Decides which failures are worth retrying and how long to wait before each attempt.
+ * <p>
+ * Delays grow exponentially from {@link #BASE_DELAY_MS} up to {@link #MAX_DELAY_MS}, and each is
+ * drawn from the upper half of its range, so that players that failed together do not retry
+ * together.
+ */
+public final class RetryPolicy {
+
+  public static final long BASE_DELAY_MS = 500;
+  public static final long MAX_DELAY_MS = 8000;
+
+  private static final Random random = new Random();
+
+  private RetryPolicy() {}
+
+  /**
+   * Returns whether a failure may go away by trying again: connection and read failures, timeouts
+   * and server errors. Client errors such as 404, unparsable data and cancellations are final.
+   */
+  public static boolean isRetryable(Throwable e) {
+    boolean io = false;
+    while (e != null) {
+      if (e instanceof HttpDataSource.InvalidResponseCodeException) {
+        int responseCode = ((HttpDataSource.InvalidResponseCodeException) e).responseCode;
+        return responseCode >= 500 || responseCode == 408 || responseCode == 429;
+      }
+      if (e instanceof ParserException) {
+        return false;
+      }
+      // A timeout is an InterruptedIOException, as is the interruption that cancels a load.
+      if (e instanceof SocketTimeoutException) {
+        return true;
+      }
+      if (e instanceof InterruptedIOException) {
+        return false;
+      }
+      if (e instanceof IOException) {
+        io = true;
+      }
+      e = e.getCause();
+    }
+    return io;
+  }
+
+  /**
+   * Returns the delay before a retry, counting retries from 0.
+   */
+  public static long getBackoffMs(int retry) {
+    long delayMs = MAX_DELAY_MS;
+    if (retry < 5) {
+      delayMs = Math.min(MAX_DELAY_MS, BASE_DELAY_MS << retry);
+    }
+    return delayMs / 2 + (long) (random.nextDouble() * delayMs / 2);
+  }
+}
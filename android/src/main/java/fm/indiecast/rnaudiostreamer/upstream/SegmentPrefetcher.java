@@ -0,0 +1,469 @@
+package fm.indiecast.rnaudiostreamer.upstream;
+
+import android.os.Process;
+import android.util.Log;
+
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.hls.HlsMediaPlaylist;
+import com.google.android.exoplayer.hls.HlsPlaylist;
+import com.google.android.exoplayer.hls.HlsPlaylistParser;
+import com.google.android.exoplayer.upstream.Allocation;
+import com.google.android.exoplayer.upstream.Allocator;
+import com.google.android.exoplayer.upstream.DataSource;
+import com.google.android.exoplayer.upstream.DataSpec;
+import com.google.android.exoplayer.upstream.TransferListener;
+import com.google.android.exoplayer.util.UriUtil;
+import com.google.android.exoplayer.util.Util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads the segments that follow the one a chunk source requests, so that several are in flight
+ * while the chunk source works through them one at a time.
+ * <p>
+ * The segments of each track are registered in playback order. When a source created by
+ * {@link #createDataSource(DataSource)} opens one of them, up to {@code maxSegments} of its
+ * successors in the same track are loaded in parallel. Opening a segment that is loaded or loading
+ * waits for it and serves it from memory; anything else is read from upstream. HLS media playlists
+ * that pass through a source register their segments as they are read.
+ * <p>
+ * Loaded segments are held in allocations of the player's allocator, so they count against its
+ * quota. They take at most half of the player's buffer size, and a segment is only loaded ahead
+ * while the player holds less than its buffer size in total; one that does not fit is dropped
+ * and read from upstream when its turn comes. Prefetches are reported to the player's bandwidth
+ * meter, which measures parallel transfers together; segments served from memory are not.
+ */
+public final class SegmentPrefetcher {
+
+  private static final String TAG = "SegmentPrefetcher";
+
+  private static final int MAX_PARALLEL_REQUESTS = 4;
+
+  // Shared by every prefetcher, so that players that are released without notice leave no
+  // threads behind.
+  private static final ExecutorService EXECUTOR = new ThreadPoolExecutor(MAX_PARALLEL_REQUESTS,
+    MAX_PARALLEL_REQUESTS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+    new ThreadFactory() {
+      @Override
+      public Thread newThread(final Runnable runnable) {
+        Thread thread = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            runnable.run();
+          }
+        }, "RNAudioStreamer:Prefetch");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+  static {
+    ((ThreadPoolExecutor) EXECUTOR).allowCoreThreadTimeOut(true);
+  }
+
+  private final DataSourceFactory dataSourceFactory;
+  private final Allocator allocator;
+  private final TransferListener transferListener;
+  private final int bufferSize;
+  private final int maxSegments;
+
+  private final Map<String, Track> tracks;
+  private final Map<String, Prefetch> prefetches;
+
+  private int heldBytes;
+  private boolean released;
+
+  /**
+   * @param allocator The player's allocator, which holds the loaded segments.
+   * @param transferListener Notified of the transfers of segments loaded ahead, typically the
+   *     player's bandwidth meter. May be null.
+   * @param bufferSize The player's buffer size. Loaded but unread segments take at most half of
+   *     it.
+   * @param maxSegments The number of segments loaded ahead of the one being read.
+   */
+  public SegmentPrefetcher(DataSourceFactory dataSourceFactory, Allocator allocator,
+      TransferListener transferListener, int bufferSize, int maxSegments) {
+    this.dataSourceFactory = dataSourceFactory;
+    this.allocator = allocator;
+    this.transferListener = transferListener;
+    this.bufferSize = bufferSize;
+    this.maxSegments = maxSegments;
+    this.tracks = new HashMap<>();
+    this.prefetches = new HashMap<>();
+  }
+
+  /**
+   * Registers the segments of a track in playback order, replacing those registered before under
+   * the same id. The list is only read around the segments being requested, so it may create its
+   * elements on demand.
+   */
+  public synchronized void setSegments(String trackId, List<DataSpec> segments) {
+    Track track = new Track(trackId, segments);
+    Track previous = tracks.put(trackId, track);
+    if (previous != null) {
+      track.lastIndex = previous.lastIndex;
+    }
+  }
+
+  /**
+   * Registers the segments of an HLS media playlist, as {@code HlsChunkSource} requests them.
+   */
+  public void setHlsPlaylist(HlsMediaPlaylist playlist) {
+    List<DataSpec> segments = new ArrayList<>(playlist.segments.size());
+    for (HlsMediaPlaylist.Segment segment : playlist.segments) {
+      segments.add(new DataSpec(UriUtil.resolveToUri(playlist.baseUri, segment.url),
+        segment.byterangeOffset, segment.byterangeLength, null));
+    }
+    setSegments(playlist.baseUri, segments);
+  }
+
+  /**
+   * Creates a source that reads registered segments through this prefetcher and everything else
+   * from {@code upstream}.
+   */
+  public DataSource createDataSource(DataSource upstream) {
+    return new PrefetchingDataSource(upstream);
+  }
+
+  /**
+   * Cancels every load and releases the segments that are loaded but unread. Sources created
+   * before keep reading from upstream. Called when the player is released.
+   */
+  public synchronized void release() {
+    released = true;
+    for (Prefetch prefetch : prefetches.values()) {
+      prefetch.discard();
+    }
+    prefetches.clear();
+    tracks.clear();
+  }
+
+  /**
+   * Returns the prefetch for the segment, if any, after starting to load its successors.
+   */
+  private synchronized Prefetch onSegmentRequested(DataSpec dataSpec) {
+    if (released) {
+      return null;
+    }
+    String key = getKey(dataSpec);
+    Prefetch requested = prefetches.remove(key);
+    Track track = null;
+    int index = -1;
+    for (Track candidate : tracks.values()) {
+      index = candidate.indexOf(key, candidate.lastIndex + 1);
+      if (index != -1) {
+        track = candidate;
+        break;
+      }
+    }
+    if (track == null) {
+      return requested;
+    }
+    track.lastIndex = index;
+    int end = Math.min(track.segments.size(), index + 1 + maxSegments);
+
+    // Drop what is no longer ahead of playback, after a seek or a switch to another track.
+    Iterator<Prefetch> iterator = prefetches.values().iterator();
+    while (iterator.hasNext()) {
+      Prefetch prefetch = iterator.next();
+      int otherIndex = prefetch.trackId.equals(track.id)
+        ? track.indexOf(prefetch.key, prefetch.index) : -1;
+      if (otherIndex <= index || otherIndex >= end) {
+        prefetch.discard();
+        iterator.remove();
+      } else {
+        prefetch.index = otherIndex;
+      }
+    }
+
+    for (int i = index + 1; i < end && heldBytes < bufferSize / 2; i++) {
+      DataSpec segment = track.segments.get(i);
+      String segmentKey = getKey(segment);
+      if (!prefetches.containsKey(segmentKey)) {
+        prefetches.put(segmentKey, new Prefetch(track.id, i, segmentKey, segment));
+      }
+    }
+    return requested;
+  }
+
+  private static String getKey(DataSpec dataSpec) {
+    return dataSpec.uri + "@" + dataSpec.position + "+" + dataSpec.length;
+  }
+
+  private static final class Track {
+
+    final String id;
+    final List<DataSpec> segments;
+
+    // The index of the segment requested last, where the search for the next one starts.
+    int lastIndex = -1;
+
+    Track(String id, List<DataSpec> segments) {
+      this.id = id;
+      this.segments = segments;
+    }
+
+    /**
+     * Returns the index of the segment with the key, or -1. Playback requests segments in order,
+     * so the search starts at {@code startIndex} and only walks the whole track after a seek.
+     */
+    int indexOf(String key, int startIndex) {
+      int size = segments.size();
+      for (int i = 0; i < size; i++) {
+        int candidate = (Math.max(startIndex, 0) + i) % size;
+        if (key.equals(getKey(segments.get(candidate)))) {
+          return candidate;
+        }
+      }
+      return -1;
+    }
+  }
+
+  /**
+   * A segment loading on the executor into allocations of the player's allocator.
+   */
+  private final class Prefetch implements Callable<Void> {
+
+    final String trackId;
+    final String key;
+    final DataSpec dataSpec;
+    final Future<Void> future;
+    int index;
+
+    // Guarded by the prefetcher.
+    private final List<Allocation> allocations;
+    private long length;
+    private boolean loading;
+    private boolean discarded;
+
+    Prefetch(String trackId, int index, String key, DataSpec dataSpec) {
+      this.trackId = trackId;
+      this.index = index;
+      this.key = key;
+      this.dataSpec = dataSpec;
+      this.allocations = new ArrayList<>();
+      this.loading = true;
+      this.future = EXECUTOR.submit(this);
+    }
+
+    @Override
+    public Void call() throws IOException {
+      boolean loaded = false;
+      DataSource dataSource = dataSourceFactory.createDataSource(transferListener);
+      try {
+        dataSource.open(dataSpec);
+        int allocationLength = allocator.getIndividualAllocationLength();
+        Allocation allocation = null;
+        int allocationOffset = allocationLength;
+        while (true) {
+          if (allocationOffset == allocationLength) {
+            allocation = allocate(allocationLength);
+            allocationOffset = 0;
+          }
+          int read = dataSource.read(allocation.data, allocation.translateOffset(allocationOffset),
+            allocationLength - allocationOffset);
+          if (read == C.RESULT_END_OF_INPUT) {
+            break;
+          }
+          if (Thread.interrupted()) {
+            throw new InterruptedIOException();
+          }
+          allocationOffset += read;
+          synchronized (SegmentPrefetcher.this) {
+            length += read;
+          }
+        }
+        loaded = true;
+      } finally {
+        dataSource.close();
+        synchronized (SegmentPrefetcher.this) {
+          loading = false;
+          if (discarded || !loaded) {
+            releaseAllocations();
+          }
+        }
+      }
+      return null;
+    }
+
+    private Allocation allocate(int allocationLength) throws IOException {
+      synchronized (SegmentPrefetcher.this) {
+        if (discarded) {
+          throw new InterruptedIOException();
+        }
+        // Never wait for the quota, the chunk source may be waiting for this segment.
+        if (heldBytes + allocationLength > bufferSize / 2
+            || allocator.getTotalBytesAllocated() + allocationLength > bufferSize) {
+          throw new IOException("No room to load " + dataSpec.uri + " ahead");
+        }
+        heldBytes += allocationLength;
+      }
+      Allocation allocation;
+      try {
+        allocation = allocator.allocate();
+      } catch (PooledAllocator.AllocationInterruptedException e) {
+        // The chunk source took the room in between and the prefetch was discarded meanwhile.
+        synchronized (SegmentPrefetcher.this) {
+          heldBytes -= allocationLength;
+        }
+        throw new InterruptedIOException();
+      }
+      synchronized (SegmentPrefetcher.this) {
+        allocations.add(allocation);
+      }
+      return allocation;
+    }
+
+    /**
+     * Cancels the load and releases what it holds. Called with the prefetcher locked.
+     */
+    void discard() {
+      discarded = true;
+      future.cancel(true);
+      if (!loading) {
+        releaseAllocations();
+      }
+    }
+
+    private void releaseAllocations() {
+      for (Allocation allocation : allocations) {
+        allocator.release(allocation);
+        heldBytes -= allocator.getIndividualAllocationLength();
+      }
+      allocations.clear();
+    }
+
+    /**
+     * Waits for the segment, returning whether it loaded.
+     */
+    boolean await() throws InterruptedIOException {
+      try {
+        future.get();
+        return true;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      } catch (CancellationException e) {
+        return false;
+      } catch (ExecutionException e) {
+        Log.w(TAG, "Prefetch failed, reading from upstream", e.getCause());
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Serves prefetched segments from memory and reads everything else from upstream, keeping a
+   * copy of HLS media playlists to register their segments.
+   */
+  private final class PrefetchingDataSource implements DataSource {
+
+    private final DataSource upstream;
+
+    private Prefetch prefetch;
+    private long readPosition;
+    private DataSpec playlistSpec;
+    private ByteArrayOutputStream playlistCopy;
+
+    private PrefetchingDataSource(DataSource upstream) {
+      this.upstream = upstream;
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws IOException {
+      Prefetch requested = onSegmentRequested(dataSpec);
+      if (requested != null) {
+        if (requested.await()) {
+          prefetch = requested;
+          readPosition = 0;
+          return requested.length;
+        }
+        discard(requested);
+      }
+      if (Util.inferContentType(dataSpec.uri.getLastPathSegment()) == Util.TYPE_HLS) {
+        playlistSpec = dataSpec;
+        playlistCopy = new ByteArrayOutputStream();
+      }
+      return upstream.open(dataSpec);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int readLength) throws IOException {
+      if (prefetch != null) {
+        long remaining = prefetch.length - readPosition;
+        if (remaining == 0) {
+          return C.RESULT_END_OF_INPUT;
+        }
+        // The load has finished, so its allocations no longer change.
+        int allocationLength = allocator.getIndividualAllocationLength();
+        Allocation allocation = prefetch.allocations.get((int) (readPosition / allocationLength));
+        int allocationOffset = (int) (readPosition % allocationLength);
+        int length = (int) Math.min(Math.min(remaining, readLength),
+          allocationLength - allocationOffset);
+        System.arraycopy(allocation.data, allocation.translateOffset(allocationOffset), buffer,
+          offset, length);
+        readPosition += length;
+        return length;
+      }
+      int read = upstream.read(buffer, offset, readLength);
+      if (playlistCopy != null && read > 0) {
+        playlistCopy.write(buffer, offset, read);
+      }
+      return read;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (prefetch != null) {
+        discard(prefetch);
+        prefetch = null;
+        return;
+      }
+      try {
+        upstream.close();
+      } finally {
+        if (playlistCopy != null) {
+          registerPlaylist(playlistSpec, playlistCopy.toByteArray());
+          playlistSpec = null;
+          playlistCopy = null;
+        }
+      }
+    }
+
+    private void discard(Prefetch prefetch) {
+      synchronized (SegmentPrefetcher.this) {
+        prefetch.discard();
+      }
+    }
+
+    private void registerPlaylist(DataSpec dataSpec, byte[] bytes) {
+      try {
+        HlsPlaylist playlist = new HlsPlaylistParser().parse(dataSpec.uri.toString(),
+          new ByteArrayInputStream(bytes));
+        if (playlist instanceof HlsMediaPlaylist) {
+          setHlsPlaylist((HlsMediaPlaylist) playlist);
+        }
+      } catch (IOException e) {
+        // A partial read, the chunk source reports the failure itself.
+      }
+    }
+  }
+}
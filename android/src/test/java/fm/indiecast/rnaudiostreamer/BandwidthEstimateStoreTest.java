@@ -0,0 +1,59 @@
+package fm.indiecast.rnaudiostreamer;
+
+import com.google.android.exoplayer.upstream.BandwidthMeter;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+// Robolectric provides the shared preferences the estimates are kept in.
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class BandwidthEstimateStoreTest {
+
+    private static final String WIFI = "WIFI//1a2b3c";
+    private static final String CELLULAR = "MOBILE/LTE/4d5e6f";
+
+    private BandwidthEstimateStore store;
+
+    @Before
+    public void setUp() {
+        store = new BandwidthEstimateStore(RuntimeEnvironment.application);
+    }
+
+    @Test
+    public void estimatesAreKeptPerNetwork() {
+        store.save(WIFI, 20000000);
+        store.save(CELLULAR, 3000000);
+
+        assertEquals(20000000, store.load(WIFI));
+        assertEquals(3000000, store.load(CELLULAR));
+    }
+
+    @Test
+    public void estimatesOutliveTheStore() {
+        store.save(WIFI, 20000000);
+
+        assertEquals(20000000, new BandwidthEstimateStore(RuntimeEnvironment.application).load(WIFI));
+    }
+
+    @Test
+    public void unknownNetworkHasNoEstimate() {
+        assertEquals(BandwidthMeter.NO_ESTIMATE, store.load(CELLULAR));
+    }
+
+    @Test
+    public void nothingIsKeptWithoutANetworkOrAnEstimate() {
+        store.save("none", 20000000);
+        store.save(WIFI, 20000000);
+        store.save(WIFI, BandwidthMeter.NO_ESTIMATE);
+
+        assertEquals(BandwidthMeter.NO_ESTIMATE, store.load("none"));
+        assertEquals(20000000, store.load(WIFI));
+    }
+}
@@ -0,0 +1,137 @@
+package fm.indiecast.rnaudiostreamer;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.facebook.react.bridge.JavaScriptModule;
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+// Robolectric provides the main looper the flushes are posted to.
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class BridgeEventDispatcherTest {
+
+    private static final long WINDOW_MS = 250;
+
+    private RecordingContext reactContext;
+    private BridgeEventDispatcher dispatcher;
+
+    @Before
+    public void setUp() {
+        ShadowLooper.pauseMainLooper();
+        reactContext = new RecordingContext();
+        dispatcher = new BridgeEventDispatcher(reactContext, new Handler(Looper.getMainLooper()), WINDOW_MS);
+    }
+
+    @Test
+    public void statusesWithinTheWindowAreCoalesced() {
+        dispatcher.updateStatus("BUFFERING");
+        dispatcher.updateStatus("PLAYING");
+        ShadowLooper.idleMainLooper(WINDOW_MS - 1);
+
+        assertTrue(reactContext.events.isEmpty());
+
+        ShadowLooper.idleMainLooper(1);
+
+        assertEquals(Arrays.asList(BridgeEventDispatcher.STATUS_EVENT + ":PLAYING"), reactContext.events);
+        assertEquals(1, dispatcher.getEventsEmitted());
+        assertEquals(1, dispatcher.getEventsSuppressed());
+    }
+
+    @Test
+    public void repeatedStatusIsDropped() {
+        dispatcher.updateStatus("PLAYING");
+        dispatcher.flush();
+        dispatcher.updateStatus("PLAYING");
+        dispatcher.flush();
+
+        assertEquals(Arrays.asList(BridgeEventDispatcher.STATUS_EVENT + ":PLAYING"), reactContext.events);
+        assertEquals(1, dispatcher.getEventsEmitted());
+        assertEquals(1, dispatcher.getEventsSuppressed());
+    }
+
+    @Test
+    public void statusChangedBackIsSent() {
+        dispatcher.updateStatus("PLAYING");
+        dispatcher.flush();
+        dispatcher.updateStatus("PAUSED");
+        dispatcher.flush();
+        dispatcher.updateStatus("PLAYING");
+        dispatcher.flush();
+
+        assertEquals(Arrays.asList(BridgeEventDispatcher.STATUS_EVENT + ":PLAYING",
+                BridgeEventDispatcher.STATUS_EVENT + ":PAUSED",
+                BridgeEventDispatcher.STATUS_EVENT + ":PLAYING"), reactContext.events);
+        assertEquals(0, dispatcher.getEventsSuppressed());
+    }
+
+    @Test
+    public void flushNowDoesNotWaitForTheWindow() {
+        dispatcher.updateStatus("BUFFERING");
+        dispatcher.updateStatus("ERROR");
+        dispatcher.flushNow();
+        ShadowLooper.runUiThreadTasks();
+
+        assertEquals(Arrays.asList(BridgeEventDispatcher.STATUS_EVENT + ":ERROR"), reactContext.events);
+
+        // The delayed flush was replaced, not added to.
+        ShadowLooper.idleMainLooper(WINDOW_MS);
+
+        assertEquals(1, reactContext.events.size());
+        assertEquals(1, dispatcher.getEventsEmitted());
+    }
+
+    @Test
+    public void eventsAreCountedWithoutAnActiveBridge() {
+        reactContext.active = false;
+        dispatcher.updateStatus("PLAYING");
+        dispatcher.flush();
+
+        assertTrue(reactContext.events.isEmpty());
+        assertEquals(1, dispatcher.getEventsEmitted());
+    }
+
+    /**
+     * Records the events sent to JS as "name:data".
+     */
+    static final class RecordingContext extends ReactApplicationContext {
+
+        final List<String> events = new ArrayList<>();
+        boolean active = true;
+
+        RecordingContext() {
+            super(RuntimeEnvironment.application);
+        }
+
+        @Override
+        public boolean hasActiveCatalystInstance() {
+            return active;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T extends JavaScriptModule> T getJSModule(Class<T> jsInterface) {
+            return (T) new DeviceEventManagerModule.RCTDeviceEventEmitter() {
+                @Override
+                public void emit(String eventName, Object data) {
+                    events.add(eventName + ":" + data);
+                }
+            };
+        }
+    }
+}
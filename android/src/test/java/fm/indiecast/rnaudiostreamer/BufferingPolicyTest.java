@@ -0,0 +1,55 @@
+package fm.indiecast.rnaudiostreamer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BufferingPolicyTest {
+
+    @Test
+    public void presetsAreValid() {
+        for (String name : new String[] {"default", "lowLatencyLive", "lowMemory", "podcast"}) {
+            BufferingPolicy preset = BufferingPolicy.forPreset(name);
+            assertNotNull(preset.forMeteredNetwork());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeDurationIsRejected() {
+        new BufferingPolicy(-1, 1000, 5000, 10000, 0, 30000, 2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativePrefetchIsRejected() {
+        new BufferingPolicy(1000, 1000, 5000, 10000, 0, 30000, -1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void lowWatermarkAboveHighWatermarkIsRejected() {
+        new BufferingPolicy(1000, 1000, 20000, 10000, 0, 30000, 2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void bufferBelowOneAllocationIsRejected() {
+        new BufferingPolicy(1000, 1000, 5000, 10000, BufferingPolicy.MIN_BUFFER_BYTES - 1, 30000, 2);
+    }
+
+    @Test
+    public void defaultBufferSizeIsAccepted() {
+        BufferingPolicy policy = new BufferingPolicy(1000, 1000, 5000, 5000, 0, 0, 0);
+        assertEquals(4096, policy.getAudioBufferSize(4096));
+    }
+
+    @Test
+    public void bufferSizeIsCappedToTheQuota() {
+        BufferingPolicy policy = new BufferingPolicy(1000, 1000, 5000, 10000, 16 * 1024 * 1024, 30000, 2);
+        assertEquals(8 * 1024 * 1024, policy.forQuota(8 * 1024 * 1024).getAudioBufferSize(4096));
+        assertSame(policy, policy.forQuota(32 * 1024 * 1024));
+
+        // The default preset leaves the size to the builder, which the quota caps as well.
+        BufferingPolicy capped = BufferingPolicy.DEFAULT.forQuota(8 * 1024 * 1024);
+        assertEquals(8 * 1024 * 1024, capped.getAudioBufferSize(16 * 1024 * 1024));
+        assertEquals(4 * 1024 * 1024, capped.getAudioBufferSize(4 * 1024 * 1024));
+        assertEquals(8 * 1024 * 1024, capped.forMeteredNetwork().getAudioBufferSize(16 * 1024 * 1024));
+    }
+}
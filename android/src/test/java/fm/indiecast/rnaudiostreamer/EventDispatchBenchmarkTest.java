@@ -0,0 +1,54 @@
+package fm.indiecast.rnaudiostreamer;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import fm.indiecast.rnaudiostreamer.upstream.Benchmark;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import static org.junit.Assert.*;
+
+// Robolectric provides the main looper the flushes are posted to.
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class EventDispatchBenchmarkTest {
+
+    private static final int UPDATES = 100000;
+    // A burst of buffering and playing updates between two flushes.
+    private static final int UPDATES_PER_FLUSH = 10;
+
+    private BridgeEventDispatcherTest.RecordingContext reactContext;
+    private BridgeEventDispatcher dispatcher;
+
+    @Before
+    public void setUp() {
+        ShadowLooper.pauseMainLooper();
+        reactContext = new BridgeEventDispatcherTest.RecordingContext();
+        dispatcher = new BridgeEventDispatcher(reactContext, new Handler(Looper.getMainLooper()), 250);
+    }
+
+    @Test
+    public void statusUpdates() throws Exception {
+        Benchmark.measure("BridgeEventDispatcher", UPDATES, "updates",
+                new Benchmark.Task() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < UPDATES; i++) {
+                            dispatcher.updateStatus(i % 2 == 0 ? "BUFFERING" : "PLAYING");
+                            if (i % UPDATES_PER_FLUSH == UPDATES_PER_FLUSH - 1) {
+                                dispatcher.flush();
+                            }
+                        }
+                    }
+                });
+
+        // Every flush ends the burst on the same status, so only the first one crossed the bridge.
+        assertEquals(1, reactContext.events.size());
+    }
+}
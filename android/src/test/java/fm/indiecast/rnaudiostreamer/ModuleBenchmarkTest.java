@@ -0,0 +1,64 @@
+package fm.indiecast.rnaudiostreamer;
+
+import android.net.Uri;
+
+import com.google.android.exoplayer.util.Util;
+
+import fm.indiecast.rnaudiostreamer.upstream.Benchmark;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+// Robolectric provides android.net.Uri and the Build fields the user agent is made of.
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class ModuleBenchmarkTest {
+
+    private static final int ITERATIONS = 10000;
+
+    // One url of each content type, and the path of a download.
+    private static final String[] URLS = {
+            "http://example.com/episode.mp3",
+            "https://example.com/live/master.m3u8",
+            "https://example.com/audio.mpd",
+            "https://example.com/audio.ism",
+            "/data/user/0/fm.indiecast/files/rnaudiostreamer-downloads/episode.mp3",
+    };
+    private static final int[] CONTENT_TYPES = {
+            Util.TYPE_OTHER, Util.TYPE_HLS, Util.TYPE_DASH, Util.TYPE_SS, Util.TYPE_OTHER,
+    };
+
+    @Test
+    public void urlClassification() throws Exception {
+        Benchmark.measure("RNAudioStreamerModule url classification", ITERATIONS * URLS.length, "urls",
+                new Benchmark.Task() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < ITERATIONS; i++) {
+                            for (int j = 0; j < URLS.length; j++) {
+                                // As createTrackRenderersBuilder picks the builder.
+                                Uri uri = RNAudioStreamerModule.getPlaybackUri(URLS[j]);
+                                assertEquals(CONTENT_TYPES[j], Util.inferContentType(uri.getLastPathSegment()));
+                            }
+                        }
+                    }
+                });
+    }
+
+    @Test
+    public void defaultUserAgent() throws Exception {
+        Benchmark.measure("RNAudioStreamerModule default user agent", ITERATIONS, "calls",
+                new Benchmark.Task() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < ITERATIONS; i++) {
+                            assertTrue(RNAudioStreamerModule.getDefaultUserAgent().startsWith("Dalvik/"));
+                        }
+                    }
+                });
+    }
+}
@@ -0,0 +1,150 @@
+package fm.indiecast.rnaudiostreamer.trackrenderer;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.google.android.exoplayer.metadata.MetadataTrackRenderer;
+import com.google.android.exoplayer.metadata.id3.Id3Frame;
+import com.google.android.exoplayer.text.Cue;
+import com.google.android.exoplayer.text.TextRenderer;
+import com.google.android.exoplayer.upstream.Allocator;
+
+import fm.indiecast.rnaudiostreamer.BufferingPolicy;
+import fm.indiecast.rnaudiostreamer.upstream.Benchmark;
+import fm.indiecast.rnaudiostreamer.upstream.DefaultDataSourceFactory;
+import fm.indiecast.rnaudiostreamer.upstream.EwmaBandwidthMeter;
+import fm.indiecast.rnaudiostreamer.upstream.LocalHttpServer;
+import fm.indiecast.rnaudiostreamer.upstream.OkHttpStack;
+import fm.indiecast.rnaudiostreamer.upstream.PooledAllocator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the startup of the audio-only renderers with that of the full graph, which plays the
+ * video variant of a master playlist, on a server that is slow to connect and to answer.
+ */
+// Robolectric provides the main looper the builders and sample sources post to, and the
+// framework classes the renderers are created with.
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class AudioOnlyGraphTest {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static final long CONNECTION_DELAY_MS = 300;
+  private static final long FIRST_BYTE_DELAY_MS = 100;
+  private static final int BYTES_PER_SECOND = 512 * 1024;
+  private static final int QUOTA_BYTES = 6 * 1024 * 1024;
+  private static final int SEGMENT_MS = 2000;
+  private static final int SEGMENT_COUNT = 5;
+  // The video variant's segments are AAC padded to its bandwidth, which is all that the loading
+  // of its segments depends on.
+  private static final int VIDEO_BITRATE = 2500000;
+  private static final int AUDIO_BITRATE = 64000;
+
+  private LocalHttpServer server;
+  private Handler eventHandler;
+
+  @Before
+  public void setUp() throws IOException {
+    server = new LocalHttpServer();
+    serve("/hls/video/", MediaFixtures.adts(SEGMENT_MS, VIDEO_BITRATE), 0);
+    serve("/hls/audio/", MediaFixtures.adts(SEGMENT_MS, AUDIO_BITRATE), 0);
+    server.setFile("/hls/master.m3u8", text("#EXTM3U\n"
+        + "#EXT-X-STREAM-INF:BANDWIDTH=2600000,CODECS=\"avc1.42e01e,mp4a.40.2\"\n"
+        + "video/index.m3u8\n"
+        + "#EXT-X-STREAM-INF:BANDWIDTH=64000,CODECS=\"mp4a.40.2\"\n"
+        + "audio/index.m3u8\n"), "application/x-mpegURL");
+    server.start();
+    eventHandler = new Handler(Looper.getMainLooper());
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    server.shutdown();
+  }
+
+  @Test
+  public void startup() throws Exception {
+    // The first startup loads and initializes the classes, which is not what is measured.
+    play(false);
+    serve("/hls/video/", MediaFixtures.adts(SEGMENT_MS, VIDEO_BITRATE), FIRST_BYTE_DELAY_MS);
+    serve("/hls/audio/", MediaFixtures.adts(SEGMENT_MS, AUDIO_BITRATE), FIRST_BYTE_DELAY_MS);
+    server.setConnectionDelayMs(CONNECTION_DELAY_MS);
+
+    server.requests.clear();
+    PlaybackHarness.Result full = play(false);
+    server.requests.clear();
+    PlaybackHarness.Result audioOnly = play(true);
+
+    for (String request : server.requests) {
+      assertFalse(request + " by the audio-only renderers", request.contains("/video/"));
+    }
+    Benchmark.report("Full graph startup", full.startupMs + " ms, "
+        + full.startupAllocatedBytes + " bytes allocated");
+    Benchmark.report("Audio-only graph startup", audioOnly.startupMs + " ms, "
+        + audioOnly.startupAllocatedBytes + " bytes allocated");
+    assertTrue(audioOnly.startupMs + " ms to start audio only, " + full.startupMs + " ms in full",
+        audioOnly.startupMs < full.startupMs);
+    assertTrue(audioOnly.startupAllocatedBytes + " bytes allocated to start audio only, "
+        + full.startupAllocatedBytes + " bytes in full",
+        audioOnly.startupAllocatedBytes < full.startupAllocatedBytes);
+  }
+
+  /**
+   * Plays the master playlist from a new stack, so that no connection is left from an earlier
+   * startup, with the renderers the module builds.
+   */
+  private PlaybackHarness.Result play(boolean audioOnly) throws Exception {
+    DefaultDataSourceFactory dataSourceFactory = new DefaultDataSourceFactory(
+        RuntimeEnvironment.application, new OkHttpStack("test"), null, null);
+    Allocator allocator = new PooledAllocator(64 * 1024, 24 * 1024 * 1024).newQuota(QUOTA_BYTES);
+    HlsRenderersBuilder builder = new HlsRenderersBuilder(RuntimeEnvironment.application,
+        dataSourceFactory, server.getUrl("/hls/master.m3u8"), eventHandler, null, null,
+        TEXT_RENDERER, METADATA_RENDERER, new EwmaBandwidthMeter(null, null), null, allocator);
+    BufferingPolicy bufferingPolicy = BufferingPolicy.DEFAULT.forQuota(QUOTA_BYTES);
+    builder.setAudioOnly(audioOnly);
+    builder.setBufferingPolicy(bufferingPolicy);
+    return new PlaybackHarness(bufferingPolicy).play(builder, allocator, 0, 1);
+  }
+
+  private void serve(String directory, byte[] segment, long firstByteDelayMs) {
+    StringBuilder playlist = new StringBuilder("#EXTM3U\n#EXT-X-TARGETDURATION:2\n"
+        + "#EXT-X-MEDIA-SEQUENCE:0\n");
+    for (int i = 0; i < SEGMENT_COUNT; i++) {
+      playlist.append("#EXTINF:2,\nsegment").append(i).append(".aac\n");
+      server.setFile(directory + "segment" + i + ".aac", segment, "audio/aac", firstByteDelayMs,
+          BYTES_PER_SECOND);
+    }
+    playlist.append("#EXT-X-ENDLIST\n");
+    server.setFile(directory + "index.m3u8", text(playlist.toString()), "application/x-mpegURL",
+        firstByteDelayMs, BYTES_PER_SECOND);
+  }
+
+  private static byte[] text(String text) {
+    return text.getBytes(UTF_8);
+  }
+
+  private static final TextRenderer TEXT_RENDERER = new TextRenderer() {
+    @Override
+    public void onCues(List<Cue> cues) {}
+  };
+
+  private static final MetadataTrackRenderer.MetadataRenderer<List<Id3Frame>> METADATA_RENDERER =
+      new MetadataTrackRenderer.MetadataRenderer<List<Id3Frame>>() {
+        @Override
+        public void onMetadata(List<Id3Frame> metadata) {}
+      };
+}
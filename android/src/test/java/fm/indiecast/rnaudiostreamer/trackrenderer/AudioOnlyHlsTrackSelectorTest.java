@@ -0,0 +1,75 @@
+package fm.indiecast.rnaudiostreamer.trackrenderer;
+
+import com.google.android.exoplayer.chunk.Format;
+import com.google.android.exoplayer.hls.Variant;
+import com.google.android.exoplayer.util.MimeTypes;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AudioOnlyHlsTrackSelectorTest {
+
+  @Test
+  public void videoCodecsAreRecognized() {
+    for (String codecs : new String[] {"avc1.640028", "hev1.1.6.L93.B0", "hvc1.2.4.L120.B0",
+        "dvh1.05.06", "dvhe.05.06", "av01.0.04M.08", "vp09.00.10.08", "mp4v.20.9"}) {
+      assertFalse(codecs, AudioOnlyHlsTrackSelector.isAudioOnly(codecs + ",mp4a.40.2"));
+    }
+    assertTrue(AudioOnlyHlsTrackSelector.isAudioOnly("mp4a.40.2"));
+    assertTrue(AudioOnlyHlsTrackSelector.isAudioOnly("ac-3,ec-3"));
+    assertFalse(AudioOnlyHlsTrackSelector.isAudioOnly(null));
+  }
+
+  @Test
+  public void audioOnlyVariantsAreSelected() {
+    Variant video = variant(0, 1280, 720, -1, 2000000, "avc1.640028,mp4a.40.2");
+    Variant low = variant(1, -1, -1, -1, 64000, "mp4a.40.5");
+    Variant high = variant(2, -1, -1, -1, 128000, "mp4a.40.2");
+
+    assertEquals(Arrays.asList(low, high),
+        AudioOnlyHlsTrackSelector.selectVariants(Arrays.asList(video, low, high)));
+  }
+
+  @Test
+  public void resolutionOrFrameRateMarkVideo() {
+    Variant withResolution = variant(0, 640, 360, -1, 800000, "mp4a.40.2");
+    Variant withFrameRate = variant(1, -1, -1, 25, 600000, "mp4a.40.2");
+    Variant audio = variant(2, -1, -1, -1, 900000, "mp4a.40.2");
+
+    assertEquals(Arrays.asList(audio), AudioOnlyHlsTrackSelector.selectVariants(
+        Arrays.asList(withResolution, withFrameRate, audio)));
+  }
+
+  @Test
+  public void withoutCodecsTheLowestBandwidthUnknownVariantIsSelected() {
+    Variant video = variant(0, 1280, 720, -1, 100000, null);
+    Variant high = variant(1, -1, -1, -1, 2000000, null);
+    Variant low = variant(2, -1, -1, -1, 196000, null);
+
+    List<Variant> selected = AudioOnlyHlsTrackSelector.selectVariants(
+        Arrays.asList(video, high, low));
+
+    assertEquals(Arrays.asList(low), selected);
+  }
+
+  @Test
+  public void withOnlyVideoTheLowestBandwidthVariantIsSelected() {
+    Variant high = variant(0, 1920, 1080, -1, 5000000, "avc1.640028,mp4a.40.2");
+    Variant low = variant(1, 416, 234, -1, 300000, null);
+    Variant medium = variant(2, 1280, 720, -1, 2000000, "hev1.1.6.L93.B0,mp4a.40.2");
+
+    assertEquals(Arrays.asList(low), AudioOnlyHlsTrackSelector.selectVariants(
+        Arrays.asList(high, low, medium)));
+  }
+
+  private static Variant variant(int index, int width, int height, float frameRate, int bitrate,
+      String codecs) {
+    Format format = new Format(Integer.toString(index), MimeTypes.APPLICATION_M3U8, width, height,
+        frameRate, -1, -1, bitrate, null, codecs);
+    return new Variant("variant" + index + ".m3u8", format);
+  }
+}
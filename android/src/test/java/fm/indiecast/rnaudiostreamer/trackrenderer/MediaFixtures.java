@@ -0,0 +1,183 @@
+package fm.indiecast.rnaudiostreamer.trackrenderer;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Generates media that the extractors accept, for tests that play it without a decoder. Frames
+ * have valid headers and silent or padded payloads, sized for the requested bitrate.
+ */
+final class MediaFixtures {
+
+  static final int SAMPLE_RATE = 44100;
+
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+  private static final int MP3_FRAME_SAMPLES = 1152;
+  private static final int AAC_FRAME_SAMPLES = 1024;
+  // MPEG-1 Layer III, 128 kbps, 44.1 kHz, stereo, no padding.
+  private static final int MP3_HEADER = 0xFFFB9000;
+  private static final int MP3_FRAME_BYTES = 417;
+  // AAC LC, 44.1 kHz, stereo.
+  private static final byte[] AUDIO_SPECIFIC_CONFIG = {0x12, 0x10};
+  private static final int[] UNITY_MATRIX = {0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0,
+      0x40000000};
+
+  private MediaFixtures() {}
+
+  /** Returns {@code durationMs} of a 128 kbps MP3 stream. */
+  static byte[] mp3(int durationMs) {
+    int frameCount = frameCount(durationMs, MP3_FRAME_SAMPLES);
+    ByteBuffer buffer = ByteBuffer.allocate(frameCount * MP3_FRAME_BYTES);
+    for (int i = 0; i < frameCount; i++) {
+      buffer.putInt(i * MP3_FRAME_BYTES, MP3_HEADER);
+    }
+    return buffer.array();
+  }
+
+  /** Returns {@code durationMs} of AAC in ADTS frames, as HLS packed audio segments carry it. */
+  static byte[] adts(int durationMs, int bitrate) {
+    int frameCount = frameCount(durationMs, AAC_FRAME_SAMPLES);
+    int frameLength = Math.max(8, aacFrameBytes(bitrate));
+    byte[] data = new byte[frameCount * frameLength];
+    for (int i = 0; i < frameCount; i++) {
+      int offset = i * frameLength;
+      data[offset] = (byte) 0xFF;
+      // MPEG-4, no CRC.
+      data[offset + 1] = (byte) 0xF1;
+      // Profile LC, 44.1 kHz, and the high bit of the stereo channel configuration.
+      data[offset + 2] = (byte) 0x50;
+      data[offset + 3] = (byte) (0x80 | ((frameLength >> 11) & 0x03));
+      data[offset + 4] = (byte) (frameLength >> 3);
+      data[offset + 5] = (byte) (((frameLength & 0x07) << 5) | 0x1F);
+      data[offset + 6] = (byte) 0xFC;
+    }
+    return data;
+  }
+
+  /** Returns the initialization segment of a fragmented MP4 with one AAC track. */
+  static byte[] mp4Initialization() {
+    ByteBuffer mvhd = ByteBuffer.allocate(96);
+    mvhd.putInt(0).putInt(0).putInt(1000).putInt(0).putInt(0x00010000).putShort((short) 0x0100);
+    mvhd.position(32);
+    putMatrix(mvhd);
+    mvhd.position(92);
+    mvhd.putInt(2);
+
+    ByteBuffer tkhd = ByteBuffer.allocate(80);
+    tkhd.putInt(0).putInt(0).putInt(1).putInt(0).putInt(0);
+    tkhd.position(28);
+    tkhd.putShort((short) 0).putShort((short) 0).putShort((short) 0x0100).putShort((short) 0);
+    putMatrix(tkhd);
+
+    ByteBuffer mdhd = ByteBuffer.allocate(20);
+    mdhd.putInt(0).putInt(0).putInt(SAMPLE_RATE).putInt(0).putShort((short) 0x55C4);
+
+    ByteBuffer hdlr = ByteBuffer.allocate(21);
+    hdlr.putInt(0).put("soun".getBytes(ASCII));
+
+    ByteBuffer mp4a = ByteBuffer.allocate(28);
+    mp4a.position(6);
+    mp4a.putShort((short) 1);
+    mp4a.position(16);
+    mp4a.putShort((short) 2).putShort((short) 16).putInt(0).putInt(SAMPLE_RATE << 16);
+
+    byte[] stsd = fullBox("stsd", 0, 0, ints(1), box("mp4a", mp4a.array(),
+        fullBox("esds", 0, 0, esDescriptor())));
+    byte[] stbl = box("stbl", stsd, fullBox("stts", 0, 0, ints(0)),
+        fullBox("stsc", 0, 0, ints(0)), fullBox("stsz", 0, 0, ints(0, 0)),
+        fullBox("stco", 0, 0, ints(0)));
+    byte[] dinf = box("dinf", fullBox("dref", 0, 0, ints(1), fullBox("url ", 0, 1)));
+    byte[] minf = box("minf", fullBox("smhd", 0, 0, ints(0)), dinf, stbl);
+    byte[] mdia = box("mdia", fullBox("mdhd", 0, 0, mdhd.array()),
+        fullBox("hdlr", 0, 0, hdlr.array()), minf);
+    byte[] trak = box("trak", fullBox("tkhd", 0, 3, tkhd.array()), mdia);
+    byte[] mvex = box("mvex", fullBox("trex", 0, 0, ints(1, 1, 0, 0, 0)));
+    return concat(box("ftyp", "iso6".getBytes(ASCII), ints(0), "iso6dash".getBytes(ASCII)),
+        box("moov", fullBox("mvhd", 0, 0, mvhd.array()), trak, mvex));
+  }
+
+  /**
+   * Returns a fragment of the track of {@link #mp4Initialization()} with {@code durationMs} of
+   * AAC at {@code bitrate}, starting at {@code startMs}, timed in units of {@code timescale}.
+   */
+  static byte[] mp4Fragment(int sequenceNumber, long startMs, int durationMs, int bitrate,
+      int timescale) {
+    int frameCount = frameCount(durationMs, AAC_FRAME_SAMPLES);
+    int frameBytes = Math.max(1, aacFrameBytes(bitrate));
+    int frameDuration = (int) ((long) AAC_FRAME_SAMPLES * timescale / SAMPLE_RATE);
+    byte[] moof = moof(sequenceNumber, startMs * timescale / 1000, frameCount, frameDuration,
+        frameBytes, 0);
+    // Sample data follows the header of the mdat box that follows the moof box.
+    moof = moof(sequenceNumber, startMs * timescale / 1000, frameCount, frameDuration, frameBytes,
+        moof.length + 8);
+    return concat(moof, box("mdat", new byte[frameCount * frameBytes]));
+  }
+
+  private static byte[] moof(int sequenceNumber, long baseMediaDecodeTime, int frameCount,
+      int frameDuration, int frameBytes, int dataOffset) {
+    ByteBuffer trun = ByteBuffer.allocate(8 + frameCount * 8);
+    trun.putInt(frameCount).putInt(dataOffset);
+    for (int i = 0; i < frameCount; i++) {
+      trun.putInt(frameDuration).putInt(frameBytes);
+    }
+    ByteBuffer tfdt = ByteBuffer.allocate(8);
+    tfdt.putLong(baseMediaDecodeTime);
+    // Data offsets are relative to the moof box, and each sample has its duration and size.
+    byte[] traf = box("traf", fullBox("tfhd", 0, 0x020000, ints(1)),
+        fullBox("tfdt", 1, 0, tfdt.array()), fullBox("trun", 0, 0x000301, trun.array()));
+    return box("moof", fullBox("mfhd", 0, 0, ints(sequenceNumber)), traf);
+  }
+
+  private static byte[] esDescriptor() {
+    byte[] decoderSpecificInfo = concat(new byte[] {0x05, (byte) AUDIO_SPECIFIC_CONFIG.length},
+        AUDIO_SPECIFIC_CONFIG);
+    // AAC, audio stream, and no buffer size or bitrates.
+    byte[] decoderConfig = concat(new byte[] {0x04, (byte) (13 + decoderSpecificInfo.length),
+        0x40, 0x15}, new byte[11], decoderSpecificInfo);
+    byte[] slConfig = {0x06, 0x01, 0x02};
+    return concat(new byte[] {0x03, (byte) (3 + decoderConfig.length + slConfig.length), 0x00,
+        0x01, 0x00}, decoderConfig, slConfig);
+  }
+
+  private static int frameCount(int durationMs, int frameSamples) {
+    return (int) ((long) durationMs * SAMPLE_RATE / (1000L * frameSamples));
+  }
+
+  private static int aacFrameBytes(int bitrate) {
+    return (int) ((long) bitrate * AAC_FRAME_SAMPLES / (8L * SAMPLE_RATE));
+  }
+
+  private static void putMatrix(ByteBuffer buffer) {
+    for (int value : UNITY_MATRIX) {
+      buffer.putInt(value);
+    }
+  }
+
+  private static byte[] box(String type, byte[]... contents) {
+    byte[] content = concat(contents);
+    ByteBuffer buffer = ByteBuffer.allocate(8 + content.length);
+    buffer.putInt(8 + content.length).put(type.getBytes(ASCII)).put(content);
+    return buffer.array();
+  }
+
+  private static byte[] fullBox(String type, int version, int flags, byte[]... contents) {
+    return box(type, ints((version << 24) | flags), concat(contents));
+  }
+
+  private static byte[] ints(int... values) {
+    ByteBuffer buffer = ByteBuffer.allocate(values.length * 4);
+    for (int value : values) {
+      buffer.putInt(value);
+    }
+    return buffer.array();
+  }
+
+  private static byte[] concat(byte[]... arrays) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (byte[] array : arrays) {
+      out.write(array, 0, array.length);
+    }
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,341 @@
+package fm.indiecast.rnaudiostreamer.trackrenderer;
+
+import android.os.SystemClock;
+
+import com.google.android.exoplayer.MediaFormat;
+import com.google.android.exoplayer.MediaFormatHolder;
+import com.google.android.exoplayer.SampleHolder;
+import com.google.android.exoplayer.SampleSource;
+import com.google.android.exoplayer.SampleSource.SampleSourceReader;
+import com.google.android.exoplayer.SampleSourceTrackRenderer;
+import com.google.android.exoplayer.TrackRenderer;
+import com.google.android.exoplayer.upstream.Allocator;
+import com.google.android.exoplayer.util.MimeTypes;
+
+import fm.indiecast.rnaudiostreamer.BufferingPolicy;
+import fm.indiecast.rnaudiostreamer.TrackRenderersBuilder;
+
+import org.robolectric.shadows.ShadowLooper;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Plays what a {@link TrackRenderersBuilder} builds the way the player would, but without a
+ * decoder, so that startup and rebuffering can be timed against a local server.
+ * <p>
+ * Robolectric has no MediaCodec, so the renderers themselves never run. The harness prepares the
+ * sample sources of every renderer as preparing the player does, enables the first track each
+ * renderer would play, and reads the audio samples a little ahead of a playback clock. Playback
+ * starts, and resumes after running out of samples, under the player's rule: once the buffered
+ * audio reaches the start or rebuffer threshold of the {@link BufferingPolicy}.
+ * <p>
+ * The test thread stands in for the playback thread. The main looper is paused so that the
+ * loaders' callbacks run between reads, when the harness pumps it.
+ */
+final class PlaybackHarness {
+
+  /** What a player would have reported. */
+  static final class Result {
+
+    /** From {@link TrackRenderersBuilder#build} until the player would be PLAYING. */
+    long startupMs;
+    /** What the player's allocator held when it started. */
+    int startupAllocatedBytes;
+    /** How often playback ran out of samples and stopped to rebuffer. */
+    int rebufferCount;
+    /** The total time spent rebuffering. */
+    long rebufferMs;
+    /**
+     * From {@link TrackRenderersBuilder#build} until the whole audio track was loaded, or -1 if
+     * it was not by the end.
+     */
+    long loadedMs = -1;
+  }
+
+  private static final long TIMEOUT_MS = 60000;
+  // Like the input buffers of the decoder and the buffer of the audio track, which a player keeps
+  // filled ahead of the playback position.
+  private static final long READ_AHEAD_US = 500000;
+
+  private final long startBufferUs;
+  private final long rebufferUs;
+
+  private long clockOffsetMs;
+  private long startNs;
+
+  PlaybackHarness(BufferingPolicy bufferingPolicy) {
+    this.startBufferUs = bufferingPolicy.startBufferMs * 1000L;
+    this.rebufferUs = bufferingPolicy.rebufferMs * 1000L;
+  }
+
+  /**
+   * Builds renderers with {@code builder} and plays {@code durationMs} of their audio,
+   * {@code speed} times faster than real time. A duration of 0 stops once playback starts.
+   */
+  Result play(TrackRenderersBuilder builder, Allocator allocator, long durationMs, int speed)
+      throws Exception {
+    ShadowLooper.pauseMainLooper();
+    clockOffsetMs = SystemClock.elapsedRealtime();
+    startNs = System.nanoTime();
+    List<EnabledTrack> enabledTracks = new ArrayList<>();
+    TrackRenderer[] renderers = null;
+    try {
+      renderers = build(builder);
+      List<SampleSourceReader> readers = getReaders(renderers);
+      prepare(readers);
+      for (int i = 0; i < renderers.length; i++) {
+        enable(i, renderers[i], enabledTracks);
+      }
+      EnabledTrack audioTrack = null;
+      for (EnabledTrack track : enabledTracks) {
+        if (track.rendererIndex == TrackRenderersBuilder.TRACK_AUDIO_INDEX) {
+          audioTrack = track;
+        }
+      }
+      assertNotNull("No audio track", audioTrack);
+      return play(audioTrack, enabledTracks, allocator, durationMs * 1000, speed);
+    } finally {
+      for (EnabledTrack track : enabledTracks) {
+        track.reader.disable(track.track);
+      }
+      if (renderers != null) {
+        // Each renderer registered with its sources, so each releases them once.
+        for (TrackRenderer renderer : renderers) {
+          for (SampleSourceReader reader : getReaders(renderer)) {
+            reader.release();
+          }
+        }
+      }
+      builder.cancel();
+    }
+  }
+
+  private Result play(EnabledTrack audioTrack, List<EnabledTrack> enabledTracks,
+      Allocator allocator, long durationUs, int speed) throws Exception {
+    Result result = new Result();
+    MediaFormatHolder formatHolder = new MediaFormatHolder();
+    SampleHolder sampleHolder = new SampleHolder(SampleHolder.BUFFER_REPLACEMENT_MODE_NORMAL);
+    long positionUs = 0;
+    long readUpToUs = -1;
+    boolean ended = false;
+    boolean playing = false;
+    boolean rebuffering = false;
+    long playingSinceMs = 0;
+    long playingFromUs = 0;
+    long stalledSinceMs = 0;
+    while (true) {
+      pump();
+      long nowMs = elapsedMs();
+      if (playing) {
+        positionUs = playingFromUs + (nowMs - playingSinceMs) * 1000 * speed;
+      }
+      for (EnabledTrack track : enabledTracks) {
+        track.reader.maybeThrowError();
+        track.reader.continueBuffering(track.track, positionUs);
+      }
+      while (!ended && readUpToUs < positionUs + READ_AHEAD_US) {
+        int read = read(audioTrack, positionUs, formatHolder, sampleHolder);
+        if (read == SampleSource.SAMPLE_READ) {
+          readUpToUs = sampleHolder.timeUs;
+        } else if (read == SampleSource.END_OF_STREAM) {
+          ended = true;
+        } else if (read == SampleSource.NOTHING_READ) {
+          break;
+        }
+      }
+      for (EnabledTrack track : enabledTracks) {
+        if (track != audioTrack) {
+          // Other tracks are consumed as they come, so that they never hold up loading.
+          int read;
+          do {
+            read = read(track, positionUs, formatHolder, sampleHolder);
+          } while (read != SampleSource.NOTHING_READ && read != SampleSource.END_OF_STREAM);
+        }
+      }
+      if (result.loadedMs < 0
+          && audioTrack.reader.getBufferedPositionUs() == TrackRenderer.END_OF_TRACK_US) {
+        result.loadedMs = nowMs;
+      }
+      if (!playing) {
+        long minBufferUs = rebuffering ? rebufferUs : startBufferUs;
+        if (readUpToUs >= 0 && (ended || hasBuffered(audioTrack, positionUs + minBufferUs))) {
+          if (rebuffering) {
+            result.rebufferMs += nowMs - stalledSinceMs;
+          } else {
+            result.startupMs = nowMs;
+            result.startupAllocatedBytes = allocator.getTotalBytesAllocated();
+          }
+          playing = true;
+          rebuffering = false;
+          playingSinceMs = nowMs;
+          playingFromUs = positionUs;
+        }
+      }
+      if (playing && (positionUs >= durationUs || (ended && positionUs >= readUpToUs))) {
+        return result;
+      }
+      if (playing && !ended && positionUs > readUpToUs) {
+        // Everything read has been played, so the player stops until it has enough again.
+        positionUs = readUpToUs;
+        playing = false;
+        rebuffering = true;
+        stalledSinceMs = nowMs;
+        result.rebufferCount++;
+      }
+    }
+  }
+
+  private TrackRenderer[] build(TrackRenderersBuilder builder) throws Exception {
+    final TrackRenderer[][] trackRenderers = new TrackRenderer[1][];
+    final Exception[] error = new Exception[1];
+    builder.build(new TrackRenderersBuilder.Callback() {
+      @Override
+      public void onFinish(TrackRenderer[] renderers) {
+        trackRenderers[0] = renderers;
+      }
+
+      @Override
+      public void onError(Exception e) {
+        error[0] = e;
+      }
+    });
+    while (trackRenderers[0] == null) {
+      if (error[0] != null) {
+        throw error[0];
+      }
+      pump();
+    }
+    return trackRenderers[0];
+  }
+
+  private void prepare(List<SampleSourceReader> readers) throws Exception {
+    boolean prepared = false;
+    while (!prepared) {
+      pump();
+      prepared = true;
+      for (SampleSourceReader reader : readers) {
+        reader.maybeThrowError();
+        prepared &= reader.prepare(0);
+      }
+    }
+  }
+
+  /**
+   * Enables the first track of {@code renderer} that is not enabled yet and that it would play.
+   */
+  private static void enable(int rendererIndex, TrackRenderer renderer,
+      List<EnabledTrack> enabledTracks) throws Exception {
+    for (SampleSourceReader reader : getReaders(renderer)) {
+      for (int track = 0; track < reader.getTrackCount(); track++) {
+        MediaFormat format = reader.getFormat(track);
+        if (handles(rendererIndex, format.mimeType) && !isEnabled(enabledTracks, reader, track)) {
+          reader.enable(track, 0);
+          enabledTracks.add(new EnabledTrack(rendererIndex, reader, track));
+          return;
+        }
+      }
+    }
+  }
+
+  private static boolean handles(int rendererIndex, String mimeType) {
+    switch (rendererIndex) {
+      case TrackRenderersBuilder.TRACK_VIDEO_INDEX:
+        return MimeTypes.isVideo(mimeType);
+      case TrackRenderersBuilder.TRACK_AUDIO_INDEX:
+        return MimeTypes.isAudio(mimeType);
+      case TrackRenderersBuilder.TRACK_TEXT_INDEX:
+        return MimeTypes.isText(mimeType);
+      default:
+        return MimeTypes.APPLICATION_ID3.equals(mimeType);
+    }
+  }
+
+  private static boolean isEnabled(List<EnabledTrack> enabledTracks, SampleSourceReader reader,
+      int track) {
+    for (EnabledTrack enabledTrack : enabledTracks) {
+      if (enabledTrack.reader == reader && enabledTrack.track == track) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static int read(EnabledTrack track, long positionUs, MediaFormatHolder formatHolder,
+      SampleHolder sampleHolder) {
+    track.reader.readDiscontinuity(track.track);
+    sampleHolder.clearData();
+    return track.reader.readData(track.track, positionUs, formatHolder, sampleHolder);
+  }
+
+  /**
+   * Returns whether the audio is buffered up to {@code positionUs}, under the rule of the player,
+   * which also counts an unknown buffered position and one at the end of the track.
+   */
+  private static boolean hasBuffered(EnabledTrack audioTrack, long positionUs) {
+    long bufferedPositionUs = audioTrack.reader.getBufferedPositionUs();
+    long durationUs = audioTrack.reader.getFormat(audioTrack.track).durationUs;
+    return bufferedPositionUs == TrackRenderer.UNKNOWN_TIME_US
+        || bufferedPositionUs == TrackRenderer.END_OF_TRACK_US
+        || bufferedPositionUs >= positionUs
+        || (durationUs > 0 && bufferedPositionUs >= durationUs);
+  }
+
+  /**
+   * Runs what is due on the main looper, after moving Robolectric's clock, which only moves when
+   * told to, along with the real one. The sample sources and the bandwidth meter time loads with
+   * it.
+   */
+  private void pump() throws InterruptedException {
+    assertTrue("Timed out", elapsedMs() < TIMEOUT_MS);
+    Thread.sleep(1);
+    SystemClock.setCurrentTimeMillis(clockOffsetMs + elapsedMs());
+    ShadowLooper.runUiThreadTasks();
+  }
+
+  private long elapsedMs() {
+    return (System.nanoTime() - startNs) / 1000000;
+  }
+
+  private static List<SampleSourceReader> getReaders(TrackRenderer[] renderers) throws Exception {
+    List<SampleSourceReader> readers = new ArrayList<>();
+    for (TrackRenderer renderer : renderers) {
+      for (SampleSourceReader reader : getReaders(renderer)) {
+        if (!readers.contains(reader)) {
+          readers.add(reader);
+        }
+      }
+    }
+    return readers;
+  }
+
+  private static SampleSourceReader[] getReaders(TrackRenderer renderer) throws Exception {
+    if (!(renderer instanceof SampleSourceTrackRenderer)) {
+      return new SampleSourceReader[0];
+    }
+    // The renderers keep their sources to themselves.
+    for (Field field : SampleSourceTrackRenderer.class.getDeclaredFields()) {
+      if (field.getType() == SampleSourceReader[].class) {
+        field.setAccessible(true);
+        return (SampleSourceReader[]) field.get(renderer);
+      }
+    }
+    throw new IllegalStateException("No sample sources in " + renderer);
+  }
+
+  private static final class EnabledTrack {
+
+    final int rendererIndex;
+    final SampleSourceReader reader;
+    final int track;
+
+    EnabledTrack(int rendererIndex, SampleSourceReader reader, int track) {
+      this.rendererIndex = rendererIndex;
+      this.reader = reader;
+      this.track = track;
+    }
+  }
+}
@@ -0,0 +1,215 @@
+package fm.indiecast.rnaudiostreamer.trackrenderer;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.google.android.exoplayer.TrackRenderer;
+import com.google.android.exoplayer.metadata.MetadataTrackRenderer;
+import com.google.android.exoplayer.metadata.id3.Id3Frame;
+import com.google.android.exoplayer.text.Cue;
+import com.google.android.exoplayer.text.TextRenderer;
+import com.google.android.exoplayer.upstream.Allocator;
+
+import fm.indiecast.rnaudiostreamer.TrackRenderersBuilder;
+import fm.indiecast.rnaudiostreamer.upstream.Benchmark;
+import fm.indiecast.rnaudiostreamer.upstream.DefaultDataSourceFactory;
+import fm.indiecast.rnaudiostreamer.upstream.EwmaBandwidthMeter;
+import fm.indiecast.rnaudiostreamer.upstream.LocalHttpServer;
+import fm.indiecast.rnaudiostreamer.upstream.ManifestCache;
+import fm.indiecast.rnaudiostreamer.upstream.OkHttpStack;
+import fm.indiecast.rnaudiostreamer.upstream.PooledAllocator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Times how long each builder takes from {@link TrackRenderersBuilder#build} to its renderers,
+ * audio only as the module builds them. Manifests come from the manifest cache after the first
+ * build, so only the construction of the chunk sources, sample sources and renderers is timed.
+ */
+// Robolectric provides the main looper the builders post to, and the framework classes the
+// renderers are created with.
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class RendererGraphBenchmarkTest {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final int BUILDS = 20;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private LocalHttpServer server;
+  private DefaultDataSourceFactory dataSourceFactory;
+  private Handler eventHandler;
+  private Allocator allocator;
+  private EwmaBandwidthMeter bandwidthMeter;
+
+  @Before
+  public void setUp() throws IOException {
+    server = new LocalHttpServer()
+        .setFile("/hls/audio.m3u8", text("#EXTM3U\n#EXT-X-TARGETDURATION:10\n"
+            + "#EXT-X-MEDIA-SEQUENCE:0\n#EXTINF:10,\nsegment0.aac\n#EXTINF:10,\nsegment1.aac\n"
+            + "#EXT-X-ENDLIST\n"), "application/x-mpegURL")
+        .setFile("/dash/audio.mpd", text("<?xml version=\"1.0\"?>\n"
+            + "<MPD xmlns=\"urn:mpeg:dash:schema:mpd:2011\" type=\"static\""
+            + " mediaPresentationDuration=\"PT20S\" minBufferTime=\"PT2S\">\n"
+            + "<Period><AdaptationSet mimeType=\"audio/mp4\" codecs=\"mp4a.40.2\">\n"
+            + "<SegmentTemplate timescale=\"1000\" duration=\"10000\""
+            + " initialization=\"init.mp4\" media=\"segment$Number$.m4s\" startNumber=\"0\"/>\n"
+            + "<Representation id=\"audio\" bandwidth=\"64000\" audioSamplingRate=\"44100\"/>\n"
+            + "</AdaptationSet></Period></MPD>\n"), "application/dash+xml")
+        .setFile("/ss/audio.ism/Manifest", text("<?xml version=\"1.0\"?>\n"
+            + "<SmoothStreamingMedia MajorVersion=\"2\" MinorVersion=\"0\""
+            + " Duration=\"200000000\">\n"
+            + "<StreamIndex Type=\"audio\" Chunks=\"2\""
+            + " Url=\"QualityLevels({bitrate})/Fragments(audio={start time})\">\n"
+            + "<QualityLevel Index=\"0\" Bitrate=\"64000\" FourCC=\"AACL\" SamplingRate=\"44100\""
+            + " Channels=\"2\" BitsPerSample=\"16\" PacketSize=\"4\" AudioTag=\"255\""
+            + " CodecPrivateData=\"1210\"/>\n"
+            + "<c d=\"100000000\"/><c d=\"100000000\"/>\n"
+            + "</StreamIndex></SmoothStreamingMedia>\n"), "text/xml");
+    server.start();
+    dataSourceFactory = new DefaultDataSourceFactory(RuntimeEnvironment.application,
+        new OkHttpStack("test"), null, new ManifestCache(folder.newFolder(), 16));
+    eventHandler = new Handler(Looper.getMainLooper());
+    allocator = new PooledAllocator(64 * 1024, 24 * 1024 * 1024).newQuota(6 * 1024 * 1024);
+    bandwidthMeter = new EwmaBandwidthMeter(null, null);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    server.shutdown();
+  }
+
+  @Test
+  public void progressive() throws Exception {
+    measure("ExtractorRenderersBuilder", new BuilderFactory() {
+      @Override
+      public TrackRenderersBuilder create() {
+        return new ExtractorRenderersBuilder(RuntimeEnvironment.application, dataSourceFactory,
+            Uri.parse(server.getUrl("/episode.mp3")), eventHandler, null, null, TEXT_RENDERER, null,
+            allocator);
+      }
+    });
+  }
+
+  @Test
+  public void hls() throws Exception {
+    measure("HlsRenderersBuilder", new BuilderFactory() {
+      @Override
+      public TrackRenderersBuilder create() {
+        return new HlsRenderersBuilder(RuntimeEnvironment.application, dataSourceFactory,
+            server.getUrl("/hls/audio.m3u8"), eventHandler, null, null, TEXT_RENDERER,
+            METADATA_RENDERER, bandwidthMeter, null, allocator);
+      }
+    });
+  }
+
+  @Test
+  public void dash() throws Exception {
+    measure("DashRenderersBuilder", new BuilderFactory() {
+      @Override
+      public TrackRenderersBuilder create() {
+        return new DashRenderersBuilder(RuntimeEnvironment.application, dataSourceFactory,
+            server.getUrl("/dash/audio.mpd"), eventHandler, null, null, null, TEXT_RENDERER,
+            bandwidthMeter, null, Looper.getMainLooper(), allocator);
+      }
+    });
+  }
+
+  @Test
+  public void smoothStreaming() throws Exception {
+    measure("SmoothStreamingRenderersBuilder", new BuilderFactory() {
+      @Override
+      public TrackRenderersBuilder create() {
+        return new SmoothStreamingRenderersBuilder(RuntimeEnvironment.application,
+            dataSourceFactory, server.getUrl("/ss/audio.ism"), eventHandler, null, null, null,
+            TEXT_RENDERER, bandwidthMeter, null, Looper.getMainLooper(), allocator);
+      }
+    });
+  }
+
+  private interface BuilderFactory {
+
+    TrackRenderersBuilder create();
+  }
+
+  private void measure(String name, final BuilderFactory builderFactory) throws Exception {
+    Benchmark.measure(name, BUILDS, "builds", new Benchmark.Task() {
+      @Override
+      public void run() throws Exception {
+        for (int i = 0; i < BUILDS; i++) {
+          TrackRenderersBuilder builder = builderFactory.create();
+          builder.setAudioOnly(true);
+          try {
+            assertNotNull(build(builder)[TrackRenderersBuilder.TRACK_AUDIO_INDEX]);
+          } finally {
+            builder.cancel();
+          }
+        }
+      }
+    });
+  }
+
+  private static TrackRenderer[] build(TrackRenderersBuilder builder) throws Exception {
+    final CountDownLatch finished = new CountDownLatch(1);
+    final TrackRenderer[][] trackRenderers = new TrackRenderer[1][];
+    final Exception[] error = new Exception[1];
+    builder.build(new TrackRenderersBuilder.Callback() {
+      @Override
+      public void onFinish(TrackRenderer[] renderers) {
+        trackRenderers[0] = renderers;
+        finished.countDown();
+      }
+
+      @Override
+      public void onError(Exception e) {
+        error[0] = e;
+        finished.countDown();
+      }
+    });
+    long deadlineMs = System.currentTimeMillis() + 10000;
+    while (!finished.await(1, TimeUnit.MILLISECONDS)) {
+      assertTrue(System.currentTimeMillis() < deadlineMs);
+      // Runs the callbacks posted to the main looper, such as the loaded manifest.
+      ShadowLooper.runUiThreadTasks();
+    }
+    if (error[0] != null) {
+      throw error[0];
+    }
+    return trackRenderers[0];
+  }
+
+  private static byte[] text(String text) {
+    return text.getBytes(UTF_8);
+  }
+
+  private static final TextRenderer TEXT_RENDERER = new TextRenderer() {
+    @Override
+    public void onCues(List<Cue> cues) {}
+  };
+
+  private static final MetadataTrackRenderer.MetadataRenderer<List<Id3Frame>> METADATA_RENDERER =
+      new MetadataTrackRenderer.MetadataRenderer<List<Id3Frame>>() {
+        @Override
+        public void onMetadata(List<Id3Frame> metadata) {}
+      };
+}
@@ -0,0 +1,182 @@
+package fm.indiecast.rnaudiostreamer.trackrenderer;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.google.android.exoplayer.text.Cue;
+import com.google.android.exoplayer.text.TextRenderer;
+import com.google.android.exoplayer.upstream.Allocator;
+
+import fm.indiecast.rnaudiostreamer.BufferingPolicy;
+import fm.indiecast.rnaudiostreamer.upstream.Benchmark;
+import fm.indiecast.rnaudiostreamer.upstream.DefaultDataSourceFactory;
+import fm.indiecast.rnaudiostreamer.upstream.EwmaBandwidthMeter;
+import fm.indiecast.rnaudiostreamer.upstream.LocalHttpServer;
+import fm.indiecast.rnaudiostreamer.upstream.OkHttpStack;
+import fm.indiecast.rnaudiostreamer.upstream.PooledAllocator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Plays DASH audio in three representations over a throttled link, first with a new bandwidth
+ * meter and then with one seeded with what the first session measured, as the module seeds the
+ * meter with the estimate saved for the network. The seeded session should pick the
+ * representation the link can carry from its first segment, so that it starts sooner and does not
+ * have to switch.
+ */
+// Robolectric provides the main looper the builders and sample sources post to, and the
+// framework classes the renderers are created with.
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class SeededBandwidthEstimateTest {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static final long FIRST_BYTE_DELAY_MS = 100;
+  // 96 kbps, less than the initial bitrate the evaluator assumes without an estimate.
+  private static final int BYTES_PER_SECOND = 12 * 1024;
+  private static final int QUOTA_BYTES = 6 * 1024 * 1024;
+  private static final int[] BITRATES = {256000, 128000, 32000};
+  private static final int SEGMENT_MS = 2000;
+  private static final int SEGMENT_COUNT = 10;
+  // The switches counted are those among the first segments.
+  private static final int INITIAL_SEGMENTS = 4;
+  private static final int PLAYED_MS = INITIAL_SEGMENTS * SEGMENT_MS;
+  private static final int SPEED = 4;
+
+  private LocalHttpServer server;
+  private Handler eventHandler;
+
+  @Before
+  public void setUp() throws IOException {
+    server = new LocalHttpServer();
+    serve(0, 0);
+    server.start();
+    eventHandler = new Handler(Looper.getMainLooper());
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    server.shutdown();
+  }
+
+  @Test
+  public void seededStartup() throws Exception {
+    // The first session loads and initializes the classes, which is not what is measured.
+    play(new EwmaBandwidthMeter(null, null));
+    serve(FIRST_BYTE_DELAY_MS, BYTES_PER_SECOND);
+
+    server.requests.clear();
+    EwmaBandwidthMeter unseededMeter = new EwmaBandwidthMeter(null, null);
+    PlaybackHarness.Result unseeded = play(unseededMeter);
+    int unseededSwitches = countInitialSwitches();
+    assertTrue(unseededMeter.hasMeasuredEstimate());
+
+    server.requests.clear();
+    EwmaBandwidthMeter seededMeter = new EwmaBandwidthMeter(null, null);
+    seededMeter.reset(unseededMeter.getBitrateEstimate());
+    PlaybackHarness.Result seeded = play(seededMeter);
+    int seededSwitches = countInitialSwitches();
+
+    Benchmark.report("Unseeded DASH startup", unseeded.startupMs + " ms, " + unseededSwitches
+        + " initial switches");
+    Benchmark.report("Seeded DASH startup", seeded.startupMs + " ms, " + seededSwitches
+        + " initial switches, seed " + unseededMeter.getBitrateEstimate() + " bps");
+    assertTrue(seeded.startupMs + " ms to start seeded, " + unseeded.startupMs + " ms unseeded",
+        seeded.startupMs < unseeded.startupMs);
+    assertTrue(seededSwitches + " initial switches seeded, " + unseededSwitches + " unseeded",
+        seededSwitches < unseededSwitches);
+  }
+
+  /**
+   * Plays the first segments from a new stack, so that no connection is left from an earlier
+   * session, with the renderers and the evaluator the module builds.
+   */
+  private PlaybackHarness.Result play(EwmaBandwidthMeter bandwidthMeter) throws Exception {
+    DefaultDataSourceFactory dataSourceFactory = new DefaultDataSourceFactory(
+        RuntimeEnvironment.application, new OkHttpStack("test"), null, null);
+    Allocator allocator = new PooledAllocator(64 * 1024, 24 * 1024 * 1024).newQuota(QUOTA_BYTES);
+    DashRenderersBuilder builder = new DashRenderersBuilder(RuntimeEnvironment.application,
+        dataSourceFactory, server.getUrl("/dash/audio.mpd"), eventHandler, null, null, null,
+        TEXT_RENDERER, bandwidthMeter, null, Looper.getMainLooper(), allocator);
+    // Segments that load in parallel would share the link, and the bandwidth it measures.
+    BufferingPolicy defaults = BufferingPolicy.DEFAULT;
+    BufferingPolicy bufferingPolicy = new BufferingPolicy(defaults.startBufferMs,
+        defaults.rebufferMs, defaults.lowWatermarkMs, defaults.highWatermarkMs,
+        defaults.maxBufferBytes, defaults.liveEdgeLatencyMs, 0).forQuota(QUOTA_BYTES);
+    builder.setAudioOnly(true);
+    builder.setBufferingPolicy(bufferingPolicy);
+    builder.setAudioFormatEvaluator(new HybridFormatEvaluator(bandwidthMeter,
+        HybridFormatEvaluator.DEFAULT_INITIAL_BITRATE));
+    return new PlaybackHarness(bufferingPolicy).play(builder, allocator, PLAYED_MS, SPEED);
+  }
+
+  /**
+   * Returns how often the representation changed among the first media segments requested.
+   */
+  private int countInitialSwitches() {
+    List<String> representations = new ArrayList<>();
+    for (String request : server.requests) {
+      // GET /dash/<representation>/segment<number>.m4s HTTP/1.1
+      String path = request.split(" ")[1];
+      if (path.contains("/segment") && representations.size() < INITIAL_SEGMENTS) {
+        representations.add(path.split("/")[2]);
+      }
+    }
+    assertEquals(INITIAL_SEGMENTS, representations.size());
+    int switches = 0;
+    for (int i = 1; i < representations.size(); i++) {
+      if (!representations.get(i).equals(representations.get(i - 1))) {
+        switches++;
+      }
+    }
+    return switches;
+  }
+
+  private void serve(long firstByteDelayMs, int bytesPerSecond) {
+    StringBuilder manifest = new StringBuilder("<?xml version=\"1.0\"?>\n"
+        + "<MPD xmlns=\"urn:mpeg:dash:schema:mpd:2011\" type=\"static\""
+        + " mediaPresentationDuration=\"PT20S\" minBufferTime=\"PT2S\">\n"
+        + "<Period><AdaptationSet mimeType=\"audio/mp4\" codecs=\"mp4a.40.2\">\n"
+        + "<SegmentTemplate timescale=\"1000\" duration=\"2000\""
+        + " initialization=\"$RepresentationID$/init.mp4\""
+        + " media=\"$RepresentationID$/segment$Number$.m4s\" startNumber=\"0\"/>\n");
+    for (int bitrate : BITRATES) {
+      String id = bitrate / 1000 + "k";
+      manifest.append("<Representation id=\"").append(id).append("\" bandwidth=\"")
+          .append(bitrate).append("\" audioSamplingRate=\"44100\"/>\n");
+      server.setFile("/dash/" + id + "/init.mp4", MediaFixtures.mp4Initialization(), "audio/mp4",
+          firstByteDelayMs, bytesPerSecond);
+      for (int i = 0; i < SEGMENT_COUNT; i++) {
+        server.setFile("/dash/" + id + "/segment" + i + ".m4s", MediaFixtures.mp4Fragment(i + 1,
+            i * SEGMENT_MS, SEGMENT_MS, bitrate, MediaFixtures.SAMPLE_RATE), "audio/mp4",
+            firstByteDelayMs, bytesPerSecond);
+      }
+    }
+    manifest.append("</AdaptationSet></Period></MPD>\n");
+    server.setFile("/dash/audio.mpd", text(manifest.toString()), "application/dash+xml",
+        firstByteDelayMs, bytesPerSecond);
+  }
+
+  private static byte[] text(String text) {
+    return text.getBytes(UTF_8);
+  }
+
+  private static final TextRenderer TEXT_RENDERER = new TextRenderer() {
+    @Override
+    public void onCues(List<Cue> cues) {}
+  };
+}
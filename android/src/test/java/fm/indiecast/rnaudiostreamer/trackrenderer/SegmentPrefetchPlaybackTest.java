@@ -0,0 +1,151 @@
+package fm.indiecast.rnaudiostreamer.trackrenderer;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.google.android.exoplayer.metadata.MetadataTrackRenderer;
+import com.google.android.exoplayer.metadata.id3.Id3Frame;
+import com.google.android.exoplayer.text.Cue;
+import com.google.android.exoplayer.text.TextRenderer;
+import com.google.android.exoplayer.upstream.Allocator;
+
+import fm.indiecast.rnaudiostreamer.BufferingPolicy;
+import fm.indiecast.rnaudiostreamer.upstream.Benchmark;
+import fm.indiecast.rnaudiostreamer.upstream.DefaultDataSourceFactory;
+import fm.indiecast.rnaudiostreamer.upstream.EwmaBandwidthMeter;
+import fm.indiecast.rnaudiostreamer.upstream.LocalHttpServer;
+import fm.indiecast.rnaudiostreamer.upstream.OkHttpStack;
+import fm.indiecast.rnaudiostreamer.upstream.PooledAllocator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Plays short HLS segments from a server that is slow to answer each request, faster than real
+ * time, with and without segments prefetched, and compares how fast the track loads and how long
+ * playback stops to rebuffer.
+ */
+// Robolectric provides the main looper the builders and sample sources post to, and the
+// framework classes the renderers are created with.
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class SegmentPrefetchPlaybackTest {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  // Each segment waits longer for its first byte than its body takes, as over a distant CDN.
+  private static final long FIRST_BYTE_DELAY_MS = 300;
+  private static final int BYTES_PER_SECOND = 48 * 1024;
+  private static final int QUOTA_BYTES = 6 * 1024 * 1024;
+  private static final int SEGMENT_MS = 2000;
+  private static final int SEGMENT_COUNT = 12;
+  private static final int BITRATE = 64000;
+  // Loading one segment at a time cannot keep up with playback at this speed.
+  private static final int SPEED = 5;
+
+  private LocalHttpServer server;
+  private Handler eventHandler;
+  private int segmentBytes;
+
+  @Before
+  public void setUp() throws IOException {
+    server = new LocalHttpServer();
+    serve(0, 0);
+    server.start();
+    eventHandler = new Handler(Looper.getMainLooper());
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    server.shutdown();
+  }
+
+  @Test
+  public void prefetchedSegments() throws Exception {
+    // The first playback loads and initializes the classes, which is not what is measured.
+    play(BufferingPolicy.DEFAULT);
+    serve(FIRST_BYTE_DELAY_MS, BYTES_PER_SECOND);
+
+    PlaybackHarness.Result prefetch = play(BufferingPolicy.DEFAULT);
+    PlaybackHarness.Result none = play(withoutPrefetch(BufferingPolicy.DEFAULT));
+
+    report("prefetching " + BufferingPolicy.DEFAULT.prefetchSegments + " segments", prefetch);
+    report("without prefetching", none);
+    assertTrue(none.loadedMs >= 0 && prefetch.loadedMs >= 0);
+    assertTrue(none.rebufferCount > 0);
+    assertTrue(prefetch.rebufferMs + " ms rebuffering with prefetching, " + none.rebufferMs
+        + " ms without", prefetch.rebufferMs < none.rebufferMs);
+    assertTrue(prefetch.loadedMs + " ms to load with prefetching, " + none.loadedMs
+        + " ms without", prefetch.loadedMs * 4 < none.loadedMs * 3);
+  }
+
+  /**
+   * Plays the whole track from a new stack, so that no connection is left from an earlier
+   * playback, with the renderers the module builds.
+   */
+  private PlaybackHarness.Result play(BufferingPolicy bufferingPolicy) throws Exception {
+    DefaultDataSourceFactory dataSourceFactory = new DefaultDataSourceFactory(
+        RuntimeEnvironment.application, new OkHttpStack("test"), null, null);
+    Allocator allocator = new PooledAllocator(64 * 1024, 24 * 1024 * 1024).newQuota(QUOTA_BYTES);
+    HlsRenderersBuilder builder = new HlsRenderersBuilder(RuntimeEnvironment.application,
+        dataSourceFactory, server.getUrl("/hls/audio.m3u8"), eventHandler, null, null,
+        TEXT_RENDERER, METADATA_RENDERER, new EwmaBandwidthMeter(null, null), null, allocator);
+    BufferingPolicy quotaPolicy = bufferingPolicy.forQuota(QUOTA_BYTES);
+    builder.setAudioOnly(true);
+    builder.setBufferingPolicy(quotaPolicy);
+    return new PlaybackHarness(quotaPolicy).play(builder, allocator, SEGMENT_COUNT * SEGMENT_MS,
+        SPEED);
+  }
+
+  private void report(String name, PlaybackHarness.Result result) {
+    long bytesPerSecond = SEGMENT_COUNT * segmentBytes * 1000L / Math.max(1, result.loadedMs);
+    Benchmark.report("HLS playback " + name, bytesPerSecond + " bytes/s loaded, "
+        + result.rebufferCount + " rebuffers, " + result.rebufferMs + " ms rebuffering");
+  }
+
+  private void serve(long firstByteDelayMs, int bytesPerSecond) {
+    byte[] segment = MediaFixtures.adts(SEGMENT_MS, BITRATE);
+    segmentBytes = segment.length;
+    StringBuilder playlist = new StringBuilder("#EXTM3U\n#EXT-X-TARGETDURATION:2\n"
+        + "#EXT-X-MEDIA-SEQUENCE:0\n");
+    for (int i = 0; i < SEGMENT_COUNT; i++) {
+      playlist.append("#EXTINF:2,\nsegment").append(i).append(".aac\n");
+      server.setFile("/hls/segment" + i + ".aac", segment, "audio/aac", firstByteDelayMs,
+          bytesPerSecond);
+    }
+    playlist.append("#EXT-X-ENDLIST\n");
+    server.setFile("/hls/audio.m3u8", text(playlist.toString()), "application/x-mpegURL",
+        firstByteDelayMs, bytesPerSecond);
+  }
+
+  private static BufferingPolicy withoutPrefetch(BufferingPolicy policy) {
+    return new BufferingPolicy(policy.startBufferMs, policy.rebufferMs, policy.lowWatermarkMs,
+        policy.highWatermarkMs, policy.maxBufferBytes, policy.liveEdgeLatencyMs, 0);
+  }
+
+  private static byte[] text(String text) {
+    return text.getBytes(UTF_8);
+  }
+
+  private static final TextRenderer TEXT_RENDERER = new TextRenderer() {
+    @Override
+    public void onCues(List<Cue> cues) {}
+  };
+
+  private static final MetadataTrackRenderer.MetadataRenderer<List<Id3Frame>> METADATA_RENDERER =
+      new MetadataTrackRenderer.MetadataRenderer<List<Id3Frame>>() {
+        @Override
+        public void onMetadata(List<Id3Frame> metadata) {}
+      };
+}
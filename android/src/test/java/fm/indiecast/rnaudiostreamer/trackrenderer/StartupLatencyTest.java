@@ -0,0 +1,257 @@
+package fm.indiecast.rnaudiostreamer.trackrenderer;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.google.android.exoplayer.metadata.MetadataTrackRenderer;
+import com.google.android.exoplayer.metadata.id3.Id3Frame;
+import com.google.android.exoplayer.text.Cue;
+import com.google.android.exoplayer.text.TextRenderer;
+import com.google.android.exoplayer.upstream.Allocator;
+
+import fm.indiecast.rnaudiostreamer.BufferingPolicy;
+import fm.indiecast.rnaudiostreamer.TrackRenderersBuilder;
+import fm.indiecast.rnaudiostreamer.upstream.Benchmark;
+import fm.indiecast.rnaudiostreamer.upstream.DataSourceFactory;
+import fm.indiecast.rnaudiostreamer.upstream.DefaultDataSourceFactory;
+import fm.indiecast.rnaudiostreamer.upstream.EwmaBandwidthMeter;
+import fm.indiecast.rnaudiostreamer.upstream.LocalHttpServer;
+import fm.indiecast.rnaudiostreamer.upstream.OkHttpStack;
+import fm.indiecast.rnaudiostreamer.upstream.PooledAllocator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Times how long each renderers builder, set up as the module sets it up, takes to get a player
+ * to PLAYING from a server that is slow to connect and to answer.
+ * <p>
+ * No startup can beat its latency floor: one connection, and one answer for each request it waits
+ * on. Startups are checked against that floor rather than against fixed budgets, so that the
+ * checks hold on fast and slow machines alike. Their times go to the benchmark report.
+ */
+// Robolectric provides the main looper the builders and sample sources post to, and the
+// framework classes the renderers are created with.
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class StartupLatencyTest {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  // Like the DNS lookup and handshakes of a connection over a mobile network.
+  private static final long CONNECTION_DELAY_MS = 300;
+  private static final long FIRST_BYTE_DELAY_MS = 100;
+  private static final int BYTES_PER_SECOND = 256 * 1024;
+  // Parsing, building the renderers and extracting the first samples may take as long as the
+  // floor itself, which is several times what they take on a development machine.
+  private static final int MAX_STARTUP_TO_FLOOR = 2;
+  private static final int QUOTA_BYTES = 6 * 1024 * 1024;
+  private static final int SEGMENT_MS = 10000;
+  private static final int SEGMENT_COUNT = 3;
+  private static final int BITRATE = 64000;
+
+  private LocalHttpServer server;
+  private Handler eventHandler;
+
+  @Before
+  public void setUp() throws IOException {
+    server = new LocalHttpServer();
+    server.start();
+    eventHandler = new Handler(Looper.getMainLooper());
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    server.shutdown();
+  }
+
+  @Test
+  public void progressive() throws Exception {
+    assertStartup("progressive", new String[] {"/episode.mp3"}, new BuilderFactory() {
+      @Override
+      public TrackRenderersBuilder create(DataSourceFactory dataSourceFactory,
+          EwmaBandwidthMeter bandwidthMeter, Allocator allocator) {
+        return new ExtractorRenderersBuilder(RuntimeEnvironment.application, dataSourceFactory,
+            Uri.parse(server.getUrl("/episode.mp3")), eventHandler, null, null, TEXT_RENDERER, null,
+            allocator);
+      }
+    });
+  }
+
+  @Test
+  public void hls() throws Exception {
+    assertStartup("HLS", new String[] {"/hls/audio.m3u8",
+        "/hls/segment0.aac"}, new BuilderFactory() {
+      @Override
+      public TrackRenderersBuilder create(DataSourceFactory dataSourceFactory,
+          EwmaBandwidthMeter bandwidthMeter, Allocator allocator) {
+        return new HlsRenderersBuilder(RuntimeEnvironment.application, dataSourceFactory,
+            server.getUrl("/hls/audio.m3u8"), eventHandler, null, null, TEXT_RENDERER,
+            METADATA_RENDERER, bandwidthMeter, null, allocator);
+      }
+    });
+  }
+
+  @Test
+  public void dash() throws Exception {
+    assertStartup("DASH", new String[] {"/dash/audio.mpd", "/dash/init.mp4",
+        "/dash/segment0.m4s"}, new BuilderFactory() {
+      @Override
+      public TrackRenderersBuilder create(DataSourceFactory dataSourceFactory,
+          EwmaBandwidthMeter bandwidthMeter, Allocator allocator) {
+        return new DashRenderersBuilder(RuntimeEnvironment.application, dataSourceFactory,
+            server.getUrl("/dash/audio.mpd"), eventHandler, null, null, null, TEXT_RENDERER,
+            bandwidthMeter, null, Looper.getMainLooper(), allocator);
+      }
+    });
+  }
+
+  @Test
+  public void smoothStreaming() throws Exception {
+    assertStartup("SmoothStreaming", new String[] {"/ss/audio.ism/Manifest",
+        "/ss/audio.ism/QualityLevels(64000)/Fragments(audio=0)"}, new BuilderFactory() {
+      @Override
+      public TrackRenderersBuilder create(DataSourceFactory dataSourceFactory,
+          EwmaBandwidthMeter bandwidthMeter, Allocator allocator) {
+        return new SmoothStreamingRenderersBuilder(RuntimeEnvironment.application,
+            dataSourceFactory, server.getUrl("/ss/audio.ism"), eventHandler, null, null, null,
+            TEXT_RENDERER, bandwidthMeter, null, Looper.getMainLooper(), allocator);
+      }
+    });
+  }
+
+  private interface BuilderFactory {
+
+    TrackRenderersBuilder create(DataSourceFactory dataSourceFactory,
+        EwmaBandwidthMeter bandwidthMeter, Allocator allocator);
+  }
+
+  /**
+   * Checks the startup of the builders of {@code builderFactory} against the latency floor of
+   * requesting {@code criticalPaths} one after the other.
+   */
+  private void assertStartup(String contentType, String[] criticalPaths,
+      BuilderFactory builderFactory) throws Exception {
+    // The first startup loads and initializes the classes, which is not what is measured.
+    serve(0, 0);
+    measureStartup(builderFactory);
+    serve(FIRST_BYTE_DELAY_MS, BYTES_PER_SECOND);
+    server.setConnectionDelayMs(CONNECTION_DELAY_MS);
+    server.requests.clear();
+
+    long startupMs = measureStartup(builderFactory);
+
+    for (String path : criticalPaths) {
+      assertTrue(path + " was not requested", server.requests.contains("GET " + path
+          + " HTTP/1.1"));
+    }
+    long floorMs = CONNECTION_DELAY_MS + criticalPaths.length * FIRST_BYTE_DELAY_MS;
+    Benchmark.report("Startup " + contentType, startupMs + " ms, latency floor " + floorMs + " ms");
+    assertTrue(contentType + " started in " + startupMs + " ms, below its latency floor of "
+        + floorMs + " ms", startupMs >= floorMs);
+    assertTrue(contentType + " started in " + startupMs + " ms, more than " + MAX_STARTUP_TO_FLOOR
+        + " times its latency floor of " + floorMs + " ms", startupMs < MAX_STARTUP_TO_FLOOR
+        * floorMs);
+  }
+
+  /**
+   * Plays from a new stack, so that no connection is left from an earlier startup, and returns
+   * how long the player took to start.
+   */
+  private long measureStartup(BuilderFactory builderFactory) throws Exception {
+    DataSourceFactory dataSourceFactory = new DefaultDataSourceFactory(
+        RuntimeEnvironment.application, new OkHttpStack("test"), null, null);
+    EwmaBandwidthMeter bandwidthMeter = new EwmaBandwidthMeter(null, null);
+    Allocator allocator = new PooledAllocator(64 * 1024, 24 * 1024 * 1024).newQuota(QUOTA_BYTES);
+    TrackRenderersBuilder builder = builderFactory.create(dataSourceFactory, bandwidthMeter,
+        allocator);
+    BufferingPolicy bufferingPolicy = BufferingPolicy.DEFAULT.forQuota(QUOTA_BYTES);
+    builder.setAudioOnly(true);
+    builder.setBufferingPolicy(bufferingPolicy);
+    builder.setAudioFormatEvaluator(new HybridFormatEvaluator(bandwidthMeter,
+        HybridFormatEvaluator.DEFAULT_INITIAL_BITRATE));
+    return new PlaybackHarness(bufferingPolicy).play(builder, allocator, 0, 1).startupMs;
+  }
+
+  private void serve(long firstByteDelayMs, int bytesPerSecond) {
+    server.setConnectionDelayMs(0);
+    int durationMs = SEGMENT_COUNT * SEGMENT_MS;
+    server.setFile("/episode.mp3", MediaFixtures.mp3(durationMs), "audio/mpeg", firstByteDelayMs,
+        bytesPerSecond);
+
+    StringBuilder playlist = new StringBuilder("#EXTM3U\n#EXT-X-TARGETDURATION:10\n"
+        + "#EXT-X-MEDIA-SEQUENCE:0\n");
+    byte[] segment = MediaFixtures.adts(SEGMENT_MS, BITRATE);
+    for (int i = 0; i < SEGMENT_COUNT; i++) {
+      playlist.append("#EXTINF:10,\nsegment").append(i).append(".aac\n");
+      server.setFile("/hls/segment" + i + ".aac", segment, "audio/aac", firstByteDelayMs,
+          bytesPerSecond);
+    }
+    playlist.append("#EXT-X-ENDLIST\n");
+    server.setFile("/hls/audio.m3u8", text(playlist.toString()), "application/x-mpegURL",
+        firstByteDelayMs, bytesPerSecond);
+
+    server.setFile("/dash/audio.mpd", text("<?xml version=\"1.0\"?>\n"
+        + "<MPD xmlns=\"urn:mpeg:dash:schema:mpd:2011\" type=\"static\""
+        + " mediaPresentationDuration=\"PT30S\" minBufferTime=\"PT2S\">\n"
+        + "<Period><AdaptationSet mimeType=\"audio/mp4\" codecs=\"mp4a.40.2\">\n"
+        + "<SegmentTemplate timescale=\"1000\" duration=\"10000\""
+        + " initialization=\"init.mp4\" media=\"segment$Number$.m4s\" startNumber=\"0\"/>\n"
+        + "<Representation id=\"audio\" bandwidth=\"64000\" audioSamplingRate=\"44100\"/>\n"
+        + "</AdaptationSet></Period></MPD>\n"), "application/dash+xml", firstByteDelayMs,
+        bytesPerSecond);
+    server.setFile("/dash/init.mp4", MediaFixtures.mp4Initialization(), "audio/mp4",
+        firstByteDelayMs, bytesPerSecond);
+    for (int i = 0; i < SEGMENT_COUNT; i++) {
+      server.setFile("/dash/segment" + i + ".m4s", MediaFixtures.mp4Fragment(i + 1,
+          i * SEGMENT_MS, SEGMENT_MS, BITRATE, MediaFixtures.SAMPLE_RATE), "audio/mp4",
+          firstByteDelayMs, bytesPerSecond);
+    }
+
+    server.setFile("/ss/audio.ism/Manifest", text("<?xml version=\"1.0\"?>\n"
+        + "<SmoothStreamingMedia MajorVersion=\"2\" MinorVersion=\"0\""
+        + " Duration=\"300000000\">\n"
+        + "<StreamIndex Type=\"audio\" Chunks=\"3\""
+        + " Url=\"QualityLevels({bitrate})/Fragments(audio={start time})\">\n"
+        + "<QualityLevel Index=\"0\" Bitrate=\"64000\" FourCC=\"AACL\" SamplingRate=\"44100\""
+        + " Channels=\"2\" BitsPerSample=\"16\" PacketSize=\"4\" AudioTag=\"255\""
+        + " CodecPrivateData=\"1210\"/>\n"
+        + "<c d=\"100000000\"/><c d=\"100000000\"/><c d=\"100000000\"/>\n"
+        + "</StreamIndex></SmoothStreamingMedia>\n"), "text/xml", firstByteDelayMs,
+        bytesPerSecond);
+    for (int i = 0; i < SEGMENT_COUNT; i++) {
+      // SmoothStreaming times fragments in units of 100 ns.
+      long startTime = i * SEGMENT_MS * 10000L;
+      server.setFile("/ss/audio.ism/QualityLevels(64000)/Fragments(audio=" + startTime + ")",
+          MediaFixtures.mp4Fragment(i + 1, i * SEGMENT_MS, SEGMENT_MS, BITRATE, 10000000),
+          "audio/mp4", firstByteDelayMs, bytesPerSecond);
+    }
+  }
+
+  private static byte[] text(String text) {
+    return text.getBytes(UTF_8);
+  }
+
+  private static final TextRenderer TEXT_RENDERER = new TextRenderer() {
+    @Override
+    public void onCues(List<Cue> cues) {}
+  };
+
+  private static final MetadataTrackRenderer.MetadataRenderer<List<Id3Frame>> METADATA_RENDERER =
+      new MetadataTrackRenderer.MetadataRenderer<List<Id3Frame>>() {
+        @Override
+        public void onMetadata(List<Id3Frame> metadata) {}
+      };
+}
@@ -0,0 +1,74 @@
+package fm.indiecast.rnaudiostreamer.upstream;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Times a task over several runs after warming it up, for the benchmarks of the hot paths.
+ * <p>
+ * Each result is the median rate of the runs. Nothing is asserted on it: the results of a test run
+ * are written to {@link #REPORT}, one "name: rate unit/s" line each and sorted by name, so that
+ * the reports of two commits can be compared.
+ */
+public final class Benchmark {
+
+  /** Relative to the module directory, which Gradle runs the unit tests in. */
+  public static final File REPORT = new File("build/reports/benchmarks.txt");
+
+  private static final int WARMUP_RUNS = 3;
+  private static final int RUNS = 9;
+
+  private static final Map<String, String> results = new TreeMap<>();
+
+  public interface Task {
+
+    void run() throws Exception;
+  }
+
+  private Benchmark() {}
+
+  /**
+   * Returns the median rate at which {@code task} processes {@code unitsPerRun} units, per second,
+   * and reports it.
+   */
+  public static double measure(String name, long unitsPerRun, String unit, Task task)
+      throws Exception {
+    for (int i = 0; i < WARMUP_RUNS; i++) {
+      task.run();
+    }
+    double[] rates = new double[RUNS];
+    for (int i = 0; i < RUNS; i++) {
+      long startNs = System.nanoTime();
+      task.run();
+      long elapsedNs = Math.max(1, System.nanoTime() - startNs);
+      rates[i] = unitsPerRun * 1e9 / elapsedNs;
+    }
+    Arrays.sort(rates);
+    double median = rates[RUNS / 2];
+    report(name, String.format(Locale.US, "%.0f %s/s", median, unit));
+    return median;
+  }
+
+  /**
+   * Adds a result that is not a rate, such as a duration or a count, to the report.
+   */
+  public static synchronized void report(String name, String result) throws IOException {
+    results.put(name, result);
+    REPORT.getParentFile().mkdirs();
+    Writer writer = new OutputStreamWriter(new FileOutputStream(REPORT), "UTF-8");
+    try {
+      for (Map.Entry<String, String> entry : results.entrySet()) {
+        writer.write(entry.getKey() + ": " + entry.getValue() + "\n");
+      }
+    } finally {
+      writer.close();
+    }
+  }
+}
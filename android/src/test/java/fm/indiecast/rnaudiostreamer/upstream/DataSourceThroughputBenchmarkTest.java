@@ -0,0 +1,106 @@
+package fm.indiecast.rnaudiostreamer.upstream;
+
+import android.net.Uri;
+
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.upstream.DataSource;
+import com.google.android.exoplayer.upstream.DataSpec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+// Robolectric provides android.net.Uri, SystemClock and the context local files are read with.
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class DataSourceThroughputBenchmarkTest {
+
+  private static final String PATH = "/episode.mp3";
+  private static final int LENGTH = 4 * 1024 * 1024;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final byte[] data = new byte[LENGTH];
+  private final byte[] buffer = new byte[16 * 1024];
+
+  private LocalHttpServer server;
+
+  @Before
+  public void setUp() throws IOException {
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) (i * 7);
+    }
+    server = new LocalHttpServer().setFile(PATH, data, "audio/mpeg");
+    server.start();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    server.shutdown();
+  }
+
+  @Test
+  public void okHttpStack() throws Exception {
+    measure("OkHttpStack", new OkHttpStack("test").createHttpDataSource(null),
+        server.getUrl(PATH));
+  }
+
+  @Test
+  public void defaultHttpStack() throws Exception {
+    measure("DefaultHttpStack", new DefaultHttpStack("test").createHttpDataSource(null),
+        server.getUrl(PATH));
+  }
+
+  @Test
+  public void localFile() throws Exception {
+    File file = folder.newFile("episode.mp3");
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(data);
+    } finally {
+      out.close();
+    }
+    DataSourceFactory factory = new DefaultDataSourceFactory(RuntimeEnvironment.application,
+        new OkHttpStack("test"), null, null);
+
+    measure("DefaultDataSourceFactory file", factory.createDataSource(null),
+        Uri.fromFile(file).toString());
+  }
+
+  private void measure(String name, final DataSource dataSource, String uri) throws Exception {
+    final DataSpec dataSpec = new DataSpec(Uri.parse(uri));
+    Benchmark.measure(name, LENGTH, "B", new Benchmark.Task() {
+      @Override
+      public void run() throws IOException {
+        assertEquals(LENGTH, readAll(dataSource, dataSpec));
+      }
+    });
+  }
+
+  private long readAll(DataSource dataSource, DataSpec dataSpec) throws IOException {
+    long total = 0;
+    try {
+      dataSource.open(dataSpec);
+      int read;
+      while ((read = dataSource.read(buffer, 0, buffer.length)) != C.RESULT_END_OF_INPUT) {
+        total += read;
+      }
+    } finally {
+      dataSource.close();
+    }
+    return total;
+  }
+}
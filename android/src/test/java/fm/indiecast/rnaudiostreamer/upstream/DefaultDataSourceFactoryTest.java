@@ -0,0 +1,181 @@
+package fm.indiecast.rnaudiostreamer.upstream;
+
+import android.net.Uri;
+
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.upstream.DataSource;
+import com.google.android.exoplayer.upstream.DataSpec;
+import com.google.android.exoplayer.upstream.HttpDataSource;
+import com.google.android.exoplayer.upstream.TransferListener;
+import com.google.android.exoplayer.upstream.cache.LeastRecentlyUsedCacheEvictor;
+import com.google.android.exoplayer.upstream.cache.SimpleCache;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+// Robolectric provides android.net.Uri, which the cache keys and content types are taken from.
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class DefaultDataSourceFactoryTest {
+
+  private static final String FILE_URI = "http://example.com/episode.mp3";
+  private static final String LIVE_URI = "http://example.com/live";
+  private static final String PLAYLIST_URI = "http://example.com/live/audio.m3u8";
+  private static final String SEGMENT_URI = "http://example.com/live/segment1.ts";
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private FakeHttpDataSource http;
+  private DefaultDataSourceFactory factory;
+
+  @Before
+  public void setUp() throws IOException {
+    final byte[] file = new byte[100 * 1024];
+    for (int i = 0; i < file.length; i++) {
+      file[i] = (byte) i;
+    }
+    byte[] playlist = ("#EXTM3U\n#EXT-X-TARGETDURATION:10\n#EXT-X-MEDIA-SEQUENCE:1\n"
+        + "#EXTINF:10,\nsegment1.ts\n").getBytes(Charset.forName("UTF-8"));
+    http = new FakeHttpDataSource()
+        .setResponse(FILE_URI, file)
+        .setResponse(LIVE_URI, file, true, Collections.<String, List<String>>emptyMap())
+        .setResponse(PLAYLIST_URI, playlist)
+        .setResponse(SEGMENT_URI, new byte[1024]);
+    HttpStack httpStack = new HttpStack() {
+      @Override
+      public HttpDataSource createHttpDataSource(TransferListener listener) {
+        // The tests read one source at a time.
+        return http.setTransferListener(listener);
+      }
+    };
+    SimpleCache cache = new SimpleCache(folder.newFolder(),
+        new LeastRecentlyUsedCacheEvictor(10 * 1024 * 1024));
+    factory = new DefaultDataSourceFactory(RuntimeEnvironment.application, httpStack, cache, null);
+  }
+
+  @Test
+  public void coldFileIsCachedOverASingleRequest() throws IOException {
+    byte[] first = readAll(factory.createProgressiveDataSource(null, null), FILE_URI);
+
+    assertEquals(1, http.getOpenCount());
+    assertEquals(first.length, factory.getNetworkBytesRead());
+    assertEquals(first.length, factory.getCacheSpace());
+  }
+
+  @Test
+  public void cachedFileIsReadWithoutNetwork() throws IOException {
+    byte[] first = readAll(factory.createProgressiveDataSource(null, null), FILE_URI);
+    long networkBytesRead = factory.getNetworkBytesRead();
+
+    byte[] second = readAll(factory.createProgressiveDataSource(null, null), FILE_URI);
+
+    assertArrayEquals(first, second);
+    assertEquals(1, http.getOpenCount());
+    assertEquals(networkBytesRead, factory.getNetworkBytesRead());
+    assertEquals(first.length, factory.getCacheBytesRead());
+  }
+
+  @Test
+  public void partlyCachedFileIsCompletedWithoutIcyMetadata() throws IOException {
+    DataSource dataSource = factory.createProgressiveDataSource(null, null);
+    dataSource.open(new DataSpec(Uri.parse(FILE_URI)));
+    byte[] buffer = new byte[4096];
+    long cachedLength = 0;
+    while (cachedLength < 10 * 1024) {
+      cachedLength += dataSource.read(buffer, 0, buffer.length);
+    }
+    dataSource.close();
+
+    byte[] data = readAll(factory.createProgressiveDataSource(null, null), FILE_URI);
+
+    assertEquals(100 * 1024, data.length);
+    assertEquals(2, http.getOpenCount());
+    assertEquals("1", http.openedRequestProperties.get(0).get("Icy-MetaData"));
+    assertNull(http.openedRequestProperties.get(1).get("Icy-MetaData"));
+    assertEquals(cachedLength, http.openedDataSpecs.get(1).position);
+  }
+
+  @Test
+  public void liveStreamIsNeverCached() throws IOException {
+    readAll(factory.createProgressiveDataSource(null, null), LIVE_URI);
+    readAll(factory.createProgressiveDataSource(null, null), LIVE_URI);
+
+    assertEquals(2, http.getOpenCount());
+    assertEquals(0, factory.getCacheSpace());
+    assertEquals("1", http.openedRequestProperties.get(1).get("Icy-MetaData"));
+  }
+
+  @Test
+  public void segmentsOfLivePlaylistsAreNotCached() throws IOException {
+    DataSource dataSource = factory.createDataSource(null);
+    readAll(dataSource, PLAYLIST_URI);
+    readAll(dataSource, SEGMENT_URI);
+    readAll(dataSource, SEGMENT_URI);
+
+    assertEquals(3, http.getOpenCount());
+    assertEquals(0, factory.getCacheSpace());
+  }
+
+  @Test
+  public void localFileIsNotCountedAsNetwork() throws IOException {
+    File file = folder.newFile("episode.mp3");
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(new byte[10 * 1024]);
+    } finally {
+      out.close();
+    }
+    final long[] bytesTransferred = new long[1];
+    TransferListener listener = new TransferListener() {
+      @Override
+      public void onTransferStart() {}
+
+      @Override
+      public void onBytesTransferred(int bytes) {
+        bytesTransferred[0] += bytes;
+      }
+
+      @Override
+      public void onTransferEnd() {}
+    };
+
+    byte[] data = readAll(factory.createDataSource(listener), Uri.fromFile(file).toString());
+
+    assertEquals(10 * 1024, data.length);
+    assertEquals(0, http.getOpenCount());
+    assertEquals(0, factory.getNetworkBytesRead());
+    assertEquals(0, bytesTransferred[0]);
+  }
+
+  private static byte[] readAll(DataSource dataSource, String uri) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      dataSource.open(new DataSpec(Uri.parse(uri)));
+      byte[] buffer = new byte[4096];
+      int read;
+      while ((read = dataSource.read(buffer, 0, buffer.length)) != C.RESULT_END_OF_INPUT) {
+        out.write(buffer, 0, read);
+      }
+    } finally {
+      dataSource.close();
+    }
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,128 @@
+package fm.indiecast.rnaudiostreamer.upstream;
+
+import android.os.SystemClock;
+
+import com.google.android.exoplayer.upstream.BandwidthMeter;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+// Robolectric provides a SystemClock that the tests can advance.
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class EwmaBandwidthMeterTest {
+
+  private static final long SEED = 1000000;
+
+  private EwmaBandwidthMeter meter;
+
+  @Before
+  public void setUp() {
+    meter = new EwmaBandwidthMeter(null, null);
+  }
+
+  @Test
+  public void noEstimateWithoutSeedOrMeasurement() {
+    assertEquals(BandwidthMeter.NO_ESTIMATE, meter.getBitrateEstimate());
+    assertFalse(meter.hasMeasuredEstimate());
+  }
+
+  @Test
+  public void seedIsReportedUntilEnoughIsMeasured() {
+    meter.setSeedEstimate(SEED);
+    transfer(500, 2000000);
+
+    assertEquals(SEED, meter.getBitrateEstimate());
+    assertFalse(meter.hasMeasuredEstimate());
+
+    for (int i = 0; i < 3; i++) {
+      transfer(1000, 2000000);
+    }
+
+    assertTrue(meter.hasMeasuredEstimate());
+    assertEquals(2000000, meter.getBitrateEstimate(), 2000000 * 0.01);
+  }
+
+  @Test
+  public void dropIsFollowedFasterThanARise() {
+    for (int i = 0; i < 10; i++) {
+      transfer(1000, 4000000);
+    }
+    transfer(2000, 1000000);
+    long afterDrop = meter.getBitrateEstimate();
+
+    // The fast average is halfway down after its half-life, the slow one still above 3 Mbps.
+    assertEquals(2500000, afterDrop, 2500000 * 0.01);
+
+    for (int i = 0; i < 30; i++) {
+      transfer(1000, 1000000);
+    }
+    transfer(2000, 4000000);
+    long afterRise = meter.getBitrateEstimate();
+
+    // The slow average holds the estimate down after a single burst.
+    assertTrue(Long.toString(afterRise), afterRise < 2000000);
+  }
+
+  @Test
+  public void shortTransfersAreIgnored() {
+    meter.setSeedEstimate(SEED);
+    for (int i = 0; i < 100; i++) {
+      meter.onTransferStart();
+      meter.onBytesTransferred(1024);
+      advance(100);
+      meter.onTransferEnd();
+    }
+
+    assertFalse(meter.hasMeasuredEstimate());
+    assertEquals(SEED, meter.getBitrateEstimate());
+  }
+
+  @Test
+  public void overlappingTransfersAreMeasuredTogether() {
+    // Two streams of 1 Mbps each for 4 seconds make one sample of 2 Mbps.
+    meter.onTransferStart();
+    meter.onTransferStart();
+    for (int i = 0; i < 4; i++) {
+      meter.onBytesTransferred(125000);
+      meter.onBytesTransferred(125000);
+      advance(1000);
+    }
+    meter.onTransferEnd();
+    meter.onTransferEnd();
+
+    assertEquals(2000000, meter.getBitrateEstimate(), 2000000 * 0.01);
+  }
+
+  @Test
+  public void resetDiscardsMeasurements() {
+    for (int i = 0; i < 5; i++) {
+      transfer(1000, 4000000);
+    }
+    assertTrue(meter.hasMeasuredEstimate());
+
+    meter.reset(SEED);
+
+    assertFalse(meter.hasMeasuredEstimate());
+    assertEquals(SEED, meter.getBitrateEstimate());
+  }
+
+  /**
+   * Reports a transfer of {@code durationMs} at {@code bitsPerSecond}.
+   */
+  private void transfer(int durationMs, long bitsPerSecond) {
+    meter.onTransferStart();
+    meter.onBytesTransferred((int) (bitsPerSecond * durationMs / 8000));
+    advance(durationMs);
+    meter.onTransferEnd();
+  }
+
+  private static void advance(long durationMs) {
+    SystemClock.setCurrentTimeMillis(SystemClock.elapsedRealtime() + durationMs);
+  }
+}
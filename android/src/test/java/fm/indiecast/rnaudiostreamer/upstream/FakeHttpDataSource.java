@@ -0,0 +1,188 @@
+package fm.indiecast.rnaudiostreamer.upstream;
+
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.upstream.DataSpec;
+import com.google.android.exoplayer.upstream.HttpDataSource;
+import com.google.android.exoplayer.upstream.TransferListener;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serves canned responses by uri, recording the requests made and failing reads where a test asks
+ * it to. Responses set without a uri serve every request, which lets tests that have no
+ * {@code android.net.Uri} open a {@link DataSpec} without one.
+ */
+final class FakeHttpDataSource implements HttpDataSource {
+
+  private final Map<String, Response> responses = new HashMap<>();
+  private final Map<String, String> requestProperties = new HashMap<>();
+
+  final List<DataSpec> openedDataSpecs = new ArrayList<>();
+  final List<Map<String, String>> openedRequestProperties = new ArrayList<>();
+
+  private TransferListener listener;
+  private int maxReadLength = Integer.MAX_VALUE;
+  private long failReadAt = -1;
+  private long readLatencyMs;
+  private int failOpenResponseCode;
+  private int failOpenCount;
+
+  private Response response;
+  private DataSpec dataSpec;
+  private long position;
+  private long end;
+
+  /**
+   * Serves {@code data} for {@code uri}, or for every uri without a response of its own if it is
+   * null. An unbounded response is served without a length, like a live stream.
+   */
+  FakeHttpDataSource setResponse(String uri, byte[] data, boolean unbounded,
+      Map<String, List<String>> headers) {
+    responses.put(uri, new Response(data, unbounded, headers));
+    return this;
+  }
+
+  FakeHttpDataSource setResponse(String uri, byte[] data) {
+    return setResponse(uri, data, false, Collections.<String, List<String>>emptyMap());
+  }
+
+  /** Notifies {@code listener} of the following transfers. */
+  FakeHttpDataSource setTransferListener(TransferListener listener) {
+    this.listener = listener;
+    return this;
+  }
+
+  /** Returns at most this many bytes from each read. */
+  FakeHttpDataSource setMaxReadLength(int maxReadLength) {
+    this.maxReadLength = maxReadLength;
+    return this;
+  }
+
+  /** Fails the first read that reaches {@code position} of the response, once. */
+  FakeHttpDataSource failReadAt(long position) {
+    this.failReadAt = position;
+    return this;
+  }
+
+  /** Waits this long in every read, like a slow network. */
+  FakeHttpDataSource setReadLatencyMs(long readLatencyMs) {
+    this.readLatencyMs = readLatencyMs;
+    return this;
+  }
+
+  /** Fails the following {@code count} opens with {@code responseCode}. */
+  FakeHttpDataSource failOpens(int responseCode, int count) {
+    this.failOpenResponseCode = responseCode;
+    this.failOpenCount = count;
+    return this;
+  }
+
+  int getOpenCount() {
+    return openedDataSpecs.size();
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws HttpDataSourceException {
+    openedDataSpecs.add(dataSpec);
+    openedRequestProperties.add(new HashMap<>(requestProperties));
+    String uri = dataSpec.uri == null ? null : dataSpec.uri.toString();
+    response = responses.containsKey(uri) ? responses.get(uri) : responses.get(null);
+    if (response == null) {
+      throw new InvalidResponseCodeException(404, null, dataSpec);
+    }
+    if (failOpenCount > 0) {
+      failOpenCount--;
+      response = null;
+      throw new InvalidResponseCodeException(failOpenResponseCode, null, dataSpec);
+    }
+    this.dataSpec = dataSpec;
+    position = dataSpec.position;
+    end = dataSpec.length == C.LENGTH_UNBOUNDED ? response.data.length
+        : Math.min(response.data.length, position + dataSpec.length);
+    if (listener != null) {
+      listener.onTransferStart();
+    }
+    return response.unbounded ? C.LENGTH_UNBOUNDED : end - position;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int readLength) throws HttpDataSourceException {
+    if (readLatencyMs > 0) {
+      try {
+        Thread.sleep(readLatencyMs);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (position == end) {
+      return C.RESULT_END_OF_INPUT;
+    }
+    int length = (int) Math.min(Math.min(readLength, maxReadLength), end - position);
+    if (failReadAt >= 0 && position + length > failReadAt) {
+      if (position == failReadAt) {
+        failReadAt = -1;
+        throw new HttpDataSourceException(new IOException("Connection reset"), dataSpec,
+            HttpDataSourceException.TYPE_READ);
+      }
+      length = (int) (failReadAt - position);
+    }
+    System.arraycopy(response.data, (int) position, buffer, offset, length);
+    position += length;
+    if (listener != null) {
+      listener.onBytesTransferred(length);
+    }
+    return length;
+  }
+
+  @Override
+  public void close() throws HttpDataSourceException {
+    if (response != null && listener != null) {
+      listener.onTransferEnd();
+    }
+    response = null;
+    dataSpec = null;
+  }
+
+  @Override
+  public String getUri() {
+    return dataSpec == null || dataSpec.uri == null ? null : dataSpec.uri.toString();
+  }
+
+  @Override
+  public Map<String, List<String>> getResponseHeaders() {
+    return response == null ? null : response.headers;
+  }
+
+  @Override
+  public void setRequestProperty(String name, String value) {
+    requestProperties.put(name, value);
+  }
+
+  @Override
+  public void clearRequestProperty(String name) {
+    requestProperties.remove(name);
+  }
+
+  @Override
+  public void clearAllRequestProperties() {
+    requestProperties.clear();
+  }
+
+  private static final class Response {
+
+    final byte[] data;
+    final boolean unbounded;
+    final Map<String, List<String>> headers;
+
+    Response(byte[] data, boolean unbounded, Map<String, List<String>> headers) {
+      this.data = data;
+      this.unbounded = unbounded;
+      this.headers = headers;
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package fm.indiecast.rnaudiostreamer.upstream;
+
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.upstream.DataSpec;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reads a stream through {@link IcyHttpDataSource} and through nothing, so that the cost of
+ * removing the metadata can be told apart from the cost of reading in the report.
+ */
+// Robolectric provides android.net.Uri and SystemClock.
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class IcyHttpDataSourceBenchmarkTest {
+
+  private static final int LENGTH = 4 * 1024 * 1024;
+  // A common Shoutcast interval.
+  private static final int META_INT = 16000;
+
+  private final byte[] buffer = new byte[16 * 1024];
+
+  @Test
+  public void metadataRemoval() throws Exception {
+    byte[] data = audio();
+    // Every interval of audio is followed by a title, the worst case for the parser.
+    byte[] metadata = "StreamTitle='Artist - Title';".getBytes("UTF-8");
+    int units = (metadata.length + 15) / 16;
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    for (int position = 0; position < LENGTH; position += META_INT) {
+      stream.write(data, position, Math.min(META_INT, LENGTH - position));
+      if (position + META_INT <= LENGTH) {
+        stream.write(units);
+        stream.write(metadata, 0, metadata.length);
+        stream.write(new byte[units * 16 - metadata.length], 0, units * 16 - metadata.length);
+      }
+    }
+    FakeHttpDataSource http = new FakeHttpDataSource().setResponse(null, stream.toByteArray(), true,
+        Collections.singletonMap("icy-metaint",
+            Collections.singletonList(Integer.toString(META_INT))));
+
+    measure("IcyHttpDataSource", new IcyHttpDataSource(http, null));
+  }
+
+  @Test
+  public void withoutMetadata() throws Exception {
+    FakeHttpDataSource http = new FakeHttpDataSource().setResponse(null, audio(), true,
+        Collections.<String, List<String>>emptyMap());
+
+    measure("IcyHttpDataSource without metadata", new IcyHttpDataSource(http, null));
+  }
+
+  private void measure(String name, final IcyHttpDataSource icy) throws Exception {
+    final DataSpec dataSpec = new DataSpec(null, 0, C.LENGTH_UNBOUNDED, null);
+    Benchmark.measure(name, LENGTH, "B", new Benchmark.Task() {
+      @Override
+      public void run() throws IOException {
+        assertEquals(LENGTH, readAll(icy, dataSpec));
+      }
+    });
+  }
+
+  private long readAll(IcyHttpDataSource dataSource, DataSpec dataSpec) throws IOException {
+    long total = 0;
+    try {
+      dataSource.open(dataSpec);
+      int read;
+      while ((read = dataSource.read(buffer, 0, buffer.length)) != C.RESULT_END_OF_INPUT) {
+        total += read;
+      }
+    } finally {
+      dataSource.close();
+    }
+    return total;
+  }
+
+  private static byte[] audio() {
+    byte[] data = new byte[LENGTH];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) (i * 7);
+    }
+    return data;
+  }
+}
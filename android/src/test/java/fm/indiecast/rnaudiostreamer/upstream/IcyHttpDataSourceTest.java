@@ -0,0 +1,199 @@
+package fm.indiecast.rnaudiostreamer.upstream;
+
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.upstream.DataSpec;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class IcyHttpDataSourceTest {
+
+  private static final int META_INT = 16;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+  private final List<String> titles = new ArrayList<>();
+  private final List<String> urls = new ArrayList<>();
+
+  private FakeHttpDataSource http;
+  private IcyHttpDataSource icy;
+
+  @Before
+  public void setUp() {
+    http = new FakeHttpDataSource();
+    icy = new IcyHttpDataSource(http, new IcyHttpDataSource.Listener() {
+      @Override
+      public void onIcyMetadata(String streamTitle, String streamUrl) {
+        titles.add(streamTitle);
+        urls.add(streamUrl);
+      }
+    });
+  }
+
+  @Test
+  public void metadataIsRemovedFromTheAudio() throws IOException {
+    byte[] audio = audio(4 * META_INT + 5);
+    setStream(audio, block("StreamTitle='One';".getBytes(UTF_8)), block(new byte[0]),
+        block("StreamTitle='Two';".getBytes(UTF_8)), block(new byte[0]));
+    // Small reads split the audio and the blocks at every position.
+    http.setMaxReadLength(3);
+
+    assertEquals(C.LENGTH_UNBOUNDED, icy.open(new DataSpec(null, 0, C.LENGTH_UNBOUNDED, null)));
+    assertArrayEquals(audio, readAll());
+    assertEquals(Arrays.asList("One", "Two"), titles);
+  }
+
+  @Test
+  public void titleAndUrlAreParsed() throws IOException {
+    setStream(audio(2 * META_INT),
+        block("StreamTitle='Artist - It's a title';StreamUrl='http://example.com/a.jpg';"
+            .getBytes(UTF_8)),
+        block("StreamTitle='';".getBytes(UTF_8)));
+
+    icy.open(new DataSpec(null, 0, C.LENGTH_UNBOUNDED, null));
+    readAll();
+
+    assertEquals(Arrays.asList("Artist - It's a title", null), titles);
+    assertEquals(Arrays.asList("http://example.com/a.jpg", null), urls);
+  }
+
+  @Test
+  public void repeatedMetadataIsReportedOnce() throws IOException {
+    byte[] metadata = "StreamTitle='Same';".getBytes(UTF_8);
+    setStream(audio(3 * META_INT), block(metadata), block(metadata), block(metadata));
+
+    icy.open(new DataSpec(null, 0, C.LENGTH_UNBOUNDED, null));
+    readAll();
+
+    assertEquals(Collections.singletonList("Same"), titles);
+  }
+
+  @Test
+  public void utf8MetadataIsDecoded() throws IOException {
+    setStream(audio(META_INT), block("StreamTitle='Beyonc\u00e9 \u2013 Halo';".getBytes(UTF_8)));
+
+    icy.open(new DataSpec(null, 0, C.LENGTH_UNBOUNDED, null));
+    readAll();
+
+    assertEquals(Collections.singletonList("Beyonc\u00e9 \u2013 Halo"), titles);
+  }
+
+  @Test
+  public void invalidUtf8FallsBackToLatin1() throws IOException {
+    setStream(audio(META_INT), block("StreamTitle='Caf\u00e9 M\u00fcller';".getBytes(ISO_8859_1)));
+
+    icy.open(new DataSpec(null, 0, C.LENGTH_UNBOUNDED, null));
+    readAll();
+
+    assertEquals(Collections.singletonList("Caf\u00e9 M\u00fcller"), titles);
+  }
+
+  @Test
+  public void streamsWithoutMetaIntPassThrough() throws IOException {
+    byte[] audio = audio(100);
+    http.setResponse(null, audio);
+
+    assertEquals(audio.length, icy.open(new DataSpec(null, 0, C.LENGTH_UNBOUNDED, null)));
+    assertArrayEquals(audio, readAll());
+    assertTrue(titles.isEmpty());
+  }
+
+  @Test
+  public void metadataRequestHeaderFollowsTheSetting() throws IOException {
+    http.setResponse(null, audio(10));
+
+    open();
+    icy.setMetadataRequested(false);
+    open();
+    icy.setMetadataRequested(true);
+    icy.clearAllRequestProperties();
+    open();
+
+    assertEquals("1", http.openedRequestProperties.get(0).get("Icy-MetaData"));
+    assertFalse(http.openedRequestProperties.get(1).containsKey("Icy-MetaData"));
+    assertEquals("1", http.openedRequestProperties.get(2).get("Icy-MetaData"));
+  }
+
+  @Test
+  public void streamEndingInsideABlockEnds() throws IOException {
+    byte[] stream = Arrays.copyOf(stream(audio(META_INT), block(
+        "StreamTitle='Cut';".getBytes(UTF_8))), META_INT + 4);
+    http.setResponse(null, stream, true, metaIntHeader());
+
+    icy.open(new DataSpec(null, 0, C.LENGTH_UNBOUNDED, null));
+
+    assertEquals(META_INT, readAll().length);
+    assertTrue(titles.isEmpty());
+  }
+
+  private void open() throws IOException {
+    icy.open(new DataSpec(null, 0, C.LENGTH_UNBOUNDED, null));
+    icy.close();
+  }
+
+  private byte[] readAll() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[7];
+    int read;
+    while ((read = icy.read(buffer, 0, buffer.length)) != C.RESULT_END_OF_INPUT) {
+      out.write(buffer, 0, read);
+    }
+    icy.close();
+    return out.toByteArray();
+  }
+
+  private void setStream(byte[] audio, byte[]... blocks) {
+    http.setResponse(null, stream(audio, blocks), true, metaIntHeader());
+  }
+
+  private static Map<String, List<String>> metaIntHeader() {
+    return Collections.singletonMap("icy-metaint",
+        Collections.singletonList(Integer.toString(META_INT)));
+  }
+
+  /**
+   * Interleaves the audio with a block after every {@link #META_INT} bytes of it.
+   */
+  private static byte[] stream(byte[] audio, byte[]... blocks) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (int i = 0; i * META_INT < audio.length; i++) {
+      int start = i * META_INT;
+      out.write(audio, start, Math.min(META_INT, audio.length - start));
+      if (start + META_INT <= audio.length && i < blocks.length) {
+        out.write(blocks[i], 0, blocks[i].length);
+      }
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Returns the metadata as a block: a length byte counting 16 byte units, then the metadata
+   * padded with zeros.
+   */
+  private static byte[] block(byte[] metadata) {
+    int units = (metadata.length + 15) / 16;
+    byte[] block = new byte[1 + units * 16];
+    block[0] = (byte) units;
+    System.arraycopy(metadata, 0, block, 1, metadata.length);
+    return block;
+  }
+
+  private static byte[] audio(int length) {
+    byte[] audio = new byte[length];
+    for (int i = 0; i < length; i++) {
+      audio[i] = (byte) (i * 31 + 7);
+    }
+    return audio;
+  }
+}
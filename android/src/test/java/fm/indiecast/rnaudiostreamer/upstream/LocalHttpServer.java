@@ -0,0 +1,243 @@
+package fm.indiecast.rnaudiostreamer.upstream;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Serves canned files over HTTP/1.1 on a loopback port, honoring range requests and keeping
+ * connections alive, for tests that go through a real HTTP stack.
+ * <p>
+ * Files can be served with a delay before the first byte and at a limited rate, like a distant
+ * server, and their first response can stall after a given number of bytes, like a connection
+ * left on a network the device moved away from. New connections can be delayed too, like the
+ * handshakes of a connection that is not reused.
+ */
+public final class LocalHttpServer {
+
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+  private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+  private final Map<String, File> files = new HashMap<>();
+  private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+
+  /** The request line and range header of every request, in order. */
+  public final List<String> requests = new CopyOnWriteArrayList<>();
+
+  private ServerSocket serverSocket;
+  private volatile long connectionDelayMs;
+
+  /**
+   * Serves {@code data} at {@code path}.
+   *
+   * @param firstByteDelayMs How long to wait before the response.
+   * @param bytesPerSecond The rate at which the body is sent, or 0 for no limit.
+   */
+  public synchronized LocalHttpServer setFile(String path, byte[] data, String contentType,
+      long firstByteDelayMs, int bytesPerSecond) {
+    files.put(path, new File(data, contentType, firstByteDelayMs, bytesPerSecond));
+    return this;
+  }
+
+  public LocalHttpServer setFile(String path, byte[] data, String contentType) {
+    return setFile(path, data, contentType, 0, 0);
+  }
+
+  /**
+   * Makes the next response for {@code path} stop sending after {@code bytes} of its body and
+   * hold the connection open until the client gives up on it.
+   */
+  public synchronized LocalHttpServer stallAfter(String path, int bytes) {
+    files.get(path).stallAfterBytes = bytes;
+    return this;
+  }
+
+  /** Waits this long before the first response on each connection. */
+  public LocalHttpServer setConnectionDelayMs(long connectionDelayMs) {
+    this.connectionDelayMs = connectionDelayMs;
+    return this;
+  }
+
+  public void start() throws IOException {
+    serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    Thread acceptThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        acceptConnections();
+      }
+    }, "LocalHttpServer");
+    acceptThread.setDaemon(true);
+    acceptThread.start();
+  }
+
+  public void shutdown() throws IOException {
+    serverSocket.close();
+    for (Socket socket : sockets) {
+      socket.close();
+    }
+  }
+
+  /** Returns the number of connections accepted so far. */
+  public int getConnectionCount() {
+    return sockets.size();
+  }
+
+  public String getUrl(String path) {
+    return "http://127.0.0.1:" + serverSocket.getLocalPort() + path;
+  }
+
+  private void acceptConnections() {
+    while (!serverSocket.isClosed()) {
+      final Socket socket;
+      try {
+        socket = serverSocket.accept();
+      } catch (IOException e) {
+        return;
+      }
+      sockets.add(socket);
+      Thread connectionThread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            sleep(connectionDelayMs);
+            serveConnection(socket);
+          } catch (IOException e) {
+            // The client closed the connection.
+          } finally {
+            closeQuietly(socket);
+          }
+        }
+      }, "LocalHttpServer:Connection");
+      connectionThread.setDaemon(true);
+      connectionThread.start();
+    }
+  }
+
+  private void serveConnection(Socket socket) throws IOException {
+    // Headers and body are written separately, which must not wait for the client's ack.
+    socket.setTcpNoDelay(true);
+    BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+        ASCII));
+    OutputStream out = socket.getOutputStream();
+    String requestLine;
+    while ((requestLine = reader.readLine()) != null && !requestLine.isEmpty()) {
+      String range = null;
+      String header;
+      while ((header = reader.readLine()) != null && !header.isEmpty()) {
+        if (header.toLowerCase().startsWith("range:")) {
+          range = header.substring("range:".length()).trim();
+        }
+      }
+      requests.add(range == null ? requestLine : requestLine + " " + range);
+      String path = requestLine.split(" ")[1];
+      if (!respond(path, range, reader, out)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Sends the response for {@code path}. Returns false if the connection must be closed.
+   */
+  private boolean respond(String path, String range, BufferedReader reader, OutputStream out)
+      throws IOException {
+    File file;
+    int stallAfterBytes;
+    synchronized (this) {
+      file = files.get(path);
+      stallAfterBytes = file == null ? -1 : file.stallAfterBytes;
+      if (file != null) {
+        file.stallAfterBytes = -1;
+      }
+    }
+    if (file == null) {
+      out.write("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n".getBytes(ASCII));
+      out.flush();
+      return true;
+    }
+    sleep(file.firstByteDelayMs);
+    int start = 0;
+    int end = file.data.length;
+    String status = "200 OK";
+    String contentRange = "";
+    Matcher matcher = range == null ? null : RANGE_PATTERN.matcher(range);
+    if (matcher != null && matcher.matches()) {
+      start = Integer.parseInt(matcher.group(1));
+      if (!matcher.group(2).isEmpty()) {
+        end = Math.min(end, Integer.parseInt(matcher.group(2)) + 1);
+      }
+      status = "206 Partial Content";
+      contentRange = "Content-Range: bytes " + start + "-" + (end - 1) + "/" + file.data.length
+          + "\r\n";
+    }
+    out.write(("HTTP/1.1 " + status + "\r\nContent-Type: " + file.contentType
+        + "\r\nContent-Length: " + (end - start) + "\r\n" + contentRange
+        + "Accept-Ranges: bytes\r\n\r\n").getBytes(ASCII));
+    int chunkSize = file.bytesPerSecond > 0 ? Math.max(1, file.bytesPerSecond / 20) : 16 * 1024;
+    for (int position = start; position < end; position += chunkSize) {
+      int length = Math.min(chunkSize, end - position);
+      if (stallAfterBytes >= 0 && position - start + length > stallAfterBytes) {
+        out.write(file.data, position, stallAfterBytes - (position - start));
+        out.flush();
+        // Hold the connection until the client closes it.
+        while (reader.read() != -1) {
+          // Nothing more is expected on this connection.
+        }
+        return false;
+      }
+      out.write(file.data, position, length);
+      out.flush();
+      if (file.bytesPerSecond > 0) {
+        sleep(length * 1000L / file.bytesPerSecond);
+      }
+    }
+    return true;
+  }
+
+  private static void sleep(long durationMs) throws IOException {
+    if (durationMs <= 0) {
+      return;
+    }
+    try {
+      Thread.sleep(durationMs);
+    } catch (InterruptedException e) {
+      throw new SocketException("Interrupted");
+    }
+  }
+
+  private static void closeQuietly(Socket socket) {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // Already closed.
+    }
+  }
+
+  private static final class File {
+
+    final byte[] data;
+    final String contentType;
+    final long firstByteDelayMs;
+    final int bytesPerSecond;
+    int stallAfterBytes = -1;
+
+    File(byte[] data, String contentType, long firstByteDelayMs, int bytesPerSecond) {
+      this.data = data;
+      this.contentType = contentType;
+      this.firstByteDelayMs = firstByteDelayMs;
+      this.bytesPerSecond = bytesPerSecond;
+    }
+  }
+}
@@ -0,0 +1,139 @@
+package fm.indiecast.rnaudiostreamer.upstream;
+
+import android.net.Uri;
+
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.upstream.DataSource;
+import com.google.android.exoplayer.upstream.DataSpec;
+import com.google.android.exoplayer.upstream.HttpDataSource;
+import com.google.android.exoplayer.upstream.HttpDataSource.HttpDataSourceException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+// Robolectric provides android.net.Uri and SystemClock.
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class OkHttpStackTest {
+
+  private static final String PATH = "/episode.mp3";
+  // Well below the stack's read timeout of 8 seconds.
+  private static final long MAX_HANDOFF_STALL_MS = 3000;
+
+  private final byte[] data = new byte[200 * 1024];
+
+  private LocalHttpServer server;
+  private OkHttpStack stack;
+
+  @Before
+  public void setUp() throws IOException {
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) (i * 7);
+    }
+    server = new LocalHttpServer().setFile(PATH, data, "audio/mpeg");
+    server.start();
+    stack = new OkHttpStack("test");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    server.shutdown();
+  }
+
+  @Test
+  public void networkChangeFailsStalledReadsAtOnce() throws Exception {
+    server.stallAfter(PATH, 1000);
+    HttpDataSource dataSource = stack.createHttpDataSource(null);
+    dataSource.open(new DataSpec(Uri.parse(server.getUrl(PATH))));
+    byte[] buffer = new byte[1000];
+    readFully(dataSource, buffer);
+
+    long changeAtMs = changeNetworkAfter(200);
+    try {
+      dataSource.read(buffer, 0, buffer.length);
+      fail();
+    } catch (HttpDataSourceException e) {
+      assertTrue(RetryPolicy.isRetryable(e));
+    } finally {
+      dataSource.close();
+    }
+    assertTrue(System.currentTimeMillis() - changeAtMs < 1000);
+  }
+
+  @Test
+  public void handoffResumesWhereTheStreamStalled() throws Exception {
+    server.stallAfter(PATH, 50000);
+    ReconnectingHttpDataSource dataSource = new ReconnectingHttpDataSource(
+        stack.createHttpDataSource(null), null);
+
+    long startMs = System.currentTimeMillis();
+    changeNetworkAfter(300);
+    byte[] read = readAll(dataSource, new DataSpec(Uri.parse(server.getUrl(PATH))));
+    long elapsedMs = System.currentTimeMillis() - startMs;
+
+    assertArrayEquals(data, read);
+    assertEquals(2, server.requests.size());
+    assertTrue(server.requests.get(1), server.requests.get(1).endsWith("bytes=50000-204799"));
+    assertTrue("Stalled for " + elapsedMs + " ms", elapsedMs < MAX_HANDOFF_STALL_MS);
+  }
+
+  @Test
+  public void networkChangeClosesIdleConnections() throws IOException {
+    readAll(stack.createHttpDataSource(null), new DataSpec(Uri.parse(server.getUrl(PATH))));
+    assertEquals(1, stack.getIdleConnectionCount());
+
+    stack.onNetworkChanged();
+
+    assertEquals(0, stack.getIdleConnectionCount());
+  }
+
+  /**
+   * Reports a network change from another thread after {@code delayMs}, returning when it will.
+   */
+  private long changeNetworkAfter(final long delayMs) {
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(delayMs);
+        } catch (InterruptedException e) {
+          return;
+        }
+        stack.onNetworkChanged();
+      }
+    });
+    thread.start();
+    return System.currentTimeMillis() + delayMs;
+  }
+
+  private static void readFully(DataSource dataSource, byte[] buffer) throws IOException {
+    int position = 0;
+    while (position < buffer.length) {
+      position += dataSource.read(buffer, position, buffer.length - position);
+    }
+  }
+
+  private static byte[] readAll(DataSource dataSource, DataSpec dataSpec) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    try {
+      dataSource.open(dataSpec);
+      int read;
+      while ((read = dataSource.read(buffer, 0, buffer.length)) != C.RESULT_END_OF_INPUT) {
+        out.write(buffer, 0, read);
+      }
+    } finally {
+      dataSource.close();
+    }
+    return out.toByteArray();
+  }
+}
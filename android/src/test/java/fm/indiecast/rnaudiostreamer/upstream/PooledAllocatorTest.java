@@ -0,0 +1,161 @@
+package fm.indiecast.rnaudiostreamer.upstream;
+
+import com.google.android.exoplayer.upstream.Allocation;
+import com.google.android.exoplayer.upstream.Allocator;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PooledAllocatorTest {
+
+  private static final int LENGTH = 1024;
+
+  @Test
+  public void releasedAllocationsAreReused() {
+    PooledAllocator pool = new PooledAllocator(LENGTH, 4 * LENGTH);
+    Allocator quota = pool.newQuota(4 * LENGTH);
+
+    Allocation first = quota.allocate();
+    quota.release(first);
+    Allocation second = quota.allocate();
+
+    assertSame(first, second);
+    assertEquals(1, pool.getMissCount());
+    assertEquals(1, pool.getHitCount());
+  }
+
+  @Test
+  public void allocationsAreSharedBetweenQuotas() {
+    PooledAllocator pool = new PooledAllocator(LENGTH, 4 * LENGTH);
+    Allocator first = pool.newQuota(4 * LENGTH);
+    Allocator second = pool.newQuota(4 * LENGTH);
+
+    Allocation allocation = first.allocate();
+    first.release(allocation);
+
+    assertSame(allocation, second.allocate());
+    assertEquals(LENGTH, pool.getAllocatedBytes());
+    assertEquals(0, first.getTotalBytesAllocated());
+    assertEquals(LENGTH, second.getTotalBytesAllocated());
+  }
+
+  @Test
+  public void retentionIsBoundedByMaxResidentBytes() {
+    PooledAllocator pool = new PooledAllocator(LENGTH, 2 * LENGTH);
+    Allocator quota = pool.newQuota(4 * LENGTH);
+    Allocation[] allocations = new Allocation[4];
+    for (int i = 0; i < allocations.length; i++) {
+      allocations[i] = quota.allocate();
+    }
+    assertEquals(4 * LENGTH, pool.getResidentBytes());
+
+    for (Allocation allocation : allocations) {
+      quota.release(allocation);
+    }
+
+    assertEquals(0, pool.getAllocatedBytes());
+    assertEquals(2 * LENGTH, pool.getResidentBytes());
+  }
+
+  @Test
+  public void trimDropsPooledAllocations() {
+    PooledAllocator pool = new PooledAllocator(LENGTH, 4 * LENGTH);
+    Allocator quota = pool.newQuota(4 * LENGTH);
+    Allocation first = quota.allocate();
+    Allocation second = quota.allocate();
+    quota.release(first);
+    quota.release(second);
+
+    pool.trim(LENGTH);
+
+    assertEquals(LENGTH, pool.getResidentBytes());
+  }
+
+  @Test
+  public void allocateBlocksAtQuotaUntilRelease() throws Exception {
+    PooledAllocator pool = new PooledAllocator(LENGTH, 4 * LENGTH);
+    final Allocator quota = pool.newQuota(2 * LENGTH);
+    final Allocation held = quota.allocate();
+    quota.allocate();
+    final CountDownLatch allocated = new CountDownLatch(1);
+    Thread loader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        quota.allocate();
+        allocated.countDown();
+      }
+    });
+    loader.start();
+
+    assertFalse(allocated.await(200, TimeUnit.MILLISECONDS));
+    assertEquals(2 * LENGTH, quota.getTotalBytesAllocated());
+
+    quota.release(held);
+
+    assertTrue(allocated.await(5, TimeUnit.SECONDS));
+    loader.join();
+    assertEquals(2 * LENGTH, quota.getTotalBytesAllocated());
+  }
+
+  @Test
+  public void allocateGrantsOneAllocationBelowItsLength() {
+    PooledAllocator pool = new PooledAllocator(LENGTH, 4 * LENGTH);
+    Allocator quota = pool.newQuota(LENGTH / 2);
+
+    assertNotNull(quota.allocate());
+  }
+
+  @Test
+  public void interruptedAllocateThrowsWithoutGoingPastTheQuota() throws Exception {
+    PooledAllocator pool = new PooledAllocator(LENGTH, 4 * LENGTH);
+    final Allocator quota = pool.newQuota(LENGTH);
+    quota.allocate();
+    final boolean[] interrupted = new boolean[1];
+    Thread loader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          quota.allocate();
+        } catch (PooledAllocator.AllocationInterruptedException e) {
+          interrupted[0] = Thread.currentThread().isInterrupted();
+        }
+      }
+    });
+    loader.start();
+    Thread.sleep(100);
+
+    loader.interrupt();
+    loader.join(5000);
+
+    assertFalse(loader.isAlive());
+    assertTrue(interrupted[0]);
+    assertEquals(LENGTH, quota.getTotalBytesAllocated());
+  }
+
+  @Test
+  public void blockWhileTotalBytesAllocatedExceedsIsBoundedByQuota() throws Exception {
+    PooledAllocator pool = new PooledAllocator(LENGTH, 4 * LENGTH);
+    final Allocator quota = pool.newQuota(LENGTH);
+    final Allocation held = quota.allocate();
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException e) {
+          return;
+        }
+        quota.release(held);
+      }
+    }).start();
+
+    // Returns once the allocation is released, although the requested limit is far larger.
+    quota.blockWhileTotalBytesAllocatedExceeds(0);
+
+    assertEquals(0, quota.getTotalBytesAllocated());
+  }
+}
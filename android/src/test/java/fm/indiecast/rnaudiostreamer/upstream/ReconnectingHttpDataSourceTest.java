@@ -0,0 +1,165 @@
+package fm.indiecast.rnaudiostreamer.upstream;
+
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.upstream.DataSpec;
+import com.google.android.exoplayer.upstream.HttpDataSource.InvalidResponseCodeException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ReconnectingHttpDataSourceTest {
+
+  private final byte[] data = new byte[100 * 1024];
+
+  private FakeHttpDataSource http;
+  private ReconnectingHttpDataSource reconnecting;
+  private int reconnectedCount;
+  private int reconnectFailedCount;
+
+  @Before
+  public void setUp() {
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) (i * 13);
+    }
+    http = new FakeHttpDataSource().setMaxReadLength(4096);
+    reconnecting = new ReconnectingHttpDataSource(http, new ReconnectingHttpDataSource.Listener() {
+      @Override
+      public void onReconnected(long recoveryMs) {
+        reconnectedCount++;
+      }
+
+      @Override
+      public void onReconnectFailed() {
+        reconnectFailedCount++;
+      }
+    });
+  }
+
+  @Test
+  public void readFailureResumesWithARangeRequest() throws IOException {
+    http.setResponse(null, data).failReadAt(40000);
+
+    byte[] read = readAll(new DataSpec(null, 0, C.LENGTH_UNBOUNDED, null));
+
+    assertArrayEquals(data, read);
+    assertEquals(2, http.getOpenCount());
+    DataSpec resumed = http.openedDataSpecs.get(1);
+    assertEquals(40000, resumed.position);
+    assertEquals(data.length - 40000, resumed.length);
+    assertEquals(1, reconnectedCount);
+  }
+
+  @Test
+  public void resumeKeepsTheOffsetOfTheOriginalRequest() throws IOException {
+    http.setResponse(null, data).failReadAt(30000);
+
+    byte[] read = readAll(new DataSpec(null, 10000, 50000, null));
+
+    assertArrayEquals(Arrays.copyOfRange(data, 10000, 60000), read);
+    DataSpec resumed = http.openedDataSpecs.get(1);
+    assertEquals(30000, resumed.position);
+    assertEquals(30000, resumed.length);
+  }
+
+  @Test
+  public void unboundedStreamAcceptingRangesResumes() throws IOException {
+    http.setResponse(null, data, true, header("Accept-Ranges", "bytes")).failReadAt(5000);
+
+    byte[] read = readAll(new DataSpec(null, 0, C.LENGTH_UNBOUNDED, null));
+
+    assertArrayEquals(data, read);
+    DataSpec resumed = http.openedDataSpecs.get(1);
+    assertEquals(5000, resumed.position);
+    assertEquals(C.LENGTH_UNBOUNDED, resumed.length);
+  }
+
+  @Test
+  public void liveStreamIsRestartedFromTheStart() throws IOException {
+    http.setResponse(null, data, true, Collections.<String, List<String>>emptyMap())
+        .failReadAt(5000);
+
+    byte[] read = readAll(new DataSpec(null, 0, C.LENGTH_UNBOUNDED, null));
+
+    // The fake replays the stream from its start, as a live server serves its current edge.
+    assertEquals(5000 + data.length, read.length);
+    assertEquals(0, http.openedDataSpecs.get(1).position);
+    assertEquals(1, reconnectedCount);
+  }
+
+  @Test
+  public void streamWithIcyMetadataIsRestartedEvenIfItAcceptsRanges() throws IOException {
+    Map<String, List<String>> headers = new HashMap<>(header("Accept-Ranges", "bytes"));
+    headers.putAll(header("icy-metaint", "16000"));
+    http.setResponse(null, data, true, headers).failReadAt(5000);
+
+    readAll(new DataSpec(null, 0, C.LENGTH_UNBOUNDED, null));
+
+    assertEquals(0, http.openedDataSpecs.get(1).position);
+  }
+
+  @Test
+  public void serverErrorsOnOpenAreRetried() throws IOException {
+    http.setResponse(null, data).failOpens(503, 2);
+
+    assertArrayEquals(data, readAll(new DataSpec(null, 0, C.LENGTH_UNBOUNDED, null)));
+    assertEquals(3, http.getOpenCount());
+    assertEquals(1, reconnectedCount);
+  }
+
+  @Test
+  public void clientErrorsOnOpenAreNotRetried() throws IOException {
+    http.setResponse(null, data).failOpens(404, 1);
+
+    try {
+      reconnecting.open(new DataSpec(null, 0, C.LENGTH_UNBOUNDED, null));
+      fail();
+    } catch (InvalidResponseCodeException e) {
+      assertEquals(404, e.responseCode);
+    }
+    assertEquals(1, http.getOpenCount());
+    assertEquals(0, reconnectFailedCount);
+  }
+
+  @Test
+  public void retriesGiveUpAfterFourAttempts() throws IOException {
+    http.setResponse(null, data).failOpens(503, 10);
+
+    try {
+      reconnecting.open(new DataSpec(null, 0, C.LENGTH_UNBOUNDED, null));
+      fail();
+    } catch (InvalidResponseCodeException e) {
+      assertEquals(503, e.responseCode);
+    }
+    assertEquals(4, http.getOpenCount());
+    assertEquals(1, reconnectFailedCount);
+  }
+
+  private byte[] readAll(DataSpec dataSpec) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    try {
+      reconnecting.open(dataSpec);
+      int read;
+      while ((read = reconnecting.read(buffer, 0, buffer.length)) != C.RESULT_END_OF_INPUT) {
+        out.write(buffer, 0, read);
+      }
+    } finally {
+      reconnecting.close();
+    }
+    return out.toByteArray();
+  }
+
+  private static Map<String, List<String>> header(String name, String value) {
+    return Collections.singletonMap(name, Collections.singletonList(value));
+  }
+}
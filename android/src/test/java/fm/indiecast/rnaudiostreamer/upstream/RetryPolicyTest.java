@@ -0,0 +1,70 @@
+package fm.indiecast.rnaudiostreamer.upstream;
+
+import com.google.android.exoplayer.ParserException;
+import com.google.android.exoplayer.upstream.HttpDataSource.HttpDataSourceException;
+import com.google.android.exoplayer.upstream.HttpDataSource.InvalidResponseCodeException;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+
+import static org.junit.Assert.*;
+
+public class RetryPolicyTest {
+
+  @Test
+  public void connectionFailuresAndTimeoutsAreRetryable() {
+    assertTrue(RetryPolicy.isRetryable(new IOException("Connection reset")));
+    assertTrue(RetryPolicy.isRetryable(new SocketTimeoutException()));
+    assertTrue(RetryPolicy.isRetryable(new HttpDataSourceException(new SocketTimeoutException(),
+        null, HttpDataSourceException.TYPE_READ)));
+    assertTrue(RetryPolicy.isRetryable(new RuntimeException(new IOException())));
+  }
+
+  @Test
+  public void serverErrorsAreRetryable() {
+    for (int responseCode : new int[] {408, 429, 500, 502, 503, 504}) {
+      assertTrue(Integer.toString(responseCode),
+          RetryPolicy.isRetryable(new InvalidResponseCodeException(responseCode, null, null)));
+    }
+  }
+
+  @Test
+  public void clientErrorsAreFinal() {
+    for (int responseCode : new int[] {400, 401, 403, 404, 410}) {
+      assertFalse(Integer.toString(responseCode),
+          RetryPolicy.isRetryable(new InvalidResponseCodeException(responseCode, null, null)));
+    }
+  }
+
+  @Test
+  public void parserFailuresAndCancellationsAreFinal() {
+    assertFalse(RetryPolicy.isRetryable(new ParserException("Bad playlist")));
+    assertFalse(RetryPolicy.isRetryable(new IOException(new ParserException("Bad playlist"))));
+    assertFalse(RetryPolicy.isRetryable(new InterruptedIOException()));
+    assertFalse(RetryPolicy.isRetryable(new HttpDataSourceException(new InterruptedIOException(),
+        null, HttpDataSourceException.TYPE_OPEN)));
+    assertFalse(RetryPolicy.isRetryable(new IllegalStateException()));
+    assertFalse(RetryPolicy.isRetryable(null));
+  }
+
+  @Test
+  public void backoffGrowsExponentiallyWithinTheUpperHalf() {
+    for (int retry = 0; retry < 10; retry++) {
+      long delayMs = Math.min(RetryPolicy.MAX_DELAY_MS, RetryPolicy.BASE_DELAY_MS << retry);
+      for (int i = 0; i < 1000; i++) {
+        long backoffMs = RetryPolicy.getBackoffMs(retry);
+        assertTrue(retry + ": " + backoffMs, backoffMs >= delayMs / 2);
+        assertTrue(retry + ": " + backoffMs, backoffMs <= delayMs);
+      }
+    }
+  }
+
+  @Test
+  public void backoffIsCappedForLateRetries() {
+    assertTrue(RetryPolicy.getBackoffMs(Integer.MAX_VALUE) <= RetryPolicy.MAX_DELAY_MS);
+    assertTrue(RetryPolicy.getBackoffMs(63) >= RetryPolicy.MAX_DELAY_MS / 2);
+  }
+}
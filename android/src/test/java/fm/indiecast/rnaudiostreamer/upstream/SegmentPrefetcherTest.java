@@ -0,0 +1,324 @@
+package fm.indiecast.rnaudiostreamer.upstream;
+
+import android.net.Uri;
+
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.hls.HlsMediaPlaylist;
+import com.google.android.exoplayer.upstream.Allocation;
+import com.google.android.exoplayer.upstream.Allocator;
+import com.google.android.exoplayer.upstream.DataSource;
+import com.google.android.exoplayer.upstream.DataSpec;
+import com.google.android.exoplayer.upstream.TransferListener;
+import com.google.android.exoplayer.upstream.UriDataSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+// Robolectric provides android.net.Uri, which the segment keys are taken from.
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class SegmentPrefetcherTest {
+
+  private static final int ALLOCATION_LENGTH = 64 * 1024;
+  private static final int SEGMENT_LENGTH = 100 * 1024;
+  private static final int SEGMENT_COUNT = 6;
+
+  private final PooledAllocator pool = new PooledAllocator(ALLOCATION_LENGTH, 4 * 1024 * 1024);
+
+  private PeakAllocator allocator;
+  private FakeDataSourceFactory factory;
+  private FakeHttpDataSource upstream;
+  private List<DataSpec> segments;
+  private SegmentPrefetcher prefetcher;
+
+  @Before
+  public void setUp() {
+    allocator = new PeakAllocator(pool.newQuota(8 * 1024 * 1024));
+    factory = new FakeDataSourceFactory();
+    upstream = new FakeHttpDataSource();
+    segments = new ArrayList<>();
+    for (int i = 0; i < SEGMENT_COUNT; i++) {
+      String uri = "http://example.com/audio/segment" + i + ".m4s";
+      byte[] data = new byte[SEGMENT_LENGTH];
+      for (int j = 0; j < data.length; j++) {
+        data[j] = (byte) (i + j);
+      }
+      factory.responses.add(new Object[] {uri, data});
+      upstream.setResponse(uri, data);
+      segments.add(new DataSpec(Uri.parse(uri), 0, C.LENGTH_UNBOUNDED, null));
+    }
+  }
+
+  @After
+  public void tearDown() {
+    if (prefetcher != null) {
+      prefetcher.release();
+    }
+  }
+
+  @Test
+  public void followingSegmentsAreServedWithoutUpstream() throws IOException {
+    prefetcher = new SegmentPrefetcher(factory, allocator, null, 4 * 1024 * 1024, 2);
+    prefetcher.setSegments("audio", segments);
+    DataSource dataSource = prefetcher.createDataSource(upstream);
+
+    for (int i = 0; i < SEGMENT_COUNT; i++) {
+      assertSegment(i, readAll(dataSource, segments.get(i)));
+    }
+
+    // Only the first segment is read from upstream, the others were loaded ahead.
+    assertEquals(1, upstream.getOpenCount());
+    assertEquals(SEGMENT_COUNT - 1, factory.createdCount.get());
+  }
+
+  @Test
+  public void prefetchesAreReportedToTheListener() throws IOException {
+    final AtomicLong bytesTransferred = new AtomicLong();
+    TransferListener listener = new TransferListener() {
+      @Override
+      public void onTransferStart() {}
+
+      @Override
+      public void onBytesTransferred(int bytes) {
+        bytesTransferred.addAndGet(bytes);
+      }
+
+      @Override
+      public void onTransferEnd() {}
+    };
+    prefetcher = new SegmentPrefetcher(factory, allocator, listener, 4 * 1024 * 1024, 2);
+    prefetcher.setSegments("audio", segments);
+    DataSource dataSource = prefetcher.createDataSource(upstream);
+
+    for (int i = 0; i < SEGMENT_COUNT; i++) {
+      readAll(dataSource, segments.get(i));
+    }
+
+    // Segments served from memory are not reported a second time.
+    assertEquals((SEGMENT_COUNT - 1) * SEGMENT_LENGTH, bytesTransferred.get());
+  }
+
+  @Test
+  public void prefetchesCountAgainstTheAllocatorUntilReleased() throws Exception {
+    prefetcher = new SegmentPrefetcher(factory, allocator, null, 4 * 1024 * 1024, 2);
+    prefetcher.setSegments("audio", segments);
+    DataSource dataSource = prefetcher.createDataSource(upstream);
+
+    readAll(dataSource, segments.get(0));
+    // Opening the next segment waits for it.
+    dataSource.open(segments.get(1));
+    assertTrue(allocator.getTotalBytesAllocated() >= 2 * ALLOCATION_LENGTH);
+    dataSource.close();
+
+    prefetcher.release();
+    awaitNoAllocations();
+    assertEquals(0, pool.getAllocatedBytes());
+  }
+
+  @Test
+  public void prefetchesStayWithinHalfOfTheBufferSize() throws Exception {
+    int bufferSize = 4 * ALLOCATION_LENGTH;
+    prefetcher = new SegmentPrefetcher(factory, allocator, null, bufferSize, 4);
+    prefetcher.setSegments("audio", segments);
+    DataSource dataSource = prefetcher.createDataSource(upstream);
+
+    // Segments that do not fit are read from upstream instead.
+    for (int i = 0; i < SEGMENT_COUNT; i++) {
+      assertSegment(i, readAll(dataSource, segments.get(i)));
+    }
+
+    assertTrue(allocator.peakBytes <= bufferSize / 2);
+    awaitNoAllocations();
+  }
+
+  @Test
+  public void seekDropsSegmentsBehindPlayback() throws Exception {
+    prefetcher = new SegmentPrefetcher(factory, allocator, null, 4 * 1024 * 1024, 1);
+    prefetcher.setSegments("audio", segments);
+    DataSource dataSource = prefetcher.createDataSource(upstream);
+
+    readAll(dataSource, segments.get(0));
+    assertSegment(4, readAll(dataSource, segments.get(4)));
+    assertSegment(5, readAll(dataSource, segments.get(5)));
+
+    // Segment 1 was loaded ahead of segment 0 and dropped on the seek, segment 5 ahead of 4.
+    assertEquals(2, upstream.getOpenCount());
+    awaitNoAllocations();
+  }
+
+  @Test
+  public void segmentsAreCreatedAroundTheRequestedOne() throws IOException {
+    final AtomicInteger created = new AtomicInteger();
+    List<DataSpec> longTrack = new AbstractList<DataSpec>() {
+      @Override
+      public DataSpec get(int location) {
+        created.incrementAndGet();
+        return location < SEGMENT_COUNT ? segments.get(location)
+            : new DataSpec(Uri.parse("http://example.com/audio/later" + location + ".m4s"), 0,
+                C.LENGTH_UNBOUNDED, null);
+      }
+
+      @Override
+      public int size() {
+        return 100000;
+      }
+    };
+    prefetcher = new SegmentPrefetcher(factory, allocator, null, 4 * 1024 * 1024, 2);
+    prefetcher.setSegments("audio", longTrack);
+    DataSource dataSource = prefetcher.createDataSource(upstream);
+
+    for (int i = 0; i < 3; i++) {
+      readAll(dataSource, segments.get(i));
+    }
+
+    assertTrue(created.get() < 20);
+  }
+
+  @Test
+  public void releasedPrefetcherReadsFromUpstream() throws IOException {
+    prefetcher = new SegmentPrefetcher(factory, allocator, null, 4 * 1024 * 1024, 2);
+    prefetcher.setSegments("audio", segments);
+    DataSource dataSource = prefetcher.createDataSource(upstream);
+    prefetcher.release();
+
+    assertSegment(0, readAll(dataSource, segments.get(0)));
+    assertSegment(1, readAll(dataSource, segments.get(1)));
+
+    assertEquals(2, upstream.getOpenCount());
+    assertEquals(0, factory.createdCount.get());
+  }
+
+  private void awaitNoAllocations() throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (allocator.getTotalBytesAllocated() > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(0, allocator.getTotalBytesAllocated());
+  }
+
+  private static void assertSegment(int index, byte[] data) {
+    assertEquals(SEGMENT_LENGTH, data.length);
+    for (int j = 0; j < data.length; j++) {
+      if (data[j] != (byte) (index + j)) {
+        fail("Segment " + index + " differs at " + j);
+      }
+    }
+  }
+
+  private static byte[] readAll(DataSource dataSource, DataSpec dataSpec) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    try {
+      dataSource.open(dataSpec);
+      int read;
+      while ((read = dataSource.read(buffer, 0, buffer.length)) != C.RESULT_END_OF_INPUT) {
+        out.write(buffer, 0, read);
+      }
+    } finally {
+      dataSource.close();
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Creates a separate fake for every prefetch, which load on several threads.
+   */
+  private static final class FakeDataSourceFactory implements DataSourceFactory {
+
+    final List<Object[]> responses = new ArrayList<>();
+    final AtomicInteger createdCount = new AtomicInteger();
+
+    @Override
+    public DataSource createDataSource(TransferListener listener) {
+      createdCount.incrementAndGet();
+      FakeHttpDataSource dataSource = new FakeHttpDataSource().setReadLatencyMs(1)
+          .setMaxReadLength(16 * 1024).setTransferListener(listener);
+      for (Object[] response : responses) {
+        dataSource.setResponse((String) response[0], (byte[]) response[1]);
+      }
+      return dataSource;
+    }
+
+    @Override
+    public DataSource createProgressiveDataSource(TransferListener listener,
+        IcyHttpDataSource.Listener icyListener) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public UriDataSource createManifestDataSource() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ManifestCache getManifestCache() {
+      return null;
+    }
+
+    @Override
+    public void onHlsMediaPlaylist(HlsMediaPlaylist playlist) {
+    }
+  }
+
+  /**
+   * Records the most bytes the wrapped allocator held at once.
+   */
+  private static final class PeakAllocator implements Allocator {
+
+    private final Allocator allocator;
+
+    volatile int peakBytes;
+
+    PeakAllocator(Allocator allocator) {
+      this.allocator = allocator;
+    }
+
+    @Override
+    public Allocation allocate() {
+      Allocation allocation = allocator.allocate();
+      synchronized (this) {
+        peakBytes = Math.max(peakBytes, allocator.getTotalBytesAllocated());
+      }
+      return allocation;
+    }
+
+    @Override
+    public void release(Allocation allocation) {
+      allocator.release(allocation);
+    }
+
+    @Override
+    public void trim(int targetSize) {
+      allocator.trim(targetSize);
+    }
+
+    @Override
+    public void blockWhileTotalBytesAllocatedExceeds(int limit) throws InterruptedException {
+      allocator.blockWhileTotalBytesAllocatedExceeds(limit);
+    }
+
+    @Override
+    public int getTotalBytesAllocated() {
+      return allocator.getTotalBytesAllocated();
+    }
+
+    @Override
+    public int getIndividualAllocationLength() {
+      return allocator.getIndividualAllocationLength();
+    }
+  }
+}